@@ -6,28 +6,13 @@ import org.rasterfun.generator.SimpleGenerator;
 import org.rasterfun.ui.MainUi;
 import org.rasterfun.ui.MainUiImpl;
 
-import java.util.concurrent.*;
+import java.util.concurrent.ExecutionException;
 
 /**
  *
  */
 public class RasterfunApplication {
 
-    private static final int MAXIMUM_THREAD_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 4;
-
-    private static final ExecutorService executor = new ThreadPoolExecutor(
-            0, // Initial thread count
-            MAXIMUM_THREAD_POOL_SIZE, // Limit maximum threads, no much point in having much more threads than cores that can calculate them.
-            60L, TimeUnit.SECONDS, // Timeout until idle thread cleared
-            new LinkedBlockingQueue<Runnable>()); // Queue tasks when there are no free threads for them
-
-    /**
-     * @return executor that can be used to run tasks in background threads.
-     */
-    public static ExecutorService getExecutor() {
-        return executor;
-    }
-
     public static void main(String[] args) throws ExecutionException, InterruptedException {
         /*
         List<Future<String>> futures = new ArrayList<Future<String>>();
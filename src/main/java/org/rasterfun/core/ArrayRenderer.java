@@ -0,0 +1,87 @@
+package org.rasterfun.core;
+
+import org.rasterfun.core.listeners.CalculationListener;
+
+/**
+ * Renderer for pictures whose values are stored in a float array.
+ */
+public interface ArrayRenderer extends Renderer {
+
+    /**
+     * Generates all pixels for the given picture.
+     * Pixels are stored in y major order, with the values for each channel directly following each other in a pixel.
+     * E.g. a width 3, height 2 picture with 2 channels a and b, will have the following data layout (where a01 is the value for the
+     * 'a' channel at the location x: 0, y: 1): a00,b00, a10,b10, a20,b20,   a01,b01, a11,b11, a21,b21.
+     * Renderers built for the planar layout instead expect each channel in a plane of its own, see PictureLayout.
+     *
+     * @param width width of the picture.
+     * @param height height of the picture.
+     * @param channelNames the names of the channels in the picture, in the order they are stored.
+     * @param pixelData an array with width * height * channelNames.length number of float entries.
+     * @param startX the x column to start calculating at.
+     * @param startY the y row to start calculating at.
+     * @param endX the x column to stop calculating before.
+     * @param endY the y row to stop calculating before.
+     * @param listener a listener should be notified about the progress of this calculation.
+     * @param calculatorIndex index of this calculator, used when reporting to the listener.
+     */
+    void calculatePixels(int width,
+                         int height,
+                         String[] channelNames,
+                         float[] pixelData,
+                         int startX,
+                         int startY,
+                         int endX,
+                         int endY,
+                         CalculationListener listener,
+                         int calculatorIndex);
+
+    /**
+     * Calculates the pixels of the given area that are on a grid with the specified stride, that is, the pixels
+     * whose x and y coordinates are both multiples of the stride.  Used for progressive rendering, where a picture is
+     * first calculated at a coarse stride and then refined.  Other pixels are not changed.
+     *
+     * @param stride distance between the calculated pixels, 1 calculates all pixels in the area.
+     * @param previousStride stride of an earlier pass whose pixels have already been calculated and should be skipped,
+     *                       or 0 to not skip any pixels.  Should be a multiple of stride.
+     * @see #calculatePixels for the other parameters.  Progress is reported as the number of calculated pixels.
+     */
+    void calculateSamples(int width,
+                          int height,
+                          String[] channelNames,
+                          float[] pixelData,
+                          int startX,
+                          int startY,
+                          int endX,
+                          int endY,
+                          int stride,
+                          int previousStride,
+                          CalculationListener listener,
+                          int calculatorIndex);
+
+    /**
+     * Calculates all pixels of one tile of a tiled picture, given the values of just that tile.
+     * The pixels get the coordinates they have in the whole picture, so the result is the same as when rendering
+     * the whole picture at once, and the whole picture can have more values than fit in an array.
+     *
+     * @param width width of the whole picture.
+     * @param height height of the whole picture.
+     * @param tileData an array with tileWidth * tileHeight * channelNames.length number of float entries,
+     *                 in the layout of the renderer.
+     * @param tileX the x column of the first pixel of the tile in the picture.
+     * @param tileY the y row of the first pixel of the tile in the picture.
+     * @param tileWidth width of the tile.
+     * @param tileHeight height of the tile.
+     * @see #calculatePixels for the other parameters.
+     */
+    void calculateTile(int width,
+                       int height,
+                       String[] channelNames,
+                       float[] tileData,
+                       int tileX,
+                       int tileY,
+                       int tileWidth,
+                       int tileHeight,
+                       CalculationListener listener,
+                       int calculatorIndex);
+}
@@ -0,0 +1,48 @@
+package org.rasterfun.core;
+
+import org.rasterfun.core.listeners.CalculationListener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Renderer for pictures whose values are stored in a ByteBuffer, see PictureFormat.usesBuffer.
+ */
+public interface BufferRenderer extends Renderer {
+
+    /**
+     * Calculates the pixels on a grid with the specified stride, like ArrayRenderer.calculateSamples, for a picture
+     * whose values are stored in a buffer in the native byte order, with the channel types of the picture format.
+     *
+     * @param pixelData buffer with the values of width * height pixels, accessed with absolute indexes.
+     */
+    void calculateSamples(int width,
+                          int height,
+                          String[] channelNames,
+                          ByteBuffer pixelData,
+                          int startX,
+                          int startY,
+                          int endX,
+                          int endY,
+                          int stride,
+                          int previousStride,
+                          CalculationListener listener,
+                          int calculatorIndex);
+
+    /**
+     * Calculates all pixels of one tile of a tiled picture whose tiles are stored in buffers,
+     * like ArrayRenderer.calculateTile.
+     *
+     * @param tileData buffer with the values of tileWidth * tileHeight pixels, accessed with absolute indexes.
+     * @see ArrayRenderer#calculateTile for the other parameters.
+     */
+    void calculateTile(int width,
+                       int height,
+                       String[] channelNames,
+                       ByteBuffer tileData,
+                       int tileX,
+                       int tileY,
+                       int tileWidth,
+                       int tileHeight,
+                       CalculationListener listener,
+                       int calculatorIndex);
+}
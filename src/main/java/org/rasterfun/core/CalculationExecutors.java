@@ -0,0 +1,222 @@
+package org.rasterfun.core;
+
+import org.rasterfun.core.tasks.PrioritizedTask;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pools used to run picture calculations, one for compiling renderers and one for rendering pictures,
+ * and the thread that notifies the listeners of the calculations.
+ *
+ * Compiling and rendering use separate pools, so that queued render tasks never delay the compilation of the
+ * renderers they are waiting for.  Each pool keeps a fixed number of threads busy while there is work in its queue,
+ * and lets idle threads exit after a while.  The threads are daemon threads, so they do not keep the application running.
+ *
+ * Listeners are notified in their own thread, so that render threads never wait for listener code.
+ *
+ * Queued render tasks are run in order of priority, see PrioritizedTask.  Tasks submitted to the render executor
+ * that are not PrioritizedTasks get the default priority.
+ *
+ * The default executors use one render thread per available processor, and one compile thread per two processors.
+ * The thread counts of the default executors can be changed with the rasterfun.renderThreads and
+ * rasterfun.compileThreads system properties.
+ */
+public final class CalculationExecutors {
+
+    /**
+     * System property with the number of render threads to use in the default executors.
+     */
+    public static final String RENDER_THREADS_PROPERTY = "rasterfun.renderThreads";
+
+    /**
+     * System property with the number of compile threads to use in the default executors.
+     */
+    public static final String COMPILE_THREADS_PROPERTY = "rasterfun.compileThreads";
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+    private static final int INITIAL_QUEUE_CAPACITY = 64;
+
+    // Higher priority first, then in the order the tasks were created
+    private static final Comparator<Runnable> PRIORITY_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable a, Runnable b) {
+            final int priorityA = getPriority(a);
+            final int priorityB = getPriority(b);
+            if (priorityA != priorityB) return priorityA > priorityB ? -1 : 1;
+
+            final long sequenceA = getSequenceNumber(a);
+            final long sequenceB = getSequenceNumber(b);
+            return sequenceA < sequenceB ? -1 : (sequenceA == sequenceB ? 0 : 1);
+        }
+
+        private int getPriority(Runnable task) {
+            return task instanceof PrioritizedTask ? ((PrioritizedTask<?>) task).getPriority() : PrioritizedTask.DEFAULT_PRIORITY;
+        }
+
+        private long getSequenceNumber(Runnable task) {
+            return task instanceof PrioritizedTask ? ((PrioritizedTask<?>) task).getSequenceNumber() : Long.MAX_VALUE;
+        }
+    };
+
+    private static final CalculationExecutors DEFAULT_EXECUTORS = createDefaultExecutors();
+
+    private final ThreadPoolExecutor compileExecutor;
+    private final ThreadPoolExecutor renderExecutor;
+    private final ScheduledThreadPoolExecutor eventExecutor;
+
+    /**
+     * @return the executors shared by all picture calculations that do not specify their own.
+     */
+    public static CalculationExecutors getDefault() {
+        return DEFAULT_EXECUTORS;
+    }
+
+    /**
+     * @param compileThreads number of threads used to compile renderers.
+     * @param renderThreads number of threads used to render pictures.
+     */
+    public CalculationExecutors(int compileThreads, int renderThreads) {
+        ParameterChecker.checkPositiveNonZeroInteger(compileThreads, "compileThreads");
+        ParameterChecker.checkPositiveNonZeroInteger(renderThreads, "renderThreads");
+
+        compileExecutor = createExecutor(compileThreads, "rasterfun-compile-", new LinkedBlockingQueue<Runnable>(), false);
+        renderExecutor = createExecutor(renderThreads, "rasterfun-render-",
+                                        new PriorityBlockingQueue<Runnable>(INITIAL_QUEUE_CAPACITY, PRIORITY_ORDER), true);
+        eventExecutor = new ScheduledThreadPoolExecutor(1, createThreadFactory("rasterfun-events-"));
+    }
+
+    /**
+     * @return executor used to compile renderers.
+     */
+    public ExecutorService getCompileExecutor() {
+        return compileExecutor;
+    }
+
+    /**
+     * @return executor used to render pictures.
+     */
+    public ExecutorService getRenderExecutor() {
+        return renderExecutor;
+    }
+
+    /**
+     * @return single threaded executor used to notify the listeners of calculations, in the order of the events.
+     */
+    public ScheduledExecutorService getEventExecutor() {
+        return eventExecutor;
+    }
+
+    /**
+     * @return number of threads used to compile renderers.
+     */
+    public int getCompileThreadCount() {
+        return compileExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return number of threads used to render pictures.
+     */
+    public int getRenderThreadCount() {
+        return renderExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Re-sorts the queued render tasks after the priorities of some PrioritizedTasks have changed.
+     */
+    public void reprioritize() {
+        final BlockingQueue<Runnable> queue = renderExecutor.getQueue();
+        final List<Runnable> queuedTasks = new ArrayList<Runnable>(queue.size());
+        queue.drainTo(queuedTasks);
+        queue.addAll(queuedTasks);
+    }
+
+    /**
+     * Stops accepting new tasks.  Already submitted tasks are still run.
+     * The default executors can not be shut down.
+     */
+    public void shutdown() {
+        if (this == DEFAULT_EXECUTORS) throw new IllegalStateException("The default executors can not be shut down.");
+
+        compileExecutor.shutdown();
+        renderExecutor.shutdown();
+        eventExecutor.shutdown();
+    }
+
+    private static ThreadFactory createThreadFactory(final String threadNamePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threadCount,
+                                                     String threadNamePrefix,
+                                                     BlockingQueue<Runnable> queue,
+                                                     final boolean prioritized) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threadCount, // Start a new thread for each task until all threads are in use
+                threadCount, // After that queue the tasks, there is no point in having more threads than cores
+                IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, // Timeout until idle thread cleared
+                queue,
+                createThreadFactory(threadNamePrefix)) {
+
+            // Wrap submitted tasks in prioritized tasks, so that they have a sequence number to keep them in order
+            @Override
+            protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+                if (prioritized) return new PrioritizedTask<T>(callable);
+                else return super.newTaskFor(callable);
+            }
+
+            @Override
+            protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+                if (prioritized) return new PrioritizedTask<T>(runnable, value);
+                else return super.newTaskFor(runnable, value);
+            }
+        };
+
+        // Also let the core threads exit when idle, as all threads are core threads
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static CalculationExecutors createDefaultExecutors() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int compileThreads = getThreadCountProperty(COMPILE_THREADS_PROPERTY, Math.max(1, processors / 2));
+        final int renderThreads = getThreadCountProperty(RENDER_THREADS_PROPERTY, processors);
+        return new CalculationExecutors(compileThreads, renderThreads);
+    }
+
+    private static int getThreadCountProperty(String property, int defaultValue) {
+        final String value = System.getProperty(property);
+        if (value == null) return defaultValue;
+
+        try {
+            final int threadCount = Integer.parseInt(value.trim());
+            return threadCount > 0 ? threadCount : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.rasterfun.core;
+
+import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.picture.Picture;
+import org.rasterfun.picture.PictureFormat;
+import org.rasterfun.picture.PictureStorage;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The number of bytes that pictures held in memory may take, shared by the picture calculations that use it.
+ *
+ * Picture calculations estimate the size of each picture from its renderer builder before creating it, and only
+ * create pictures in memory while they fit in the budget.  Pictures that do not fit are spilled to disk instead,
+ * see PictureCalculations.setMemoryBudget.
+ *
+ * A picture keeps its part of the budget until it is released, replaced by a calculation that was given it for reuse,
+ * or garbage collected.  Pictures stored in memory mapped files are paged in and out by the operating system,
+ * so they do not count towards the budget.  Heap and direct memory share the same budget.
+ *
+ * Thread safe.
+ */
+public final class MemoryBudget {
+
+    /**
+     * System property with the number of megabytes in the default budget.
+     */
+    public static final String MEMORY_BUDGET_PROPERTY = "rasterfun.memoryBudgetMegabytes";
+
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+
+    // Part of the maximum heap size that the default budget takes, leaves the rest for the other objects of the program
+    private static final long DEFAULT_HEAP_DIVISOR = 2;
+
+    private static final MemoryBudget DEFAULT_BUDGET = createDefaultBudget();
+
+    private final long limitBytes;
+
+    // Bytes reserved for pictures that are being created
+    private long reservedBytes = 0;
+
+    // Bytes taken by each picture, entries are removed when the pictures are garbage collected.
+    // Pictures do not override equals, so they are compared by identity.
+    private final Map<Picture, Long> pictureBytes = new WeakHashMap<Picture, Long>();
+
+    /**
+     * @return the budget shared by all picture calculations that do not specify their own.
+     *         Defaults to half of the maximum heap size, which can be changed with the rasterfun.memoryBudgetMegabytes
+     *         system property.
+     */
+    public static MemoryBudget getDefault() {
+        return DEFAULT_BUDGET;
+    }
+
+    /**
+     * @param limitBytes number of bytes the pictures held in memory may take.
+     */
+    public MemoryBudget(long limitBytes) {
+        if (limitBytes < 0) throw new IllegalArgumentException("The memory budget should not be negative, but it was " + limitBytes);
+        this.limitBytes = limitBytes;
+    }
+
+    /**
+     * @return estimated number of bytes the picture of the builder would take in memory.
+     */
+    public static long estimatePictureBytes(RendererBuilder builder) {
+        ParameterChecker.checkNotNull(builder, "builder");
+        return estimatePictureBytes(builder.getWidth(),
+                                    builder.getHeight(),
+                                    builder.getPictureChannels().size(),
+                                    builder.getPictureFormat());
+    }
+
+    /**
+     * @return estimated number of bytes a picture of the specified size and format would take in memory,
+     *         0 for pictures stored in memory mapped files.  The tiles of tiled pictures stay in memory once created,
+     *         so they are counted as a whole picture.
+     */
+    public static long estimatePictureBytes(int width, int height, int channelCount, PictureFormat format) {
+        ParameterChecker.checkNotNull(format, "format");
+        if (format.getStorage() == PictureStorage.MAPPED) return 0;
+
+        return (long) width * height * format.getChannelOffset(channelCount);
+    }
+
+    /**
+     * @return number of bytes the pictures held in memory may take.
+     */
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+
+    /**
+     * @return number of bytes taken by the pictures in the budget that have not been garbage collected,
+     *         and reserved for pictures that are being created.
+     */
+    public synchronized long getUsedBytes() {
+        long usedBytes = reservedBytes;
+        for (Long bytes : pictureBytes.values()) {
+            usedBytes += bytes;
+        }
+        return usedBytes;
+    }
+
+    /**
+     * @return number of bytes that can still be reserved.
+     */
+    public synchronized long getAvailableBytes() {
+        return Math.max(0, limitBytes - getUsedBytes());
+    }
+
+    /**
+     * Reserves memory for a picture that is about to be created, if there is enough left in the budget.
+     * The reservation should be passed to the created picture with addPicture, or returned with cancelReservation
+     * if the picture could not be created.
+     *
+     * @return true if the bytes were reserved, false if they would not fit in the budget.
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("The number of bytes to reserve should not be negative, but it was " + bytes);
+        if (bytes > getAvailableBytes()) return false;
+
+        reservedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Returns bytes reserved with tryReserve for a picture that was not created.
+     */
+    public synchronized void cancelReservation(long bytes) {
+        if (bytes < 0 || bytes > reservedBytes) throw new IllegalArgumentException("Can not cancel a reservation of " + bytes + " bytes, there are " + reservedBytes + " bytes reserved");
+        reservedBytes -= bytes;
+    }
+
+    /**
+     * Passes bytes reserved with tryReserve to the created picture, which keeps them until it is released
+     * or garbage collected.
+     */
+    public synchronized void addPicture(Picture picture, long bytes) {
+        ParameterChecker.checkNotNull(picture, "picture");
+        cancelReservation(bytes);
+
+        final Long previousBytes = pictureBytes.get(picture);
+        pictureBytes.put(picture, previousBytes == null ? bytes : previousBytes + bytes);
+    }
+
+    /**
+     * @return true if the picture has memory in this budget.
+     */
+    public synchronized boolean containsPicture(Picture picture) {
+        return pictureBytes.containsKey(picture);
+    }
+
+    /**
+     * Returns the memory of the picture to the budget, for example when the picture is no longer used,
+     * but may not be garbage collected for a while.  Does nothing if the picture is not in the budget.
+     */
+    public synchronized void releasePicture(Picture picture) {
+        pictureBytes.remove(picture);
+    }
+
+    private static MemoryBudget createDefaultBudget() {
+        final long defaultBytes = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR;
+        final String value = System.getProperty(MEMORY_BUDGET_PROPERTY);
+        if (value == null) return new MemoryBudget(defaultBytes);
+
+        long megabytes = -1;
+        try {
+            megabytes = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+
+        if (megabytes < 0 || megabytes > Long.MAX_VALUE / BYTES_PER_MEGABYTE) {
+            System.err.println("The system property " + MEMORY_BUDGET_PROPERTY + " should be a non negative number of megabytes, " +
+                               "but it was '" + value + "', using the default memory budget of " + defaultBytes / BYTES_PER_MEGABYTE + " megabytes instead");
+            return new MemoryBudget(defaultBytes);
+        }
+
+        return new MemoryBudget(megabytes * BYTES_PER_MEGABYTE);
+    }
+}
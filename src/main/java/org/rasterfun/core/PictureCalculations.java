@@ -1,32 +1,62 @@
 package org.rasterfun.core;
 
-import org.rasterfun.RasterfunApplication;
+import org.rasterfun.core.compiler.JaninoBackend;
+import org.rasterfun.core.compiler.RendererBackend;
+import org.rasterfun.core.compiler.RendererBatch;
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.RendererCache;
 import org.rasterfun.core.listeners.CalculationListener;
+import org.rasterfun.core.listeners.PictureCalculationsEventDispatcher;
 import org.rasterfun.core.listeners.PictureCalculationsListener;
 import org.rasterfun.core.listeners.PictureCalculationsListenerDelegate;
 import org.rasterfun.core.tasks.CompileTask;
+import org.rasterfun.core.tasks.PrioritizedTask;
 import org.rasterfun.core.tasks.RenderTask;
+import org.rasterfun.core.tasks.TileScheduler;
+import org.rasterfun.picture.BufferPicture;
 import org.rasterfun.picture.Picture;
+import org.rasterfun.picture.PictureFormat;
 import org.rasterfun.picture.PictureImpl;
+import org.rasterfun.picture.PictureStorage;
+import org.rasterfun.picture.TiledPicture;
 import org.rasterfun.utils.ParameterChecker;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
- * Represents the calculation of one or more pictures.  Reports total progress over all pictures.
+ * Represents the calculation of one or more pictures.  Reports total progress over all pictures,
+ * and keeps track of the progress of each picture.
  */
 public class PictureCalculations {
 
     public static final double DEFAULT_PREVIEW_IMAGE_SCALE_FACTOR = 0.1;
     public static final int DEFAULT_MIN_PREVIEW_IMAGE_SIZE = 8;
 
+    // Render priorities, previews are rendered first, then pictures that the user can see, then the other pictures.
+    private static final int PREVIEW_PRIORITY = PrioritizedTask.DEFAULT_PRIORITY + 2;
+    private static final int VISIBLE_PICTURE_PRIORITY = PrioritizedTask.DEFAULT_PRIORITY + 1;
+    private static final int PICTURE_PRIORITY = PrioritizedTask.DEFAULT_PRIORITY;
+
+    // Strides of the passes over a picture in progressive rendering, from coarse to fine
+    private static final int[] PROGRESSIVE_STRIDES = {16, 8, 4, 2, 1};
+
+    // Width and height of the tiles of pictures spilled to disk when they do not fit in the memory budget
+    private static final int SPILL_TILE_SIZE = 256;
+
     private final List<RendererBuilder> rendererBuilders = new ArrayList<RendererBuilder>();
     private final List<Picture> pictures = new ArrayList<Picture>();
     private final List<Picture> previews = new ArrayList<Picture>();
@@ -35,78 +65,35 @@ public class PictureCalculations {
     private final int minPreviewImageSize;
 
     private boolean started = false;
+    private boolean batchCompilation = true;
+    private boolean progressive = false;
+    private File mappedPictureDirectory = null;
+    private MemoryBudget memoryBudget = MemoryBudget.getDefault();
+    private RendererBackend rendererBackend = new JaninoBackend();
+    private CalculationExecutors executors = CalculationExecutors.getDefault();
+    // Indexes of the pictures visible to the user, or null if all are
+    private volatile Set<Integer> visiblePictures = null;
 
     private final PictureCalculationsListenerDelegate listeners = new PictureCalculationsListenerDelegate();
+    // Delivers the events to the listeners in the event thread, created when the calculation is started
+    private PictureCalculationsEventDispatcher events;
 
+    private final List<CompileFuture> compileFutures = new ArrayList<CompileFuture>();
     private final List<Future<Picture>> rendererFutures = new ArrayList<Future<Picture>>();
     private final List<RenderTask> renderTasks = new ArrayList<RenderTask>();
 
     private int calculationIndex;
-    private int totalPixels;
     private int totalPictures;
     private int slicesPerPreview;
     private int slicesPerPicture;
-    private AtomicInteger totalCompletedPixels = new AtomicInteger(0);
     private AtomicInteger totalCompletedPictures = new AtomicInteger(0);
     private AtomicIntegerArray pictureSlicesCompleted;
     private AtomicIntegerArray previewSlicesCompleted;
+    private final RenderProfile renderProfile = new RenderProfile();
+    // Pixels calculated for each picture, created when the calculation is started
+    private volatile RenderProgress renderProgress;
 
 
-    private final CalculationListener renderListener = new CalculationListener() {
-        @Override
-        public void onCalculationProgress(int calculationIndex, int completedPixels) {
-            final int totalCompleted = totalCompletedPixels.addAndGet(completedPixels);
-            float progress = (float) totalCompleted / totalPixels;
-            listeners.onProgress(calculationIndex, progress);
-        }
-
-        @Override
-        public void onPictureSliceReady(int calculationIndex, int pictureIndex, Picture picture, boolean isPreview) {
-
-            if (isPreview) {
-                final int previewSlicesReady = previewSlicesCompleted.incrementAndGet(pictureIndex);
-
-                // For increased sanity points..
-                assert previewSlicesReady <= slicesPerPreview :
-                        "We should not have more slices ready than what there can be in a preview picture.  " +
-                        "slicesPerPreview: " + slicesPerPreview + ", " +
-                        "previewSlicesReady:" + previewSlicesReady;
-
-                if (previewSlicesReady == slicesPerPreview) {
-                    // The picture is complete, notify listeners
-                    listeners.onPreviewReady(calculationIndex, pictureIndex, picture);
-                }
-            }
-            else {
-                final int pictureSlicesReady = pictureSlicesCompleted.incrementAndGet(pictureIndex);
-
-                // For increased sanity points..
-                assert pictureSlicesReady <= slicesPerPicture :
-                        "We should not have more slices ready than what there can be in a picture.  " +
-                        "slicesPerPicture: " + slicesPerPicture + ", " +
-                        "pictureSlicesReady:" + pictureSlicesReady;
-
-                if (pictureSlicesReady == slicesPerPicture) {
-                    // The picture is complete, notify listeners
-                    listeners.onPictureReady(calculationIndex, pictureIndex, picture);
-
-                    // Check if everything is complete
-                    final int currentlyCompletedPictures = totalCompletedPictures.incrementAndGet();
-                    if (currentlyCompletedPictures == totalPictures) {
-                        // Yep, notify
-                        listeners.onReady(calculationIndex, pictures);
-                    }
-                }
-            }
-
-        }
-
-        @Override
-        public void onError(int calculationIndex, String shortSummary, String longDescription, Throwable cause) {
-            listeners.onError(calculationIndex, shortSummary, longDescription, cause);
-        }
-    };
-
 
     /**
      * Creates a calculation to generate the specified picture, and a preview picture as well if they would be large enough.
@@ -180,7 +167,145 @@ public class PictureCalculations {
         this.minPreviewImageSize = minPreviewImageSize;
     }
 
+    /**
+     * @return true if the renderers of the pictures are compiled together in one compilation unit.
+     */
+    public boolean isBatchCompilation() {
+        return batchCompilation;
+    }
+
+    /**
+     * @param batchCompilation if true, the renderers of the pictures are compiled together in one compilation unit,
+     *                         instead of one by one.  Defaults to true.  Can only be changed before the calculation is started.
+     */
+    public void setBatchCompilation(boolean batchCompilation) {
+        if (started) throw new IllegalStateException("Can not change batch compilation, the calculation has already been started.");
+        this.batchCompilation = batchCompilation;
+    }
+
+    /**
+     * @return true if the pictures are rendered progressively, first at a coarse resolution and then refined.
+     */
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * @param progressive if true, each picture is rendered in passes from coarse to fine, calculating every 16th, 8th,
+     *                    4th, 2nd and finally every pixel.  After each coarse pass the listeners get onPictureRefined
+     *                    with the whole picture roughly drawn, and no pixel is calculated twice.  The coarse passes replace
+     *                    the preview pictures, which are not generated in progressive mode.
+     *                    Tiled pictures are rendered tile by tile, so calculations with tiled pictures, or with pictures
+     *                    spilled to disk, are not progressive.
+     *                    Defaults to false.  Can only be changed before the calculation is started.
+     */
+    public void setProgressive(boolean progressive) {
+        if (started) throw new IllegalStateException("Can not change progressive rendering, the calculation has already been started.");
+        this.progressive = progressive;
+    }
+
+    /**
+     * @return the directory that the files of pictures stored in memory mapped files are created in,
+     *         or null to use the default temporary file directory.
+     */
+    public File getMappedPictureDirectory() {
+        return mappedPictureDirectory;
+    }
+
+    /**
+     * @param mappedPictureDirectory the directory to create the files of pictures, or tiles of tiled pictures,
+     *                               with the PictureStorage.MAPPED storage in, and the files of pictures spilled to disk,
+     *                               or null to use the default temporary file directory.
+     *                               The files are deleted when the program exits.  Defaults to null.
+     *                               Can only be changed before the calculation is started.
+     */
+    public void setMappedPictureDirectory(File mappedPictureDirectory) {
+        if (started) throw new IllegalStateException("Can not change the picture file directory, the calculation has already been started.");
+        this.mappedPictureDirectory = mappedPictureDirectory;
+    }
+
+    /**
+     * @return the memory budget the pictures are created in.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget the memory budget to create the pictures in.  The size of each picture is estimated from its
+     *                     renderer builder before it is created, and pictures that do not fit in the remaining budget are
+     *                     spilled to disk: they are created as tiled pictures whose tiles are written to files when they
+     *                     have been rendered, so that only the tiles being rendered are kept in memory.
+     *                     Pictures passed in for reuse that are replaced are released from the budget.
+     *                     The pictures of a calculation are released with stopAndReleasePictures.
+     *                     Previews are small, and are not counted.
+     *                     Defaults to the shared MemoryBudget.getDefault().
+     *                     Can only be changed before the calculation is started.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        ParameterChecker.checkNotNull(memoryBudget, "memoryBudget");
+        if (started) throw new IllegalStateException("Can not change the memory budget, the calculation has already been started.");
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the backend used to create the renderers.
+     */
+    public RendererBackend getRendererBackend() {
+        return rendererBackend;
+    }
+
+    /**
+     * @param rendererBackend the backend used to create the renderers.  Defaults to a JaninoBackend, which compiles
+     *                        the generated source.  Can only be changed before the calculation is started.
+     */
+    public void setRendererBackend(RendererBackend rendererBackend) {
+        ParameterChecker.checkNotNull(rendererBackend, "rendererBackend");
+        if (started) throw new IllegalStateException("Can not change the renderer backend, the calculation has already been started.");
+        this.rendererBackend = rendererBackend;
+    }
+
+    /**
+     * @return the thread pools used to compile the renderers and render the pictures.
+     */
+    public CalculationExecutors getExecutors() {
+        return executors;
+    }
 
+    /**
+     * @param executors the thread pools used to compile the renderers and render the pictures.
+     *                  Defaults to the shared CalculationExecutors.getDefault().
+     *                  Can only be changed before the calculation is started.
+     */
+    public void setExecutors(CalculationExecutors executors) {
+        ParameterChecker.checkNotNull(executors, "executors");
+        if (started) throw new IllegalStateException("Can not change the executors, the calculation has already been started.");
+        this.executors = executors;
+    }
+
+    /**
+     * @return indexes of the pictures that are visible to the user, or null if all of them are.
+     */
+    public Set<Integer> getVisiblePictures() {
+        return visiblePictures;
+    }
+
+    /**
+     * Specifies which pictures the user can currently see.  Visible pictures are rendered before the others
+     * (previews are rendered before either).  Can be changed while the calculation is running, e.g. when the user
+     * pans or zooms the view, in which case the render tasks still waiting are re-ordered.
+     *
+     * @param visiblePictures indexes of the pictures visible to the user, or null if all of them are.  Defaults to null.
+     */
+    public void setVisiblePictures(Set<Integer> visiblePictures) {
+        // Avoid re-ordering the queue when nothing changed, e.g. when panning within the same pictures
+        final Set<Integer> oldVisiblePictures = this.visiblePictures;
+        if (oldVisiblePictures == null ? visiblePictures == null : oldVisiblePictures.equals(visiblePictures)) return;
+
+        this.visiblePictures = visiblePictures == null ? null : Collections.unmodifiableSet(new HashSet<Integer>(visiblePictures));
+
+        if (started) executors.reprioritize();
+    }
 
     /**
      * Starts the calculation of the picture.
@@ -205,9 +330,15 @@ public class PictureCalculations {
         started = true;
 
         this.calculationIndex = calculationIndex;
+        events = new PictureCalculationsEventDispatcher(listeners, executors.getEventExecutor());
 
         totalPictures = rendererBuilders.size();
 
+        // Tiled pictures are rendered one tile at a time, in a single pass
+        for (RendererBuilder builder : rendererBuilders) {
+            if (builder.getPictureFormat().isTiled()) progressive = false;
+        }
+
         // Create or reuse the needed pictures and preview pictures
         try {
             int pictureIndex = 0;
@@ -216,10 +347,11 @@ public class PictureCalculations {
                 final int      width        = builder.getWidth();
                 final int      height       = builder.getHeight();
                 final List<String> channels = builder.getPictureChannels();
+                final PictureFormat format  = builder.getPictureFormat();
 
                 // Check the passed in images, if any are missing or the wrong size then we re-create them
                 Picture picture = getPictureAtOrNull(pictures, pictureIndex);
-                picture = reuseOrRecreate(picture, name, width, height, channels);
+                picture = reuseOrRecreate(picture, name, width, height, channels, format, true);
                 pictures.set(pictureIndex, picture);
 
                 // Calculate preview size
@@ -229,7 +361,11 @@ public class PictureCalculations {
                 // Create or reuse preview if we should generate one
                 Picture preview = getPictureAtOrNull(previews, pictureIndex);
                 if (shouldGeneratePreview(previewWidth, previewHeight)) {
-                    preview = reuseOrRecreate(preview, name + " Preview", previewWidth, previewHeight, channels);
+                    // Previews are small, so they are not tiled, and previews of pictures stored in files are kept in memory
+                    final PictureFormat previewFormat = format.getStorage() == PictureStorage.MAPPED ?
+                                                        new PictureFormat(format.getLayout(), PictureStorage.DIRECT, format.getChannelTypes()) :
+                                                        format.getTileFormat();
+                    preview = reuseOrRecreate(preview, name + " Preview", previewWidth, previewHeight, channels, previewFormat, false);
                     previews.set(pictureIndex, preview);
                 }
                 else {
@@ -239,27 +375,18 @@ public class PictureCalculations {
                 pictureIndex++;
             }
         } catch (OutOfMemoryError outOfMemoryError) {
-            // Abort this calculation
-            pictures.clear();
-            previews.clear();
-
-            // Notify user
-            listeners.onError(calculationIndex,
-                              "Not enough memory for pictures",
-                              "The computer does not have enough memory to hold \n" +
-                              "all the pictures produced by this picture generator.  \n" +
-                              "Try reducing the number of generated images or their size",
-                              outOfMemoryError);
-
-            // Clear any preview images
-            for (int i = 0; i < totalPictures; i++) {
-                listeners.onPreviewReady(calculationIndex, i, null);
-                listeners.onPictureReady(calculationIndex, i, null);
-            }
-
-            // Force a garbage run
-            System.gc();
-
+            abortPictureCreation("Not enough memory for pictures",
+                                 "The computer does not have enough memory to hold \n" +
+                                 "all the pictures produced by this picture generator.  \n" +
+                                 "Try reducing the number of generated images or their size, \n" +
+                                 "or the memory budget of the calculation",
+                                 outOfMemoryError);
+            return;
+        } catch (IOException e) {
+            abortPictureCreation("Could not create files for pictures",
+                                 "The files to store the pictures produced by this picture generator \n" +
+                                 "could not be created: " + e.getMessage(),
+                                 e);
             return;
         }
 
@@ -267,79 +394,143 @@ public class PictureCalculations {
         discardDownToLength(pictures, rendererBuilders.size());
         discardDownToLength(previews, rendererBuilders.size());
 
-        // Calculate total pixels to calculate, so that we can estimate progress
+        // Pictures spilled to disk are tiled, and rendered one tile at a time in a single pass
         for (Picture picture : pictures) {
-            if (picture != null) totalPixels += picture.getWidth() * picture.getHeight();
+            if (picture instanceof TiledPicture) progressive = false;
         }
 
-        // Calculate number of slices to divide the previews and pictures in for processing
+        // Calculate total pixels to calculate, so that we can estimate progress
+        final long[] totalPixels = new long[pictures.size()];
+        for (int i = 0; i < pictures.size(); i++) {
+            final Picture picture = pictures.get(i);
+            if (picture != null) totalPixels[i] = (long) picture.getWidth() * picture.getHeight();
+        }
+        renderProgress = new RenderProgress(totalPixels);
+
+        // Calculate number of tasks to render each preview and picture with.  The tasks take tiles of the picture
+        // as they go, so each picture gets a task for each render thread, to let all threads help with the last pictures.
+        // In progressive rendering each pass over a picture has its own tasks.
+        final int tasksPerPass = executors.getRenderThreadCount();
         slicesPerPreview = 1; // Just do one task per preview for now
-        slicesPerPicture = 1 + Runtime.getRuntime().availableProcessors() / totalPictures;
+        slicesPerPicture = progressive ? tasksPerPass * PROGRESSIVE_STRIDES.length : tasksPerPass;
         pictureSlicesCompleted = new AtomicIntegerArray(pictures.size());
         previewSlicesCompleted = new AtomicIntegerArray(previews.size());
 
-        // Start compiling all the image calculators
-        List<Future<Renderer>> pixelCalculatorFutures = new ArrayList<Future<Renderer>>();
+        // Create the compilation of all the image calculators
+        final RendererCache rendererCache = RendererCache.getDefault();
+        // Batches are compiled with Janino, so they are only used with the Janino backend
+        final RendererBatch batch = batchCompilation && rendererBuilders.size() > 1 && rendererBackend instanceof JaninoBackend ?
+                                    new RendererBatch(rendererBuilders, rendererCache) :
+                                    null;
         for (RendererBuilder rendererBuilder : rendererBuilders) {
-            pixelCalculatorFutures.add(RasterfunApplication.getExecutor().submit(new CompileTask(calculationIndex,
-                    rendererBuilder,
-                                                                                                 renderListener)));
+            compileFutures.add(new CompileFuture(new CompileTask(calculationIndex,
+                                                                 rendererBuilder,
+                                                                 new PictureRenderListener(compileFutures.size()),
+                                                                 rendererCache,
+                                                                 batch,
+                                                                 rendererBackend)));
         }
 
-        // Start calculating preview pictures
+        // Create the tasks for calculating preview pictures, they are started first when a renderer is ready
         createPictureRenderingTasks(calculationIndex,
-                                    pixelCalculatorFutures,
                                     previews,
                                     true,
                                     slicesPerPreview);
 
-        // Start calculating actual pictures
-        createPictureRenderingTasks(calculationIndex,
-                                    pixelCalculatorFutures,
-                                    pictures,
-                                    false,
-                                    slicesPerPicture);
+        // Create the tasks for calculating actual pictures
+        if (progressive) {
+            createProgressiveRenderingTasks(calculationIndex, tasksPerPass);
+        }
+        else {
+            createPictureRenderingTasks(calculationIndex,
+                                        pictures,
+                                        false,
+                                        slicesPerPicture);
+        }
+
+        // Start compiling, the render tasks of each picture are submitted when its renderer is ready
+        final ExecutorService compileExecutor = executors.getCompileExecutor();
+        for (CompileFuture compileFuture : compileFutures) {
+            compileExecutor.execute(compileFuture);
+        }
     }
 
     private void createPictureRenderingTasks(int calculationIndex,
-                                             List<Future<Renderer>> pixelCalculatorFutures,
                                              final List<Picture> pictures,
                                              final boolean forPreviews,
                                              final int slicesPerPicture) {
 
-        final ExecutorService executor = RasterfunApplication.getExecutor();
-
         int pictureIndex = 0;
         for (Picture picture: pictures) {
             if (picture != null) {
-                int rowsPerSlice = picture.getHeight() / slicesPerPicture;
-                int y = 0;
-                for (int i = 0; i < slicesPerPicture; i++) {
-
-                    // Calculate which pixels to calculate
-                    int startY = y;
-
-                    // Advance a fixed step, for last step make sure we get all pixels
-                    if (i < slicesPerPicture - 1) y += rowsPerSlice;
-                    else y = picture.getHeight();
-
-                    int endY = y;
+                final CompileFuture compileFuture = compileFutures.get(pictureIndex);
 
+                // The tasks of the picture share the rows, or the tiles of a tiled picture, between them as they go
+                final int rowsOrTiles = picture instanceof TiledPicture ? ((TiledPicture) picture).getTileCount() : picture.getHeight();
+                final TileScheduler tileScheduler = new TileScheduler(0, rowsOrTiles, slicesPerPicture);
+                final CalculationListener pictureListener = new PictureRenderListener(pictureIndex);
+                for (int i = 0; i < slicesPerPicture; i++) {
                     // Create render task to render the slice
                     final RenderTask renderTask = new RenderTask(calculationIndex,
                                                                  pictureIndex,
                                                                  forPreviews,
-                                                                 startY,
-                                                                 endY,
+                                                                 tileScheduler,
                                                                  picture,
-                                                                 pixelCalculatorFutures.get(pictureIndex),
-                                                                 renderListener);
+                                                                 compileFuture,
+                                                                 pictureListener);
 
                     // Keep track of the task instance so that we can stop it if needed.
                     renderTasks.add(renderTask);
 
                     // Keep track of the future so that we can wait for all tasks to complete if we want.
-                    rendererFutures.add(executor.submit(renderTask));
+                    final FutureTask<Picture> renderFuture = new RenderFuture(renderTask, pictureIndex, forPreviews, null);
+                    rendererFutures.add(renderFuture);
+
+                    // Submitted to the render executor when the renderer has been compiled
+                    compileFuture.addRenderFuture(renderFuture);
+                }
+            }
+
+            pictureIndex++;
+        }
+    }
+
+    private void createProgressiveRenderingTasks(int calculationIndex, final int tasksPerPass) {
+
+        int pictureIndex = 0;
+        for (Picture picture: pictures) {
+            if (picture != null) {
+                final CompileFuture compileFuture = compileFutures.get(pictureIndex);
+
+                final CalculationListener pictureListener = new PictureRenderListener(pictureIndex);
+                RenderPass previousPass = null;
+                for (int stride : PROGRESSIVE_STRIDES) {
+                    final int previousStride = previousPass == null ? 0 : previousPass.stride;
+                    final RenderPass pass = new RenderPass(pictureIndex, picture, stride, tasksPerPass);
+
+                    // The tasks of the pass share the rows between them as they go
+                    final TileScheduler tileScheduler = new TileScheduler(0, picture.getHeight(), tasksPerPass);
+                    for (int i = 0; i < tasksPerPass; i++) {
+                        final RenderTask renderTask = new RenderTask(calculationIndex,
+                                                                     pictureIndex,
+                                                                     false,
+                                                                     tileScheduler,
+                                                                     stride,
+                                                                     previousStride,
+                                                                     picture,
+                                                                     compileFuture,
+                                                                     pictureListener);
+                        renderTasks.add(renderTask);
+
+                        // The first pass is rendered like a preview, the later passes are submitted when the pass before is done
+                        final FutureTask<Picture> renderFuture = new RenderFuture(renderTask, pictureIndex, previousPass == null, pass);
+                        rendererFutures.add(renderFuture);
+                        if (previousPass == null) compileFuture.addRenderFuture(renderFuture);
+                        else pass.addRenderFuture(renderFuture);
+                    }
+
+                    if (previousPass != null) previousPass.setNextPass(pass);
+                    previousPass = pass;
                 }
             }
 
@@ -376,16 +567,27 @@ public class PictureCalculations {
     }
 
     /**
-     * @return the pictures, waiting until they have been calculated if calculation is still ongoing.
+     * @return the pictures, waiting until they have been calculated if calculation is still ongoing,
+     * and the listeners have been notified about them.
      * Returns null if there was some error or the calculation was stopped.
      */
     public List<Picture> getPicturesAndWait() {
         try {
             // Ensure all calculation tasks are ready
+            // Slices are cancelled if the renderer could not be compiled or the calculation was stopped
             for (Future<Picture> rendererFuture : rendererFutures) {
-                if (rendererFuture != null) rendererFuture.get();
+                if (rendererFuture != null) {
+                    try {
+                        rendererFuture.get();
+                    } catch (CancellationException e) {
+                        // Nothing to wait for
+                    }
+                }
             }
 
+            // Let the listeners know about the completed pictures before returning them
+            if (events != null) events.awaitDelivery();
+
             // Return the pictures
             return pictures;
 
@@ -394,6 +596,39 @@ public class PictureCalculations {
         }
     }
 
+    /**
+     * @return the time spent in the profiled sections of the renderers, merged over all rendered slices of the pictures
+     *         (previews are not included).  Empty if the renderers were not built with profiling on.
+     *         Updated while the calculation is running.
+     */
+    public RenderProfile getRenderProfile() {
+        return renderProfile;
+    }
+
+    /**
+     * @return the number of pixels calculated so far for each picture (previews are not included),
+     *         or null if the calculation has not been started.  Updated while the calculation is running.
+     */
+    public RenderProgress getRenderProgress() {
+        return renderProgress;
+    }
+
+    /**
+     * @return the part of the pixels of all pictures calculated so far, from 0 to 1.
+     */
+    public float getProgress() {
+        final RenderProgress progress = renderProgress;
+        return progress == null ? 0 : progress.getProgress();
+    }
+
+    /**
+     * @return the part of the pixels of the specified picture calculated so far, from 0 to 1.
+     */
+    public float getProgress(int pictureIndex) {
+        final RenderProgress progress = renderProgress;
+        return progress == null ? 0 : progress.getProgress(pictureIndex);
+    }
+
     /**
      * @return a read only list with the builders that are used to build the pictures.
      * Contain some picture metadata such as picture size and name.
@@ -403,20 +638,47 @@ public class PictureCalculations {
     }
 
     /**
-     * Stops the calculations.
+     * Stops the calculations, for example when they are replaced by a new calculation.
+     * Compilations and slices that have not started yet are cancelled, and running slices stop after the row they
+     * are calculating, so the calculation stops using the render threads almost at once.
+     * A compilation that is already running is completed, but its renderer is not used.
      */
     public void stop() {
+        // Cancelling a compilation also cancels the slices waiting for it
+        for (CompileFuture compileFuture : compileFutures) {
+            compileFuture.cancel(false);
+        }
+
         for (RenderTask renderTask : renderTasks) {
             renderTask.stop();
         }
+
+        // Drop slices that have not started yet
+        for (Future<Picture> rendererFuture : rendererFutures) {
+            rendererFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Stops the calculations, and releases the pictures from the memory budget, for example when the calculation is
+     * replaced by a new calculation that does not reuse its pictures.
+     * The pictures can still be read, but no longer count against the budget.
+     */
+    public void stopAndReleasePictures() {
+        stop();
+
+        for (Picture picture : pictures) {
+            if (picture != null) memoryBudget.releasePicture(picture);
+        }
     }
 
     /**
      * Add a listener that gets notified about progress, completed pictures and previews, and when all pictures are completed.
      *
-     * Note the listener is called from the calculation thread, so if the listener does any UI updates
-     * it should call SwingUtils.invokeLater or similar, and if it does state updates they should
-     * take into account concurrency concerns.
+     * Note the listener is called from the event thread of the CalculationExecutors, so if the listener does any
+     * UI updates it should call SwingUtils.invokeLater or similar, and if it does state updates they should
+     * take into account concurrency concerns.  The render threads do not wait for the listeners.
+     * Progress is reported at most once per PictureCalculationsEventDispatcher.DEFAULT_PROGRESS_INTERVAL_MILLIS.
      *
      */
     public void addListener(PictureCalculationsListener listener) {
@@ -431,19 +693,93 @@ public class PictureCalculations {
     }
 
 
+    private Picture createPicture(String name, int width, int height, List<String> channels, PictureFormat format) throws IOException {
+        // The tiles of tiled pictures are created when they are rendered
+        if (format.isTiled()) return new TiledPicture(name, width, height, channels, format, mappedPictureDirectory);
+
+        switch (format.getStorage()) {
+            case HEAP:
+                if (format.usesBuffer()) return BufferPicture.allocate(name, width, height, channels, format);
+                else return new PictureImpl(name, width, height, channels, format.getLayout());
+            case DIRECT:
+                return BufferPicture.allocate(name, width, height, channels, format);
+            case MAPPED:
+                final File file = File.createTempFile("rasterfun-", ".pixels", mappedPictureDirectory);
+                file.deleteOnExit();
+                return BufferPicture.map(file, name, width, height, channels, format);
+            default:
+                throw new IllegalStateException("Unknown picture storage " + format.getStorage());
+        }
+    }
+
+    /**
+     * Creates the picture if it fits in the memory budget, otherwise creates a tiled picture that spills its tiles to disk.
+     */
+    private Picture createPictureInBudget(String name, int width, int height, List<String> channels, PictureFormat format) throws IOException {
+        final long bytes = MemoryBudget.estimatePictureBytes(width, height, channels.size(), format);
+        if (!memoryBudget.tryReserve(bytes)) {
+            // The renderer is built for the format without tiles, and calculates the tiles in the same format
+            final int tileSize = format.isTiled() ? format.getTileSize() : SPILL_TILE_SIZE;
+            final PictureFormat spillFormat = new PictureFormat(format.getLayout(), format.getStorage(), format.getChannelTypes(), tileSize);
+            return new TiledPicture(name, width, height, channels, spillFormat, mappedPictureDirectory, true);
+        }
+
+        boolean created = false;
+        try {
+            final Picture picture = createPicture(name, width, height, channels, format);
+            memoryBudget.addPicture(picture, bytes);
+            created = true;
+            return picture;
+        } finally {
+            if (!created) memoryBudget.cancelReservation(bytes);
+        }
+    }
+
     private boolean shouldGeneratePreview(int previewWidth, int previewHeight) {
         return generatePreviews &&
+               !progressive &&
                previewHeight >= minPreviewImageSize &&
                previewWidth  >= minPreviewImageSize;
     }
 
-    private Picture reuseOrRecreate(Picture picture, String name, int width, int height, List<String> channels) {
+    /**
+     * Aborts the calculation when the pictures could not be created, and notifies the listeners.
+     */
+    private void abortPictureCreation(String shortDescription, String longDescription, Throwable cause) {
+        // Abort this calculation
+        for (Picture picture : pictures) {
+            if (picture != null) memoryBudget.releasePicture(picture);
+        }
+        pictures.clear();
+        previews.clear();
+
+        // Notify user
+        events.onError(calculationIndex, shortDescription, longDescription, cause);
+
+        // Clear any preview images
+        for (int i = 0; i < totalPictures; i++) {
+            events.onPreviewReady(calculationIndex, i, null);
+            events.onPictureReady(calculationIndex, i, null);
+        }
+    }
+
+    /**
+     * @param inMemoryBudget if true, a new picture is created in the memory budget.
+     */
+    private Picture reuseOrRecreate(Picture picture, String name, int width, int height, List<String> channels, PictureFormat format,
+                                    boolean inMemoryBudget) throws IOException {
         if (picture == null ||
             // Recreate
             picture.getWidth()  != width ||
             picture.getHeight() != height ||
-            picture.getChannelCount() != channels.size()) {
-            picture = new PictureImpl(name, width, height, channels);
+            picture.getChannelCount() != channels.size() ||
+            !format.matches(picture)) {
+            // The replaced picture no longer needs its memory
+            if (picture != null) memoryBudget.releasePicture(picture);
+
+            picture = inMemoryBudget ?
+                      createPictureInBudget(name, width, height, channels, format) :
+                      createPicture(name, width, height, channels, format);
         }
         else {
             // Reuse
@@ -471,17 +807,272 @@ public class PictureCalculations {
     private void discardDownToLength(List<Picture> list, int targetLength) {
         while (list.size() > targetLength) {
             // Remove last
-            list.remove(list.size() - 1);
+            final Picture removed = list.remove(list.size() - 1);
+            if (removed != null) memoryBudget.releasePicture(removed);
         }
     }
 
     /**
-     * @return true if this calculation is completed.
+     * @return true if this calculation is completed, or stopped and no longer using any render threads.
      */
     public boolean isDone() {
         for (Future<Picture> rendererFuture : rendererFutures) {
             if (!rendererFuture.isDone()) return false;
         }
+
+        // Stopped slices count as done as soon as they are cancelled, check that they have also returned
+        for (RenderTask renderTask : renderTasks) {
+            if (renderTask.isRunning()) return false;
+        }
+
         return true;
     }
+
+    /**
+     * Compiles the renderer of one picture, and when it is ready submits the render tasks of the picture and its preview
+     * to the render executor, so that render threads never wait for a compilation.
+     * If no renderer could be created the render tasks are cancelled instead.
+     */
+    private final class CompileFuture extends FutureTask<Renderer> {
+
+        private final List<FutureTask<Picture>> renderFutures = new ArrayList<FutureTask<Picture>>();
+
+        private CompileFuture(CompileTask compileTask) {
+            super(compileTask);
+        }
+
+        /**
+         * @param renderFuture render task to submit when the renderer is ready.  All render tasks should be added
+         *                     before the compilation is started.
+         */
+        private void addRenderFuture(FutureTask<Picture> renderFuture) {
+            renderFutures.add(renderFuture);
+        }
+
+        @Override
+        protected void done() {
+            Renderer renderer = null;
+            if (!isCancelled()) {
+                try {
+                    renderer = get();
+                } catch (InterruptedException e) {
+                    // Does not happen, the compilation is done
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // The compile task reports its own exceptions, so this is an error it did not catch
+                    events.onError(calculationIndex,
+                                   "Problem when creating renderer: " + e.getCause(),
+                                   "There was an unexpected problem when creating the renderer \n" +
+                                   "used to draw the picture.  The full exception is: \n" + e.getCause(),
+                                   e.getCause());
+                }
+            }
+
+            final ExecutorService renderExecutor = executors.getRenderExecutor();
+            for (FutureTask<Picture> renderFuture : renderFutures) {
+                if (renderer != null && !renderFuture.isCancelled()) {
+                    try {
+                        renderExecutor.execute(renderFuture);
+                    } catch (RejectedExecutionException e) {
+                        // The executor has been shut down
+                        renderFuture.cancel(false);
+                    }
+                }
+                else {
+                    renderFuture.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Listener for the compile and render tasks of one picture, counts the progress and the completed slices of
+     * the picture and passes the notifications on to the listeners of the calculation.
+     */
+    private final class PictureRenderListener implements CalculationListener {
+
+        private final int pictureIndex;
+
+        private PictureRenderListener(int pictureIndex) {
+            this.pictureIndex = pictureIndex;
+        }
+
+        @Override
+        public void onCalculationProgress(int calculationIndex, int completedPixels) {
+            // Only count the pixels here, the dispatcher sums the progress when it delivers it
+            final RenderProgress progress = renderProgress;
+            progress.addCompletedPixels(pictureIndex, completedPixels);
+            events.onProgressChanged(calculationIndex, progress);
+        }
+
+        @Override
+        public void onPictureSliceReady(int calculationIndex, int pictureIndex, Picture picture, boolean isPreview) {
+
+            if (isPreview) {
+                final int previewSlicesReady = previewSlicesCompleted.incrementAndGet(pictureIndex);
+
+                // For increased sanity points..
+                assert previewSlicesReady <= slicesPerPreview :
+                        "We should not have more slices ready than what there can be in a preview picture.  " +
+                        "slicesPerPreview: " + slicesPerPreview + ", " +
+                        "previewSlicesReady:" + previewSlicesReady;
+
+                if (previewSlicesReady == slicesPerPreview) {
+                    // The picture is complete, notify listeners
+                    events.onPreviewReady(calculationIndex, pictureIndex, picture);
+                }
+            }
+            else {
+                final int pictureSlicesReady = pictureSlicesCompleted.incrementAndGet(pictureIndex);
+
+                // For increased sanity points..
+                assert pictureSlicesReady <= slicesPerPicture :
+                        "We should not have more slices ready than what there can be in a picture.  " +
+                        "slicesPerPicture: " + slicesPerPicture + ", " +
+                        "pictureSlicesReady:" + pictureSlicesReady;
+
+                if (pictureSlicesReady == slicesPerPicture) {
+                    // The picture is complete, notify listeners
+                    events.onPictureReady(calculationIndex, pictureIndex, picture);
+
+                    // Check if everything is complete
+                    final int currentlyCompletedPictures = totalCompletedPictures.incrementAndGet();
+                    if (currentlyCompletedPictures == totalPictures) {
+                        // Yep, notify
+                        events.onReady(calculationIndex, pictures);
+                    }
+                }
+            }
+
+        }
+
+        @Override
+        public void onError(int calculationIndex, String shortSummary, String longDescription, Throwable cause) {
+            events.onError(calculationIndex, shortSummary, longDescription, cause);
+        }
+
+        @Override
+        public void onCalculationProfile(int calculationIndex, String[] sectionNames, long[] sampledNanos, long sampledPixels) {
+            renderProfile.addSamples(sectionNames, sampledNanos, sampledPixels);
+        }
+    }
+
+    /**
+     * One pass over a picture in progressive rendering.  When all slices of the pass are rendered the listeners are
+     * notified and the slices of the next, finer pass are submitted.  If the pass does not complete, the later passes
+     * are cancelled.
+     */
+    private final class RenderPass {
+
+        private final int pictureIndex;
+        private final Picture picture;
+        private final int stride;
+        private final AtomicInteger remainingSlices;
+        private final List<FutureTask<Picture>> renderFutures = new ArrayList<FutureTask<Picture>>();
+        private RenderPass nextPass = null;
+
+        private RenderPass(int pictureIndex, Picture picture, int stride, int sliceCount) {
+            this.pictureIndex = pictureIndex;
+            this.picture = picture;
+            this.stride = stride;
+            remainingSlices = new AtomicInteger(sliceCount);
+        }
+
+        /**
+         * @param renderFuture render task to submit when the previous pass is done.  Not used for the first pass,
+         *                     which is submitted when the renderer is ready.
+         */
+        private void addRenderFuture(FutureTask<Picture> renderFuture) {
+            renderFutures.add(renderFuture);
+        }
+
+        private void setNextPass(RenderPass nextPass) {
+            this.nextPass = nextPass;
+        }
+
+        /**
+         * @param completed true if the slice was rendered, false if it was cancelled or failed.
+         */
+        private void onSliceDone(boolean completed) {
+            if (nextPass == null) return;
+
+            if (!completed) {
+                // Cancelling the slices of the next pass cancels the passes after it as well
+                nextPass.cancel();
+            }
+            else if (remainingSlices.decrementAndGet() == 0) {
+                events.onPictureRefined(calculationIndex, pictureIndex, picture, stride);
+                nextPass.submit();
+            }
+        }
+
+        private void submit() {
+            final ExecutorService renderExecutor = executors.getRenderExecutor();
+            for (FutureTask<Picture> renderFuture : renderFutures) {
+                if (!renderFuture.isCancelled()) {
+                    try {
+                        renderExecutor.execute(renderFuture);
+                    } catch (RejectedExecutionException e) {
+                        // The executor has been shut down
+                        renderFuture.cancel(false);
+                    }
+                }
+            }
+        }
+
+        private void cancel() {
+            for (FutureTask<Picture> renderFuture : renderFutures) {
+                renderFuture.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Renders a slice of a picture or preview, with a priority depending on whether the picture is visible.
+     * Slices of the first pass of progressive rendering get the same priority as previews.
+     */
+    private final class RenderFuture extends PrioritizedTask<Picture> {
+
+        private final int pictureIndex;
+        private final boolean previewPriority;
+        private final RenderPass pass;
+
+        /**
+         * @param pass the progressive rendering pass the slice belongs to, or null if the picture is not rendered progressively.
+         */
+        private RenderFuture(RenderTask renderTask, int pictureIndex, boolean previewPriority, RenderPass pass) {
+            super(renderTask);
+            this.pictureIndex = pictureIndex;
+            this.previewPriority = previewPriority;
+            this.pass = pass;
+        }
+
+        @Override
+        public int getPriority() {
+            if (previewPriority) return PREVIEW_PRIORITY;
+
+            final Set<Integer> visible = visiblePictures;
+            if (visible == null || visible.contains(pictureIndex)) return VISIBLE_PICTURE_PRIORITY;
+            else return PICTURE_PRIORITY;
+        }
+
+        @Override
+        protected void done() {
+            if (pass == null) return;
+
+            // The render task returns null if it failed
+            boolean completed = false;
+            if (!isCancelled()) {
+                try {
+                    completed = get() != null;
+                } catch (InterruptedException e) {
+                    // Does not happen, the slice is done
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // The render task reports its own exceptions
+                }
+            }
+            pass.onSliceDone(completed);
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package org.rasterfun.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time spent in the profiled sections of renderers (normally one section per effect), measured for a sample of the pixels.
+ * The samples of sections with the same name are merged.
+ * Thread safe, as the samples are added by the rendering threads.
+ */
+public final class RenderProfile {
+
+    private final Map<String, SectionSamples> sections = new LinkedHashMap<String, SectionSamples>();
+
+    /**
+     * Adds the samples of one calculation.
+     *
+     * @param sectionNames names of the sections.
+     * @param sampledNanos nanoseconds spent in each section for the sampled pixels.
+     * @param sampledPixels number of sampled pixels.
+     */
+    public synchronized void addSamples(String[] sectionNames, long[] sampledNanos, long sampledPixels) {
+        if (sectionNames.length != sampledNanos.length) throw new IllegalArgumentException("There should be as many sampled times as sections");
+
+        for (int i = 0; i < sectionNames.length; i++) {
+            SectionSamples samples = sections.get(sectionNames[i]);
+            if (samples == null) {
+                samples = new SectionSamples();
+                sections.put(sectionNames[i], samples);
+            }
+            samples.nanos += sampledNanos[i];
+            samples.pixels += sampledPixels;
+        }
+    }
+
+    /**
+     * @return names of the sections that samples have been added for.
+     */
+    public synchronized List<String> getSectionNames() {
+        return new ArrayList<String>(sections.keySet());
+    }
+
+    /**
+     * @return nanoseconds spent in the section for the sampled pixels, or 0 if the section has no samples.
+     */
+    public synchronized long getSampledNanos(String sectionName) {
+        final SectionSamples samples = sections.get(sectionName);
+        return samples == null ? 0 : samples.nanos;
+    }
+
+    /**
+     * @return number of pixels sampled for the section.
+     */
+    public synchronized long getSampledPixels(String sectionName) {
+        final SectionSamples samples = sections.get(sectionName);
+        return samples == null ? 0 : samples.pixels;
+    }
+
+    /**
+     * @return average nanoseconds spent in the section for each pixel, or 0 if the section has no samples.
+     *         Includes the overhead of reading the time, so it is mainly useful for comparing sections.
+     */
+    public synchronized double getAverageNanosPerPixel(String sectionName) {
+        final SectionSamples samples = sections.get(sectionName);
+        return samples == null || samples.pixels == 0 ? 0 : (double) samples.nanos / samples.pixels;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, SectionSamples> entry : sections.entrySet()) {
+            final SectionSamples samples = entry.getValue();
+            s.append(entry.getKey()).append(": ");
+            s.append(samples.pixels == 0 ? 0 : samples.nanos / samples.pixels).append(" ns per pixel\n");
+        }
+        return s.toString();
+    }
+
+    private static final class SectionSamples {
+        private long nanos;
+        private long pixels;
+    }
+}
@@ -0,0 +1,131 @@
+package org.rasterfun.core;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number of pixels calculated for each picture of a calculation, counted in 64 bits.
+ *
+ * The rendering threads report calculated pixels often, so each thread counts them in a cell of its own, which
+ * only that thread writes to.  The reporting threads do not wait for each other, and the cells are on separate
+ * cache lines.  The counts are summed from the cells when they are read, so reading takes time in proportion to
+ * the number of threads that have reported progress.
+ */
+public final class RenderProgress {
+
+    // Unused slots before and after the counts in a cell, so that the cells of different threads do not share cache lines
+    private static final int PADDING = 8;
+
+    private final long[] totalPixels;
+    private final long allTotalPixels;
+
+    // Index of the count of all pictures in a cell
+    private final int totalSlot;
+
+    private final List<AtomicLongArray> cells = new CopyOnWriteArrayList<AtomicLongArray>();
+    private final ThreadLocal<AtomicLongArray> threadCell = new ThreadLocal<AtomicLongArray>() {
+        @Override
+        protected AtomicLongArray initialValue() {
+            final AtomicLongArray cell = new AtomicLongArray(PADDING + totalPixels.length + 1 + PADDING);
+            cells.add(cell);
+            return cell;
+        }
+    };
+
+    /**
+     * @param totalPixels number of pixels to calculate for each picture.
+     */
+    public RenderProgress(long[] totalPixels) {
+        ParameterChecker.checkNotNull(totalPixels, "totalPixels");
+
+        long allTotal = 0;
+        for (long pixels : totalPixels) {
+            if (pixels < 0) throw new IllegalArgumentException("The pixel counts in totalPixels should not be negative, but one was " + pixels);
+            allTotal += pixels;
+        }
+
+        this.totalPixels = totalPixels.clone();
+        allTotalPixels = allTotal;
+        totalSlot = PADDING + totalPixels.length;
+    }
+
+    /**
+     * Adds pixels calculated for a picture.  Called by the rendering threads.
+     */
+    public void addCompletedPixels(int pictureIndex, long pixels) {
+        if (pictureIndex < 0 || pictureIndex >= totalPixels.length) throw new IllegalArgumentException("The pictureIndex should be in the range 0.." + (totalPixels.length - 1) + ", but it was " + pictureIndex);
+
+        // Only the current thread writes to its cell, so the counts can be updated without compare and set
+        final AtomicLongArray cell = threadCell.get();
+        final int slot = PADDING + pictureIndex;
+        cell.lazySet(slot, cell.get(slot) + pixels);
+        cell.lazySet(totalSlot, cell.get(totalSlot) + pixels);
+    }
+
+    /**
+     * @return number of pictures.
+     */
+    public int getPictureCount() {
+        return totalPixels.length;
+    }
+
+    /**
+     * @return number of pixels to calculate for all pictures.
+     */
+    public long getTotalPixels() {
+        return allTotalPixels;
+    }
+
+    /**
+     * @return number of pixels to calculate for the specified picture.
+     */
+    public long getTotalPixels(int pictureIndex) {
+        return totalPixels[pictureIndex];
+    }
+
+    /**
+     * @return number of pixels calculated so far for all pictures.
+     */
+    public long getCompletedPixels() {
+        return sum(totalSlot);
+    }
+
+    /**
+     * @return number of pixels calculated so far for the specified picture.
+     */
+    public long getCompletedPixels(int pictureIndex) {
+        if (pictureIndex < 0 || pictureIndex >= totalPixels.length) throw new IllegalArgumentException("The pictureIndex should be in the range 0.." + (totalPixels.length - 1) + ", but it was " + pictureIndex);
+
+        return sum(PADDING + pictureIndex);
+    }
+
+    /**
+     * @return the part of the pixels of all pictures calculated so far, from 0 to 1.
+     */
+    public float getProgress() {
+        return ratio(getCompletedPixels(), allTotalPixels);
+    }
+
+    /**
+     * @return the part of the pixels of the specified picture calculated so far, from 0 to 1.
+     */
+    public float getProgress(int pictureIndex) {
+        return ratio(getCompletedPixels(pictureIndex), totalPixels[pictureIndex]);
+    }
+
+    private long sum(int slot) {
+        long sum = 0;
+        for (AtomicLongArray cell : cells) {
+            sum += cell.get(slot);
+        }
+        return sum;
+    }
+
+    private float ratio(long completed, long total) {
+        if (total == 0) return 0;
+        else return (float) ((double) completed / total);
+    }
+}
@@ -0,0 +1,1099 @@
+package org.rasterfun.core.compiler;
+
+import org.codehaus.janino.util.ClassFile;
+import org.rasterfun.core.ArrayRenderer;
+import org.rasterfun.core.compiler.expression.*;
+import org.rasterfun.core.listeners.CalculationListener;
+import org.rasterfun.picture.PictureLayout;
+import org.rasterfun.utils.ClassUtils;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+import static org.rasterfun.core.compiler.BytecodeWriter.*;
+import static org.rasterfun.core.compiler.SourceLocation.*;
+
+/**
+ * Creates renderers by writing the bytecode of the renderer class directly from the structured statements of the builder,
+ * without parsing and compiling the generated source.  The created class behaves the same as one compiled from the source.
+ *
+ * Only statements added as expressions have a structured form.  If the builder contains source added as strings,
+ * or expressions that the backend does not handle, or the calculatePixels method would be larger than the maximum
+ * method size of the builder, the renderer is compiled with Janino instead.
+ */
+public final class BytecodeBackend implements RendererBackend {
+
+    private static final String KEY_HEADER = "// Bytecode backend\n";
+
+    private static final short ACC_PUBLIC = 0x0001;
+    private static final short ACC_PRIVATE = 0x0002;
+    private static final short ACC_FINAL = 0x0010;
+    private static final short ACC_SUPER = 0x0020;
+    private static final short ACC_VOLATILE = 0x0040;
+
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String STRING = "Ljava/lang/String;";
+    private static final String STRING_BUILDER = "Ljava/lang/StringBuilder;";
+    private static final String ILLEGAL_ARGUMENT_EXCEPTION = "Ljava/lang/IllegalArgumentException;";
+    private static final String RUNNING_FIELD = "running";
+
+    // Slots of the parameters of calculatePixels
+    private static final String[] CALCULATE_PIXELS_PARAMETERS = {"width", "height", "channelNames", RendererBuilder.PIXEL_DATA,
+                                                                 "startX", "startY", "endX", "endY",
+                                                                 "listener", "calculatorIndex"};
+    private static final Class<?>[] CALCULATE_PIXELS_PARAMETER_TYPES = {int.class, int.class, String[].class, float[].class,
+                                                                        int.class, int.class, int.class, int.class,
+                                                                        CalculationListener.class, int.class};
+
+    // Slots of the parameters of calculateSamples, the stride parameters are inserted before the listener
+    private static final int STRIDE_PARAMETER_INDEX = 8;
+    private static final String[] CALCULATE_SAMPLES_PARAMETERS = {"width", "height", "channelNames", RendererBuilder.PIXEL_DATA,
+                                                                  "startX", "startY", "endX", "endY",
+                                                                  "stride", "previousStride",
+                                                                  "listener", "calculatorIndex"};
+    private static final Class<?>[] CALCULATE_SAMPLES_PARAMETER_TYPES = {int.class, int.class, String[].class, float[].class,
+                                                                         int.class, int.class, int.class, int.class,
+                                                                         int.class, int.class,
+                                                                         CalculationListener.class, int.class};
+
+    // Types of the parameters of calculateTile
+    private static final Class<?>[] CALCULATE_TILE_PARAMETER_TYPES = {int.class, int.class, String[].class, float[].class,
+                                                                      int.class, int.class, int.class, int.class,
+                                                                      CalculationListener.class, int.class};
+
+    // Slots of the parameters of calculateArea, which calculateSamples and calculateTile call.
+    // The data area parameters are inserted after the pixel data.
+    private static final int DATA_AREA_PARAMETER_INDEX = 4;
+    private static final String[] CALCULATE_AREA_PARAMETERS = {"width", "height", "channelNames", RendererBuilder.PIXEL_DATA,
+                                                               "dataX", "dataY", "dataWidth", "dataHeight",
+                                                               "startX", "startY", "endX", "endY",
+                                                               "stride", "previousStride",
+                                                               "listener", "calculatorIndex"};
+    private static final Class<?>[] CALCULATE_AREA_PARAMETER_TYPES = {int.class, int.class, String[].class, float[].class,
+                                                                      int.class, int.class, int.class, int.class,
+                                                                      int.class, int.class, int.class, int.class,
+                                                                      int.class, int.class,
+                                                                      CalculationListener.class, int.class};
+
+    private final JaninoBackend fallbackBackend = new JaninoBackend();
+
+    @Override
+    public String getRendererKey(String rendererSource) {
+        return KEY_HEADER + rendererSource;
+    }
+
+    @Override
+    public Map<String, byte[]> createRendererBytecode(RendererBuilder builder, String className) throws CompilationException {
+        ParameterChecker.checkNotNull(builder, "builder");
+
+        final Map<String, byte[]> classBytes = createDirectly(builder, className);
+        if (classBytes != null) return classBytes;
+        else return fallbackBackend.createRendererBytecode(builder, className);
+    }
+
+    /**
+     * @return true if the renderer for the builder can be created without compiling its source.
+     */
+    public boolean canCreateDirectly(RendererBuilder builder) {
+        ParameterChecker.checkNotNull(builder, "builder");
+
+        return createDirectly(builder, "GeneratedPixelCalculator") != null;
+    }
+
+    /**
+     * @return the bytecode of the renderer class, or null if the builder has statements that the backend does not handle.
+     */
+    private Map<String, byte[]> createDirectly(RendererBuilder builder, String className) {
+        if (!builder.hasStructuredSource()) return null;
+
+        try {
+            return new RendererClassWriter(builder, RendererBuilder.getQualifiedClassName(className)).write();
+        } catch (UnsupportedCodeException e) {
+            return null;
+        } catch (IllegalStateException e) {
+            // The code was too large for the simple code writer
+            return null;
+        }
+    }
+
+    /**
+     * Thrown when the statements contain something that the backend does not handle,
+     * or that would not compile as java source.
+     */
+    private static final class UnsupportedCodeException extends Exception {
+        private UnsupportedCodeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A local variable in the generated method.
+     */
+    private static final class Local {
+        private final int slot;
+        private final Class<?> type;
+        private final boolean isFinal;
+
+        private Local(int slot, Class<?> type, boolean isFinal) {
+            this.slot = slot;
+            this.type = type;
+            this.isFinal = isFinal;
+        }
+    }
+
+    /**
+     * Writes the renderer class for one builder.
+     */
+    private static final class RendererClassWriter {
+        private final RendererBuilder builder;
+        private final String classDescriptor;
+        private final ClassFile classFile;
+        private final Map<String, Class<?>> parameterFields = new HashMap<String, Class<?>>();
+
+        private BytecodeWriter code;
+        private Map<String, Local> locals = new HashMap<String, Local>();
+
+        // Names declared in the source but not yet assigned, so that they can not be used or declared again
+        private final Set<String> reservedNames = new HashSet<String>();
+
+        private RendererClassWriter(RendererBuilder builder, String qualifiedClassName) {
+            this.builder = builder;
+            classDescriptor = "L" + qualifiedClassName.replace('.', '/') + ";";
+            classFile = new ClassFile((short) (ACC_PUBLIC | ACC_FINAL | ACC_SUPER),
+                                      classDescriptor,
+                                      OBJECT,
+                                      new String[]{descriptor(ArrayRenderer.class)});
+        }
+
+        public Map<String, byte[]> write() throws UnsupportedCodeException {
+            if (!builder.getStatements(FIELDS).isEmpty()) throw new UnsupportedCodeException("Fields are not supported");
+
+            // Fields
+            classFile.addFieldInfo((short) (ACC_PRIVATE | ACC_VOLATILE), RUNNING_FIELD, "Z", null);
+            for (RendererBuilder.ObjectParameter parameter : builder.getObjectParameters()) {
+                final Class<?> fieldType = getParameterFieldType(parameter.getType());
+                parameterFields.put(parameter.getIdentifier(), fieldType);
+                classFile.addFieldInfo((short) (ACC_PRIVATE | ACC_FINAL), parameter.getIdentifier(), descriptor(fieldType), null);
+            }
+
+            // Pictures stored in buffers are rendered by compiled source
+            if (builder.getPictureFormat().usesBuffer()) throw new UnsupportedCodeException("Pictures stored in buffers are not supported");
+
+            writeConstructor();
+            writeStop();
+            writeCalculatePixels();
+            writeCalculateSamples();
+            writeCalculateTile();
+            writeCalculateArea();
+
+            final Map<String, byte[]> classBytes = new LinkedHashMap<String, byte[]>();
+            classBytes.put(classFile.getThisClassName(), classFile.toByteArray());
+            return classBytes;
+        }
+
+        private void writeConstructor() throws UnsupportedCodeException {
+            final ClassFile.MethodInfo method = classFile.addMethodInfo(ACC_PUBLIC, "<init>", "([" + OBJECT + ")V");
+            code = new BytecodeWriter(classFile, 2);
+
+            code.localOp(ALOAD, 0, 1);
+            code.constantOp(INVOKESPECIAL, classFile.addConstantMethodrefInfo(OBJECT, "<init>", "()V"), -1);
+
+            // running = true
+            code.localOp(ALOAD, 0, 1);
+            code.pushInt(1);
+            code.constantOp(PUTFIELD, fieldRef(RUNNING_FIELD, boolean.class), -2);
+
+            // Unpack the parameters
+            for (RendererBuilder.ObjectParameter parameter : builder.getObjectParameters()) {
+                final Class<?> type = parameter.getType();
+                final Class<?> fieldType = parameterFields.get(parameter.getIdentifier());
+
+                code.localOp(ALOAD, 0, 1);
+                code.localOp(ALOAD, 1, 1);
+                code.pushInt(parameter.getIndex());
+                code.op(AALOAD, -1);
+                code.constantOp(CHECKCAST, classFile.addConstantClassInfo(descriptor(type)), 0);
+                if (fieldType.isPrimitive()) {
+                    // Unbox
+                    code.constantOp(INVOKEVIRTUAL,
+                                    classFile.addConstantMethodrefInfo(descriptor(type), fieldType.getName() + "Value", "()" + descriptor(fieldType)),
+                                    size(fieldType) - 1);
+                }
+                code.constantOp(PUTFIELD, fieldRef(parameter.getIdentifier(), fieldType), -1 - size(fieldType));
+            }
+
+            code.op(RETURN, 0);
+            code.addTo(method);
+        }
+
+        private void writeStop() {
+            final ClassFile.MethodInfo method = classFile.addMethodInfo((short) (ACC_PUBLIC | ACC_FINAL), "stop", "()V");
+            code = new BytecodeWriter(classFile, 1);
+
+            code.localOp(ALOAD, 0, 1);
+            code.pushInt(0);
+            code.constantOp(PUTFIELD, fieldRef(RUNNING_FIELD, boolean.class), -2);
+            code.op(RETURN, 0);
+            code.addTo(method);
+        }
+
+        /**
+         * Writes calculatePixels, which calls calculateSamples with stride 1.
+         */
+        private void writeCalculatePixels() {
+            final ClassFile.MethodInfo method = classFile.addMethodInfo((short) (ACC_PUBLIC | ACC_FINAL),
+                                                                        "calculatePixels",
+                                                                        methodDescriptor(CALCULATE_PIXELS_PARAMETER_TYPES));
+            code = new BytecodeWriter(classFile, CALCULATE_PIXELS_PARAMETERS.length + 1);
+
+            code.localOp(ALOAD, 0, 1);
+            for (int i = 0; i < CALCULATE_PIXELS_PARAMETERS.length; i++) {
+                if (i == STRIDE_PARAMETER_INDEX) {
+                    code.pushInt(1);
+                    code.pushInt(0);
+                }
+                code.localOp(ILOAD + typeOffset(CALCULATE_PIXELS_PARAMETER_TYPES[i]), i + 1, 1);
+            }
+            code.constantOp(INVOKEVIRTUAL,
+                            classFile.addConstantMethodrefInfo(classDescriptor,
+                                                               "calculateSamples",
+                                                               methodDescriptor(CALCULATE_SAMPLES_PARAMETER_TYPES)),
+                            -1 - CALCULATE_SAMPLES_PARAMETERS.length);
+            code.op(RETURN, 0);
+            code.addTo(method);
+        }
+
+        /**
+         * Writes calculateSamples, which calculates an area of a picture whose pixel data holds the whole picture.
+         */
+        private void writeCalculateSamples() {
+            final ClassFile.MethodInfo method = classFile.addMethodInfo((short) (ACC_PUBLIC | ACC_FINAL),
+                                                                        "calculateSamples",
+                                                                        methodDescriptor(CALCULATE_SAMPLES_PARAMETER_TYPES));
+            code = new BytecodeWriter(classFile, CALCULATE_SAMPLES_PARAMETERS.length + 1);
+
+            code.localOp(ALOAD, 0, 1);
+            for (int i = 0; i < CALCULATE_SAMPLES_PARAMETERS.length; i++) {
+                if (i == DATA_AREA_PARAMETER_INDEX) {
+                    // The data area is the whole picture
+                    code.pushInt(0);
+                    code.pushInt(0);
+                    code.localOp(ILOAD, 1, 1);
+                    code.localOp(ILOAD, 2, 1);
+                }
+                code.localOp(ILOAD + typeOffset(CALCULATE_SAMPLES_PARAMETER_TYPES[i]), i + 1, 1);
+            }
+            writeCalculateAreaCall();
+            code.op(RETURN, 0);
+            code.addTo(method);
+        }
+
+        /**
+         * Writes calculateTile, which calculates a whole tile whose pixel data holds just the tile.
+         */
+        private void writeCalculateTile() {
+            final ClassFile.MethodInfo method = classFile.addMethodInfo((short) (ACC_PUBLIC | ACC_FINAL),
+                                                                        "calculateTile",
+                                                                        methodDescriptor(CALCULATE_TILE_PARAMETER_TYPES));
+            code = new BytecodeWriter(classFile, CALCULATE_TILE_PARAMETER_TYPES.length + 1);
+
+            // width, height, channelNames, pixelData and the tile as the data area
+            code.localOp(ALOAD, 0, 1);
+            for (int i = 0; i < 8; i++) {
+                code.localOp(ILOAD + typeOffset(CALCULATE_TILE_PARAMETER_TYPES[i]), i + 1, 1);
+            }
+
+            // The calculated area is the tile
+            code.localOp(ILOAD, 5, 1);
+            code.localOp(ILOAD, 6, 1);
+            code.localOp(ILOAD, 5, 1);
+            code.localOp(ILOAD, 7, 1);
+            code.op(IADD, -1);
+            code.localOp(ILOAD, 6, 1);
+            code.localOp(ILOAD, 8, 1);
+            code.op(IADD, -1);
+
+            // All pixels, listener and calculator index
+            code.pushInt(1);
+            code.pushInt(0);
+            code.localOp(ALOAD, 9, 1);
+            code.localOp(ILOAD, 10, 1);
+            writeCalculateAreaCall();
+            code.op(RETURN, 0);
+            code.addTo(method);
+        }
+
+        private void writeCalculateAreaCall() {
+            code.constantOp(INVOKESPECIAL,
+                            classFile.addConstantMethodrefInfo(classDescriptor,
+                                                               RendererBuilder.CALCULATE_AREA,
+                                                               methodDescriptor(CALCULATE_AREA_PARAMETER_TYPES)),
+                            -1 - CALCULATE_AREA_PARAMETERS.length);
+        }
+
+        private void writeCalculateArea() throws UnsupportedCodeException {
+            final ClassFile.MethodInfo method = classFile.addMethodInfo((short) (ACC_PRIVATE | ACC_FINAL),
+                                                                        RendererBuilder.CALCULATE_AREA,
+                                                                        methodDescriptor(CALCULATE_AREA_PARAMETER_TYPES));
+            code = new BytecodeWriter(classFile, CALCULATE_AREA_PARAMETERS.length + 1);
+            locals = new HashMap<String, Local>();
+            for (int i = 0; i < CALCULATE_AREA_PARAMETERS.length; i++) {
+                locals.put(CALCULATE_AREA_PARAMETERS[i], new Local(i + 1, CALCULATE_AREA_PARAMETER_TYPES[i], true));
+            }
+
+            final int channelCount = builder.getPictureChannelCount();
+            writeChannelCountCheck(channelCount);
+
+            // Distance between the pixels on a line in the pixel data
+            final boolean planar = builder.getPictureLayout() == PictureLayout.PLANAR;
+            final int pixelScale = planar ? 1 : channelCount;
+
+            // Setup variables visible to generators
+            load("width");
+            code.op(I2F, 0);
+            store(declareLocal(RendererBuilder.W_NAME, float.class, true));
+            load("height");
+            code.op(I2F, 0);
+            store(declareLocal(RendererBuilder.H_NAME, float.class, true));
+            code.pushFloat(0f);
+            store(declareLocal(RendererBuilder.Y_NAME, float.class, false));
+            code.pushFloat(0f);
+            store(declareLocal(RendererBuilder.X_NAME, float.class, false));
+            if (planar) {
+                load("dataWidth");
+                load("dataHeight");
+                code.op(IMUL, -1);
+                store(declareLocal(RendererBuilder.PLANE_SIZE, int.class, true));
+            }
+
+            writeStatements(BEFORE_LOOP);
+
+            // Set up progress reporting
+            load("endY");
+            load("startY");
+            code.op(ISUB, -1);
+            load("stride");
+            code.pushInt(RendererBuilder.PROGRESS_REPORT_STEPS);
+            code.op(IMUL, -1);
+            code.op(IDIV, -1);
+            final Local progressReportInterval = declareLocal("progressReportInterval", int.class, true);
+            store(progressReportInterval);
+            code.pushInt(0);
+            final Local completedScanLines = declareLocal("completedScanLines", int.class, false);
+            store(completedScanLines);
+            code.pushInt(0);
+            final Local completedPixels = declareLocal("completedPixels", int.class, false);
+            store(completedPixels);
+
+            // Start from the first multiples of the stride in the area
+            writeFirstMultipleOfStride("startX");
+            final Local firstX = declareLocal("firstX", int.class, true);
+            store(firstX);
+            writeFirstMultipleOfStride("startY");
+            final Local firstY = declareLocal("firstY", int.class, true);
+            store(firstY);
+            load("stride");
+            code.pushInt(pixelScale);
+            code.op(IMUL, -1);
+            final Local pixelStep = declareLocal("pixelStep", int.class, true);
+            store(pixelStep);
+
+            // Steps and start values for the relative coordinates
+            writeRelativeCoordinate("width", null, 0f);
+            final Local relXStep = declareLocal("relXStep", float.class, true);
+            store(relXStep);
+            writeRelativeCoordinate("height", null, 0f);
+            final Local relYStep = declareLocal("relYStep", float.class, true);
+            store(relYStep);
+            writeRelativeStart();
+            final Local relXStart = declareLocal("relXStart", float.class, true);
+            store(relXStart);
+            if (locals.containsKey(RendererBuilder.RELATIVE_X)) throw new UnsupportedCodeException("Variable 'relX' is already defined");
+            final Local relX = new Local(code.allocateLocal(1), float.class, false);
+            reservedNames.add(RendererBuilder.RELATIVE_X);
+            writeRelativeCoordinate("height", "startY", 0.5f);
+            final Local relY = declareLocal(RendererBuilder.RELATIVE_Y, float.class, false);
+            store(relY);
+
+            writeDataIndex("startY", "startX");
+            code.pushInt(pixelScale);
+            code.op(IMUL, -1);
+            final Local pixelIndex = declareLocal(RendererBuilder.PIXEL_INDEX, int.class, false);
+            store(pixelIndex);
+
+            // Loop the lines
+            final Map<String, Local> methodScope = new HashMap<String, Local>(locals);
+            load(firstY);
+            final Local y = declareLocal("y", int.class, false);
+            store(y);
+            final BytecodeWriter.Label lineLoop = new BytecodeWriter.Label();
+            final BytecodeWriter.Label linesDone = new BytecodeWriter.Label();
+            code.mark(lineLoop);
+            writeLoopCondition(y, "endY", true, linesDone);
+
+            load(y);
+            code.op(I2F, 0);
+            store(locals.get(RendererBuilder.Y_NAME));
+            writeRelativeCoordinate("height", "y", 0.5f);
+            store(relY);
+            writeStatements(BEFORE_LINE);
+
+            // Pixels on the lines of the previous pass have been calculated already
+            final BytecodeWriter.Label notPreviousLine = new BytecodeWriter.Label();
+            final BytecodeWriter.Label previousLineDone = new BytecodeWriter.Label();
+            load("previousStride");
+            code.jump(IFEQ, notPreviousLine, -1);
+            load(y);
+            load("previousStride");
+            code.op(IREM, -1);
+            code.jump(IFNE, notPreviousLine, -1);
+            code.pushInt(1);
+            code.jump(GOTO, previousLineDone, 0);
+            code.mark(notPreviousLine);
+            code.pushInt(0);
+            code.mark(previousLineDone);
+            final Local previousPixelsOnLine = declareLocal("previousPixelsOnLine", boolean.class, true);
+            store(previousPixelsOnLine);
+
+            // Loop along line
+            writeDataIndex("y", "firstX");
+            code.pushInt(pixelScale);
+            code.op(IMUL, -1);
+            store(pixelIndex);
+            locals.put(RendererBuilder.RELATIVE_X, relX);
+
+            final Map<String, Local> lineScope = new HashMap<String, Local>(locals);
+            load(firstX);
+            final Local x = declareLocal("x", int.class, false);
+            store(x);
+            final BytecodeWriter.Label pixelLoop = new BytecodeWriter.Label();
+            final BytecodeWriter.Label pixelDone = new BytecodeWriter.Label();
+            final BytecodeWriter.Label pixelsDone = new BytecodeWriter.Label();
+            final BytecodeWriter.Label calculatePixel = new BytecodeWriter.Label();
+            code.mark(pixelLoop);
+            writeLoopCondition(x, "endX", false, pixelsDone);
+
+            // Skip pixels calculated by the previous pass
+            load(previousPixelsOnLine);
+            code.jump(IFEQ, calculatePixel, -1);
+            load(x);
+            load("previousStride");
+            code.op(IREM, -1);
+            code.jump(IFNE, calculatePixel, -1);
+            code.jump(GOTO, pixelDone, 0);
+            code.mark(calculatePixel);
+
+            load(x);
+            code.op(I2F, 0);
+            store(locals.get(RendererBuilder.X_NAME));
+            load(relXStart);
+            load(x);
+            code.op(I2F, 0);
+            load(relXStep);
+            code.op(FMUL, -1);
+            code.op(FADD, -1);
+            store(relX);
+            writeStatements(BEFORE_PIXEL);
+            writeStatements(AT_PIXEL);
+            writeStatements(AFTER_PIXEL);
+            code.increment(completedPixels.slot, 1);
+
+            // Move to next pixel
+            code.mark(pixelDone);
+            load(pixelIndex);
+            load(pixelStep);
+            code.op(IADD, -1);
+            store(pixelIndex);
+            load(x);
+            load("stride");
+            code.op(IADD, -1);
+            store(x);
+            code.jump(GOTO, pixelLoop, 0);
+            code.mark(pixelsDone);
+            locals = lineScope;
+
+            writeStatements(AFTER_LINE);
+
+            // Report progress
+            final BytecodeWriter.Label report = new BytecodeWriter.Label();
+            final BytecodeWriter.Label reportDone = new BytecodeWriter.Label();
+            code.increment(completedScanLines.slot, 1);
+            load(completedScanLines);
+            load(progressReportInterval);
+            code.jump(IF_ICMPGE, report, -2);
+            load(y);
+            load("stride");
+            code.op(IADD, -1);
+            load("endY");
+            code.jump(IF_ICMPLT, reportDone, -2);
+            code.mark(report);
+            load("listener");
+            code.jump(IFNULL, reportDone, -1);
+            load("listener");
+            load("calculatorIndex");
+            load(completedPixels);
+            code.invokeInterface(classFile.addConstantInterfaceMethodrefInfo(descriptor(CalculationListener.class),
+                                                                             "onCalculationProgress",
+                                                                             "(II)V"),
+                                 2, -3);
+            code.pushInt(0);
+            store(completedScanLines);
+            code.pushInt(0);
+            store(completedPixels);
+            code.mark(reportDone);
+
+            load(y);
+            load("stride");
+            code.op(IADD, -1);
+            store(y);
+            code.jump(GOTO, lineLoop, 0);
+            code.mark(linesDone);
+            locals = methodScope;
+
+            writeStatements(AFTER_LOOP);
+
+            code.op(RETURN, 0);
+
+            // Large renderers are compiled from the source, where the code is moved to helper methods
+            if (code.getCodeLength() > builder.getMaxMethodSize()) throw new UnsupportedCodeException("The " + RendererBuilder.CALCULATE_AREA + " method is too large");
+
+            code.addTo(method);
+        }
+
+        /**
+         * Pushes the pixel number of the specified coordinate in the data area, (y - dataY) * dataWidth + x - dataX.
+         */
+        private void writeDataIndex(String y, String x) {
+            load(y);
+            load("dataY");
+            code.op(ISUB, -1);
+            load("dataWidth");
+            code.op(IMUL, -1);
+            load(x);
+            code.op(IADD, -1);
+            load("dataX");
+            code.op(ISUB, -1);
+        }
+
+        /**
+         * Throws an IllegalArgumentException if the number of channel names is wrong, with the same message as the source.
+         */
+        private void writeChannelCountCheck(int channelCount) {
+            final BytecodeWriter.Label channelCountOk = new BytecodeWriter.Label();
+            load("channelNames");
+            code.op(ARRAYLENGTH, 0);
+            code.pushInt(channelCount);
+            code.jump(IF_ICMPEQ, channelCountOk, -2);
+
+            code.constantOp(NEW, classFile.addConstantClassInfo(ILLEGAL_ARGUMENT_EXCEPTION), 1);
+            code.op(DUP, 1);
+            code.constantOp(NEW, classFile.addConstantClassInfo(STRING_BUILDER), 1);
+            code.op(DUP, 1);
+            code.pushString("The channel count should be correct, expected " + channelCount + ", but got ");
+            code.constantOp(INVOKESPECIAL, classFile.addConstantMethodrefInfo(STRING_BUILDER, "<init>", "(" + STRING + ")V"), -2);
+            load("channelNames");
+            code.op(ARRAYLENGTH, 0);
+            code.constantOp(INVOKEVIRTUAL, classFile.addConstantMethodrefInfo(STRING_BUILDER, "append", "(I)" + STRING_BUILDER), -1);
+            code.pushString(".");
+            code.constantOp(INVOKEVIRTUAL, classFile.addConstantMethodrefInfo(STRING_BUILDER, "append", "(" + STRING + ")" + STRING_BUILDER), -1);
+            code.constantOp(INVOKEVIRTUAL, classFile.addConstantMethodrefInfo(STRING_BUILDER, "toString", "()" + STRING), 0);
+            code.constantOp(INVOKESPECIAL, classFile.addConstantMethodrefInfo(ILLEGAL_ARGUMENT_EXCEPTION, "<init>", "(" + STRING + ")V"), -2);
+            code.op(ATHROW, -1);
+
+            code.mark(channelCountOk);
+        }
+
+        /**
+         * Pushes (start + stride - 1) / stride * stride.
+         */
+        private void writeFirstMultipleOfStride(String start) {
+            load(start);
+            load("stride");
+            code.op(IADD, -1);
+            code.pushInt(1);
+            code.op(ISUB, -1);
+            load("stride");
+            code.op(IDIV, -1);
+            load("stride");
+            code.op(IMUL, -1);
+        }
+
+        /**
+         * Pushes (width == 1) ? 0.5f : 0f.
+         */
+        private void writeRelativeStart() {
+            final BytecodeWriter.Label notSingle = new BytecodeWriter.Label();
+            final BytecodeWriter.Label done = new BytecodeWriter.Label();
+            load("width");
+            code.pushInt(1);
+            code.jump(IF_ICMPNE, notSingle, -2);
+            code.pushFloat(0.5f);
+            code.jump(GOTO, done, 0);
+            code.mark(notSingle);
+            code.pushFloat(0f);
+            code.mark(done);
+        }
+
+        /**
+         * Pushes (size == 1) ? singleValue : (float) start / (size - 1), or 1f / (size - 1) if start is null.
+         */
+        private void writeRelativeCoordinate(String size, String start, float singleValue) {
+            final BytecodeWriter.Label notSingle = new BytecodeWriter.Label();
+            final BytecodeWriter.Label done = new BytecodeWriter.Label();
+            load(size);
+            code.pushInt(1);
+            code.jump(IF_ICMPNE, notSingle, -2);
+            code.pushFloat(singleValue);
+            code.jump(GOTO, done, 0);
+            code.mark(notSingle);
+            if (start != null) {
+                load(start);
+                code.op(I2F, 0);
+            }
+            else {
+                code.pushFloat(1f);
+            }
+            load(size);
+            code.pushInt(1);
+            code.op(ISUB, -1);
+            code.op(I2F, 0);
+            code.op(FDIV, -1);
+            code.mark(done);
+        }
+
+        /**
+         * Jumps to the exit label unless counter < end, and if checkRunning is true, the renderer is running.
+         */
+        private void writeLoopCondition(Local counter, String end, boolean checkRunning, BytecodeWriter.Label exit) {
+            load(counter);
+            load(end);
+            code.jump(IF_ICMPGE, exit, -2);
+            if (checkRunning) {
+                code.localOp(ALOAD, 0, 1);
+                code.constantOp(GETFIELD, fieldRef(RUNNING_FIELD, boolean.class), 0);
+                code.jump(IFEQ, exit, -1);
+            }
+        }
+
+        private void writeStatements(SourceLocation location) throws UnsupportedCodeException {
+            for (RendererStatement statement : builder.getStatements(location)) {
+                switch (statement.getKind()) {
+                    case DECLARE: {
+                        final Class<?> type = primitiveType(statement.getType());
+                        final Class<?> valueType = writeExpression(statement.getValue());
+                        writeAssignmentConversion(valueType, type);
+                        store(declareLocal(statement.getVariable(), type, statement.isFinal()));
+                        break;
+                    }
+                    case ASSIGN: {
+                        final Local local = locals.get(statement.getVariable());
+                        if (local == null || local.isFinal) {
+                            throw new UnsupportedCodeException("Can not assign '" + statement.getVariable() + "'");
+                        }
+                        writeAssignmentConversion(writeExpression(statement.getValue()), local.type);
+                        store(local);
+                        break;
+                    }
+                    case LOAD_CHANNEL: {
+                        writeChannelIndex(statement.getChannelIndex());
+                        code.op(FALOAD, -1);
+                        store(declareLocal(statement.getVariable(), float.class, false));
+                        break;
+                    }
+                    case STORE_CHANNEL: {
+                        writeChannelIndex(statement.getChannelIndex());
+                        final Local local = locals.get(statement.getVariable());
+                        if (local == null || local.type != float.class) {
+                            throw new UnsupportedCodeException("No float variable '" + statement.getVariable() + "'");
+                        }
+                        load(local);
+                        code.op(FASTORE, -3);
+                        break;
+                    }
+                    default:
+                        throw new UnsupportedCodeException("Unknown statement kind " + statement.getKind());
+                }
+            }
+        }
+
+        /**
+         * Pushes the pixel data array and the index of the channel of the current pixel in it.
+         */
+        private void writeChannelIndex(int channelIndex) throws UnsupportedCodeException {
+            load(RendererBuilder.PIXEL_DATA);
+            load(RendererBuilder.PIXEL_INDEX);
+            code.pushInt(channelIndex);
+            if (builder.getPictureLayout() == PictureLayout.PLANAR) {
+                load(RendererBuilder.PLANE_SIZE);
+                code.op(IMUL, -1);
+            }
+            code.op(IADD, -1);
+        }
+
+        /**
+         * Writes code that pushes the value of the expression.
+         * @return the type of the pushed value.
+         */
+        private Class<?> writeExpression(Expr expression) throws UnsupportedCodeException {
+            final Class<?> expectedType = primitiveType(expression.getType());
+            final Class<?> type;
+
+            if (expression instanceof ConstantExpr) {
+                type = writeConstant(((ConstantExpr) expression).getValue());
+            }
+            else if (expression instanceof VariableExpr) {
+                type = writeVariable(((VariableExpr) expression).getIdentifier());
+            }
+            else if (expression instanceof CastExpr) {
+                final Class<?> operandType = writeExpression(((CastExpr) expression).getOperand());
+                if (!isNumeric(operandType) || !isNumeric(expectedType)) {
+                    throw new UnsupportedCodeException("Can not cast " + operandType + " to " + expectedType);
+                }
+                writeConversion(operandType, expectedType);
+                type = expectedType;
+            }
+            else if (expression instanceof OperatorExpr) {
+                type = writeOperation((OperatorExpr) expression);
+            }
+            else if (expression instanceof CallExpr) {
+                type = writeCall((CallExpr) expression);
+            }
+            else {
+                throw new UnsupportedCodeException("Unknown expression " + expression.getClass());
+            }
+
+            // The source would use the actual type, so it has to match the type of the expression
+            if (type != expectedType) {
+                throw new UnsupportedCodeException("Expected " + expectedType + " but got " + type + " for " + expression);
+            }
+            return type;
+        }
+
+        private Class<?> writeConstant(Object value) throws UnsupportedCodeException {
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                code.pushInt(((Number) value).intValue());
+            }
+            else if (value instanceof Character) {
+                code.pushInt((Character) value);
+            }
+            else if (value instanceof Boolean) {
+                code.pushInt((Boolean) value ? 1 : 0);
+            }
+            else if (value instanceof Long) {
+                code.pushLong((Long) value);
+            }
+            else if (value instanceof Float) {
+                code.pushFloat((Float) value);
+            }
+            else if (value instanceof Double) {
+                code.pushDouble((Double) value);
+            }
+            else {
+                throw new UnsupportedCodeException("Unsupported constant type " + value.getClass());
+            }
+            return primitiveType(value.getClass());
+        }
+
+        private Class<?> writeVariable(String identifier) throws UnsupportedCodeException {
+            final Local local = locals.get(identifier);
+            if (local != null) {
+                load(local);
+                return local.type;
+            }
+
+            final Class<?> fieldType = parameterFields.get(identifier);
+            if (fieldType != null) {
+                code.localOp(ALOAD, 0, 1);
+                code.constantOp(GETFIELD, fieldRef(identifier, fieldType), size(fieldType) - 1);
+                return fieldType;
+            }
+
+            throw new UnsupportedCodeException("Unknown variable '" + identifier + "'");
+        }
+
+        private Class<?> writeOperation(OperatorExpr operation) throws UnsupportedCodeException {
+            final Class<?> leftType = primitiveType(operation.getLeft().getType());
+            final Class<?> rightType = primitiveType(operation.getRight().getType());
+            if (!isNumeric(leftType) || !isNumeric(rightType)) {
+                throw new UnsupportedCodeException("Operands of " + operation + " are not numbers");
+            }
+            final Class<?> type = promotedType(leftType, rightType);
+
+            writeConversion(writeExpression(operation.getLeft()), type);
+            writeConversion(writeExpression(operation.getRight()), type);
+
+            final int firstOpcode;
+            switch (operation.getOperator()) {
+                case ADD: firstOpcode = IADD; break;
+                case SUB: firstOpcode = ISUB; break;
+                case MUL: firstOpcode = IMUL; break;
+                case DIV: firstOpcode = IDIV; break;
+                default: throw new UnsupportedCodeException("Unknown operator " + operation.getOperator());
+            }
+            code.op(firstOpcode + typeOffset(type), -size(type));
+            return type;
+        }
+
+        private Class<?> writeCall(CallExpr call) throws UnsupportedCodeException {
+            final List<Class<?>> argumentTypes = new ArrayList<Class<?>>();
+            for (Expr argument : call.getArguments()) {
+                argumentTypes.add(primitiveType(argument.getType()));
+            }
+
+            final Method method = resolveMethod(call.getMethod(), argumentTypes);
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+
+            int stackChange = 0;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                writeConversion(writeExpression(call.getArguments().get(i)), parameterTypes[i]);
+                stackChange -= size(parameterTypes[i]);
+            }
+
+            final StringBuilder methodDescriptor = new StringBuilder("(");
+            for (Class<?> parameterType : parameterTypes) {
+                methodDescriptor.append(descriptor(parameterType));
+            }
+            methodDescriptor.append(")").append(descriptor(method.getReturnType()));
+
+            final Class<?> returnType = method.getReturnType();
+            code.constantOp(INVOKESTATIC,
+                            classFile.addConstantMethodrefInfo(descriptor(method.getDeclaringClass()),
+                                                               method.getName(),
+                                                               methodDescriptor.toString()),
+                            stackChange + size(returnType));
+            return returnType;
+        }
+
+        /**
+         * Finds the static method called with the specified name, the same way as the compiler would,
+         * for the cases where no boxing or varargs are needed.
+         */
+        private Method resolveMethod(String qualifiedName, List<Class<?>> argumentTypes) throws UnsupportedCodeException {
+            final int lastDot = qualifiedName.lastIndexOf('.');
+            if (lastDot <= 0) throw new UnsupportedCodeException("Calls to unqualified methods are not supported");
+            final Class<?> owner = resolveClass(qualifiedName.substring(0, lastDot));
+            final String methodName = qualifiedName.substring(lastDot + 1);
+
+            // Find the applicable methods
+            final List<Method> applicable = new ArrayList<Method>();
+            for (Method method : owner.getMethods()) {
+                if (method.getName().equals(methodName) &&
+                    !method.isBridge() &&
+                    !method.isSynthetic() &&
+                    isConvertible(argumentTypes, method.getParameterTypes())) {
+                    applicable.add(method);
+                }
+            }
+
+            // Select the most specific one
+            Method selected = null;
+            for (Method candidate : applicable) {
+                boolean mostSpecific = true;
+                for (Method other : applicable) {
+                    if (other != candidate &&
+                        !isConvertible(Arrays.asList(candidate.getParameterTypes()), other.getParameterTypes())) {
+                        mostSpecific = false;
+                    }
+                }
+                if (mostSpecific) {
+                    if (selected != null) throw new UnsupportedCodeException("Ambiguous call to " + qualifiedName);
+                    selected = candidate;
+                }
+            }
+
+            if (selected == null) throw new UnsupportedCodeException("No method found for " + qualifiedName);
+            if (!Modifier.isStatic(selected.getModifiers()) ||
+                selected.getDeclaringClass().isInterface() ||
+                !Modifier.isPublic(selected.getDeclaringClass().getModifiers()) ||
+                selected.getReturnType() == void.class) {
+                throw new UnsupportedCodeException("Unsupported method " + selected);
+            }
+            return selected;
+        }
+
+        /**
+         * @return the class with the specified name, as it would be resolved in the generated source.
+         */
+        private Class<?> resolveClass(String name) throws UnsupportedCodeException {
+            for (Class<?> importedClass : builder.getImportedClasses()) {
+                if (importedClass.getSimpleName().equals(name) || importedClass.getName().equals(name)) return importedClass;
+            }
+
+            final ClassLoader classLoader = RendererBuilder.class.getClassLoader();
+            final String className = name.indexOf('.') < 0 ? "java.lang." + name : name;
+            try {
+                final Class<?> resolved = Class.forName(className, false, classLoader);
+                if (!Modifier.isPublic(resolved.getModifiers())) throw new UnsupportedCodeException("Class " + name + " is not public");
+                return resolved;
+            } catch (ClassNotFoundException e) {
+                throw new UnsupportedCodeException("Unknown class " + name);
+            }
+        }
+
+        private Local declareLocal(String name, Class<?> type, boolean isFinal) throws UnsupportedCodeException {
+            if (locals.containsKey(name) || reservedNames.contains(name)) throw new UnsupportedCodeException("Variable '" + name + "' is already defined");
+
+            final Local local = new Local(code.allocateLocal(size(type)), type, isFinal);
+            locals.put(name, local);
+            return local;
+        }
+
+        private void load(String name) {
+            load(locals.get(name));
+        }
+
+        private void load(Local local) {
+            code.localOp(ILOAD + typeOffset(local.type), local.slot, size(local.type));
+        }
+
+        private void store(Local local) {
+            code.localOp(ISTORE + typeOffset(local.type), local.slot, -size(local.type));
+        }
+
+        private short fieldRef(String name, Class<?> type) {
+            return classFile.addConstantFieldrefInfo(classDescriptor, name, descriptor(type));
+        }
+
+        /**
+         * Converts a value for assigning it to a variable, where only widening conversions are allowed.
+         */
+        private void writeAssignmentConversion(Class<?> from, Class<?> to) throws UnsupportedCodeException {
+            if (!isConvertible(from, to)) throw new UnsupportedCodeException("Can not assign " + from + " to " + to);
+            writeConversion(from, to);
+        }
+
+        /**
+         * Converts a number on the top of the stack to another number type.  Does nothing for other types.
+         */
+        private void writeConversion(Class<?> from, Class<?> to) {
+            if (from == to || !isNumeric(from) || !isNumeric(to)) return;
+
+            final int fromOffset = typeOffset(from);
+            final int toOffset = typeOffset(to);
+            if (fromOffset != toOffset) {
+                // The conversion opcodes are ordered by source and target type, skipping conversions to the same type
+                final int opcode = I2L + fromOffset * 3 + (toOffset > fromOffset ? toOffset - 1 : toOffset);
+                code.op(opcode, size(to) - size(from));
+            }
+
+            if (to == byte.class) code.op(I2B, 0);
+            else if (to == short.class) code.op(I2S, 0);
+            else if (to == char.class) code.op(I2C, 0);
+        }
+    }
+
+    /**
+     * @return the type of the field holding a parameter, primitive for wrapped primitive types.
+     */
+    private static Class<?> getParameterFieldType(Class<?> parameterType) throws UnsupportedCodeException {
+        if (parameterType.isPrimitive()) throw new UnsupportedCodeException("Primitive parameter types are not supported");
+        return primitiveType(parameterType);
+    }
+
+    /**
+     * @return the primitive type for wrapper types, or the type itself.
+     */
+    private static Class<?> primitiveType(Class<?> type) {
+        if (ClassUtils.isWrappedPrimitiveType(type)) {
+            try {
+                return (Class<?>) type.getField("TYPE").get(null);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not get the primitive type for " + type, e);
+            }
+        }
+        return type;
+    }
+
+    private static boolean isNumeric(Class<?> type) {
+        return type.isPrimitive() && type != boolean.class && type != void.class;
+    }
+
+    /**
+     * @return the type that two operands are converted to for arithmetic operations.
+     */
+    private static Class<?> promotedType(Class<?> a, Class<?> b) {
+        if (a == double.class || b == double.class) return double.class;
+        else if (a == float.class || b == float.class) return float.class;
+        else if (a == long.class || b == long.class) return long.class;
+        else return int.class;
+    }
+
+    /**
+     * @return true if the arguments can be passed as the parameters using identity or widening conversions.
+     */
+    private static boolean isConvertible(List<Class<?>> argumentTypes, Class<?>[] parameterTypes) {
+        if (argumentTypes.size() != parameterTypes.length) return false;
+
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (!isConvertible(argumentTypes.get(i), parameterTypes[i])) return false;
+        }
+        return true;
+    }
+
+    private static boolean isConvertible(Class<?> from, Class<?> to) {
+        if (from == to) return true;
+        else if (!from.isPrimitive() && !to.isPrimitive()) return to.isAssignableFrom(from);
+        else if (!isNumeric(from) || !isNumeric(to)) return false;
+        else if (from == char.class) return to == int.class || to == long.class || to == float.class || to == double.class;
+        else if (to == char.class) return false;
+        else return widthOrder(from) < widthOrder(to);
+    }
+
+    private static int widthOrder(Class<?> type) {
+        if (type == byte.class) return 0;
+        else if (type == short.class) return 1;
+        else if (type == int.class) return 2;
+        else if (type == long.class) return 3;
+        else if (type == float.class) return 4;
+        else return 5;
+    }
+
+    /**
+     * @return offset of the typed variant of an int instruction (e.g. fload for iload), 0 for int, 1 for long,
+     *         2 for float, 3 for double and 4 for references.
+     */
+    private static int typeOffset(Class<?> type) {
+        if (type == long.class) return 1;
+        else if (type == float.class) return 2;
+        else if (type == double.class) return 3;
+        else if (type.isPrimitive()) return 0;
+        else return 4;
+    }
+
+    /**
+     * @return number of stack or local variable slots used by a value of the type.
+     */
+    private static int size(Class<?> type) {
+        if (type == void.class) return 0;
+        else if (type == long.class || type == double.class) return 2;
+        else return 1;
+    }
+
+    /**
+     * @return descriptor of a method with the specified parameter types and no return value.
+     */
+    private static String methodDescriptor(Class<?>[] parameterTypes) {
+        final StringBuilder methodDescriptor = new StringBuilder("(");
+        for (Class<?> type : parameterTypes) {
+            methodDescriptor.append(descriptor(type));
+        }
+        methodDescriptor.append(")V");
+        return methodDescriptor.toString();
+    }
+
+    private static String descriptor(Class<?> type) {
+        if (type == int.class) return "I";
+        else if (type == long.class) return "J";
+        else if (type == float.class) return "F";
+        else if (type == double.class) return "D";
+        else if (type == boolean.class) return "Z";
+        else if (type == byte.class) return "B";
+        else if (type == short.class) return "S";
+        else if (type == char.class) return "C";
+        else if (type == void.class) return "V";
+        else if (type.isArray()) return type.getName().replace('.', '/');
+        else return "L" + type.getName().replace('.', '/') + ";";
+    }
+}
@@ -0,0 +1,336 @@
+package org.rasterfun.core.compiler;
+
+import org.codehaus.janino.util.ClassFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the bytecode of one method, keeping track of the stack depth, local variable slots and jump targets.
+ * Used by the BytecodeBackend.
+ *
+ * The stack depth is tracked linearly, so the stack should be empty at jumps and jump targets.
+ */
+final class BytecodeWriter {
+
+    // Opcodes used by the backend
+    static final int ICONST_0 = 0x03;
+    static final int LCONST_0 = 0x09;
+    static final int FCONST_0 = 0x0b;
+    static final int DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int FALOAD = 0x30;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int FASTORE = 0x51;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IINC = 0x84;
+    static final int I2L = 0x85;
+    static final int I2F = 0x86;
+    static final int I2D = 0x87;
+    static final int L2I = 0x88;
+    static final int L2F = 0x89;
+    static final int L2D = 0x8a;
+    static final int F2I = 0x8b;
+    static final int F2L = 0x8c;
+    static final int F2D = 0x8d;
+    static final int D2I = 0x8e;
+    static final int D2L = 0x8f;
+    static final int D2F = 0x90;
+    static final int I2B = 0x91;
+    static final int I2C = 0x92;
+    static final int I2S = 0x93;
+    static final int FADD = 0x62;
+    static final int FMUL = 0x6a;
+    static final int FDIV = 0x6e;
+    static final int IREM = 0x70;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int GOTO = 0xa7;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ARRAYLENGTH = 0xbe;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int IFNULL = 0xc6;
+    static final int WIDE = 0xc4;
+
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_JUMP = Short.MAX_VALUE;
+
+    private final ClassFile classFile;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<Label>();
+
+    private int stackDepth = 0;
+    private int maxStackDepth = 0;
+    private int nextLocal;
+
+    /**
+     * A jump target.
+     */
+    static final class Label {
+        private int position = -1;
+        private int stackDepth = -1;
+        private final List<Integer> jumpPositions = new ArrayList<Integer>();
+    }
+
+    /**
+     * @param classFile class file to add constants to.
+     * @param parameterSlots number of local variable slots used by the this reference and the method parameters.
+     */
+    BytecodeWriter(ClassFile classFile, int parameterSlots) {
+        this.classFile = classFile;
+        this.nextLocal = parameterSlots;
+    }
+
+    ClassFile getClassFile() {
+        return classFile;
+    }
+
+    /**
+     * @return a new local variable slot for a value with the specified size in slots.
+     */
+    int allocateLocal(int size) {
+        final int slot = nextLocal;
+        nextLocal += size;
+        return slot;
+    }
+
+    /**
+     * @return the number of bytes of code written so far.
+     */
+    int getCodeLength() {
+        return code.size();
+    }
+
+    /**
+     * Writes an instruction without operands.
+     * @param stackChange change in the stack depth caused by the instruction.
+     */
+    void op(int opcode, int stackChange) {
+        code.write(opcode);
+        changeStack(stackChange);
+    }
+
+    /**
+     * Writes an instruction with a constant pool index operand.
+     */
+    void constantOp(int opcode, short constantIndex, int stackChange) {
+        code.write(opcode);
+        writeShort(constantIndex);
+        changeStack(stackChange);
+    }
+
+    /**
+     * Writes a load or store instruction for a local variable slot.
+     */
+    void localOp(int opcode, int slot, int stackChange) {
+        if (slot <= 0xFF) {
+            code.write(opcode);
+            code.write(slot);
+        }
+        else {
+            code.write(WIDE);
+            code.write(opcode);
+            writeShort(slot);
+        }
+        changeStack(stackChange);
+    }
+
+    /**
+     * Increments an int local variable.
+     */
+    void increment(int slot, int amount) {
+        if (slot <= 0xFF && amount >= Byte.MIN_VALUE && amount <= Byte.MAX_VALUE) {
+            code.write(IINC);
+            code.write(slot);
+            code.write(amount);
+        }
+        else if (amount >= Short.MIN_VALUE && amount <= Short.MAX_VALUE) {
+            code.write(WIDE);
+            code.write(IINC);
+            writeShort(slot);
+            writeShort(amount);
+        }
+        else {
+            localOp(ILOAD, slot, 1);
+            pushInt(amount);
+            op(IADD, -1);
+            localOp(ISTORE, slot, -1);
+        }
+    }
+
+    void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        }
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+            changeStack(1);
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            writeShort(value);
+            changeStack(1);
+        }
+        else {
+            loadConstant(classFile.addConstantIntegerInfo(value), 1);
+        }
+    }
+
+    void pushLong(long value) {
+        if (value == 0 || value == 1) op(LCONST_0 + (int) value, 2);
+        else constantOp(LDC2_W, classFile.addConstantLongInfo(value), 2);
+    }
+
+    void pushFloat(float value) {
+        // Compare bits, so that negative zero is loaded from the constant pool
+        final int bits = Float.floatToIntBits(value);
+        if (bits == Float.floatToIntBits(0f)) op(FCONST_0, 1);
+        else if (bits == Float.floatToIntBits(1f)) op(FCONST_0 + 1, 1);
+        else if (bits == Float.floatToIntBits(2f)) op(FCONST_0 + 2, 1);
+        else loadConstant(classFile.addConstantFloatInfo(value), 1);
+    }
+
+    void pushDouble(double value) {
+        final long bits = Double.doubleToLongBits(value);
+        if (bits == Double.doubleToLongBits(0.0)) op(DCONST_0, 2);
+        else if (bits == Double.doubleToLongBits(1.0)) op(DCONST_0 + 1, 2);
+        else constantOp(LDC2_W, classFile.addConstantDoubleInfo(value), 2);
+    }
+
+    void pushString(String value) {
+        loadConstant(classFile.addConstantStringInfo(value), 1);
+    }
+
+    /**
+     * Writes a jump instruction.
+     * @param stackChange change in the stack depth caused by the instruction, e.g. -2 for comparisons of two ints.
+     */
+    void jump(int opcode, Label target, int stackChange) {
+        changeStack(stackChange);
+        target.jumpPositions.add(code.size());
+        target.stackDepth = stackDepth;
+        code.write(opcode);
+        writeShort(0);
+        if (!labels.contains(target)) labels.add(target);
+    }
+
+    /**
+     * Sets the position of the label to the current position.
+     * Code after an unconditional jump continues with the stack depth of the jumps to the label.
+     */
+    void mark(Label label) {
+        label.position = code.size();
+        if (label.stackDepth >= 0) stackDepth = label.stackDepth;
+        if (!labels.contains(label)) labels.add(label);
+    }
+
+    /**
+     * Writes an invokeinterface instruction.
+     * @param argumentSlots number of slots used by the arguments, not including the object the method is called on.
+     */
+    void invokeInterface(short methodIndex, int argumentSlots, int stackChange) {
+        code.write(INVOKEINTERFACE);
+        writeShort(methodIndex);
+        code.write(argumentSlots + 1);
+        code.write(0);
+        changeStack(stackChange);
+    }
+
+    /**
+     * Adds the code to a method.
+     * @throws IllegalStateException if the method is too long for the jump instructions or the class file format.
+     */
+    void addTo(ClassFile.MethodInfo method) {
+        final byte[] bytes = code.toByteArray();
+        if (bytes.length > MAX_JUMP || bytes.length > MAX_CODE_LENGTH) {
+            throw new IllegalStateException("The method is too long (" + bytes.length + " bytes)");
+        }
+
+        // Fill in jump offsets
+        for (Label label : labels) {
+            if (label.position < 0) throw new IllegalStateException("A jump target was not placed");
+            for (int jumpPosition : label.jumpPositions) {
+                final int offset = label.position - jumpPosition;
+                bytes[jumpPosition + 1] = (byte) (offset >> 8);
+                bytes[jumpPosition + 2] = (byte) offset;
+            }
+        }
+
+        method.addAttribute(new CodeAttribute(classFile.addConstantUtf8Info("Code"), maxStackDepth, nextLocal, bytes));
+    }
+
+    private void loadConstant(short constantIndex, int stackChange) {
+        if ((constantIndex & 0xFFFF) <= 0xFF) {
+            code.write(LDC);
+            code.write(constantIndex);
+            changeStack(stackChange);
+        }
+        else {
+            constantOp(LDC_W, constantIndex, stackChange);
+        }
+    }
+
+    private void changeStack(int change) {
+        stackDepth += change;
+        if (stackDepth < 0) throw new IllegalStateException("Stack underflow in generated code");
+        if (stackDepth > maxStackDepth) maxStackDepth = stackDepth;
+    }
+
+    private void writeShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    /**
+     * Code attribute of a method, without exception handlers or debug information.
+     */
+    private static final class CodeAttribute extends ClassFile.AttributeInfo {
+        private final int maxStack;
+        private final int maxLocals;
+        private final byte[] code;
+
+        private CodeAttribute(short nameIndex, int maxStack, int maxLocals, byte[] code) {
+            super(nameIndex);
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.code = code;
+        }
+
+        @Override
+        protected void storeBody(DataOutputStream dos) throws IOException {
+            dos.writeShort(maxStack);
+            dos.writeShort(maxLocals);
+            dos.writeInt(code.length);
+            dos.write(code);
+            dos.writeShort(0); // Exception table length
+            dos.writeShort(0); // Attribute count
+        }
+    }
+}
@@ -28,6 +28,24 @@ public class CommonVariables {
                                                                        RendererBuilder.PICTURE_SEED,
                                                                        "Random seed that is unique for one picture"
                                                                       );
+    public static final OutputVariable PICTURE_INDEX = createBuiltinVar("pictureIndex",
+                                                                        Integer.class,
+                                                                        PARAMETER_PREFIX +
+                                                                        RendererBuilder.PICTURE_INDEX,
+                                                                        "Index of the picture among the pictures of the generator"
+                                                                       );
+    public static final OutputVariable PICTURE_COUNT = createBuiltinVar("pictureCount",
+                                                                        Integer.class,
+                                                                        PARAMETER_PREFIX +
+                                                                        RendererBuilder.PICTURE_COUNT,
+                                                                        "Number of pictures produced by the generator"
+                                                                       );
+    public static final OutputVariable RELATIVE_INDEX = createBuiltinVar("relativeIndex",
+                                                                         Float.class,
+                                                                         PARAMETER_PREFIX +
+                                                                         RendererBuilder.RELATIVE_INDEX,
+                                                                         "Index of the picture scaled to the 0..1 range"
+                                                                        );
     public static final OutputVariable RELATIVE_X = createBuiltinVar("relX",
                                                                      Float.class,
                                                                      RendererBuilder.RELATIVE_X, null
@@ -44,6 +62,9 @@ public class CommonVariables {
     public static List<OutputVariable> BUILT_IN_VARS = Collections.unmodifiableList(new ArrayList<OutputVariable>(Arrays.asList(
             GENERATOR_SEED,
             PICTURE_SEED,
+            PICTURE_INDEX,
+            PICTURE_COUNT,
+            RELATIVE_INDEX,
             RELATIVE_X,
             RELATIVE_Y,
             ABSOLUTE_X,
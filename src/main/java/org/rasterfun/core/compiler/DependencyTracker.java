@@ -0,0 +1,166 @@
+package org.rasterfun.core.compiler;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of how often the identifiers visible in the generated renderer code change,
+ * and determines how often the value of an expression using them can change.
+ *
+ * Unknown identifiers are assumed to change for every pixel.
+ * Method calls are assumed to have no side effects, so that they can be moved out of the pixel loop
+ * if their parameters allow it.
+ */
+public final class DependencyTracker {
+
+    // Identifiers that are not variables, and do not affect the update frequency
+    private static final Set<String> IGNORED_WORDS = new HashSet<String>(Arrays.asList(
+            "true", "false", "null",
+            "boolean", "byte", "short", "int", "long", "float", "double", "char"));
+
+    // Commonly used classes that are visible without imports
+    private static final Set<String> JAVA_LANG_CLASSES = new HashSet<String>(Arrays.asList(
+            "Math", "StrictMath", "Boolean", "Byte", "Short", "Integer", "Long", "Float", "Double", "Character", "String"));
+
+    private final Map<String, UpdateFrequency> identifierFrequencies = new HashMap<String, UpdateFrequency>();
+
+    public DependencyTracker() {
+    }
+
+    /**
+     * Creates a tracker that initially knows the same identifiers as the specified tracker.
+     */
+    public DependencyTracker(DependencyTracker source) {
+        identifierFrequencies.putAll(source.identifierFrequencies);
+    }
+
+    /**
+     * Sets the update frequency of a variable or other identifier.
+     */
+    public void setFrequency(String identifier, UpdateFrequency frequency) {
+        ParameterChecker.checkNotNull(identifier, "identifier");
+        ParameterChecker.checkNotNull(frequency, "frequency");
+
+        identifierFrequencies.put(identifier, frequency);
+    }
+
+    /**
+     * Marks a class name as usable anywhere, e.g. for calling static methods.
+     */
+    public void addClassName(String simpleClassName) {
+        setFrequency(simpleClassName, UpdateFrequency.PER_CALCULATION);
+    }
+
+    /**
+     * @return the update frequency of the specified identifier, PER_PIXEL if it is unknown.
+     */
+    public UpdateFrequency getFrequency(String identifier) {
+        final UpdateFrequency frequency = identifierFrequencies.get(identifier);
+        if (frequency != null) return frequency;
+        else if (JAVA_LANG_CLASSES.contains(identifier)) return UpdateFrequency.PER_CALCULATION;
+        else return UpdateFrequency.PER_PIXEL;
+    }
+
+    /**
+     * @return how often the value of the specified java expression can change,
+     *         based on the update frequencies of the identifiers it uses.
+     */
+    public UpdateFrequency getExpressionFrequency(String expression) {
+        ParameterChecker.checkNotNull(expression, "expression");
+
+        final Set<String> identifiers = new HashSet<String>();
+        if (collectIdentifiers(expression, identifiers)) {
+            // Unqualified methods are methods of the generated class, we can not know what they use
+            return UpdateFrequency.PER_PIXEL;
+        }
+
+        UpdateFrequency frequency = UpdateFrequency.PER_CALCULATION;
+        for (String identifier : identifiers) {
+            frequency = frequency.combine(getFrequency(identifier));
+        }
+        return frequency;
+    }
+
+    /**
+     * Finds the variables and class names used in a piece of java code.
+     * Member names, method names and primitive type names are left out.
+     *
+     * @param code the code to scan.
+     * @param identifiers collection to add the found identifiers to.
+     * @return true if the code calls unqualified methods.
+     */
+    public static boolean collectIdentifiers(String code, Collection<String> identifiers) {
+        ParameterChecker.checkNotNull(code, "code");
+        ParameterChecker.checkNotNull(identifiers, "identifiers");
+
+        boolean unqualifiedCalls = false;
+
+        final int length = code.length();
+        int i = 0;
+        while (i < length) {
+            final char c = code.charAt(i);
+
+            if (c == '"' || c == '\'') {
+                // Skip string and character literals
+                i = skipLiteral(code, i);
+            }
+            else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(code.charAt(i + 1)))) {
+                // Skip numbers, including any type suffixes and exponents
+                i++;
+                while (i < length && (Character.isLetterOrDigit(code.charAt(i)) || code.charAt(i) == '.')) i++;
+            }
+            else if (Character.isJavaIdentifierStart(c)) {
+                final int start = i;
+                i++;
+                while (i < length && Character.isJavaIdentifierPart(code.charAt(i))) i++;
+                final String identifier = code.substring(start, i);
+
+                final boolean memberAccess = previousNonSpace(code, start) == '.';
+                final boolean methodCall = nextNonSpace(code, i) == '(';
+                if (!memberAccess && !IGNORED_WORDS.contains(identifier)) {
+                    if (methodCall) unqualifiedCalls = true;
+                    else identifiers.add(identifier);
+                }
+            }
+            else {
+                i++;
+            }
+        }
+
+        return unqualifiedCalls;
+    }
+
+    static int skipLiteral(String expression, int start) {
+        final char quote = expression.charAt(start);
+        int i = start + 1;
+        while (i < expression.length()) {
+            final char c = expression.charAt(i);
+            if (c == '\\') i += 2;
+            else if (c == quote) return i + 1;
+            else i++;
+        }
+        return i;
+    }
+
+    private static char previousNonSpace(String expression, int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            final char c = expression.charAt(i);
+            if (!Character.isWhitespace(c)) return c;
+        }
+        return ' ';
+    }
+
+    static char nextNonSpace(String expression, int index) {
+        for (int i = index; i < expression.length(); i++) {
+            final char c = expression.charAt(i);
+            if (!Character.isWhitespace(c)) return c;
+        }
+        return ' ';
+    }
+}
@@ -0,0 +1,29 @@
+package org.rasterfun.core.compiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class loader for compiled renderer classes, defines classes from bytecode kept in memory.
+ */
+public final class GeneratedClassLoader extends ClassLoader {
+
+    private final Map<String, byte[]> classBytes;
+
+    /**
+     * @param classBytes bytecode for the classes, keyed by the fully qualified class name.
+     * @param parent class loader to use for any other classes.
+     */
+    public GeneratedClassLoader(Map<String, byte[]> classBytes, ClassLoader parent) {
+        super(parent);
+        this.classBytes = new HashMap<String, byte[]>(classBytes);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        final byte[] bytes = classBytes.get(name);
+        if (bytes == null) throw new ClassNotFoundException(name);
+
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,20 @@
+package org.rasterfun.core.compiler;
+
+import java.util.Map;
+
+/**
+ * Creates renderers by compiling the generated source with Janino.
+ * Supports any source added to the builder.  This is the default backend.
+ */
+public final class JaninoBackend implements RendererBackend {
+
+    @Override
+    public String getRendererKey(String rendererSource) {
+        return rendererSource;
+    }
+
+    @Override
+    public Map<String, byte[]> createRendererBytecode(RendererBuilder builder, String className) throws CompilationException {
+        return builder.compileSource(className);
+    }
+}
@@ -0,0 +1,436 @@
+package org.rasterfun.core.compiler;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.*;
+
+import static org.rasterfun.core.compiler.SourceLocation.*;
+
+/**
+ * Moves the code of the largest locations of the generated calculatePixels method to private helper methods,
+ * so that the method stays small enough for HotSpot to JIT compile it (by default it does not compile methods
+ * with more than 8000 bytes of bytecode, and the class file format does not allow more than 64KB).
+ *
+ * The local variables used or declared by the helper methods are passed to and from them in an object that is created
+ * for each calculatePixels call, as the same renderer may be calculating several parts of a picture at the same time.
+ * Locations with source lines that may declare unknown variables are not split.
+ */
+final class MethodSplitter {
+
+    static final String STATE_CLASS = "SharedLocals";
+    static final String STATE_VARIABLE = "sharedLocals";
+    static final String HELPER_METHOD_PREFIX = "calculatePixelsPart";
+
+    // Rough bytecode sizes of the fixed code in calculatePixels, and of a call to a helper method
+    private static final int TEMPLATE_SIZE = 400;
+    private static final int CALL_SIZE = 5;
+
+    // Locations of calculatePixels in the order they appear in it, and the ones that can be moved to helper methods
+    private static final List<SourceLocation> METHOD_LOCATIONS = Arrays.asList(BEFORE_LOOP, BEFORE_LINE, BEFORE_PIXEL, AT_PIXEL,
+                                                                               AFTER_PIXEL, AFTER_LINE, AFTER_LOOP);
+    private static final List<SourceLocation> SPLIT_LOCATIONS = Arrays.asList(BEFORE_LOOP, BEFORE_LINE, AT_PIXEL);
+
+    private final Map<SourceLocation, List<SourceLine>> sources;
+    private final Map<String, Local> locals = new HashMap<String, Local>();
+    private final Map<SourceLocation, Integer> sizes = new HashMap<SourceLocation, Integer>();
+
+    // Helper methods of the split locations
+    private final Map<SourceLocation, List<Helper>> helpers = new HashMap<SourceLocation, List<Helper>>();
+
+    // Code that replaces the split locations, and values copied to the shared locals at the end of locations
+    private final Map<SourceLocation, String> callSources = new HashMap<SourceLocation, String>();
+    private final Map<SourceLocation, Set<String>> copiesAtEnd = new HashMap<SourceLocation, Set<String>>();
+    private final Set<String> sharedVariables = new LinkedHashSet<String>();
+
+    /**
+     * @param sources the source lines of the renderer, by location.
+     */
+    MethodSplitter(Map<SourceLocation, List<SourceLine>> sources) {
+        ParameterChecker.checkNotNull(sources, "sources");
+        this.sources = sources;
+
+        // Find the variables declared in calculatePixels
+        for (SourceLocation location : METHOD_LOCATIONS) {
+            for (SourceLine line : sources.get(location)) {
+                if (line.getDeclaredVariable() != null) {
+                    final UpdateFrequency frequency = line.isFinal() ? UpdateFrequency.forLocation(location) : UpdateFrequency.PER_PIXEL;
+                    locals.put(line.getDeclaredVariable(), new Local(line.getTypeCode(), !line.isFinal(), frequency, location));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a local variable of the calculatePixels template.  The helper methods can read it, but not assign it.
+     *
+     * @param frequency how often the value changes.  The value should be available at the start of the code
+     *                  of the corresponding declaration location.
+     */
+    void addTemplateLocal(String name, String typeCode, UpdateFrequency frequency) {
+        ParameterChecker.checkIsIdentifier(name, "name");
+        ParameterChecker.checkNotNull(typeCode, "typeCode");
+        ParameterChecker.checkNotNull(frequency, "frequency");
+
+        locals.put(name, new Local(typeCode, false, frequency, null));
+    }
+
+    /**
+     * Moves the code of the largest locations to helper methods, until the estimated size of calculatePixels
+     * is at most the specified size.
+     *
+     * @param maxMethodSize maximum estimated bytecode size of calculatePixels and of the helper methods.
+     * @return true if some code was moved to helper methods.
+     */
+    boolean split(int maxMethodSize) {
+        ParameterChecker.checkPositiveNonZeroInteger(maxMethodSize, "maxMethodSize");
+
+        int methodSize = TEMPLATE_SIZE;
+        for (SourceLocation location : METHOD_LOCATIONS) {
+            methodSize += getSize(location);
+        }
+        if (methodSize <= maxMethodSize) return false;
+
+        // Split the largest locations first
+        final List<SourceLocation> candidates = new ArrayList<SourceLocation>(SPLIT_LOCATIONS);
+        Collections.sort(candidates, new Comparator<SourceLocation>() {
+            @Override
+            public int compare(SourceLocation a, SourceLocation b) {
+                return getSize(b) - getSize(a);
+            }
+        });
+        for (SourceLocation location : candidates) {
+            if (methodSize <= maxMethodSize) break;
+
+            if (canSplit(location)) {
+                final List<Helper> locationHelpers = createHelpers(location, maxMethodSize / 2);
+                helpers.put(location, locationHelpers);
+                methodSize += locationHelpers.size() * CALL_SIZE - getSize(location);
+            }
+        }
+
+        if (helpers.isEmpty()) return false;
+
+        passVariables();
+        return true;
+    }
+
+    /**
+     * @return the code for the location, either its source lines or the calls to its helper methods.
+     */
+    String getSource(SourceLocation location) {
+        final String indent = location.getIndent();
+        final StringBuilder s = new StringBuilder();
+
+        final String callSource = callSources.get(location);
+        if (callSource != null) {
+            s.append(callSource);
+        }
+        else {
+            for (SourceLine line : sources.get(location)) {
+                s.append(line.toSource(location));
+            }
+        }
+
+        final Set<String> copies = copiesAtEnd.get(location);
+        if (copies != null) {
+            for (String variable : copies) {
+                s.append(indent).append(STATE_VARIABLE).append(".").append(variable).append(" = ").append(variable).append(";\n");
+            }
+        }
+
+        return s.toString();
+    }
+
+    /**
+     * @return declaration of the object that holds the shared locals, to place at the start of calculatePixels.
+     */
+    String getStateDeclaration() {
+        if (helpers.isEmpty()) return "";
+        else return BEFORE_LOOP.getIndent() + "final " + STATE_CLASS + " " + STATE_VARIABLE + " = new " + STATE_CLASS + "();\n";
+    }
+
+    /**
+     * @return source of the helper methods and the class for the shared locals.
+     */
+    String getHelperSource() {
+        if (helpers.isEmpty()) return "";
+
+        final StringBuilder s = new StringBuilder();
+        s.append("  // Local variables of calculatePixels used by its helper methods\n");
+        s.append("  static final class ").append(STATE_CLASS).append(" {\n");
+        for (String variable : sharedVariables) {
+            s.append("    ").append(locals.get(variable).typeCode).append(" ").append(variable).append(";\n");
+        }
+        s.append("  }\n");
+
+        for (SourceLocation location : SPLIT_LOCATIONS) {
+            final List<Helper> locationHelpers = helpers.get(location);
+            if (locationHelpers == null) continue;
+
+            for (Helper helper : locationHelpers) {
+                s.append("  \n");
+                s.append("  // Part of the ").append(location).append(" code of calculatePixels\n");
+                s.append("  private void ").append(helper.getMethodName()).append("(final ").append(STATE_CLASS).append(" ").append(STATE_VARIABLE).append(") {\n");
+                for (String input : helper.inputs) {
+                    final Local local = locals.get(input);
+                    s.append("    ").append(local.mutable ? "" : "final ").append(local.typeCode).append(" ").append(input);
+                    s.append(" = ").append(STATE_VARIABLE).append(".").append(input).append(";\n");
+                }
+                for (SourceLine line : helper.lines) {
+                    s.append("    ").append(line.getCode()).append(";\n");
+                }
+                for (String output : helper.outputs) {
+                    s.append("    ").append(STATE_VARIABLE).append(".").append(output).append(" = ").append(output).append(";\n");
+                }
+                s.append("  }\n");
+            }
+        }
+
+        return s.toString();
+    }
+
+    /**
+     * @return a rough estimate of the bytecode size of a line of java source,
+     *         counting a few bytes for each name, value, call and operator.
+     */
+    static int estimateBytecodeSize(String code) {
+        int size = 1;
+
+        final int length = code.length();
+        int i = 0;
+        while (i < length) {
+            final char c = code.charAt(i);
+
+            if (c == '"' || c == '\'') {
+                i = DependencyTracker.skipLiteral(code, i);
+                size += 2;
+            }
+            else if (Character.isJavaIdentifierPart(c) || c == '.') {
+                // Names, qualified names and numbers
+                while (i < length && (Character.isJavaIdentifierPart(code.charAt(i)) || code.charAt(i) == '.')) i++;
+                size += 2;
+                if (DependencyTracker.nextNonSpace(code, i) == '(') size += 3;
+            }
+            else {
+                if (!Character.isWhitespace(c) && c != '(' && c != ')' && c != ',') size++;
+                i++;
+            }
+        }
+
+        return size;
+    }
+
+    private int getSize(SourceLocation location) {
+        Integer size = sizes.get(location);
+        if (size == null) {
+            size = 0;
+            for (SourceLine line : sources.get(location)) {
+                size += estimateBytecodeSize(line.getCode());
+            }
+            sizes.put(location, size);
+        }
+        return size;
+    }
+
+    /**
+     * @return true if the location has code, and all of its variable declarations are known.
+     */
+    private boolean canSplit(SourceLocation location) {
+        final List<SourceLine> lines = sources.get(location);
+        if (lines.isEmpty()) return false;
+
+        for (SourceLine line : lines) {
+            if (line.isArbitrary()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Divides the lines of a location into helpers, each with an estimated size of at most the maximum size,
+     * unless a single line is larger.
+     */
+    private List<Helper> createHelpers(SourceLocation location, int maxHelperSize) {
+        final List<Helper> locationHelpers = new ArrayList<Helper>();
+        Helper helper = null;
+        int helperSize = 0;
+        for (SourceLine line : sources.get(location)) {
+            final int lineSize = estimateBytecodeSize(line.getCode());
+            if (helper == null || (helperSize > 0 && helperSize + lineSize > maxHelperSize)) {
+                helper = new Helper();
+                locationHelpers.add(helper);
+                helperSize = 0;
+            }
+            helper.lines.add(line);
+            helperSize += lineSize;
+        }
+        return locationHelpers;
+    }
+
+    /**
+     * Works out which variables are passed to and from each helper method,
+     * and creates the code that calls the helpers and copies the variables.
+     */
+    private void passVariables() {
+        // Number the helpers, and find the variables they declare and use
+        final List<Helper> allHelpers = new ArrayList<Helper>();
+        final Set<String> declaredInHelpers = new HashSet<String>();
+        for (SourceLocation location : SPLIT_LOCATIONS) {
+            final List<Helper> locationHelpers = helpers.get(location);
+            if (locationHelpers == null) continue;
+
+            for (Helper helper : locationHelpers) {
+                helper.number = allHelpers.size() + 1;
+                allHelpers.add(helper);
+                for (SourceLine line : helper.lines) {
+                    if (line.getDeclaredVariable() != null) helper.declared.add(line.getDeclaredVariable());
+                    collectLocals(line.getCode(), location, helper.referenced);
+                }
+                helper.inputs.addAll(helper.referenced);
+                helper.inputs.removeAll(helper.declared);
+                declaredInHelpers.addAll(helper.declared);
+            }
+        }
+
+        // Variables declared by helpers that are available as locals in calculatePixels
+        final Set<String> readBack = new HashSet<String>();
+
+        for (SourceLocation location : SPLIT_LOCATIONS) {
+            final List<Helper> locationHelpers = helpers.get(location);
+            if (locationHelpers == null) continue;
+
+            final UpdateFrequency locationFrequency = UpdateFrequency.forLocation(location);
+            final Set<String> usedInSource = getUsedInSourceAfter(location);
+            final Set<String> copiedIn = new LinkedHashSet<String>();
+            final Set<String> copiedOut = new LinkedHashSet<String>();
+            final Set<String> declaredHere = new LinkedHashSet<String>();
+
+            for (Helper helper : locationHelpers) {
+                for (String input : helper.inputs) {
+                    final Local local = locals.get(input);
+                    final boolean isLocal = !declaredInHelpers.contains(input) || readBack.contains(input);
+                    if (local.mutable) {
+                        // The helper may change the value
+                        helper.outputs.add(input);
+                        if (isLocal) {
+                            copiedIn.add(input);
+                            copiedOut.add(input);
+                        }
+                    }
+                    else if (isLocal && !declaredInHelpers.contains(input)) {
+                        // Copy constant values once after they change
+                        if (local.frequency.ordinal() < locationFrequency.ordinal()) addCopyAtEnd(local.frequency.getDeclarationLocation(), input);
+                        else copiedIn.add(input);
+                    }
+                    sharedVariables.add(input);
+                }
+
+                final Set<String> usedLater = new HashSet<String>(usedInSource);
+                for (Helper laterHelper : allHelpers.subList(helper.number, allHelpers.size())) {
+                    usedLater.addAll(laterHelper.referenced);
+                }
+                for (String declared : helper.declared) {
+                    if (usedLater.contains(declared)) {
+                        helper.outputs.add(declared);
+                        sharedVariables.add(declared);
+                    }
+                    if (usedInSource.contains(declared)) declaredHere.add(declared);
+                }
+            }
+            readBack.addAll(declaredHere);
+
+            callSources.put(location, createCallSource(location, locationHelpers, copiedIn, copiedOut, declaredHere));
+        }
+    }
+
+    private String createCallSource(SourceLocation location,
+                                    List<Helper> locationHelpers,
+                                    Set<String> copiedIn,
+                                    Set<String> copiedOut,
+                                    Set<String> declared) {
+        final String indent = location.getIndent();
+        final StringBuilder s = new StringBuilder();
+        for (String variable : copiedIn) {
+            s.append(indent).append(STATE_VARIABLE).append(".").append(variable).append(" = ").append(variable).append(";\n");
+        }
+        for (Helper helper : locationHelpers) {
+            s.append(indent).append(helper.getMethodName()).append("(").append(STATE_VARIABLE).append(");\n");
+        }
+        for (String variable : copiedOut) {
+            s.append(indent).append(variable).append(" = ").append(STATE_VARIABLE).append(".").append(variable).append(";\n");
+        }
+        for (String variable : declared) {
+            final Local local = locals.get(variable);
+            s.append(indent).append(local.mutable ? "" : "final ").append(local.typeCode).append(" ").append(variable);
+            s.append(" = ").append(STATE_VARIABLE).append(".").append(variable).append(";\n");
+        }
+        return s.toString();
+    }
+
+    private void addCopyAtEnd(SourceLocation location, String variable) {
+        Set<String> copies = copiesAtEnd.get(location);
+        if (copies == null) {
+            copies = new LinkedHashSet<String>();
+            copiesAtEnd.put(location, copies);
+        }
+        copies.add(variable);
+    }
+
+    /**
+     * @return the local variables used by source lines that are not moved to helper methods, after the location.
+     */
+    private Set<String> getUsedInSourceAfter(SourceLocation location) {
+        final Set<String> used = new HashSet<String>();
+        for (SourceLocation laterLocation : METHOD_LOCATIONS.subList(METHOD_LOCATIONS.indexOf(location) + 1, METHOD_LOCATIONS.size())) {
+            if (helpers.containsKey(laterLocation)) continue;
+
+            for (SourceLine line : sources.get(laterLocation)) {
+                collectLocals(line.getCode(), laterLocation, used);
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Adds the local variables that are visible at the location and used by the code to the result.
+     */
+    private void collectLocals(String code, SourceLocation location, Set<String> result) {
+        final Set<String> identifiers = new LinkedHashSet<String>();
+        DependencyTracker.collectIdentifiers(code, identifiers);
+        for (String identifier : identifiers) {
+            final Local local = locals.get(identifier);
+            if (local != null && local.isVisibleAt(location)) result.add(identifier);
+        }
+    }
+
+    private static final class Local {
+        private final String typeCode;
+        private final boolean mutable;
+        private final UpdateFrequency frequency;
+        private final SourceLocation declarationLocation;
+
+        private Local(String typeCode, boolean mutable, UpdateFrequency frequency, SourceLocation declarationLocation) {
+            this.typeCode = typeCode;
+            this.mutable = mutable;
+            this.frequency = frequency;
+            this.declarationLocation = declarationLocation;
+        }
+
+        private boolean isVisibleAt(SourceLocation location) {
+            return declarationLocation == null ||
+                   METHOD_LOCATIONS.indexOf(declarationLocation) <= METHOD_LOCATIONS.indexOf(location);
+        }
+    }
+
+    private static final class Helper {
+        private final List<SourceLine> lines = new ArrayList<SourceLine>();
+        private final Set<String> declared = new LinkedHashSet<String>();
+        private final Set<String> referenced = new LinkedHashSet<String>();
+        private final Set<String> inputs = new LinkedHashSet<String>();
+        private final Set<String> outputs = new LinkedHashSet<String>();
+        private int number;
+
+        private String getMethodName() {
+            return HELPER_METHOD_PREFIX + number;
+        }
+    }
+}
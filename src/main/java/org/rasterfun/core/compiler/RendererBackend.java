@@ -0,0 +1,27 @@
+package org.rasterfun.core.compiler;
+
+import java.util.Map;
+
+/**
+ * Creates the bytecode of renderer classes from the contents of a RendererBuilder.
+ */
+public interface RendererBackend {
+
+    /**
+     * @param rendererSource the generated source of a renderer.
+     * @return text identifying the renderer created from the source with this backend.
+     *         Compiled renderers are cached by it, so it should differ between backends that create different classes.
+     */
+    String getRendererKey(String rendererSource);
+
+    /**
+     * Creates the renderer class for the builder.
+     *
+     * @param builder the builder to create the renderer for.
+     * @param className simple name of the renderer class.  The class should be in the package of the generated classes,
+     *                  and have a public constructor taking the parameters of the builder as an Object array.
+     * @return the bytecode of the created classes, keyed by fully qualified class name.
+     * @throws CompilationException if the renderer could not be created.
+     */
+    Map<String, byte[]> createRendererBytecode(RendererBuilder builder, String className) throws CompilationException;
+}
@@ -0,0 +1,204 @@
+package org.rasterfun.core.compiler;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.rasterfun.core.Renderer;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compiles the renderers of several builders together, as classes in one compilation unit loaded by one class loader,
+ * so that the fixed overhead of a compilation is only paid once when there are many renderers.
+ *
+ * The batch is compiled when the first renderer in it is requested.  Renderers that are already compiled in the renderer
+ * cache are left out.  If the batch does not compile, the renderer with the error is compiled separately to report the error
+ * for that renderer only, and the rest are compiled again as a batch.
+ */
+public final class RendererBatch {
+
+    private final List<RendererBuilder> builders;
+    private final RendererCache cache;
+
+    private boolean compiled = false;
+    private final Map<String, Class<? extends Renderer>> compiledClasses = new HashMap<String, Class<? extends Renderer>>();
+    private final Map<String, CompilationException> failures = new HashMap<String, CompilationException>();
+    private int compilationCount = 0;
+
+    /**
+     * @param builders the builders whose renderers should be compiled together.
+     * @param cache the cache the renderers will be stored in, used to skip renderers that are already compiled.
+     *              May be null.
+     */
+    public RendererBatch(List<RendererBuilder> builders, RendererCache cache) {
+        ParameterChecker.checkNotNull(builders, "builders");
+
+        this.builders = new ArrayList<RendererBuilder>(builders);
+        this.cache = cache;
+    }
+
+    /**
+     * Compiles the batch if it has not yet been compiled, and returns the class for the specified renderer source.
+     *
+     * @param rendererSource source of the requested renderer.
+     * @param diskCache disk cache to get and store renderer bytecode in, or null.
+     * @return the compiled class, or null if the source was not compiled as part of this batch.
+     * @throws CompilationException if the renderer with the source could not be compiled.
+     */
+    public synchronized Class<? extends Renderer> getRendererClass(String rendererSource, RendererDiskCache diskCache) throws CompilationException {
+        final String sourceHash = RendererCache.hashSource(rendererSource);
+
+        if (!compiled) {
+            compiled = true;
+            compileAll(sourceHash, diskCache);
+        }
+
+        final CompilationException failure = failures.get(sourceHash);
+        if (failure != null) throw failure;
+
+        return compiledClasses.get(sourceHash);
+    }
+
+    /**
+     * @return number of compilation units compiled so far, including ones compiled to find errors.
+     */
+    public synchronized int getCompilationCount() {
+        return compilationCount;
+    }
+
+    private void compileAll(String requestedHash, RendererDiskCache diskCache) {
+        // Find the distinct renderers that need to be compiled
+        final Map<String, RendererBuilder> pending = new LinkedHashMap<String, RendererBuilder>();
+        final Map<String, String> sources = new HashMap<String, String>();
+        for (RendererBuilder builder : builders) {
+            final String source = builder.generateSource();
+            final String sourceHash = RendererCache.hashSource(source);
+            if (pending.containsKey(sourceHash) || compiledClasses.containsKey(sourceHash)) continue;
+
+            // Skip renderers compiled earlier.  Ones still compiling may be waiting for this batch, so they are included.
+            if (!sourceHash.equals(requestedHash) && cache != null && cache.isCompiled(source)) continue;
+
+            // Use bytecode from the disk cache if available
+            final Map<String, byte[]> cachedBytes = diskCache != null ? diskCache.load(sourceHash) : null;
+            if (cachedBytes != null) {
+                try {
+                    compiledClasses.put(sourceHash, builder.defineRendererClass(RendererBuilder.getRendererClassName(sourceHash), cachedBytes, source));
+                    continue;
+                } catch (CompilationException e) {
+                    // Compile it instead
+                }
+            }
+
+            pending.put(sourceHash, builder);
+            sources.put(sourceHash, source);
+        }
+
+        while (!pending.isEmpty()) {
+            // Build one compilation unit with all pending renderers, keeping track of where each class starts
+            final Set<String> imports = new LinkedHashSet<String>();
+            for (RendererBuilder builder : pending.values()) {
+                for (String importLine : builder.generateImports().split("\n")) {
+                    if (importLine.trim().length() > 0) imports.add(importLine.trim());
+                }
+            }
+
+            final StringBuilder unitSource = new StringBuilder();
+            unitSource.append(RendererBuilder.getPackageDeclaration());
+            for (String importLine : imports) {
+                unitSource.append(importLine).append("\n");
+            }
+
+            final Map<String, Integer> startLines = new LinkedHashMap<String, Integer>();
+            int line = countLines(unitSource) + 1;
+            for (Map.Entry<String, RendererBuilder> entry : pending.entrySet()) {
+                final String classSource = entry.getValue().generateClassSource(RendererBuilder.getRendererClassName(entry.getKey()));
+                startLines.put(entry.getKey(), line);
+                unitSource.append(classSource).append("\n");
+                line += countLines(classSource) + 1;
+            }
+
+            try {
+                compilationCount++;
+                final Map<String, byte[]> classBytes = RendererBuilder.compileUnit(unitSource.toString());
+                defineClasses(pending, sources, classBytes, diskCache);
+                pending.clear();
+            } catch (CompileException e) {
+                // Find the renderer with the error, and compile it alone to get the error for it
+                final String failedHash = e.getLocation() != null ? findRendererAtLine(startLines, e.getLocation().getLineNumber()) : null;
+                if (failedHash != null) {
+                    compileSeparately(failedHash, pending.remove(failedHash), sources.get(failedHash), diskCache);
+                }
+                else {
+                    compileAllSeparately(pending, sources, diskCache);
+                }
+            } catch (IOException e) {
+                compileAllSeparately(pending, sources, diskCache);
+            }
+        }
+    }
+
+    private void defineClasses(Map<String, RendererBuilder> renderers,
+                               Map<String, String> sources,
+                               Map<String, byte[]> classBytes,
+                               RendererDiskCache diskCache) {
+        final GeneratedClassLoader classLoader = new GeneratedClassLoader(classBytes, RendererBuilder.class.getClassLoader());
+
+        for (Map.Entry<String, RendererBuilder> entry : renderers.entrySet()) {
+            final String sourceHash = entry.getKey();
+            final String className = RendererBuilder.getRendererClassName(sourceHash);
+            try {
+                compiledClasses.put(sourceHash, RendererBuilder.loadRendererClass(classLoader, className));
+
+                // Store the classes of each renderer separately, so that they can be loaded one at a time
+                if (diskCache != null) diskCache.store(sourceHash, getClassesOf(className, classBytes));
+            } catch (ClassNotFoundException e) {
+                compileSeparately(sourceHash, entry.getValue(), sources.get(sourceHash), diskCache);
+            }
+        }
+    }
+
+    private void compileAllSeparately(Map<String, RendererBuilder> renderers, Map<String, String> sources, RendererDiskCache diskCache) {
+        for (Map.Entry<String, RendererBuilder> entry : renderers.entrySet()) {
+            compileSeparately(entry.getKey(), entry.getValue(), sources.get(entry.getKey()), diskCache);
+        }
+        renderers.clear();
+    }
+
+    private void compileSeparately(String sourceHash, RendererBuilder builder, String source, RendererDiskCache diskCache) {
+        try {
+            compilationCount++;
+            compiledClasses.put(sourceHash, builder.loadRendererClass(source, diskCache));
+        } catch (CompilationException e) {
+            failures.put(sourceHash, e);
+        }
+    }
+
+    private static Map<String, byte[]> getClassesOf(String className, Map<String, byte[]> classBytes) {
+        final String qualifiedName = RendererBuilder.getPackageDeclaration().substring("package ".length()).replace(";", "").trim() + "." + className;
+
+        final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+            // Include any inner classes
+            if (entry.getKey().equals(qualifiedName) || entry.getKey().startsWith(qualifiedName + "$")) {
+                classes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return classes;
+    }
+
+    private static String findRendererAtLine(Map<String, Integer> startLines, int line) {
+        String found = null;
+        for (Map.Entry<String, Integer> entry : startLines.entrySet()) {
+            if (entry.getValue() <= line) found = entry.getKey();
+        }
+        return found;
+    }
+
+    private static int countLines(CharSequence text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+}
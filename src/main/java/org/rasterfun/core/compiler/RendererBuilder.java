@@ -1,18 +1,33 @@
 package org.rasterfun.core.compiler;
 
 import org.codehaus.commons.compiler.CompileException;
-import org.codehaus.janino.SimpleCompiler;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.IClassLoader;
+import org.codehaus.janino.Java;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
+import org.rasterfun.core.ArrayRenderer;
+import org.rasterfun.core.BufferRenderer;
 import org.rasterfun.core.Renderer;
+import org.rasterfun.core.compiler.expression.Expr;
+import org.rasterfun.core.compiler.expression.Expressions;
+import org.rasterfun.core.compiler.expression.VariableExpr;
 import org.rasterfun.core.listeners.CalculationListener;
+import org.rasterfun.effect.variable.OutputVariable;
+import org.rasterfun.picture.ChannelType;
+import org.rasterfun.picture.PictureFormat;
+import org.rasterfun.picture.PictureLayout;
 import org.rasterfun.utils.ClassUtils;
 import org.rasterfun.utils.ParameterChecker;
 import org.rasterfun.utils.StringUtils;
-import scala.actors.threadpool.Arrays;
 
 import java.io.IOException;
 import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static org.rasterfun.core.compiler.SourceLocation.*;
 
@@ -30,6 +45,8 @@ public class RendererBuilder {
     public static final String CHANNEL_PREFIX = "channel_";
     public static final String PARAMETER_PREFIX = "parameter_";
     public static final String PIXEL_INDEX = "pixelIndex";
+    public static final String PLANE_SIZE = "planeSize";
+    public static final String CALCULATE_AREA = "calculateArea";
     public static final String X_NAME = "xF";
     public static final String Y_NAME = "yF";
     public static final String W_NAME = "widthF";
@@ -38,6 +55,46 @@ public class RendererBuilder {
     public static final String RELATIVE_Y = "relY";
     public static final String GENERATOR_SEED = "generatorSeed";
     public static final String PICTURE_SEED = "pictureSeed";
+    public static final String PICTURE_INDEX = "pictureIndex";
+    public static final String PICTURE_COUNT = "pictureCount";
+    public static final String RELATIVE_INDEX = "relativeIndex";
+
+    // Profiling of the per pixel code, sampled at every PROFILE_SAMPLE_INTERVAL:th calculated pixel (a power of two).
+    // The pixels are counted in each calculation call, so the sampling rate does not depend on the stride.
+    public static final int PROFILE_SAMPLE_INTERVAL = 16;
+    private static final String PROFILED_SECTIONS = "PROFILED_SECTIONS";
+    private static final String PROFILE_NANOS = "profileNanos";
+    private static final String PROFILE_SAMPLE = "profileSample";
+    private static final String PROFILE_SAMPLE_COUNT = "profileSampleCount";
+    private static final String PROFILE_PIXEL_COUNT = "profilePixelCount";
+
+    // Parameters that differ between the pictures of a generator.  They are passed in to the constructor of the
+    // generated class, so that all pictures of a generator can share the same compiled class.
+    private static final List<String> BUILTIN_PARAMETERS = Collections.unmodifiableList(Arrays.asList(
+            GENERATOR_SEED, PICTURE_SEED, PICTURE_INDEX, PICTURE_COUNT, RELATIVE_INDEX));
+
+    // Builtin identifiers in the generated calculatePixels method, grouped by how often they change.
+    // Identifiers declared after the BEFORE_LOOP sources are left out, so that nothing using them is moved there.
+    private static final String[] CALCULATION_CONSTANTS = {"width", "height", W_NAME, H_NAME,
+                                                           "startX", "startY", "endX", "endY",
+                                                           "channelNames", "listener", "calculatorIndex"};
+    private static final String[] LINE_VARIABLES = {"y", Y_NAME, RELATIVE_Y};
+    private static final String[] PIXEL_VARIABLES = {"x", X_NAME, RELATIVE_X, PIXEL_INDEX, PIXEL_DATA};
+
+    // Builtin number variables by type
+    private static final String[] INT_VARIABLES = {"x", "y", "width", "height", "startX", "startY", "endX", "endY"};
+    private static final String[] FLOAT_VARIABLES = {X_NAME, Y_NAME, W_NAME, H_NAME, RELATIVE_X, RELATIVE_Y};
+
+    private static final String GENERATED_PACKAGE = "org.rasterfun.generated";
+    private static final String GENERATED_CLASS = "GeneratedPixelCalculator";
+
+    private static final RendererBackend DEFAULT_BACKEND = new JaninoBackend();
+
+    /**
+     * Default maximum for the estimated bytecode size of calculatePixels, leaves some margin below the size limit
+     * above which HotSpot does not JIT compile methods (8000 bytes).
+     */
+    public static final int DEFAULT_MAX_METHOD_SIZE = 6000;
 
     private static final int DEFAULT_SIZE = 128;
     private static final String DEFAULT_NAME = "Picture";
@@ -48,13 +105,13 @@ public class RendererBuilder {
     private final List<String> pictureChannels;
     private final List<String> temporaryChannels;
     private final Set<String> allChannels;
+    private final PictureFormat pictureFormat;
+    private final PictureLayout pictureLayout;
     private final int index;
     private final int count;
     private final float relativeIndex;
 
-    private final SimpleCompiler janinoCompiler = new SimpleCompiler();
-
-    private final Map<SourceLocation, StringBuilder> inputSources = new HashMap<SourceLocation, StringBuilder>();
+    private final Map<SourceLocation, List<SourceLine>> inputSources = new HashMap<SourceLocation, List<SourceLine>>();
 
     private final List<ObjectParameter> objectParameters = new ArrayList<ObjectParameter>();
 
@@ -62,14 +119,49 @@ public class RendererBuilder {
 
     private final Set<Class<?>> alreadyImported = new HashSet<Class<?>>();
 
+    private final DependencyTracker dependencies;
+    private boolean loopInvariantHoisting = true;
+    private int maxMethodSize = DEFAULT_MAX_METHOD_SIZE;
+    private boolean runtimeConstants = false;
+    private Set<OutputVariable> unusedOutputs = Collections.emptySet();
+
+    // Names of the profiled sections, and the indexes of the currently open ones (-1 for sections started without profiling)
+    private boolean profiling = false;
+    private final List<String> profiledSections = new ArrayList<String>();
+    private final List<Integer> openSections = new ArrayList<Integer>();
+
+    // Final variables added as expressions, by declaration location, so that equal expressions are only calculated once
+    private final Map<SourceLocation, Map<Expr, String>> definedExpressions = new HashMap<SourceLocation, Map<Expr, String>>();
+    private final Map<Expr, Expr> aliasedVariables = new HashMap<Expr, Expr>();
+    private final Set<String> mutableVariables = new HashSet<String>();
+    private int commonExpressionCount = 0;
+
+    // Structured form of the added statements, for backends that do not compile the source.
+    // Incomplete if source without a structured form has been added.
+    private final Map<SourceLocation, List<RendererStatement>> statements = new HashMap<SourceLocation, List<RendererStatement>>();
+    private final Map<String, Class<?>> variableTypes = new HashMap<String, Class<?>>();
+    private boolean structuredSource = true;
+
 
     public RendererBuilder(String name, int width, int height, Collection<String> pictureChannels, Collection<String> temporaryChannels, int currentIndex, int totalCount) {
+        this(name, width, height, pictureChannels, temporaryChannels, currentIndex, totalCount, PictureFormat.DEFAULT);
+    }
+
+    /**
+     * @param pictureFormat format of the pictures the renderer calculates, the renderer can only be used with pictures with that format.
+     */
+    public RendererBuilder(String name, int width, int height, Collection<String> pictureChannels, Collection<String> temporaryChannels, int currentIndex, int totalCount, PictureFormat pictureFormat) {
+        ParameterChecker.checkNotNull(pictureFormat, "pictureFormat");
+        pictureFormat.checkChannelCount(pictureChannels.size());
+
         this.name = name;
         this.width = width;
         this.height = height;
         this.pictureChannels = new ArrayList<String>(pictureChannels);
         this.temporaryChannels = new ArrayList<String>(temporaryChannels);
         this.allChannels = new LinkedHashSet<String>();
+        this.pictureFormat = pictureFormat;
+        this.pictureLayout = pictureFormat.getLayout();
         this.index = currentIndex;
         this.count = totalCount;
         this.relativeIndex = totalCount == 1 ? 0.5f : (float) currentIndex / (totalCount - 1);
@@ -88,35 +180,138 @@ public class RendererBuilder {
 
         // Initialize input sources
         for (SourceLocation location : values()) {
-            inputSources.put(location, new StringBuilder());
+            inputSources.put(location, new ArrayList<SourceLine>());
+            statements.put(location, new ArrayList<RendererStatement>());
         }
 
+        // Types of the builtin variables that can be assigned to channels
+        for (String identifier : INT_VARIABLES) variableTypes.put(identifier, Integer.class);
+        for (String identifier : FLOAT_VARIABLES) variableTypes.put(identifier, Float.class);
+
+        // Track how often the builtin variables change
+        dependencies = new DependencyTracker();
+        for (String identifier : CALCULATION_CONSTANTS) dependencies.setFrequency(identifier, UpdateFrequency.PER_CALCULATION);
+        for (String identifier : LINE_VARIABLES) dependencies.setFrequency(identifier, UpdateFrequency.PER_LINE);
+        for (String identifier : PIXEL_VARIABLES) dependencies.setFrequency(identifier, UpdateFrequency.PER_PIXEL);
+        if (pictureLayout == PictureLayout.PLANAR) dependencies.setFrequency(PLANE_SIZE, UpdateFrequency.PER_CALCULATION);
+
         // Add default imports
-        addImport(Renderer.class);
+        addImport(getRendererType());
         addImport(CalculationListener.class);
+        if (pictureFormat.usesBuffer()) addImport(ChannelType.class);
+
+        // Pass in the picture index related values as parameters, so that they do not change the source
+        addParameter(PICTURE_INDEX, currentIndex, Integer.class);
+        addParameter(PICTURE_COUNT, totalCount, Integer.class);
+        addParameter(RELATIVE_INDEX, relativeIndex, Float.class);
 
         // Add code to get the channel values
         channelIndex = 0;
         for (String channel : this.pictureChannels) {
-            final String expression = PIXEL_DATA+"[" + PIXEL_INDEX + " + " + channelIndex + "]";
-            addVariable(BEFORE_PIXEL, CHANNEL_PREFIX + channel, expression, Float.class, false);
+            final String expression = channelLoadSource(channelIndex);
+            declareVariable(BEFORE_PIXEL, CHANNEL_PREFIX + channel, expression, Float.class, false);
+            addStatement(BEFORE_PIXEL, RendererStatement.loadChannel(CHANNEL_PREFIX + channel, channelIndex));
             channelIndex++;
         }
 
         // Add code to initialize the temporary channels
         for (String channel : this.temporaryChannels) {
-            addVariable(BEFORE_PIXEL, CHANNEL_PREFIX + channel, "0f", Float.class, false);
+            declareVariable(BEFORE_PIXEL, CHANNEL_PREFIX + channel, "0f", Float.class, false);
+            addStatement(BEFORE_PIXEL, RendererStatement.declare(CHANNEL_PREFIX + channel, Float.class, false, Expressions.constant(0f)));
         }
 
         // Add code to write the updated channel values
         channelIndex = 0;
         for (String channel : this.pictureChannels) {
-            addSourceLine(AFTER_PIXEL,
-                          PIXEL_DATA + "[" + PIXEL_INDEX + " + " + channelIndex + "] = " + CHANNEL_PREFIX + channel);
+            appendSourceLine(AFTER_PIXEL,
+                             SourceLine.statement(channelStoreSource(channelIndex, CHANNEL_PREFIX + channel)));
+            addStatement(AFTER_PIXEL, RendererStatement.storeChannel(channelIndex, CHANNEL_PREFIX + channel));
             channelIndex++;
         }
     }
 
+    /**
+     * Creates a builder for another picture with the same source as this builder.
+     */
+    private RendererBuilder(RendererBuilder template, int currentIndex, int totalCount) {
+        this.name = template.name;
+        this.width = template.width;
+        this.height = template.height;
+        this.pictureChannels = new ArrayList<String>(template.pictureChannels);
+        this.temporaryChannels = new ArrayList<String>(template.temporaryChannels);
+        this.allChannels = new LinkedHashSet<String>(template.allChannels);
+        this.pictureFormat = template.pictureFormat;
+        this.pictureLayout = template.pictureLayout;
+        this.index = currentIndex;
+        this.count = totalCount;
+        this.relativeIndex = totalCount == 1 ? 0.5f : (float) currentIndex / (totalCount - 1);
+
+        for (SourceLocation location : values()) {
+            inputSources.put(location, new ArrayList<SourceLine>(template.inputSources.get(location)));
+            statements.put(location, new ArrayList<RendererStatement>(template.statements.get(location)));
+        }
+        objectParameters.addAll(template.objectParameters);
+        alreadyImported.addAll(template.alreadyImported);
+        dependencies = new DependencyTracker(template.dependencies);
+        loopInvariantHoisting = template.loopInvariantHoisting;
+        maxMethodSize = template.maxMethodSize;
+        runtimeConstants = template.runtimeConstants;
+        unusedOutputs = template.unusedOutputs;
+        profiling = template.profiling;
+        profiledSections.addAll(template.profiledSections);
+        openSections.addAll(template.openSections);
+        for (Map.Entry<SourceLocation, Map<Expr, String>> entry : template.definedExpressions.entrySet()) {
+            definedExpressions.put(entry.getKey(), new HashMap<Expr, String>(entry.getValue()));
+        }
+        aliasedVariables.putAll(template.aliasedVariables);
+        mutableVariables.addAll(template.mutableVariables);
+        commonExpressionCount = template.commonExpressionCount;
+        variableTypes.putAll(template.variableTypes);
+        structuredSource = template.structuredSource;
+
+        setParameterValue(PICTURE_INDEX, currentIndex);
+        setParameterValue(PICTURE_COUNT, totalCount);
+        setParameterValue(RELATIVE_INDEX, relativeIndex);
+    }
+
+    /**
+     * Creates a builder for another picture that has the same source as this builder, but its own picture index.
+     * As the source is the same, the pictures will share one compiled renderer class.
+     * Use setParameterValue to change per picture values such as the picture seed.
+     *
+     * @param currentIndex index of the picture.
+     * @param totalCount number of pictures.
+     * @return a new builder, with a copy of the source added to this builder so far.
+     */
+    public RendererBuilder createPictureVariant(int currentIndex, int totalCount) {
+        return new RendererBuilder(this, currentIndex, totalCount);
+    }
+
+    /**
+     * Changes the value of a builtin parameter (e.g. the picture seed) that has already been added.
+     * Does not change the generated source.
+     *
+     * @param builtinParameterName name of the parameter, one of GENERATOR_SEED, PICTURE_SEED, PICTURE_INDEX,
+     *                             PICTURE_COUNT or RELATIVE_INDEX.
+     * @param parameterValue the new value, should be of the same type as the original value.
+     */
+    public void setParameterValue(String builtinParameterName, Object parameterValue) {
+        ParameterChecker.checkContained(builtinParameterName, BUILTIN_PARAMETERS, "builtin parameters");
+        ParameterChecker.checkNotNull(parameterValue, "parameterValue");
+
+        final String identifier = PARAMETER_PREFIX + builtinParameterName;
+        for (int i = 0; i < objectParameters.size(); i++) {
+            final ObjectParameter objectParameter = objectParameters.get(i);
+            if (objectParameter.getIdentifier().equals(identifier)) {
+                ParameterChecker.checkIsInstanceOf(parameterValue, "parameterValue", objectParameter.getType());
+                objectParameters.set(i, objectParameter.withObject(parameterValue));
+                return;
+            }
+        }
+
+        throw new IllegalArgumentException("No parameter named '" + builtinParameterName + "' has been added");
+    }
+
     public String getPictureChannelVariable(int channelIndex) {
         if (channelIndex < 0 || channelIndex >= getPictureChannelCount()) {
             throw new IllegalArgumentException("There is no channel with the index " + channelIndex + ", " +
@@ -150,10 +345,22 @@ public class RendererBuilder {
      * Indentation and terminating semicolon will be added to the line.
      */
     public void addSourceLine(SourceLocation location, String line) {
-        ParameterChecker.checkNotNull(location, "location");
         ParameterChecker.checkNotNull(line, "line");
 
-        inputSources.get(location).append(location.getIndent()).append(line).append(";\n");
+        appendSourceLine(location, SourceLine.arbitrary(line));
+
+        // Arbitrary source can only be compiled
+        structuredSource = false;
+    }
+
+    private void appendSourceLine(SourceLocation location, SourceLine line) {
+        ParameterChecker.checkNotNull(location, "location");
+
+        inputSources.get(location).add(line);
+    }
+
+    private void addStatement(SourceLocation location, RendererStatement statement) {
+        statements.get(location).add(statement);
     }
 
     /**
@@ -169,33 +376,207 @@ public class RendererBuilder {
     /**
      * Adds a variable with initialization at the specified location.
      * The variable name will have the variable prefix appended in front.
+     *
+     * Final variables added to AT_PIXEL are moved to BEFORE_LINE or BEFORE_LOOP if their initialization expression
+     * does not depend on anything that changes between pixels or lines (unless loop invariant hoisting is turned off).
+     * Their initialization expressions should not have side effects.
      */
     public void addVariable(SourceLocation location,
                             String variableName,
                             String initializationExpression,
                             Class<?> variableType,
                             boolean isFinal) {
+        declareVariable(location, variableName, initializationExpression, variableType, isFinal);
+
+        // The expression is only available as source
+        structuredSource = false;
+    }
+
+    /**
+     * Adds the source for a variable declaration.
+     * @return the location the declaration was added to.
+     */
+    private SourceLocation declareVariable(SourceLocation location,
+                                           String variableName,
+                                           String initializationExpression,
+                                           Class<?> variableType,
+                                           boolean isFinal) {
         ParameterChecker.checkNotNull(location, "location");
         ParameterChecker.checkNotNull(variableType, "variableType");
         ParameterChecker.checkIsIdentifier(variableName, "variableName");
         ParameterChecker.checkNotNull(initializationExpression, "initializationExpression");
         if (!location.isValidVariableLocation()) throw new IllegalArgumentException("Variables can not be added to the location " + location);
 
+        // Calculate values that do not change for each pixel outside the pixel loop
+        location = getDeclarationLocation(location, initializationExpression, isFinal);
+
+        // Non final variables may be assigned anywhere, so we can not know how often they change
+        dependencies.setFrequency(variableName, isFinal ? UpdateFrequency.forLocation(location) : UpdateFrequency.PER_PIXEL);
+        if (!isFinal) mutableVariables.add(variableName);
+        variableTypes.put(variableName, variableType);
+
         String typeCode = ClassUtils.getPrimitiveTypeNameOrNull(variableType);
         if (typeCode == null) {
             // TODO: Check if the type is allowed in generated code
 
             addImport(variableType);
-            typeCode = variableType.getName();
+            typeCode = ClassUtils.getTypeDeclaration(variableType);
+        }
+
+        appendSourceLine(location,
+                         SourceLine.declaration((location == FIELDS ? "private " : "") +
+                                                (isFinal ? "final " : "") +
+                                                typeCode + " " +
+                                                variableName + " = " +
+                                                initializationExpression,
+                                                variableName, typeCode, isFinal)
+                        );
+
+        return location;
+    }
+
+    /**
+     * Adds the source and the structured statement for a variable declaration.
+     */
+    private void declareVariable(SourceLocation location, String variableName, Expr initializationExpression, boolean isFinal) {
+        final Class<?> type = initializationExpression.getType();
+        final SourceLocation declarationLocation = declareVariable(location, variableName, initializationExpression.toSource(), type, isFinal);
+        addStatement(declarationLocation, RendererStatement.declare(variableName, type, isFinal, initializationExpression));
+    }
+
+    /**
+     * Adds a variable initialized with the specified expression at the specified location.
+     *
+     * If a final variable with an equal pure expression has already been declared at the same location,
+     * the new variable just refers to the earlier one.  Expensive pure sub expressions, such as calls, are calculated
+     * in their own variables, so that they are only calculated once even if they are used by several variables.
+     * Final variables are moved out of the pixel loop in the same way as with the string version of addVariable.
+     */
+    public void addVariable(SourceLocation location,
+                            String variableName,
+                            Expr initializationExpression,
+                            boolean isFinal) {
+        ParameterChecker.checkNotNull(location, "location");
+        ParameterChecker.checkIsIdentifier(variableName, "variableName");
+        ParameterChecker.checkNotNull(initializationExpression, "initializationExpression");
+
+        // Refer directly to the variables that other variables were aliased to
+        Expr expression = initializationExpression.replace(aliasedVariables);
+        final Class<?> type = expression.getType();
+
+        if (!isFinal || !isReusable(expression)) {
+            declareVariable(location, variableName, expression, isFinal);
+        }
+        else {
+            // Calculate expensive parts separately, so that they can be shared
+            expression = expression.replace(extractExpensiveExpressions(location, expression.getChildren()));
+
+            final String existingVariable = getDefinedExpressions(location, expression).get(expression);
+            if (existingVariable != null) {
+                // Use the value of the earlier variable with the same expression
+                declareVariable(location, variableName, Expressions.variable(existingVariable, type), true);
+                aliasedVariables.put(Expressions.variable(variableName, type), Expressions.variable(existingVariable, type));
+            }
+            else if (expression instanceof VariableExpr) {
+                // The variable is just another name for some other immutable variable
+                declareVariable(location, variableName, expression, true);
+                aliasedVariables.put(Expressions.variable(variableName, type), expression);
+            }
+            else {
+                getDefinedExpressions(location, expression).put(expression, variableName);
+                declareVariable(location, variableName, expression, true);
+            }
+        }
+    }
+
+    /**
+     * @return the location the declaration of a variable added to the specified location ends up in.
+     */
+    private SourceLocation getDeclarationLocation(SourceLocation location, String initializationExpression, boolean isFinal) {
+        if (location == AT_PIXEL && isFinal && loopInvariantHoisting) {
+            return dependencies.getExpressionFrequency(initializationExpression).getDeclarationLocation();
+        }
+        else {
+            return location;
+        }
+    }
+
+    /**
+     * @return the variables declared with expressions in the location that a variable with the specified expression would be declared in.
+     */
+    private Map<Expr, String> getDefinedExpressions(SourceLocation location, Expr expression) {
+        final SourceLocation declarationLocation = getDeclarationLocation(location, expression.toSource(), true);
+
+        Map<Expr, String> expressions = definedExpressions.get(declarationLocation);
+        if (expressions == null) {
+            expressions = new HashMap<Expr, String>();
+            definedExpressions.put(declarationLocation, expressions);
+        }
+        return expressions;
+    }
+
+    /**
+     * Declares variables for the expensive expressions in the expressions and their sub expressions,
+     * or finds earlier variables with the same expressions.
+     * @return map from the expensive expressions to the variables holding their values.
+     */
+    private Map<Expr, Expr> extractExpensiveExpressions(SourceLocation location, List<Expr> expressions) {
+        final Map<Expr, Expr> variables = new HashMap<Expr, Expr>();
+        for (Expr expression : expressions) {
+            // Innermost expressions first, so that they are shared as well
+            final Expr extracted = expression.replace(extractExpensiveExpressions(location, expression.getChildren()));
+
+            if (extracted.isExpensive()) {
+                final Map<Expr, String> definitions = getDefinedExpressions(location, extracted);
+                String variableName = definitions.get(extracted);
+                if (variableName == null) {
+                    variableName = VAR_PREFIX + "common" + (++commonExpressionCount);
+                    definitions.put(extracted, variableName);
+                    declareVariable(location, variableName, extracted, true);
+                }
+                variables.put(expression, Expressions.variable(variableName, extracted.getType()));
+            }
+            else if (extracted != expression) {
+                variables.put(expression, extracted);
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * @return true if the expression has no side effects and does not use variables that can be reassigned.
+     */
+    private boolean isReusable(Expr expression) {
+        if (!expression.isPure()) return false;
+        if (expression instanceof VariableExpr && mutableVariables.contains(((VariableExpr) expression).getIdentifier())) return false;
+
+        for (Expr child : expression.getChildren()) {
+            if (!isReusable(child)) return false;
         }
+        return true;
+    }
+
+    /**
+     * @return true if the channel is a picture or temporary channel of the generated renderer.
+     */
+    public boolean hasChannel(String channel) {
+        return allChannels.contains(channel);
+    }
 
-        addSourceLine(location,
-                      (location == FIELDS ? "private " : "") +
-                      (isFinal ? "final " : "") +
-                      typeCode + " " +
-                      variableName + " = " +
-                      initializationExpression
-                     );
+    /**
+     * @param unusedOutputs the effect outputs that do not contribute to the picture channels, as found by
+     *                      EffectUsageAnalysis.  No code is generated for them.  Defaults to none.
+     */
+    public void setUnusedOutputs(Set<OutputVariable> unusedOutputs) {
+        ParameterChecker.checkNotNull(unusedOutputs, "unusedOutputs");
+        this.unusedOutputs = Collections.unmodifiableSet(new HashSet<OutputVariable>(unusedOutputs));
+    }
+
+    /**
+     * @return true if code should be generated for the effect output.
+     */
+    public boolean isUsed(OutputVariable output) {
+        return !unusedOutputs.contains(output);
     }
 
     /**
@@ -206,7 +587,16 @@ public class RendererBuilder {
         ParameterChecker.checkNotNull(expression, "variableType");
         ParameterChecker.checkContained(channel, allChannels, "allChannels");
 
-        addSourceLine(AT_PIXEL, CHANNEL_PREFIX + channel + " = " + expression);
+        appendSourceLine(AT_PIXEL, SourceLine.statement(CHANNEL_PREFIX + channel + " = " + expression));
+
+        // Assignments of variables are common, other expressions are only available as source
+        final Class<?> sourceType = variableTypes.get(expression);
+        if (sourceType != null) {
+            addStatement(AT_PIXEL, RendererStatement.assign(CHANNEL_PREFIX + channel, Expressions.variable(expression, sourceType)));
+        }
+        else {
+            structuredSource = false;
+        }
     }
 
     /**
@@ -219,10 +609,13 @@ public class RendererBuilder {
         ParameterChecker.checkNotNull(expression, "expression");
         if (!location.isValidAssignmentLocation()) throw new IllegalArgumentException("Variables can not be assigned in the location " + location);
 
-        addSourceLine(location,
-                      VAR_PREFIX + variableName + " = " +
-                      expression
-                     );
+        appendSourceLine(location,
+                         SourceLine.statement(VAR_PREFIX + variableName + " = " +
+                                              expression)
+                        );
+
+        // The expression is only available as source
+        structuredSource = false;
     }
 
     /**
@@ -236,16 +629,158 @@ public class RendererBuilder {
 
         addImport(parameterType);
 
-        // Skip the index for some builtin parameters, so that they are easier to find.
-        boolean useIndex = !(PICTURE_SEED.equals(namePart) || GENERATOR_SEED.equals(namePart));
+        // Skip the index for the builtin parameters, so that they are easier to find.
+        boolean useIndex = !BUILTIN_PARAMETERS.contains(namePart);
 
         final int index = objectParameters.size();
         String indexPart = useIndex ? "" + index + "_": "";
         String identifier = PARAMETER_PREFIX + indexPart + (namePart == null ? "" : "" + StringUtils.identifierFromName(namePart, 'Q'));
         objectParameters.add(new ObjectParameter(parameterValue, identifier, index, parameterType));
+        dependencies.setFrequency(identifier, UpdateFrequency.PER_CALCULATION);
+        variableTypes.put(identifier, parameterType);
         return identifier;
     }
 
+    /**
+     * @return number of object parameters added so far, including the builtin parameters.
+     */
+    public int getParameterCount() {
+        return objectParameters.size();
+    }
+
+    /**
+     * @param parameterIndex index of the parameter, in the order the parameters were added.
+     * @return the value passed in for the parameter.
+     */
+    public Object getParameterValue(int parameterIndex) {
+        ParameterChecker.checkIntegerInRange(parameterIndex, "parameterIndex", 0, objectParameters.size());
+        return objectParameters.get(parameterIndex).getObject();
+    }
+
+    /**
+     * @return the source lines added to the location so far, in order, without indentation or terminating semicolons.
+     *         Can be compared with the lines of another builder to find out whether some added code has changed.
+     */
+    public List<String> getSourceLines(SourceLocation location) {
+        ParameterChecker.checkNotNull(location, "location");
+
+        final List<SourceLine> lines = inputSources.get(location);
+        final List<String> code = new ArrayList<String>(lines.size());
+        for (SourceLine line : lines) {
+            code.add(line.getCode());
+        }
+        return code;
+    }
+
+    /**
+     * @param loopInvariantHoisting if true, final variables added to AT_PIXEL that do not depend on the pixel
+     *                              position are calculated outside the pixel loop.  True by default.
+     *                              Only affects variables added after this call.
+     */
+    public void setLoopInvariantHoisting(boolean loopInvariantHoisting) {
+        this.loopInvariantHoisting = loopInvariantHoisting;
+    }
+
+    public boolean isLoopInvariantHoisting() {
+        return loopInvariantHoisting;
+    }
+
+    /**
+     * @param maxMethodSize maximum for the estimated bytecode size of the generated calculatePixels method.
+     *                      If the code added to the builder is larger, the largest parts of it are moved to helper
+     *                      methods, so that the JIT compiler does not skip the method.
+     *                      Integer.MAX_VALUE to never move code.  DEFAULT_MAX_METHOD_SIZE by default.
+     */
+    public void setMaxMethodSize(int maxMethodSize) {
+        ParameterChecker.checkPositiveNonZeroInteger(maxMethodSize, "maxMethodSize");
+        this.maxMethodSize = maxMethodSize;
+    }
+
+    public int getMaxMethodSize() {
+        return maxMethodSize;
+    }
+
+    /**
+     * @param profiling if true, the time spent in the per pixel code of profiled sections is measured for a sample
+     *                  of the pixels, and reported to the CalculationListener at the end of each calculation.
+     *                  False by default, in which case no profiling code is generated.
+     *                  Only affects sections started after this call.
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    public boolean isProfiling() {
+        return profiling;
+    }
+
+    /**
+     * @param runtimeConstants if true, the constant values of effect inputs are passed in as parameters instead of
+     *                         written into the source, so that changing them does not change the source, and the
+     *                         compiled renderer class can be reused.  The renderer is a bit slower, as the constants
+     *                         can not be folded by the compiler.  False by default.
+     *                         Only affects source generated after this call.
+     */
+    public void setRuntimeConstants(boolean runtimeConstants) {
+        this.runtimeConstants = runtimeConstants;
+    }
+
+    public boolean isRuntimeConstants() {
+        return runtimeConstants;
+    }
+
+    /**
+     * Starts a section of code, for example the code of one effect, whose run time is measured if profiling is on.
+     * Sections may be nested, the time of a section includes the time of the sections inside it.
+     * Only the code that runs for each pixel is measured, not code moved out of the pixel loop.
+     * Each started section should be ended with endProfiledSection.
+     *
+     * @param sectionName identifier for the section, e.g. the namespace of an effect.
+     */
+    public void beginProfiledSection(String sectionName) {
+        ParameterChecker.checkIsIdentifier(sectionName, "sectionName");
+
+        if (!profiling) {
+            openSections.add(-1);
+        }
+        else {
+            final int sectionIndex = profiledSections.size();
+            profiledSections.add(sectionName);
+            openSections.add(sectionIndex);
+            appendSourceLine(AT_PIXEL, SourceLine.statement("if (" + PROFILE_SAMPLE + ") " + PROFILE_NANOS + "[" + sectionIndex + "] -= System.nanoTime()"));
+
+            // The profiling code is only available as source
+            structuredSource = false;
+        }
+    }
+
+    /**
+     * Ends the most recently started profiled section.
+     */
+    public void endProfiledSection() {
+        if (openSections.isEmpty()) throw new IllegalStateException("There is no profiled section to end");
+
+        final int sectionIndex = openSections.remove(openSections.size() - 1);
+        if (sectionIndex >= 0) {
+            appendSourceLine(AT_PIXEL, SourceLine.statement("if (" + PROFILE_SAMPLE + ") " + PROFILE_NANOS + "[" + sectionIndex + "] += System.nanoTime()"));
+        }
+    }
+
+    /**
+     * @return names of the profiled sections of the renderer, in the order they were started.
+     */
+    public List<String> getProfiledSections() {
+        return Collections.unmodifiableList(profiledSections);
+    }
+
+    /**
+     * @return how often the value of the specified expression can change in the generated code,
+     *         based on the variables and parameters added to this builder so far.
+     */
+    public UpdateFrequency getUpdateFrequency(String expression) {
+        return dependencies.getExpressionFrequency(expression);
+    }
+
     public String getVariableName(String baseName) {
         ParameterChecker.checkIsIdentifier(baseName, "baseName");
         return VAR_PREFIX + baseName;
@@ -255,116 +790,514 @@ public class RendererBuilder {
      * Adds an import for the specified class or interface.
      */
     public void addImport(Class<?> classToImport) {
+        // Arrays need the class of their elements, primitive types need no import
+        while (classToImport.isArray()) classToImport = classToImport.getComponentType();
+        if (classToImport.isPrimitive()) return;
+
         // Avoid duplicate import rows
         if (!alreadyImported.contains(classToImport)) {
-            addSourceLine(IMPORTS, "import " + classToImport.getName());
+            appendSourceLine(IMPORTS, SourceLine.statement("import " + classToImport.getName()));
             alreadyImported.add(classToImport);
+            dependencies.addClassName(classToImport.getSimpleName());
         }
     }
 
     /**
      * @return compiles the source provided and generates a picture calculator, or throws an error if it could not be done.
+     *         Uses the default renderer cache, so an identical source that was compiled earlier is not compiled again.
      */
     public Renderer compilePixelCalculator() throws CompilationException {
+        return compilePixelCalculator(RendererCache.getDefault());
+    }
 
-        final String className = "GeneratedPixelCalculator";
-        final String packageName = "org.rasterfun.generated";
-        String fullCalculatorName = packageName +"."+ className;
-
-        source = "\n// Generated Pixel Calculator source: \n" +
-                 "package " + packageName + ";\n" +
-                 sourcesFor(IMPORTS) +
-                 "public final class "+className+" implements Renderer {\n" +
-                 "  private boolean running = true;\n" +
-                 "  \n" +
-                 generateParameterDeclarations() +
-                 "  \n" +
-                 sourcesFor(FIELDS) +
-                 "  \n" +
-                 "  // Initialize with input parameters\n"+
-                 "  public "+className+"(Object[] parameters) {\n" +
-                 generateParameterAssignments() +
-                 "  }\n" +
-                 "  \n" +
-                 "  public final void stop() {\n" +
-                 "    running = false;\n" +
-                 "  }\n" +
-                 "  \n" +
-                 "  public final void calculatePixels(final int width,\n" +
-                 "                                    final int height,\n" +
-                 "                                    final String[] channelNames,\n" +
-                 "                                    final float[] pixelData,\n" +
-                 "                                    final int startX,\n" +
-                 "                                    final int startY,\n" +
-                 "                                    final int endX,\n" +
-                 "                                    final int endY,\n" +
-                 "                                    final CalculationListener listener,\n" +
-                 "                                    final int calculatorIndex) {\n" +
-                 "    \n"+
-                 "    // Check that the passed in picture has the correct number of channels\n"+
-                 "    if (channelNames.length != "+ getPictureChannelCount()+") \n" +
-                 "      throw new IllegalArgumentException(\"The channel count should be correct, expected "+
-                 getPictureChannelCount()+", but got \"+channelNames.length+\".\");\n"+
-                 "    \n" +
-                 "    // Setup variables visible to generators \n" +
-                 "    final float widthF  = (float)width;\n" +
-                 "    final float heightF = (float)height;\n" +
-                 "    float yF = 0f;\n" +
-                 "    float xF = 0f;\n" +
-                 "    \n" +
-                 sourcesFor(BEFORE_LOOP) +
-                 "    // Set up progress reporting\n"+
-                 "    final int progressReportInterval = (endY - startY) / "+PROGRESS_REPORT_STEPS+";\n" +
-                 "    int completedScanLines = 0;\n" +
-                 "    \n"+
-                 "    // Loop the lines\n" +
-                 "    final float relXStep = (width == 1) ? 0 : 1f / (width - 1);\n"+
-                 "    final float relYStep = (height == 1) ? 0 : 1f / (height - 1);\n"+
-                 "    float relX;\n"+
-                 "    float relY = (height == 1) ? 0.5f : (float)startY / (height - 1);\n"+
-                 "    int pixelIndex = (startY * width + startX) * "+ getPictureChannelCount()+";\n" +
-                 "    for (int y = startY; (y < endY) && running; y++) {\n" +
-//                             "       try {Thread.sleep(1);} catch (Exception e) {}\n" +
-                 "      yF = y;\n" +
-                 sourcesFor(BEFORE_LINE) +
-                 "      // Loop along line\n"+
-                 "      relX = (width == 1) ? 0.5f : (float)startX / (width - 1);\n"+
-                 "      for (int x = startX; (x < endX) && running; x++) {\n" +
-                 "        xF = x;\n" +
-                 "\n" +
-                 sourcesFor(BEFORE_PIXEL) +
-                 sourcesFor(AT_PIXEL) +
-                 sourcesFor(AFTER_PIXEL) +
-                 "        // Move to next pixel\n"+
-                 "        "+PIXEL_INDEX+" += "+ getPictureChannelCount()+";\n" +
-                 "        relX += relXStep;\n" +
-                 "      }\n" +
-                 sourcesFor(AFTER_LINE) +
-                 "      // Move to next line\n"+
-                 "      relY += relYStep;\n" +
-                 "\n" +
-                 "      // Report progress\n" +
-                 "      completedScanLines++;\n" +
-                 "      if ((completedScanLines >= progressReportInterval || y == endY - 1) && listener != null) {\n" +
-                 "        listener.onCalculationProgress(calculatorIndex, width * completedScanLines);\n" +
-                 "        completedScanLines = 0;\n" +
-                 "      }\n" +
-                 "    }\n"+
-                 sourcesFor(AFTER_LOOP) +
-                 "  }\n" +
-                 sourcesFor(METHODS) +
-                 "}\n\n";
-
-        // TODO: DEBUG, remove
-        System.out.println("source = " + source);
+    /**
+     * @param cache cache to get an already compiled renderer class from, or null to always compile the source.
+     * @return compiles the source provided and generates a picture calculator, or throws an error if it could not be done.
+     */
+    public Renderer compilePixelCalculator(RendererCache cache) throws CompilationException {
+        return compilePixelCalculator(cache, null);
+    }
 
+    /**
+     * @param cache cache to get an already compiled renderer class from, or null to always compile the source.
+     * @param batch batch of renderers that this renderer should be compiled together with, or null to compile it alone.
+     * @return compiles the source provided and generates a picture calculator, or throws an error if it could not be done.
+     */
+    public Renderer compilePixelCalculator(RendererCache cache, RendererBatch batch) throws CompilationException {
+        return compilePixelCalculator(cache, batch, DEFAULT_BACKEND);
+    }
+
+    /**
+     * @param cache cache to get an already compiled renderer class from, or null to always compile the source.
+     * @param batch batch of renderers that this renderer should be compiled together with, or null to compile it alone.
+     *              Only used with the JaninoBackend.
+     * @param backend the backend used to create the renderer class.
+     * @return compiles the source provided and generates a picture calculator, or throws an error if it could not be done.
+     */
+    public Renderer compilePixelCalculator(RendererCache cache,
+                                          final RendererBatch batch,
+                                          final RendererBackend backend) throws CompilationException {
+        ParameterChecker.checkNotNull(backend, "backend");
+
+        final String rendererSource = generateSource();
+        source = rendererSource;
+
+        // Renderers created by different backends are cached separately
+        final String rendererKey = backend.getRendererKey(rendererSource);
+
+        final RendererDiskCache diskCache = cache != null ? cache.getDiskCache() : null;
+        final Callable<Class<? extends Renderer>> compiler = new Callable<Class<? extends Renderer>>() {
+            @Override
+            public Class<? extends Renderer> call() throws Exception {
+                Class<? extends Renderer> rendererClass = null;
+                if (batch != null && backend instanceof JaninoBackend) rendererClass = batch.getRendererClass(rendererSource, diskCache);
+                if (rendererClass == null) rendererClass = loadRendererClass(rendererKey, diskCache, backend);
+                return rendererClass;
+            }
+        };
+
+        final Class<? extends Renderer> rendererClass;
+        if (cache != null) {
+            rendererClass = cache.getRendererClass(rendererKey, compiler);
+        }
+        else {
+            try {
+                rendererClass = compiler.call();
+            } catch (CompilationException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Unexpected problem when compiling renderer: " + e.getMessage(), e);
+            }
+        }
+
+        return createRenderer(rendererClass);
+    }
+
+    /**
+     * @return the java source for the renderer, using the base name for the generated class.
+     *         Used to identify the renderer, the compiled class is named after the hash of this source.
+     */
+    String generateSource() {
+        return generateUnitSource(GENERATED_CLASS);
+    }
+
+    /**
+     * @return a compilation unit with the renderer class, using the specified class name.
+     */
+    private String generateUnitSource(String className) {
+        return "\n// Generated Pixel Calculator source: \n" +
+               "package " + GENERATED_PACKAGE + ";\n" +
+               sourcesFor(IMPORTS) +
+               generateClassSource(className);
+    }
+
+    /**
+     * @return the import statements needed by the renderer class, one per line.
+     */
+    String generateImports() {
+        return getLineSources(IMPORTS);
+    }
+
+    /**
+     * @return the source of the renderer class, using the specified class name.
+     */
+    String generateClassSource(String className) {
+        final MethodSplitter splitter = createMethodSplitter();
+
+        return "public final class "+ className +" implements "+ getRendererType().getSimpleName() +" {\n" +
+               "  private volatile boolean running = true;\n" +
+               "  \n" +
+               generateParameterDeclarations() +
+               generateProfilingDeclarations() +
+               "  \n" +
+               sourcesFor(FIELDS) +
+               "  \n" +
+               "  // Initialize with input parameters\n"+
+               "  public "+ className +"(Object[] parameters) {\n" +
+               generateParameterAssignments() +
+               "  }\n" +
+               "  \n" +
+               "  public final void stop() {\n" +
+               "    running = false;\n" +
+               "  }\n" +
+               "  \n" +
+               generateCalculatePixels() +
+               "  public final void calculateSamples(final int width,\n" +
+               "                                     final int height,\n" +
+               "                                     final String[] channelNames,\n" +
+               "                                     final "+ pixelDataType()+" pixelData,\n" +
+               "                                     final int startX,\n" +
+               "                                     final int startY,\n" +
+               "                                     final int endX,\n" +
+               "                                     final int endY,\n" +
+               "                                     final int stride,\n" +
+               "                                     final int previousStride,\n" +
+               "                                     final CalculationListener listener,\n" +
+               "                                     final int calculatorIndex) {\n" +
+               "    "+CALCULATE_AREA+"(width, height, channelNames, pixelData, 0, 0, width, height, startX, startY, endX, endY, stride, previousStride, listener, calculatorIndex);\n" +
+               "  }\n" +
+               "  \n" +
+               "  public final void calculateTile(final int width,\n" +
+               "                                  final int height,\n" +
+               "                                  final String[] channelNames,\n" +
+               "                                  final "+ pixelDataType()+" tileData,\n" +
+               "                                  final int tileX,\n" +
+               "                                  final int tileY,\n" +
+               "                                  final int tileWidth,\n" +
+               "                                  final int tileHeight,\n" +
+               "                                  final CalculationListener listener,\n" +
+               "                                  final int calculatorIndex) {\n" +
+               "    "+CALCULATE_AREA+"(width, height, channelNames, tileData, tileX, tileY, tileWidth, tileHeight, tileX, tileY, tileX + tileWidth, tileY + tileHeight, 1, 0, listener, calculatorIndex);\n" +
+               "  }\n" +
+               "  \n" +
+               "  // Calculates an area of a picture, with the pixel data holding the values of the data area of the picture\n" +
+               "  private void "+CALCULATE_AREA+"(final int width,\n" +
+               "                             final int height,\n" +
+               "                             final String[] channelNames,\n" +
+               "                             final "+ pixelDataType()+" pixelData,\n" +
+               "                             final int dataX,\n" +
+               "                             final int dataY,\n" +
+               "                             final int dataWidth,\n" +
+               "                             final int dataHeight,\n" +
+               "                             final int startX,\n" +
+               "                             final int startY,\n" +
+               "                             final int endX,\n" +
+               "                             final int endY,\n" +
+               "                             final int stride,\n" +
+               "                             final int previousStride,\n" +
+               "                             final CalculationListener listener,\n" +
+               "                             final int calculatorIndex) {\n" +
+               "    \n"+
+               "    // Check that the passed in picture has the correct number of channels\n"+
+               "    if (channelNames.length != "+ getPictureChannelCount()+") \n" +
+               "      throw new IllegalArgumentException(\"The channel count should be correct, expected "+
+               getPictureChannelCount()+", but got \"+channelNames.length+\".\");\n"+
+               "    \n" +
+               "    // Setup variables visible to generators \n" +
+               "    final float widthF  = (float)width;\n" +
+               "    final float heightF = (float)height;\n" +
+               (pictureLayout == PictureLayout.PLANAR ? "    final int "+PLANE_SIZE+" = dataWidth * dataHeight;\n" : "") +
+               "    float yF = 0f;\n" +
+               "    float xF = 0f;\n" +
+               generateProfilingSetup() +
+               splitter.getStateDeclaration() +
+               "    \n" +
+               sourcesFor(BEFORE_LOOP, splitter) +
+               "    // Set up progress reporting\n"+
+               "    final int progressReportInterval = (endY - startY) / (stride * "+PROGRESS_REPORT_STEPS+");\n" +
+               "    int completedScanLines = 0;\n" +
+               "    int completedPixels = 0;\n" +
+               "    \n"+
+               "    // Loop the lines, starting from the first multiples of the stride in the area\n" +
+               "    final int firstX = (startX + stride - 1) / stride * stride;\n" +
+               "    final int firstY = (startY + stride - 1) / stride * stride;\n" +
+               "    final int pixelStep = stride"+ pixelIndexScale()+";\n" +
+               "    final float relXStep = (width == 1) ? 0 : 1f / (width - 1);\n"+
+               "    final float relYStep = (height == 1) ? 0 : 1f / (height - 1);\n"+
+               "    final float relXStart = (width == 1) ? 0.5f : 0f;\n"+
+               "    float relX;\n"+
+               "    float relY = (height == 1) ? 0.5f : (float)startY / (height - 1);\n"+
+               "    int pixelIndex = ((startY - dataY) * dataWidth + startX - dataX)"+ pixelIndexScale()+";\n" +
+               "    for (int y = firstY; (y < endY) && running; y += stride) {\n" +
+               "      yF = y;\n" +
+               "      // Calculated for each line, so that the values do not depend on where the rendered area starts\n" +
+               "      relY = (height == 1) ? 0.5f : (float)y / (height - 1);\n" +
+               sourcesFor(BEFORE_LINE, splitter) +
+               "      // Pixels on the lines of the previous pass have been calculated already\n"+
+               "      final boolean previousPixelsOnLine = previousStride > 0 && y % previousStride == 0;\n"+
+               "      \n"+
+               "      // Loop along line\n"+
+               "      "+PIXEL_INDEX+" = ((y - dataY) * dataWidth + firstX - dataX)"+ pixelIndexScale()+";\n" +
+               "      for (int x = firstX; x < endX; x += stride, "+PIXEL_INDEX+" += pixelStep) {\n" +
+               "        if (previousPixelsOnLine && x % previousStride == 0) continue;\n" +
+               "        xF = x;\n" +
+               "        relX = relXStart + x * relXStep;\n" +
+               generateProfilingSample() +
+               "\n" +
+               sourcesFor(BEFORE_PIXEL, splitter) +
+               sourcesFor(AT_PIXEL, splitter) +
+               sourcesFor(AFTER_PIXEL, splitter) +
+               "        completedPixels++;\n" +
+               "      }\n" +
+               sourcesFor(AFTER_LINE, splitter) +
+               "\n" +
+               "      // Report progress\n" +
+               "      completedScanLines++;\n" +
+               "      if ((completedScanLines >= progressReportInterval || y + stride >= endY) && listener != null) {\n" +
+               "        listener.onCalculationProgress(calculatorIndex, completedPixels);\n" +
+               "        completedScanLines = 0;\n" +
+               "        completedPixels = 0;\n" +
+               "      }\n" +
+               "    }\n"+
+               generateProfilingReport() +
+               sourcesFor(AFTER_LOOP, splitter) +
+               "  }\n" +
+               sourcesFor(METHODS) +
+               splitter.getHelperSource() +
+               "}\n\n";
+    }
+
+    /**
+     * @return source for the index of the specified channel of the current pixel in the pixel data.
+     *         The index is in bytes for pictures stored in buffers.
+     */
+    private String channelDataIndex(int channelIndex) {
+        if (pictureFormat.usesBuffer()) {
+            final int byteSize = pictureFormat.getChannelType(channelIndex).getByteSize();
+            final int offset = pictureFormat.getChannelOffset(channelIndex);
+            if (pictureLayout == PictureLayout.PLANAR) {
+                return (byteSize == 1 ? PIXEL_INDEX : PIXEL_INDEX + " * " + byteSize) +
+                       (offset == 0 ? "" : " + " + offset + " * " + PLANE_SIZE);
+            }
+            else {
+                return offset == 0 ? PIXEL_INDEX : PIXEL_INDEX + " + " + offset;
+            }
+        }
+        else if (pictureLayout == PictureLayout.PLANAR) {
+            return channelIndex == 0 ? PIXEL_INDEX : PIXEL_INDEX + " + " + channelIndex + " * " + PLANE_SIZE;
+        }
+        else {
+            return PIXEL_INDEX + " + " + channelIndex;
+        }
+    }
+
+    /**
+     * @return source for reading the specified channel of the current pixel from the pixel data.
+     */
+    private String channelLoadSource(int channelIndex) {
+        final String index = channelDataIndex(channelIndex);
+        if (!pictureFormat.usesBuffer()) return PIXEL_DATA + "[" + index + "]";
+
+        switch (pictureFormat.getChannelType(channelIndex)) {
+            case FLOAT:   return PIXEL_DATA + ".getFloat(" + index + ")";
+            case HALF:    return "ChannelType.halfToFloat(" + PIXEL_DATA + ".getShort(" + index + "))";
+            case UNORM16: return "ChannelType.unorm16ToFloat(" + PIXEL_DATA + ".getShort(" + index + "))";
+            case UNORM8:  return "ChannelType.unorm8ToFloat(" + PIXEL_DATA + ".get(" + index + "))";
+            case INT:     return "(float) " + PIXEL_DATA + ".getInt(" + index + ")";
+            default: throw new IllegalStateException("Unknown channel type " + pictureFormat.getChannelType(channelIndex));
+        }
+    }
+
+    /**
+     * @return source for writing the variable to the specified channel of the current pixel in the pixel data,
+     *         converting it to the type of the channel.
+     */
+    private String channelStoreSource(int channelIndex, String variable) {
+        final String index = channelDataIndex(channelIndex);
+        if (!pictureFormat.usesBuffer()) return PIXEL_DATA + "[" + index + "] = " + variable;
+
+        switch (pictureFormat.getChannelType(channelIndex)) {
+            case FLOAT:   return PIXEL_DATA + ".putFloat(" + index + ", " + variable + ")";
+            case HALF:    return PIXEL_DATA + ".putShort(" + index + ", ChannelType.floatToHalf(" + variable + "))";
+            case UNORM16: return PIXEL_DATA + ".putShort(" + index + ", ChannelType.floatToUnorm16(" + variable + "))";
+            case UNORM8:  return PIXEL_DATA + ".put(" + index + ", ChannelType.floatToUnorm8(" + variable + "))";
+            case INT:     return PIXEL_DATA + ".putInt(" + index + ", Math.round(" + variable + "))";
+            default: throw new IllegalStateException("Unknown channel type " + pictureFormat.getChannelType(channelIndex));
+        }
+    }
+
+    /**
+     * @return the interface implemented by the renderers of this builder, BufferRenderer if the picture format stores
+     *         the values in buffers, otherwise ArrayRenderer.
+     */
+    public Class<? extends Renderer> getRendererType() {
+        return pictureFormat.usesBuffer() ? BufferRenderer.class : ArrayRenderer.class;
+    }
+
+    /**
+     * @return the type of the pixel data parameter of the generated calculateSamples method.
+     */
+    private String pixelDataType() {
+        return pictureFormat.usesBuffer() ? "java.nio.ByteBuffer" : "float[]";
+    }
+
+    /**
+     * @return source that scales a pixel number to the index of the pixel in the pixel data.
+     */
+    private String pixelIndexScale() {
+        if (pictureLayout == PictureLayout.PLANAR) return "";
+        else if (pictureFormat.usesBuffer()) return " * " + pictureFormat.getChannelOffset(getPictureChannelCount());
+        else return " * " + getPictureChannelCount();
+    }
+
+    /**
+     * @return a splitter that has moved parts of the calculatePixels code to helper methods if it is too large.
+     */
+    private MethodSplitter createMethodSplitter() {
+        final MethodSplitter splitter = new MethodSplitter(inputSources);
+
+        // Local variables of the calculatePixels template, by how often they change
+        for (String identifier : new String[]{"width", "height", "dataX", "dataY", "dataWidth", "dataHeight", "startX", "startY", "endX", "endY", "stride", "previousStride", "calculatorIndex"}) {
+            splitter.addTemplateLocal(identifier, "int", UpdateFrequency.PER_CALCULATION);
+        }
+        splitter.addTemplateLocal("channelNames", "String[]", UpdateFrequency.PER_CALCULATION);
+        splitter.addTemplateLocal(PIXEL_DATA, pixelDataType(), UpdateFrequency.PER_CALCULATION);
+        splitter.addTemplateLocal("listener", "CalculationListener", UpdateFrequency.PER_CALCULATION);
+        splitter.addTemplateLocal(W_NAME, "float", UpdateFrequency.PER_CALCULATION);
+        splitter.addTemplateLocal(H_NAME, "float", UpdateFrequency.PER_CALCULATION);
+        if (pictureLayout == PictureLayout.PLANAR) splitter.addTemplateLocal(PLANE_SIZE, "int", UpdateFrequency.PER_CALCULATION);
+
+        // Declared after the BEFORE_LOOP code, so they can only be copied for each line
+        splitter.addTemplateLocal("progressReportInterval", "int", UpdateFrequency.PER_LINE);
+        splitter.addTemplateLocal("completedScanLines", "int", UpdateFrequency.PER_LINE);
+        splitter.addTemplateLocal("completedPixels", "int", UpdateFrequency.PER_LINE);
+        for (String identifier : new String[]{"firstX", "firstY", "pixelStep"}) {
+            splitter.addTemplateLocal(identifier, "int", UpdateFrequency.PER_LINE);
+        }
+        splitter.addTemplateLocal("relXStep", "float", UpdateFrequency.PER_LINE);
+        splitter.addTemplateLocal("relYStep", "float", UpdateFrequency.PER_LINE);
+        splitter.addTemplateLocal("relXStart", "float", UpdateFrequency.PER_LINE);
+        splitter.addTemplateLocal("y", "int", UpdateFrequency.PER_LINE);
+        splitter.addTemplateLocal(Y_NAME, "float", UpdateFrequency.PER_LINE);
+        splitter.addTemplateLocal(RELATIVE_Y, "float", UpdateFrequency.PER_LINE);
+
+        splitter.addTemplateLocal("previousPixelsOnLine", "boolean", UpdateFrequency.PER_PIXEL);
+        splitter.addTemplateLocal("x", "int", UpdateFrequency.PER_PIXEL);
+        splitter.addTemplateLocal(X_NAME, "float", UpdateFrequency.PER_PIXEL);
+        splitter.addTemplateLocal(RELATIVE_X, "float", UpdateFrequency.PER_PIXEL);
+        splitter.addTemplateLocal(PIXEL_INDEX, "int", UpdateFrequency.PER_PIXEL);
+
+        if (!profiledSections.isEmpty()) {
+            splitter.addTemplateLocal(PROFILE_NANOS, "long[]", UpdateFrequency.PER_CALCULATION);
+            splitter.addTemplateLocal(PROFILE_SAMPLE, "boolean", UpdateFrequency.PER_PIXEL);
+        }
+
+        splitter.split(maxMethodSize);
+        return splitter;
+    }
+
+    /**
+     * Loads the renderer class from the bytecode in the disk cache, or compiles it with Janino if it is not found there.
+     */
+    Class<? extends Renderer> loadRendererClass(String rendererSource, RendererDiskCache diskCache) throws CompilationException {
+        return loadRendererClass(rendererSource, diskCache, DEFAULT_BACKEND);
+    }
+
+    /**
+     * Loads the renderer class from the bytecode in the disk cache, or creates it with the backend if it is not found there.
+     * @param rendererKey the key identifying the renderer, as returned by the backend.
+     */
+    private Class<? extends Renderer> loadRendererClass(String rendererKey,
+                                                        RendererDiskCache diskCache,
+                                                        RendererBackend backend) throws CompilationException {
+        final String sourceHash = RendererCache.hashSource(rendererKey);
+        final String className = getRendererClassName(sourceHash);
+
+        // Get the bytecode from the disk cache, or create it
+        Map<String, byte[]> classBytes = diskCache != null ? diskCache.load(sourceHash) : null;
+        if (classBytes == null) {
+            classBytes = backend.createRendererBytecode(this, className);
+            if (diskCache != null) diskCache.store(sourceHash, classBytes);
+        }
+
+        return defineRendererClass(className, classBytes, rendererKey);
+    }
+
+    /**
+     * Compiles the source of this builder with Janino.
+     * @param className simple name of the renderer class.
+     * @return the bytecode for the compiled classes, keyed by class name.
+     */
+    Map<String, byte[]> compileSource(String className) throws CompilationException {
+        return compileRendererBytecode(generateSource(), generateUnitSource(className));
+    }
+
+    /**
+     * Defines the renderer class from the bytecode, with a new class loader.
+     */
+    Class<? extends Renderer> defineRendererClass(String className, Map<String, byte[]> classBytes, String rendererSource) throws CompilationException {
         try {
-            // Compile
-            janinoCompiler.cook(new StringReader(source));
+            final GeneratedClassLoader classLoader = new GeneratedClassLoader(classBytes, RendererBuilder.class.getClassLoader());
+            return loadRendererClass(classLoader, className);
+        } catch (ClassNotFoundException e) {
+            throw new CompilationException(e, name, rendererSource,
+                                           "Could not compile the renderer because a requested class was not found",
+                                           "There was an attempt to access a non-existing or unavailable class \n" +
+                                           "in the generated renderer source code.  The class that was not found was:\n" +
+                                           e.getMessage() + "\nThe exception was " + e
+            );
+        }
+    }
 
-            // Get compiled class
-            Class calculatorClass = janinoCompiler.getClassLoader().loadClass(fullCalculatorName);
+    /**
+     * @return the renderer class with the specified simple name from the class loader.
+     */
+    static Class<? extends Renderer> loadRendererClass(ClassLoader classLoader, String className) throws ClassNotFoundException {
+        return classLoader.loadClass(getQualifiedClassName(className)).asSubclass(Renderer.class);
+    }
+
+    /**
+     * @return fully qualified name of the generated class with the specified simple name.
+     */
+    static String getQualifiedClassName(String className) {
+        return GENERATED_PACKAGE + "." + className;
+    }
 
+    /**
+     * @return simple name of the compiled class for the renderer source with the specified hash.
+     */
+    static String getRendererClassName(String sourceHash) {
+        return GENERATED_CLASS + "_" + sourceHash;
+    }
+
+    /**
+     * @return package declaration for compilation units with renderer classes.
+     */
+    static String getPackageDeclaration() {
+        return "package " + GENERATED_PACKAGE + ";\n";
+    }
+
+    /**
+     * Compiles a compilation unit with Janino.
+     * @return the bytecode for the compiled classes, keyed by class name.
+     */
+    static Map<String, byte[]> compileUnit(String unitSource) throws CompileException, IOException {
+        final Parser parser = new Parser(new Scanner(null, new StringReader(unitSource)));
+        final Java.CompilationUnit compilationUnit = parser.parseCompilationUnit();
+        final IClassLoader iClassLoader = new ClassLoaderIClassLoader(RendererBuilder.class.getClassLoader());
+        final ClassFile[] classFiles = new UnitCompiler(compilationUnit, iClassLoader).compileUnit(false, false, false);
+
+        // Collect bytecode
+        final Map<String, byte[]> classBytes = new LinkedHashMap<String, byte[]>();
+        for (ClassFile classFile : classFiles) {
+            classBytes.put(classFile.getThisClassName(), classFile.toByteArray());
+        }
+        return classBytes;
+    }
+
+    /**
+     * Compiles the renderer source with Janino.
+     * @param rendererSource the source used to identify the renderer, for error messages.
+     * @param unitSource the compilation unit to compile.
+     * @return the bytecode for the compiled classes, keyed by class name.
+     */
+    private Map<String, byte[]> compileRendererBytecode(String rendererSource, String unitSource) throws CompilationException {
+        try {
+            return compileUnit(unitSource);
+        } catch (CompileException e) {
+            throw new CompilationException(e, name, rendererSource,
+                                           "Could not compile the renderer because incorrect source code was generated",
+                                           "There was a compile error in the generated renderer source code.\n" +
+                                           "The compile error is: \n" + e.getMessage() + "\n\n" +
+                                           "And the complete source of the renderer is:\n\n" + rendererSource
+            );
+        } catch (IOException e) {
+            throw new CompilationException(e, name, rendererSource,
+                                           "Could not read the renderer source or other resource",
+                                           "There was a problem accessing the renderer source, \n" +
+                                           "or some other resources needed by the renderer.\n" +
+                                           "The problematic resource was '" +e.getMessage()+"'"
+            );
+        }
+    }
+
+    /**
+     * Creates a new renderer instance of the compiled class, and passes in the parameters for this builder.
+     */
+    private Renderer createRenderer(Class<? extends Renderer> rendererClass) throws CompilationException {
+        try {
             // Pass in any non-literal parameters that could not be compiled into the code
             final Object[] parameters = new Object[objectParameters.size()];
             for (int i = 0; i < objectParameters.size(); i++) {
@@ -376,25 +1309,8 @@ public class RendererBuilder {
             // parameters directly, it gets expanded into the varargs, instead of being the value of a single parameter.
             // See e.g. http://www.coderanch.com/t/328722/java/java/Passing-array-vararg-method-Reflection
             final Object[] constructorParams = {parameters};
-            final Renderer renderer = (Renderer) calculatorClass.getConstructor(Object[].class).newInstance(
-                    constructorParams);
+            return rendererClass.getConstructor(Object[].class).newInstance(constructorParams);
 
-            return renderer;
-
-        } catch (CompileException e) {
-            throw new CompilationException(e, name, source,
-                                           "Could not compile the renderer because incorrect source code was generated",
-                                           "There was a compile error in the generated renderer source code.\n" +
-                                           "The compile error is: \n" + e.getMessage() + "\n\n" +
-                                           "And the complete source of the renderer is:\n\n" + source
-            );
-        } catch (ClassNotFoundException e) {
-            throw new CompilationException(e, name, source,
-                                           "Could not compile the renderer because a requested class was not found",
-                                           "There was an attempt to access a non-existing or unavailable class \n" +
-                                           "in the generated renderer source code.  The class that was not found was:\n" +
-                                           e.getMessage() + "\nThe exception was " + e
-            );
         } catch (InstantiationException e) {
             throw new CompilationException(e, name, source,
                                            "Could not could not instantiate the compiled renderer",
@@ -407,13 +1323,6 @@ public class RendererBuilder {
                                            "There was a problem in accessing the compiled renderer. \n" +
                                            "The problematic access was '"+e.getMessage() + "'"
             );
-        } catch (IOException e) {
-            throw new CompilationException(e, name, source,
-                                           "Could not read the renderer source or other resource",
-                                           "There was a problem accessing the renderer source, \n" +
-                                           "or some other resources needed by the renderer.\n" +
-                                           "The problematic resource was '" +e.getMessage()+"'"
-            );
         } catch (NoSuchMethodException e) {
             throw new CompilationException(e, name, source,
                                            "Could not could not instantiate the compiled renderer",
@@ -427,7 +1336,6 @@ public class RendererBuilder {
                                            "The reason was '" +e.getMessage() + "'."
             );
         }
-
     }
 
     private String generateParameterDeclarations() {
@@ -440,6 +1348,67 @@ public class RendererBuilder {
         return s.toString();
     }
 
+    private String generateProfilingDeclarations() {
+        if (profiledSections.isEmpty()) return "";
+
+        final StringBuilder s = new StringBuilder();
+        s.append("  // Names of the profiled sections\n");
+        s.append("  private static final String[] ").append(PROFILED_SECTIONS).append(" = {");
+        for (int i = 0; i < profiledSections.size(); i++) {
+            if (i > 0) s.append(", ");
+            s.append("\"").append(profiledSections.get(i)).append("\"");
+        }
+        s.append("};\n");
+        return s.toString();
+    }
+
+    /**
+     * @return source for the calculatePixels method of renderers for pictures stored in float arrays,
+     *         renderers for pictures stored in buffers do not have it.
+     */
+    private String generateCalculatePixels() {
+        if (pictureFormat.usesBuffer()) return "";
+
+        return "  public final void calculatePixels(final int width,\n" +
+               "                                    final int height,\n" +
+               "                                    final String[] channelNames,\n" +
+               "                                    final float[] pixelData,\n" +
+               "                                    final int startX,\n" +
+               "                                    final int startY,\n" +
+               "                                    final int endX,\n" +
+               "                                    final int endY,\n" +
+               "                                    final CalculationListener listener,\n" +
+               "                                    final int calculatorIndex) {\n" +
+               "    calculateSamples(width, height, channelNames, pixelData, startX, startY, endX, endY, 1, 0, listener, calculatorIndex);\n" +
+               "  }\n" +
+               "  \n";
+    }
+
+    private String generateProfilingSetup() {
+        if (profiledSections.isEmpty()) return "";
+
+        return "    // Sampled time spent in each profiled section\n" +
+               "    final long[] " + PROFILE_NANOS + " = new long[" + profiledSections.size() + "];\n" +
+               "    long " + PROFILE_SAMPLE_COUNT + " = 0;\n" +
+               "    int " + PROFILE_PIXEL_COUNT + " = 0;\n";
+    }
+
+    private String generateProfilingSample() {
+        if (profiledSections.isEmpty()) return "";
+
+        return "        final boolean " + PROFILE_SAMPLE + " = (" + PROFILE_PIXEL_COUNT + "++ & " + (PROFILE_SAMPLE_INTERVAL - 1) + ") == 0;\n" +
+               "        if (" + PROFILE_SAMPLE + ") " + PROFILE_SAMPLE_COUNT + "++;\n";
+    }
+
+    private String generateProfilingReport() {
+        if (profiledSections.isEmpty()) return "";
+
+        return "    \n" +
+               "    // Report profiling results\n" +
+               "    if (listener != null) listener.onCalculationProfile(calculatorIndex, " + PROFILED_SECTIONS + ", " +
+               PROFILE_NANOS + ", " + PROFILE_SAMPLE_COUNT + ");\n";
+    }
+
     private String generateParameterAssignments() {
         StringBuilder s = new StringBuilder();
         for (ObjectParameter objectParameter : objectParameters) {
@@ -480,6 +1449,27 @@ public class RendererBuilder {
         return height;
     }
 
+    /**
+     * @return index of the picture generated by this builder, among the pictures of its generator.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return number of pictures generated by the generator of this builder.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the picture index scaled to the 0..1 range, 0.5 if there is only one picture.
+     */
+    public float getRelativeIndex() {
+        return relativeIndex;
+    }
+
     /**
      * @return number of channels in the generated picture.
      */
@@ -487,6 +1477,20 @@ public class RendererBuilder {
         return pictureChannels.size();
     }
 
+    /**
+     * @return format of the pictures the renderer calculates.
+     */
+    public PictureFormat getPictureFormat() {
+        return pictureFormat;
+    }
+
+    /**
+     * @return layout of the pictures the renderer calculates.
+     */
+    public PictureLayout getPictureLayout() {
+        return pictureLayout;
+    }
+
     /**
      * @return names of the channels in the generated picture.
      */
@@ -495,13 +1499,58 @@ public class RendererBuilder {
     }
 
 
+    /**
+     * @return true if all statements added to this builder have a structured form, so that the renderer can be created
+     *         from the statements instead of compiling the source.
+     */
+    boolean hasStructuredSource() {
+        return structuredSource;
+    }
+
+    /**
+     * @return the structured form of the statements added to the location.  Incomplete if hasStructuredSource is false.
+     */
+    List<RendererStatement> getStatements(SourceLocation location) {
+        return Collections.unmodifiableList(statements.get(location));
+    }
+
+    /**
+     * @return the parameters passed in to the constructor of the renderer, in order.
+     */
+    List<ObjectParameter> getObjectParameters() {
+        return Collections.unmodifiableList(objectParameters);
+    }
+
+    /**
+     * @return the classes imported to the generated source.
+     */
+    Set<Class<?>> getImportedClasses() {
+        return Collections.unmodifiableSet(alreadyImported);
+    }
+
     private String sourcesFor(final SourceLocation location) {
+        return sourcesFor(location, getLineSources(location));
+    }
+
+    private String sourcesFor(final SourceLocation location, MethodSplitter splitter) {
+        return sourcesFor(location, splitter.getSource(location));
+    }
+
+    private static String sourcesFor(final SourceLocation location, String source) {
         return "\n" +
                location.getIndent() + "// " + location.toString() + "\n" +
-               inputSources.get(location).toString() +
+               source +
                "\n";
     }
 
+    private String getLineSources(SourceLocation location) {
+        final StringBuilder s = new StringBuilder();
+        for (SourceLine line : inputSources.get(location)) {
+            s.append(line.toSource(location));
+        }
+        return s.toString();
+    }
+
     /*
     public boolean hasChannel(String channel) {
         if (channel == null) return false;
@@ -513,7 +1562,7 @@ public class RendererBuilder {
     */
 
 
-    private static class ObjectParameter {
+    static class ObjectParameter {
         private final Object object;
         private final String identifier;
         private final int index;
@@ -530,6 +1579,13 @@ public class RendererBuilder {
             return object;
         }
 
+        /**
+         * @return a parameter with the same identifier and type, but a different value.
+         */
+        public ObjectParameter withObject(Object newObject) {
+            return new ObjectParameter(newObject, identifier, index, type);
+        }
+
         public String getIdentifier() {
             return identifier;
         }
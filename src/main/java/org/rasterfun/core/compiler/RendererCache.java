@@ -0,0 +1,229 @@
+package org.rasterfun.core.compiler;
+
+import org.rasterfun.core.Renderer;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process wide cache of compiled Renderer classes, keyed by a hash of the generated renderer source.
+ *
+ * If several threads request the same source at the same time, only one of them compiles it, the others wait for
+ * that compilation to finish.  When the cache is full the least recently used class is dropped.
+ * Failed compilations are not cached.
+ *
+ * Optionally a RendererDiskCache can be set, in which case the bytecode of compiled renderers is also stored on disk,
+ * and loaded from there instead of compiling when a later run of the application needs the same renderer.
+ * The default cache uses a disk cache if the rasterfun.rendererCacheDir system property is set.
+ */
+public final class RendererCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /**
+     * System property with a directory to use for the disk cache of the default renderer cache.
+     */
+    public static final String DISK_CACHE_DIR_PROPERTY = "rasterfun.rendererCacheDir";
+
+    private static final RendererCache DEFAULT_CACHE = createDefaultCache();
+
+    private final int maxEntries;
+
+    // Access ordered, so that the eldest entry is the least recently used one.
+    private final LinkedHashMap<String, FutureTask<Class<? extends Renderer>>> entries;
+
+    private volatile RendererDiskCache diskCache = null;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @return the cache shared by all renderer builders that do not specify their own cache.
+     */
+    public static RendererCache getDefault() {
+        return DEFAULT_CACHE;
+    }
+
+    /**
+     * @param maxEntries maximum number of compiled renderer classes to keep.
+     */
+    public RendererCache(int maxEntries) {
+        ParameterChecker.checkPositiveNonZeroInteger(maxEntries, "maxEntries");
+
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, FutureTask<Class<? extends Renderer>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<Class<? extends Renderer>>> eldest) {
+                // Any threads still waiting for an evicted compilation keep their own reference to it.
+                return size() > RendererCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the disk cache used to store compiled renderer bytecode between runs, or null if none is used.
+     */
+    public RendererDiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * @param diskCache disk cache to store compiled renderer bytecode in between runs, or null to not use one.
+     */
+    public void setDiskCache(RendererDiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * @param source the generated renderer source.
+     * @param compiler used to compile the source if there is no compiled class for it in the cache,
+     *                 and no other thread is compiling it already.
+     * @return the compiled renderer class for the source.
+     * @throws CompilationException if the source could not be compiled.
+     */
+    public Class<? extends Renderer> getRendererClass(String source,
+                                                      Callable<Class<? extends Renderer>> compiler) throws CompilationException {
+        ParameterChecker.checkNotNull(source, "source");
+        ParameterChecker.checkNotNull(compiler, "compiler");
+
+        final String key = hashSource(source);
+
+        FutureTask<Class<? extends Renderer>> task;
+        boolean compileHere = false;
+        synchronized (entries) {
+            task = entries.get(key);
+            if (task == null) {
+                task = new FutureTask<Class<? extends Renderer>>(compiler);
+                entries.put(key, task);
+                compileHere = true;
+                misses++;
+            }
+            else {
+                hits++;
+            }
+        }
+
+        // Compile outside the lock, so that unrelated sources can be compiled in parallel.
+        if (compileHere) task.run();
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for renderer compilation", e);
+        } catch (ExecutionException e) {
+            // Do not keep failed compilations around
+            synchronized (entries) {
+                if (entries.get(key) == task) entries.remove(key);
+            }
+
+            final Throwable cause = e.getCause();
+            if (cause instanceof CompilationException) throw (CompilationException) cause;
+            else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            else if (cause instanceof Error) throw (Error) cause;
+            else throw new IllegalStateException("Unexpected problem when compiling renderer: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * @return true if a compiled or compiling class for the specified source is in the cache.
+     */
+    public boolean contains(String source) {
+        final String key = hashSource(source);
+        synchronized (entries) {
+            return entries.containsKey(key);
+        }
+    }
+
+    /**
+     * @return true if a class for the specified source has been compiled and is in the cache.
+     *         False if there is none, or if it is still being compiled.
+     */
+    public boolean isCompiled(String source) {
+        final String key = hashSource(source);
+        synchronized (entries) {
+            final FutureTask<Class<? extends Renderer>> task = entries.get(key);
+            return task != null && task.isDone();
+        }
+    }
+
+    /**
+     * Removes all cached renderer classes.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return number of classes currently in the cache, including ones still being compiled.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return number of requests that were served from the cache or joined an ongoing compilation.
+     */
+    public int getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return number of requests that needed a new compilation.
+     */
+    public int getMisses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    private static RendererCache createDefaultCache() {
+        final RendererCache cache = new RendererCache(DEFAULT_MAX_ENTRIES);
+
+        final String diskCacheDir = System.getProperty(DISK_CACHE_DIR_PROPERTY);
+        if (diskCacheDir != null && !diskCacheDir.trim().isEmpty()) {
+            cache.setDiskCache(new RendererDiskCache(new File(diskCacheDir)));
+        }
+
+        return cache;
+    }
+
+    /**
+     * @return hex encoded SHA-1 hash of the source.
+     */
+    public static String hashSource(String source) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(source.getBytes("UTF-8"));
+
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 should always be available: " + e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 should always be available: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.rasterfun.core.compiler;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Stores the bytecode of compiled renderers on disk, keyed by the hash of the renderer source,
+ * so that later runs of the application do not need to compile renderers again.
+ *
+ * Entries are stored in a sub directory named after the cache version.  Change the version whenever the
+ * compiled code could be incompatible with earlier builds (e.g. when classes used by the generated code change).
+ * When the total size of the entries grows over the size limit, the least recently used entries are deleted.
+ * Each version directory holds a marker file, only directories with the marker are deleted on cleanup, so that the
+ * cache can share its directory with other files.
+ */
+public final class RendererDiskCache {
+
+    /**
+     * Version of the entry file format, included in the default cache version.
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    public static final String DEFAULT_VERSION = "rasterfun-" + FORMAT_VERSION;
+    public static final long DEFAULT_MAX_SIZE_BYTES = 64L * 1024 * 1024;
+
+    private static final String ENTRY_SUFFIX = ".classes";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String MARKER_FILE = ".rasterfun-renderer-cache";
+    private static final int ENTRY_MAGIC = 0x52464343; // "RFCC"
+
+    private final File versionDirectory;
+    private final String version;
+    private final long maxSizeBytes;
+
+    // Estimated total size of the entries of this version, or -1 if it has not been measured yet, guarded by this
+    private long estimatedSizeBytes = -1;
+
+    /**
+     * Creates a disk cache using the default version and size limit.
+     * @param directory directory to store the cache in.  Created if it does not exist.
+     */
+    public RendererDiskCache(File directory) {
+        this(directory, DEFAULT_VERSION, DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    /**
+     * @param directory directory to store the cache in.  Created if it does not exist.
+     * @param version version identifier of the cached code.  Entries stored with other versions are ignored,
+     *                and deleted on cleanup.
+     * @param maxSizeBytes maximum total size of the cached entries.
+     */
+    public RendererDiskCache(File directory, String version, long maxSizeBytes) {
+        ParameterChecker.checkNotNull(directory, "directory");
+        ParameterChecker.checkNonEmptyString(version, "version");
+        if (maxSizeBytes <= 0) throw new IllegalArgumentException("The parameter 'maxSizeBytes' should be a positive non zero number, but it was '" + maxSizeBytes + "'.");
+
+        this.version = version;
+        this.maxSizeBytes = maxSizeBytes;
+        this.versionDirectory = new File(directory, version);
+    }
+
+    /**
+     * @param sourceHash hash of the renderer source.
+     * @return the stored classes, keyed by class name, or null if there was no valid entry for the hash.
+     */
+    public Map<String, byte[]> load(String sourceHash) {
+        final File entryFile = getEntryFile(sourceHash);
+        if (!entryFile.isFile()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)));
+
+            if (in.readInt() != ENTRY_MAGIC || !version.equals(in.readUTF()) || !sourceHash.equals(in.readUTF())) {
+                // Not a valid entry for this version
+                in.close();
+                in = null;
+                entryFile.delete();
+                return null;
+            }
+
+            final int classCount = in.readInt();
+            final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < classCount; i++) {
+                final String className = in.readUTF();
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.put(className, bytes);
+            }
+
+            // Mark as recently used
+            entryFile.setLastModified(System.currentTimeMillis());
+
+            return classes;
+        } catch (IOException e) {
+            // A broken entry is just a cache miss
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores the compiled classes for the specified source hash.  Cleans up the cache the first time something is stored,
+     * and when the cache grows too large.
+     *
+     * @param sourceHash hash of the renderer source.
+     * @param classes the compiled classes, keyed by class name.
+     */
+    public void store(String sourceHash, Map<String, byte[]> classes) {
+        ParameterChecker.checkNotNull(classes, "classes");
+
+        if (!versionDirectory.isDirectory() && !versionDirectory.mkdirs()) {
+            System.err.println("Could not create renderer cache directory " + versionDirectory);
+            return;
+        }
+
+        // Mark the directory as created by the cache, so that later versions may remove it
+        final File markerFile = new File(versionDirectory, MARKER_FILE);
+        try {
+            if (!markerFile.isFile()) markerFile.createNewFile();
+        } catch (IOException e) {
+            System.err.println("Could not create renderer cache marker file " + markerFile);
+        }
+
+        final File entryFile = getEntryFile(sourceHash);
+        final File tempFile = new File(versionDirectory, entryFile.getName() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(ENTRY_MAGIC);
+            out.writeUTF(version);
+            out.writeUTF(sourceHash);
+            out.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.close();
+            out = null;
+
+            // Replace any earlier entry, so that readers never see a partially written file
+            if (!tempFile.renameTo(entryFile)) {
+                entryFile.delete();
+                if (!tempFile.renameTo(entryFile)) tempFile.delete();
+            }
+        } catch (IOException e) {
+            // Failing to store is not fatal, we just need to compile again next time
+            e.printStackTrace();
+            tempFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (needsCleanUp(entryFile.length())) cleanUp();
+    }
+
+    /**
+     * Deletes entries stored with other versions, and the least recently used entries of this version
+     * until the total size is below the size limit.  Directories of other versions are only deleted if they
+     * have the marker file of the cache, and only the files of the cache are deleted from them.
+     */
+    public void cleanUp() {
+        // Remove other versions
+        final File[] versionDirectories = versionDirectory.getParentFile().listFiles();
+        if (versionDirectories != null) {
+            for (File directory : versionDirectories) {
+                if (directory.isDirectory() &&
+                    !directory.getName().equals(version) &&
+                    new File(directory, MARKER_FILE).isFile()) {
+                    deleteEntries(directory);
+                }
+            }
+        }
+
+        // Remove least recently used entries of this version
+        final File[] entries = listEntries();
+        if (entries == null) return;
+
+        long totalSize = 0;
+        for (File entry : entries) {
+            totalSize += entry.length();
+        }
+
+        if (totalSize > maxSizeBytes) {
+            Arrays.sort(entries, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    final long aTime = a.lastModified();
+                    final long bTime = b.lastModified();
+                    return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+                }
+            });
+
+            for (int i = 0; i < entries.length && totalSize > maxSizeBytes; i++) {
+                final long size = entries[i].length();
+                if (entries[i].delete()) totalSize -= size;
+            }
+        }
+
+        synchronized (this) {
+            estimatedSizeBytes = totalSize;
+        }
+    }
+
+    /**
+     * @return total size of the entries stored for the current version, in bytes.
+     */
+    public long getSizeBytes() {
+        long totalSize = 0;
+        final File[] entries = listEntries();
+        if (entries != null) {
+            for (File entry : entries) {
+                totalSize += entry.length();
+            }
+        }
+        return totalSize;
+    }
+
+    public File getDirectory() {
+        return versionDirectory.getParentFile();
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    /**
+     * @return the entry files of this version, or null if the version directory does not exist.
+     */
+    private File[] listEntries() {
+        return versionDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(ENTRY_SUFFIX);
+            }
+        });
+    }
+
+    private File getEntryFile(String sourceHash) {
+        ParameterChecker.checkNonEmptyString(sourceHash, "sourceHash");
+        return new File(versionDirectory, sourceHash + ENTRY_SUFFIX);
+    }
+
+    /**
+     * @return true if the cache should be cleaned up after an entry of the specified size was stored.
+     */
+    private synchronized boolean needsCleanUp(long storedBytes) {
+        if (estimatedSizeBytes < 0) return true;
+
+        estimatedSizeBytes += storedBytes;
+        return estimatedSizeBytes > maxSizeBytes;
+    }
+
+    private void deleteEntries(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(ENTRY_SUFFIX) || file.getName().endsWith(TEMP_SUFFIX)) file.delete();
+            }
+        }
+        new File(directory, MARKER_FILE).delete();
+
+        // Only deleted if the cache files were all that it had
+        directory.delete();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
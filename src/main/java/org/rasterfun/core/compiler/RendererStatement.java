@@ -0,0 +1,100 @@
+package org.rasterfun.core.compiler;
+
+import org.rasterfun.core.compiler.expression.Expr;
+
+/**
+ * Structured form of a statement added to a RendererBuilder, used by backends that create the renderer
+ * without compiling the generated source.
+ */
+final class RendererStatement {
+
+    enum Kind {
+        /**
+         * Declares a variable, and initializes it with the value.
+         */
+        DECLARE,
+
+        /**
+         * Assigns the value to an already declared variable.
+         */
+        ASSIGN,
+
+        /**
+         * Declares a float variable, and initializes it with the value of a channel of the current pixel.
+         */
+        LOAD_CHANNEL,
+
+        /**
+         * Writes the value of a float variable to a channel of the current pixel.
+         */
+        STORE_CHANNEL
+    }
+
+    private final Kind kind;
+    private final String variable;
+    private final Class<?> type;
+    private final boolean isFinal;
+    private final Expr value;
+    private final int channelIndex;
+
+    static RendererStatement declare(String variable, Class<?> type, boolean isFinal, Expr value) {
+        return new RendererStatement(Kind.DECLARE, variable, type, isFinal, value, -1);
+    }
+
+    static RendererStatement assign(String variable, Expr value) {
+        return new RendererStatement(Kind.ASSIGN, variable, value.getType(), false, value, -1);
+    }
+
+    static RendererStatement loadChannel(String variable, int channelIndex) {
+        return new RendererStatement(Kind.LOAD_CHANNEL, variable, Float.class, false, null, channelIndex);
+    }
+
+    static RendererStatement storeChannel(int channelIndex, String variable) {
+        return new RendererStatement(Kind.STORE_CHANNEL, variable, Float.class, false, null, channelIndex);
+    }
+
+    private RendererStatement(Kind kind, String variable, Class<?> type, boolean isFinal, Expr value, int channelIndex) {
+        this.kind = kind;
+        this.variable = variable;
+        this.type = type;
+        this.isFinal = isFinal;
+        this.value = value;
+        this.channelIndex = channelIndex;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the declared, assigned or stored variable.
+     */
+    public String getVariable() {
+        return variable;
+    }
+
+    /**
+     * @return type of the variable, primitive types are represented by their wrapper classes.
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    public boolean isFinal() {
+        return isFinal;
+    }
+
+    /**
+     * @return the value to initialize or assign the variable with, or null for channel loads and stores.
+     */
+    public Expr getValue() {
+        return value;
+    }
+
+    /**
+     * @return index of the channel in the picture, for channel loads and stores.
+     */
+    public int getChannelIndex() {
+        return channelIndex;
+    }
+}
@@ -0,0 +1,81 @@
+package org.rasterfun.core.compiler;
+
+/**
+ * A line of source added to a RendererBuilder, along with the variable it declares, if any.
+ */
+final class SourceLine {
+
+    private final String code;
+    private final String declaredVariable;
+    private final String typeCode;
+    private final boolean isFinal;
+    private final boolean arbitrary;
+
+    /**
+     * @return a line with source that may do or declare anything.
+     */
+    static SourceLine arbitrary(String code) {
+        return new SourceLine(code, null, null, false, true);
+    }
+
+    /**
+     * @return a line that does not declare any variables.
+     */
+    static SourceLine statement(String code) {
+        return new SourceLine(code, null, null, false, false);
+    }
+
+    /**
+     * @return a line that declares the specified variable.
+     */
+    static SourceLine declaration(String code, String variable, String typeCode, boolean isFinal) {
+        return new SourceLine(code, variable, typeCode, isFinal, false);
+    }
+
+    private SourceLine(String code, String declaredVariable, String typeCode, boolean isFinal, boolean arbitrary) {
+        this.code = code;
+        this.declaredVariable = declaredVariable;
+        this.typeCode = typeCode;
+        this.isFinal = isFinal;
+        this.arbitrary = arbitrary;
+    }
+
+    /**
+     * @return the source of the line, without indentation or terminating semicolon.
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return the variable declared by the line, or null if it does not declare a variable.
+     */
+    public String getDeclaredVariable() {
+        return declaredVariable;
+    }
+
+    /**
+     * @return the type of the declared variable as it appears in the source.
+     */
+    public String getTypeCode() {
+        return typeCode;
+    }
+
+    public boolean isFinal() {
+        return isFinal;
+    }
+
+    /**
+     * @return true if the line was added as source only, so it may declare variables that are not known.
+     */
+    public boolean isArbitrary() {
+        return arbitrary;
+    }
+
+    /**
+     * @return the line with the indentation of the location and a terminating semicolon.
+     */
+    public String toSource(SourceLocation location) {
+        return location.getIndent() + code + ";\n";
+    }
+}
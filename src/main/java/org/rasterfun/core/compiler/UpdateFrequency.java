@@ -0,0 +1,60 @@
+package org.rasterfun.core.compiler;
+
+/**
+ * Tells how often a value in the generated renderer can change.
+ * Used to move calculations that do not depend on the pixel position out of the pixel loop.
+ */
+public enum UpdateFrequency {
+
+    /**
+     * Constant during one calculatePixels call.
+     */
+    PER_CALCULATION(SourceLocation.BEFORE_LOOP),
+
+    /**
+     * Changes once per scan line.
+     */
+    PER_LINE(SourceLocation.BEFORE_LINE),
+
+    /**
+     * May change for every pixel.
+     */
+    PER_PIXEL(SourceLocation.AT_PIXEL)
+    ;
+
+    private final SourceLocation declarationLocation;
+
+    private UpdateFrequency(SourceLocation declarationLocation) {
+        this.declarationLocation = declarationLocation;
+    }
+
+    /**
+     * @return the outermost location where a variable with a value that changes with this frequency can be calculated.
+     */
+    public SourceLocation getDeclarationLocation() {
+        return declarationLocation;
+    }
+
+    /**
+     * @return the more frequent of this and the other frequency.
+     */
+    public UpdateFrequency combine(UpdateFrequency other) {
+        return other.ordinal() > ordinal() ? other : this;
+    }
+
+    /**
+     * @return how often variables declared at the specified location can change.
+     */
+    public static UpdateFrequency forLocation(SourceLocation location) {
+        switch (location) {
+            case FIELDS:
+            case BEFORE_LOOP:
+                return PER_CALCULATION;
+            case BEFORE_LINE:
+            case AFTER_LINE:
+                return PER_LINE;
+            default:
+                return PER_PIXEL;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.rasterfun.core.compiler.expression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A call to a static method.
+ * Calls are considered expensive, so identical pure calls are only calculated once.
+ */
+public final class CallExpr extends Expr {
+
+    private final String method;
+    private final List<Expr> arguments;
+    private final boolean pure;
+
+    CallExpr(Class<?> type, String method, List<Expr> arguments, boolean pure) {
+        super(type);
+        this.method = method;
+        this.arguments = Collections.unmodifiableList(new ArrayList<Expr>(arguments));
+        this.pure = pure;
+    }
+
+    /**
+     * @return the method name, including the class name, e.g. "PerlinNoise.noise".
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public List<Expr> getArguments() {
+        return arguments;
+    }
+
+    @Override
+    public List<Expr> getChildren() {
+        return arguments;
+    }
+
+    @Override
+    public Expr withChildren(List<Expr> children) {
+        return new CallExpr(getType(), method, children, pure);
+    }
+
+    @Override
+    public boolean isPure() {
+        return pure && super.isPure();
+    }
+
+    @Override
+    public boolean isExpensive() {
+        return true;
+    }
+
+    @Override
+    public void appendSource(StringBuilder s) {
+        s.append(method).append("(");
+        boolean first = true;
+        for (Expr argument : arguments) {
+            if (!first) s.append(", ");
+            argument.appendSource(s);
+            first = false;
+        }
+        s.append(")");
+    }
+
+    @Override
+    protected boolean contentEquals(Expr other) {
+        final CallExpr otherCall = (CallExpr) other;
+        return pure == otherCall.pure &&
+               method.equals(otherCall.method) &&
+               arguments.equals(otherCall.arguments);
+    }
+
+    @Override
+    protected int contentHashCode() {
+        return 31 * method.hashCode() + arguments.hashCode() + (pure ? 1 : 0);
+    }
+}
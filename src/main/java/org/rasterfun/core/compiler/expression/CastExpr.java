@@ -0,0 +1,50 @@
+package org.rasterfun.core.compiler.expression;
+
+import org.rasterfun.utils.ClassUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Casts a primitive value to another primitive type.
+ */
+public final class CastExpr extends Expr {
+
+    private final Expr operand;
+
+    CastExpr(Class<?> type, Expr operand) {
+        super(type);
+        this.operand = operand;
+    }
+
+    public Expr getOperand() {
+        return operand;
+    }
+
+    @Override
+    public List<Expr> getChildren() {
+        return Collections.singletonList(operand);
+    }
+
+    @Override
+    public Expr withChildren(List<Expr> children) {
+        return Expressions.cast(getType(), children.get(0));
+    }
+
+    @Override
+    public void appendSource(StringBuilder s) {
+        s.append("((").append(ClassUtils.getPrimitiveTypeNameOrNull(getType())).append(")");
+        operand.appendSource(s);
+        s.append(")");
+    }
+
+    @Override
+    protected boolean contentEquals(Expr other) {
+        return operand.equals(((CastExpr) other).operand);
+    }
+
+    @Override
+    protected int contentHashCode() {
+        return operand.hashCode();
+    }
+}
@@ -0,0 +1,44 @@
+package org.rasterfun.core.compiler.expression;
+
+import org.rasterfun.utils.ClassUtils;
+
+/**
+ * A constant primitive value.
+ */
+public final class ConstantExpr extends Expr {
+
+    private final Object value;
+
+    ConstantExpr(Object value) {
+        super(value.getClass());
+        this.value = value;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean isConstant() {
+        return true;
+    }
+
+    @Override
+    public void appendSource(StringBuilder s) {
+        final String constant = ClassUtils.wrappedPrimitiveTypeAsConstantString(value);
+
+        // Negative numbers are wrapped in parenthesis, so that they can be used anywhere
+        if (constant.startsWith("-")) s.append("(").append(constant).append(")");
+        else s.append(constant);
+    }
+
+    @Override
+    protected boolean contentEquals(Expr other) {
+        return value.equals(((ConstantExpr) other).value);
+    }
+
+    @Override
+    protected int contentHashCode() {
+        return value.hashCode();
+    }
+}
@@ -0,0 +1,141 @@
+package org.rasterfun.core.compiler.expression;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Intermediate representation of an expression in the generated renderer code.
+ *
+ * Expressions are immutable and compare structurally, so equal sub expressions can be detected and calculated only once.
+ * Use the factory methods in Expressions to create them, they fold constant parts of the expression.
+ */
+public abstract class Expr {
+
+    private final Class<?> type;
+    private int hashCode = 0;
+
+    protected Expr(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the type of the value of the expression.  Wrapper types are used for primitive values.
+     */
+    public final Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * @return java source for the expression.
+     */
+    public final String toSource() {
+        final StringBuilder s = new StringBuilder();
+        appendSource(s);
+        return s.toString();
+    }
+
+    /**
+     * Appends the java source of this expression to the string builder.
+     */
+    public abstract void appendSource(StringBuilder s);
+
+    /**
+     * @return the expressions that this expression is calculated from.
+     */
+    public List<Expr> getChildren() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return a copy of this expression with the specified children, which should be of the same types as the current ones.
+     */
+    public Expr withChildren(List<Expr> children) {
+        return this;
+    }
+
+    /**
+     * @return true if calculating the expression has no side effects, and gives the same result for the same inputs.
+     */
+    public boolean isPure() {
+        for (Expr child : getChildren()) {
+            if (!child.isPure()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the expression is costly enough to calculate that it is worth storing in a variable
+     *         if it is used in several places.
+     */
+    public boolean isExpensive() {
+        return false;
+    }
+
+    /**
+     * @return true if this is a constant value.
+     */
+    public boolean isConstant() {
+        return false;
+    }
+
+    /**
+     * @return a copy of this expression with the specified expressions replaced with the corresponding values.
+     *         Constant parts of the resulting expression are folded.
+     */
+    public final Expr replace(Map<Expr, Expr> replacements) {
+        final Expr replacement = replacements.get(this);
+        if (replacement != null) return replacement;
+
+        final List<Expr> children = getChildren();
+        if (children.isEmpty()) return this;
+
+        Expr[] newChildren = null;
+        for (int i = 0; i < children.size(); i++) {
+            final Expr child = children.get(i);
+            final Expr newChild = child.replace(replacements);
+            if (newChild != child) {
+                if (newChildren == null) newChildren = children.toArray(new Expr[children.size()]);
+                newChildren[i] = newChild;
+            }
+        }
+
+        if (newChildren == null) return this;
+        else return withChildren(Arrays.asList(newChildren));
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final Expr other = (Expr) o;
+        return hashCode() == other.hashCode() &&
+               type.equals(other.type) &&
+               contentEquals(other);
+    }
+
+    @Override
+    public final int hashCode() {
+        // Expressions are immutable, so the hash only needs to be calculated once
+        if (hashCode == 0) {
+            int hash = 31 * getClass().hashCode() + type.hashCode();
+            hash = 31 * hash + contentHashCode();
+            hashCode = hash == 0 ? 1 : hash;
+        }
+        return hashCode;
+    }
+
+    /**
+     * @return true if the content of this expression equals the content of the other expression of the same class.
+     */
+    protected abstract boolean contentEquals(Expr other);
+
+    protected abstract int contentHashCode();
+
+    @Override
+    public String toString() {
+        return toSource();
+    }
+}
@@ -0,0 +1,234 @@
+package org.rasterfun.core.compiler.expression;
+
+import org.rasterfun.utils.ClassUtils;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.Arrays;
+
+/**
+ * Factory methods for expressions.
+ *
+ * Operations on constants are folded to constants, and operations that do not change the value
+ * (adding zero, multiplying or dividing by one) are removed.  The sign of floating point zeroes is not preserved.
+ */
+public final class Expressions {
+
+    private static final Integer ZERO = 0;
+    private static final Integer ONE = 1;
+
+    private Expressions() {
+    }
+
+    /**
+     * @param value a wrapped primitive value.
+     */
+    public static Expr constant(Object value) {
+        ParameterChecker.checkNotNull(value, "value");
+        if (!ClassUtils.isWrappedPrimitiveType(value.getClass())) throw new IllegalArgumentException("Constant expressions should be primitive values, but got a " + value.getClass());
+
+        return new ConstantExpr(value);
+    }
+
+    /**
+     * @param identifier name of a variable or parameter in the generated code.
+     * @param type type of the variable.
+     */
+    public static Expr variable(String identifier, Class<?> type) {
+        ParameterChecker.checkIsIdentifier(identifier, "identifier");
+        ParameterChecker.checkNotNull(type, "type");
+
+        return new VariableExpr(identifier, wrappedType(type));
+    }
+
+    public static Expr add(Expr a, Expr b) {
+        return operation(Operator.ADD, a, b);
+    }
+
+    public static Expr sub(Expr a, Expr b) {
+        return operation(Operator.SUB, a, b);
+    }
+
+    public static Expr mul(Expr a, Expr b) {
+        return operation(Operator.MUL, a, b);
+    }
+
+    public static Expr div(Expr a, Expr b) {
+        return operation(Operator.DIV, a, b);
+    }
+
+    /**
+     * @return an expression applying the operator to the two numerical operands, with java type promotion rules.
+     */
+    public static Expr operation(Operator operator, Expr a, Expr b) {
+        ParameterChecker.checkNotNull(operator, "operator");
+        ParameterChecker.checkNotNull(a, "a");
+        ParameterChecker.checkNotNull(b, "b");
+
+        final Class<?> type = promotedType(a.getType(), b.getType());
+
+        // Calculate operations on constants
+        if (a.isConstant() && b.isConstant()) {
+            final Object value = calculate(operator, type,
+                                           (Number) ((ConstantExpr) a).getValue(),
+                                           (Number) ((ConstantExpr) b).getValue());
+            if (value != null) return constant(value);
+        }
+
+        // Remove operations that do not change the value
+        switch (operator) {
+            case ADD:
+                if (hasValue(a, ZERO)) return cast(type, b);
+                if (hasValue(b, ZERO)) return cast(type, a);
+                break;
+            case SUB:
+                if (hasValue(b, ZERO)) return cast(type, a);
+                break;
+            case MUL:
+                if (hasValue(a, ONE)) return cast(type, b);
+                if (hasValue(b, ONE)) return cast(type, a);
+                break;
+            case DIV:
+                if (hasValue(b, ONE)) return cast(type, a);
+                break;
+        }
+
+        return new OperatorExpr(type, operator, a, b);
+    }
+
+    /**
+     * @return an expression converting the operand to the specified primitive type.
+     */
+    public static Expr cast(Class<?> type, Expr operand) {
+        ParameterChecker.checkNotNull(type, "type");
+        ParameterChecker.checkNotNull(operand, "operand");
+
+        type = wrappedType(type);
+        if (type.equals(operand.getType())) return operand;
+
+        if (operand.isConstant() && Number.class.isAssignableFrom(operand.getType())) {
+            final Object value = convert(type, (Number) ((ConstantExpr) operand).getValue());
+            if (value != null) return constant(value);
+        }
+
+        return new CastExpr(type, operand);
+    }
+
+    /**
+     * @return a call to a static method that has no side effects, and returns the same value for the same arguments.
+     *         Identical pure calls are only calculated once.
+     */
+    public static Expr call(Class<?> returnType, String method, Expr... arguments) {
+        return createCall(returnType, method, arguments, true);
+    }
+
+    /**
+     * @return a call to a static method that may have side effects or return different values each time.
+     */
+    public static Expr impureCall(Class<?> returnType, String method, Expr... arguments) {
+        return createCall(returnType, method, arguments, false);
+    }
+
+    private static Expr createCall(Class<?> returnType, String method, Expr[] arguments, boolean pure) {
+        ParameterChecker.checkNotNull(returnType, "returnType");
+        ParameterChecker.checkNonEmptyString(method, "method");
+        for (Expr argument : arguments) {
+            ParameterChecker.checkNotNull(argument, "argument");
+        }
+
+        return new CallExpr(wrappedType(returnType), method, Arrays.asList(arguments), pure);
+    }
+
+    private static boolean hasValue(Expr expr, Integer value) {
+        return expr.isConstant() &&
+               Number.class.isAssignableFrom(expr.getType()) &&
+               ((Number) ((ConstantExpr) expr).getValue()).doubleValue() == value;
+    }
+
+    private static Class<?> promotedType(Class<?> a, Class<?> b) {
+        checkNumeric(a);
+        checkNumeric(b);
+
+        if (a == Double.class || b == Double.class) return Double.class;
+        else if (a == Float.class || b == Float.class) return Float.class;
+        else if (a == Long.class || b == Long.class) return Long.class;
+        else return Integer.class;
+    }
+
+    private static void checkNumeric(Class<?> type) {
+        if (type != Byte.class && type != Short.class && type != Integer.class &&
+            type != Long.class && type != Float.class && type != Double.class) {
+            throw new IllegalArgumentException("Arithmetic is only supported for numbers, not for " + type);
+        }
+    }
+
+    /**
+     * @return the result of the operation, or null if it can not be calculated at compile time (e.g. integer division by zero).
+     */
+    private static Object calculate(Operator operator, Class<?> type, Number a, Number b) {
+        if (type == Double.class) {
+            final double x = a.doubleValue();
+            final double y = b.doubleValue();
+            switch (operator) {
+                case ADD: return x + y;
+                case SUB: return x - y;
+                case MUL: return x * y;
+                case DIV: return x / y;
+            }
+        }
+        else if (type == Float.class) {
+            final float x = a.floatValue();
+            final float y = b.floatValue();
+            switch (operator) {
+                case ADD: return x + y;
+                case SUB: return x - y;
+                case MUL: return x * y;
+                case DIV: return x / y;
+            }
+        }
+        else if (type == Long.class) {
+            final long x = a.longValue();
+            final long y = b.longValue();
+            switch (operator) {
+                case ADD: return x + y;
+                case SUB: return x - y;
+                case MUL: return x * y;
+                case DIV: return y == 0 ? null : x / y;
+            }
+        }
+        else {
+            final int x = a.intValue();
+            final int y = b.intValue();
+            switch (operator) {
+                case ADD: return x + y;
+                case SUB: return x - y;
+                case MUL: return x * y;
+                case DIV: return y == 0 ? null : x / y;
+            }
+        }
+
+        return null;
+    }
+
+    private static Object convert(Class<?> type, Number value) {
+        if (type == Double.class) return value.doubleValue();
+        else if (type == Float.class) return value.floatValue();
+        else if (type == Long.class) return value.longValue();
+        else if (type == Integer.class) return value.intValue();
+        else if (type == Short.class) return value.shortValue();
+        else if (type == Byte.class) return value.byteValue();
+        else return null;
+    }
+
+    private static Class<?> wrappedType(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        else if (type == Boolean.TYPE) return Boolean.class;
+        else if (type == Byte.TYPE) return Byte.class;
+        else if (type == Short.TYPE) return Short.class;
+        else if (type == Integer.TYPE) return Integer.class;
+        else if (type == Long.TYPE) return Long.class;
+        else if (type == Float.TYPE) return Float.class;
+        else if (type == Double.TYPE) return Double.class;
+        else if (type == Character.TYPE) return Character.class;
+        else throw new IllegalArgumentException("Unsupported type " + type);
+    }
+}
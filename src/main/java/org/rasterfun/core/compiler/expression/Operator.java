@@ -0,0 +1,25 @@
+package org.rasterfun.core.compiler.expression;
+
+/**
+ * Binary arithmetic operators supported by OperatorExpr.
+ */
+public enum Operator {
+    ADD("+"),
+    SUB("-"),
+    MUL("*"),
+    DIV("/"),
+    ;
+
+    private final String symbol;
+
+    private Operator(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * @return the java operator.
+     */
+    public String getSymbol() {
+        return symbol;
+    }
+}
@@ -0,0 +1,65 @@
+package org.rasterfun.core.compiler.expression;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A binary arithmetic operation.
+ */
+public final class OperatorExpr extends Expr {
+
+    private final Operator operator;
+    private final Expr left;
+    private final Expr right;
+
+    OperatorExpr(Class<?> type, Operator operator, Expr left, Expr right) {
+        super(type);
+        this.operator = operator;
+        this.left = left;
+        this.right = right;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public Expr getLeft() {
+        return left;
+    }
+
+    public Expr getRight() {
+        return right;
+    }
+
+    @Override
+    public List<Expr> getChildren() {
+        return Arrays.asList(left, right);
+    }
+
+    @Override
+    public Expr withChildren(List<Expr> children) {
+        return Expressions.operation(operator, children.get(0), children.get(1));
+    }
+
+    @Override
+    public void appendSource(StringBuilder s) {
+        s.append("(");
+        left.appendSource(s);
+        s.append(" ").append(operator.getSymbol()).append(" ");
+        right.appendSource(s);
+        s.append(")");
+    }
+
+    @Override
+    protected boolean contentEquals(Expr other) {
+        final OperatorExpr otherOperation = (OperatorExpr) other;
+        return operator == otherOperation.operator &&
+               left.equals(otherOperation.left) &&
+               right.equals(otherOperation.right);
+    }
+
+    @Override
+    protected int contentHashCode() {
+        return 31 * (31 * operator.hashCode() + left.hashCode()) + right.hashCode();
+    }
+}
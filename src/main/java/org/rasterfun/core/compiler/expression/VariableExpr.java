@@ -0,0 +1,33 @@
+package org.rasterfun.core.compiler.expression;
+
+/**
+ * A reference to a variable, parameter or other identifier in the generated code.
+ */
+public final class VariableExpr extends Expr {
+
+    private final String identifier;
+
+    VariableExpr(String identifier, Class<?> type) {
+        super(type);
+        this.identifier = identifier;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    @Override
+    public void appendSource(StringBuilder s) {
+        s.append(identifier);
+    }
+
+    @Override
+    protected boolean contentEquals(Expr other) {
+        return identifier.equals(((VariableExpr) other).identifier);
+    }
+
+    @Override
+    protected int contentHashCode() {
+        return identifier.hashCode();
+    }
+}
@@ -29,4 +29,15 @@ public interface CalculationListener {
      * @param cause the causing exception, or null if none.
      */
     void onError(int calculationIndex, String shortSummary, String longDescription, Throwable cause);
+
+    /**
+     * Reports the time spent in the profiled sections of a renderer built with profiling on,
+     * at the end of each call to calculatePixels.
+     *
+     * @param calculationIndex the calculation index of the task.
+     * @param sectionNames names of the profiled sections.
+     * @param sampledNanos nanoseconds spent in each section for the sampled pixels.
+     * @param sampledPixels number of sampled pixels.
+     */
+    void onCalculationProfile(int calculationIndex, String[] sectionNames, long[] sampledNanos, long sampledPixels);
 }
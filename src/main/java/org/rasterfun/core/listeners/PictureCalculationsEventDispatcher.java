@@ -0,0 +1,268 @@
+package org.rasterfun.core.listeners;
+
+import org.rasterfun.core.RenderProgress;
+import org.rasterfun.picture.Picture;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Forwards the events it gets to the specified listener in the thread of an executor, so that the threads reporting
+ * the events do not need to wait for the listener code.  The events are delivered in the order they were received.
+ *
+ * Progress reports are merged, so that the listener gets at most one progress event per progress interval,
+ * with the latest progress.  Any progress not yet delivered is delivered before the next other event.
+ * Render threads can report that a RenderProgress has changed with onProgressChanged, the progress is then
+ * only summed when it is delivered.
+ */
+public final class PictureCalculationsEventDispatcher implements ProgressivePictureCalculationsListener {
+
+    /**
+     * Default minimum time between progress events, in milliseconds.
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 50;
+
+    private final PictureCalculationsListener listener;
+    private final ScheduledExecutorService executor;
+    private final long progressIntervalNanos;
+
+    // Latest progress that has not been delivered yet, guarded by this
+    private boolean progressPending = false;
+    private boolean progressScheduled = false;
+    private int pendingCalculationIndex;
+    private float pendingProgress;
+    private long lastProgressNanos;
+
+    // Set when the changed progress has not been summed yet, the progress and its calculation are only
+    // written when they change, so that reporting a change is a read and a compare and set in the usual case.
+    private final AtomicBoolean progressChanged = new AtomicBoolean(false);
+    private volatile int changedCalculationIndex;
+    private volatile RenderProgress changedProgress = null;
+
+    // The thread delivering events, used to avoid waiting for the delivery from inside a listener
+    private volatile Thread deliveringThread = null;
+
+    private final Runnable progressDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliver(null, true);
+        }
+    };
+
+    /**
+     * @param listener the listener to deliver the events to.
+     * @param executor single threaded executor to deliver the events in.
+     */
+    public PictureCalculationsEventDispatcher(PictureCalculationsListener listener, ScheduledExecutorService executor) {
+        this(listener, executor, DEFAULT_PROGRESS_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param listener the listener to deliver the events to.
+     * @param executor single threaded executor to deliver the events in.
+     * @param progressIntervalMillis minimum time between progress events, in milliseconds.
+     */
+    public PictureCalculationsEventDispatcher(PictureCalculationsListener listener,
+                                              ScheduledExecutorService executor,
+                                              long progressIntervalMillis) {
+        ParameterChecker.checkNotNull(listener, "listener");
+        ParameterChecker.checkNotNull(executor, "executor");
+        ParameterChecker.checkPositiveOrZeroNormalNumber(progressIntervalMillis, "progressIntervalMillis");
+
+        this.listener = listener;
+        this.executor = executor;
+        progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(progressIntervalMillis);
+        lastProgressNanos = System.nanoTime() - progressIntervalNanos;
+    }
+
+    @Override
+    public void onProgress(int calculationIndex, float progress) {
+        mergeProgress(calculationIndex, progress);
+        scheduleProgressDelivery();
+    }
+
+    /**
+     * Notes that pixels have been added to the progress of the calculation.  The progress is summed and delivered
+     * later in the event thread, so this can be called for each completed area without waiting for other threads.
+     */
+    public void onProgressChanged(int calculationIndex, RenderProgress progress) {
+        if (changedProgress != progress) {
+            // The index is written first, so that it is up to date when the new progress is read
+            changedCalculationIndex = calculationIndex;
+            changedProgress = progress;
+        }
+
+        // Only the thread that sets the flag schedules the delivery
+        if (progressChanged.get() || !progressChanged.compareAndSet(false, true)) return;
+
+        scheduleProgressDelivery();
+    }
+
+    @Override
+    public void onPreviewReady(final int calculationIndex, final int pictureIndex, final Picture preview) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPreviewReady(calculationIndex, pictureIndex, preview);
+            }
+        });
+    }
+
+    @Override
+    public void onPictureRefined(final int calculationIndex, final int pictureIndex, final Picture picture, final int stride) {
+        if (!(listener instanceof ProgressivePictureCalculationsListener)) return;
+
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                ((ProgressivePictureCalculationsListener) listener).onPictureRefined(calculationIndex, pictureIndex, picture, stride);
+            }
+        });
+    }
+
+    @Override
+    public void onPictureReady(final int calculationIndex, final int pictureIndex, final Picture picture) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPictureReady(calculationIndex, pictureIndex, picture);
+            }
+        });
+    }
+
+    @Override
+    public void onError(final int calculationIndex, final String shortDescription, final String longDescription, final Throwable cause) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                listener.onError(calculationIndex, shortDescription, longDescription, cause);
+            }
+        });
+    }
+
+    @Override
+    public void onReady(final int calculationIndex, final List<Picture> pictures) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                listener.onReady(calculationIndex, pictures);
+            }
+        });
+    }
+
+    /**
+     * Waits until the events received so far have been delivered to the listener.
+     * Returns at once if called from the listener.
+     */
+    public void awaitDelivery() throws InterruptedException {
+        if (Thread.currentThread() == deliveringThread) return;
+
+        try {
+            final Future<?> marker = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(null, false);
+                }
+            });
+            marker.get();
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, the events were delivered by the threads that reported them
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not deliver the events: " + e.getMessage(), e);
+        }
+    }
+
+    private void dispatch(final Runnable event) {
+        final Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                deliver(event, false);
+            }
+        };
+
+        try {
+            executor.execute(delivery);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, deliver in this thread instead
+            delivery.run();
+        }
+    }
+
+    /**
+     * Delivers any pending progress, and then the event, if not null.
+     * @param scheduledProgress true if this is the scheduled delivery of the pending progress.
+     */
+    private void deliver(Runnable event, boolean scheduledProgress) {
+        final Thread previousThread = deliveringThread;
+        deliveringThread = Thread.currentThread();
+        try {
+            deliverPendingProgress(scheduledProgress);
+            if (event != null) event.run();
+        } finally {
+            deliveringThread = previousThread;
+        }
+    }
+
+    private synchronized void mergeProgress(int calculationIndex, float progress) {
+        // Progress reported by different threads may arrive out of order, keep the largest
+        if (progressPending && pendingCalculationIndex == calculationIndex) {
+            pendingProgress = Math.max(pendingProgress, progress);
+        }
+        else {
+            pendingProgress = progress;
+        }
+        pendingCalculationIndex = calculationIndex;
+        progressPending = true;
+    }
+
+    private void scheduleProgressDelivery() {
+        final long delayNanos;
+        synchronized (this) {
+            if (progressScheduled) return;
+            progressScheduled = true;
+            delayNanos = Math.max(0, lastProgressNanos + progressIntervalNanos - System.nanoTime());
+        }
+
+        try {
+            executor.schedule(progressDelivery, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, deliver in this thread instead
+            progressDelivery.run();
+        }
+    }
+
+    private void deliverPendingProgress(boolean scheduledProgress) {
+        if (scheduledProgress) {
+            // Cleared before the changed progress is taken, so that a change after this schedules a new delivery
+            synchronized (this) {
+                progressScheduled = false;
+            }
+        }
+
+        // Sum the changed progress, pixels added after the flag is cleared set it again
+        if (progressChanged.get() && progressChanged.compareAndSet(true, false)) {
+            final RenderProgress progress = changedProgress;
+            final int calculationIndex = changedCalculationIndex;
+            mergeProgress(calculationIndex, progress.getProgress());
+        }
+
+        final int calculationIndex;
+        final float progress;
+        synchronized (this) {
+            if (!progressPending) return;
+
+            progressPending = false;
+            calculationIndex = pendingCalculationIndex;
+            progress = pendingProgress;
+            lastProgressNanos = System.nanoTime();
+        }
+
+        listener.onProgress(calculationIndex, progress);
+    }
+}
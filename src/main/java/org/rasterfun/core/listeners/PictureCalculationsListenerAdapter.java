@@ -5,9 +5,10 @@ import org.rasterfun.picture.Picture;
 import java.util.List;
 
 /**
- * Adapter for PictureCalculationsListener, override the methods that you are interested in.
+ * Adapter for PictureCalculationsListener and ProgressivePictureCalculationsListener, override the methods that you
+ * are interested in.
  */
-public abstract class PictureCalculationsListenerAdapter implements PictureCalculationsListener {
+public abstract class PictureCalculationsListenerAdapter implements ProgressivePictureCalculationsListener {
 
     @Override
     public void onProgress(int calculationIndex, float progress) {
@@ -17,6 +18,10 @@ public abstract class PictureCalculationsListenerAdapter implements PictureCalcu
     public void onPreviewReady(int calculationIndex, int pictureIndex, Picture preview) {
     }
 
+    @Override
+    public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int stride) {
+    }
+
     @Override
     public void onPictureReady(int calculationIndex, int pictureIndex, Picture picture) {
     }
@@ -7,8 +7,9 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Delegate that forwards incoming events to listeners.
+ * Coarse passes of progressive rendering are only forwarded to ProgressivePictureCalculationsListeners.
  */
-public class PictureCalculationsListenerDelegate implements PictureCalculationsListener {
+public class PictureCalculationsListenerDelegate implements ProgressivePictureCalculationsListener {
 
     // Usually we have only a few listeners, so a CopyOnWriteArrayList is an easy way to make adding and removing listeners thread safe without much memory or performance overhead.
     private final CopyOnWriteArrayList<PictureCalculationsListener> listeners = new CopyOnWriteArrayList<PictureCalculationsListener>();
@@ -23,6 +24,13 @@ public class PictureCalculationsListenerDelegate implements PictureCalculationsL
             listener.onPreviewReady(calculationIndex, pictureIndex, preview);
         }
     }
+    public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int stride) {
+        for (PictureCalculationsListener listener : listeners) {
+            if (listener instanceof ProgressivePictureCalculationsListener) {
+                ((ProgressivePictureCalculationsListener) listener).onPictureRefined(calculationIndex, pictureIndex, picture, stride);
+            }
+        }
+    }
     public void onPictureReady(int calculationIndex, int pictureIndex, Picture picture) {
         for (PictureCalculationsListener listener : listeners) {
             listener.onPictureReady(calculationIndex, pictureIndex, picture);
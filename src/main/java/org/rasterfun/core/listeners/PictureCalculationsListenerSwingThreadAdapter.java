@@ -7,8 +7,9 @@ import java.util.List;
 
 /**
  * Delegates events it gets to the specified listener, in the Swing thread.
+ * Coarse passes of progressive rendering are only delegated if the listener is a ProgressivePictureCalculationsListener.
  */
-public class PictureCalculationsListenerSwingThreadAdapter implements PictureCalculationsListener {
+public class PictureCalculationsListenerSwingThreadAdapter implements ProgressivePictureCalculationsListener {
     private final PictureCalculationsListener delegate;
 
     public PictureCalculationsListenerSwingThreadAdapter(PictureCalculationsListener delegate) {
@@ -35,6 +36,17 @@ public class PictureCalculationsListenerSwingThreadAdapter implements PictureCal
         });
     }
 
+    @Override
+    public void onPictureRefined(final int calculationIndex, final int pictureIndex, final Picture picture, final int stride) {
+        if (!(delegate instanceof ProgressivePictureCalculationsListener)) return;
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                ((ProgressivePictureCalculationsListener) delegate).onPictureRefined(calculationIndex, pictureIndex, picture, stride);
+            }
+        });
+    }
 
     @Override
     public void onPictureReady(final int calculationIndex, final int pictureIndex, final Picture picture) {
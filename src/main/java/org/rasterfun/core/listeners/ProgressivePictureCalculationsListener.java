@@ -0,0 +1,21 @@
+package org.rasterfun.core.listeners;
+
+import org.rasterfun.picture.Picture;
+
+/**
+ * Listen to the calculation of pictures, including the coarse passes of progressive rendering.
+ * Listeners that only implement PictureCalculationsListener are not notified about the coarse passes.
+ */
+public interface ProgressivePictureCalculationsListener extends PictureCalculationsListener {
+
+    /**
+     * Called in progressive rendering when a coarse pass over a picture is ready.  The picture has been calculated
+     * for every stride:th pixel, and the other pixels have the value of the calculated pixel above and to the left of them.
+     * Called with decreasing strides, onPictureReady is called when the picture is fully calculated.
+     * The next pass may already have refined parts of the picture further when this is called.
+     * @param calculationIndex id for the calculation run that is reporting,
+     *                         useful to tell apart several calculations started after each other.
+     * @param stride distance between the calculated pixels in the picture.
+     */
+    void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int stride);
+}
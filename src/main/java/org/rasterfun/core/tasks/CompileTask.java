@@ -2,7 +2,11 @@ package org.rasterfun.core.tasks;
 
 import org.rasterfun.core.Renderer;
 import org.rasterfun.core.compiler.CompilationException;
+import org.rasterfun.core.compiler.JaninoBackend;
+import org.rasterfun.core.compiler.RendererBackend;
+import org.rasterfun.core.compiler.RendererBatch;
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.RendererCache;
 import org.rasterfun.core.listeners.CalculationListener;
 import org.rasterfun.utils.ParameterChecker;
 
@@ -16,19 +20,59 @@ public class CompileTask implements Callable<Renderer> {
     private final int calculationIndex;
     private final RendererBuilder builder;
     private final CalculationListener listener;
+    private final RendererCache cache;
+    private final RendererBatch batch;
+    private final RendererBackend backend;
 
     public CompileTask(int calculationIndex, RendererBuilder builder, CalculationListener listener) {
+        this(calculationIndex, builder, listener, RendererCache.getDefault());
+    }
+
+    /**
+     * @param cache cache to get already compiled renderers from, or null to always compile.
+     */
+    public CompileTask(int calculationIndex, RendererBuilder builder, CalculationListener listener, RendererCache cache) {
+        this(calculationIndex, builder, listener, cache, null);
+    }
+
+    /**
+     * @param cache cache to get already compiled renderers from, or null to always compile.
+     * @param batch batch of renderers to compile the renderer together with, or null to compile it by itself.
+     */
+    public CompileTask(int calculationIndex,
+                       RendererBuilder builder,
+                       CalculationListener listener,
+                       RendererCache cache,
+                       RendererBatch batch) {
+        this(calculationIndex, builder, listener, cache, batch, new JaninoBackend());
+    }
+
+    /**
+     * @param cache cache to get already compiled renderers from, or null to always compile.
+     * @param batch batch of renderers to compile the renderer together with, or null to compile it by itself.
+     * @param backend backend used to create the renderer class.
+     */
+    public CompileTask(int calculationIndex,
+                       RendererBuilder builder,
+                       CalculationListener listener,
+                       RendererCache cache,
+                       RendererBatch batch,
+                       RendererBackend backend) {
         ParameterChecker.checkNotNull(builder, "builder");
+        ParameterChecker.checkNotNull(backend, "backend");
 
         this.calculationIndex = calculationIndex;
         this.builder = builder;
         this.listener = listener;
+        this.cache = cache;
+        this.batch = batch;
+        this.backend = backend;
     }
 
     @Override
     public Renderer call() throws Exception {
         try {
-            return builder.compilePixelCalculator();
+            return builder.compilePixelCalculator(cache, batch, backend);
         } catch (CompilationException e) {
             if (listener != null) {
                 listener.onError(calculationIndex, e.getMessage(), e.getLongExplanation(), e);
@@ -0,0 +1,46 @@
+package org.rasterfun.core.tasks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A task with a priority, used by the render executor to decide which queued task to run next.
+ * Tasks with higher priority are run first, tasks with the same priority in the order they were created.
+ *
+ * The priority may change while the task is queued, e.g. when a picture scrolls into view.
+ * CalculationExecutors.reprioritize should be called after priorities change, to re-sort the queued tasks.
+ */
+public class PrioritizedTask<T> extends FutureTask<T> {
+
+    /**
+     * Priority of tasks that do not specify one.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private static final AtomicLong nextSequenceNumber = new AtomicLong(0);
+
+    private final long sequenceNumber = nextSequenceNumber.getAndIncrement();
+
+    public PrioritizedTask(Callable<T> callable) {
+        super(callable);
+    }
+
+    public PrioritizedTask(Runnable runnable, T result) {
+        super(runnable, result);
+    }
+
+    /**
+     * @return the current priority of the task, tasks with higher priority are run first.
+     */
+    public int getPriority() {
+        return DEFAULT_PRIORITY;
+    }
+
+    /**
+     * @return increasing number in the order the tasks were created.
+     */
+    public final long getSequenceNumber() {
+        return sequenceNumber;
+    }
+}
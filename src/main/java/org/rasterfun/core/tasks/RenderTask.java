@@ -1,8 +1,11 @@
 package org.rasterfun.core.tasks;
 
+import org.rasterfun.core.ArrayRenderer;
+import org.rasterfun.core.BufferRenderer;
 import org.rasterfun.core.Renderer;
 import org.rasterfun.core.listeners.CalculationListener;
 import org.rasterfun.picture.Picture;
+import org.rasterfun.picture.TiledPicture;
 import org.rasterfun.utils.ParameterChecker;
 
 import java.util.List;
@@ -11,39 +14,78 @@ import java.util.concurrent.Future;
 
 /**
  * Task that renders a Picture using a Renderer.
+ * Renders tiles of rows claimed from a TileScheduler until there are none left, several tasks can share a scheduler
+ * to render the same picture together.
+ *
+ * The task should only be run after the renderer future is done, otherwise it blocks its thread while waiting
+ * for the renderer to be compiled.  PictureCalculations submits render tasks when their renderer is ready.
+ *
+ * For progressive rendering a task can calculate only the pixels on a grid with a given stride.  Each calculated
+ * pixel is then copied to the stride x stride block to the right and below it, so that the whole picture shows
+ * a coarse version of the result.  A pass with a finer stride refines the picture, skipping the pixels calculated by
+ * the previous pass.  The passes over a picture should be run one after the other.
+ *
+ * A TiledPicture is rendered one tile at a time, with the TileScheduler handing out tile indexes instead of rows.
+ * Each rendered tile is released, so tiles stored in files are written to disk and their memory freed.
+ * Tiled pictures are rendered in a single pass.
  */
 public class RenderTask implements Callable<Picture> {
 
     private final int calculationIndex;
     private final int pictureIndex;
     private final boolean isPreview;
-    private final int startY;
-    private final int endY;
+    private final TileScheduler tileScheduler;
+    private final int stride;
+    private final int previousStride;
     private final Picture picture;
     private final Future<Renderer> pixelCalculatorFuture;
     private final CalculationListener listener;
 
-    private Renderer renderer = null;
-    private boolean stopped = false;
+    // Volatile, as stop is called from other threads
+    private volatile Renderer renderer = null;
+    private volatile boolean stopped = false;
+    private volatile boolean running = false;
 
     public RenderTask(int calculationIndex,
                       int pictureIndex,
                       boolean preview,
-                      int startY,
-                      int endY,
+                      TileScheduler tileScheduler,
                       Picture picture,
                       Future<Renderer> pixelCalculatorFuture,
                       CalculationListener listener) {
+        this(calculationIndex, pictureIndex, preview, tileScheduler, 1, 0, picture, pixelCalculatorFuture, listener);
+    }
+
+    /**
+     * @param stride distance between the pixels to calculate, 1 to calculate all pixels.
+     * @param previousStride stride of the pass over the picture before this one, whose pixels are not recalculated,
+     *                       or 0 if this is the first pass.  Should be a multiple of stride.
+     */
+    public RenderTask(int calculationIndex,
+                      int pictureIndex,
+                      boolean preview,
+                      TileScheduler tileScheduler,
+                      int stride,
+                      int previousStride,
+                      Picture picture,
+                      Future<Renderer> pixelCalculatorFuture,
+                      CalculationListener listener) {
+        ParameterChecker.checkNotNull(tileScheduler, "tileScheduler");
+        ParameterChecker.checkPositiveNonZeroInteger(stride, "stride");
+        ParameterChecker.checkNonNegativeInteger(previousStride, "previousStride");
+        if (previousStride % stride != 0) throw new IllegalArgumentException("The parameter 'previousStride' should be a multiple of stride (" + stride + "), but it was " + previousStride);
         ParameterChecker.checkNotNull(picture, "picture");
         ParameterChecker.checkNotNull(pixelCalculatorFuture, "pixelCalculatorFuture");
         ParameterChecker.checkPositiveNonZeroInteger(picture.getWidth(), "picture.getWidth()");
         ParameterChecker.checkPositiveNonZeroInteger(picture.getHeight(), "picture.getHeight()");
+        if (picture instanceof TiledPicture && stride != 1) throw new IllegalArgumentException("Tiled pictures are rendered in a single pass, the stride should be 1, but it was " + stride);
 
         this.calculationIndex = calculationIndex;
         this.pictureIndex = pictureIndex;
         isPreview = preview;
-        this.startY = startY;
-        this.endY = endY;
+        this.tileScheduler = tileScheduler;
+        this.stride = stride;
+        this.previousStride = previousStride;
         this.picture = picture;
         this.pixelCalculatorFuture = pixelCalculatorFuture;
         this.listener = listener;
@@ -51,34 +93,70 @@ public class RenderTask implements Callable<Picture> {
 
     @Override
     public Picture call() throws Exception {
+        running = true;
         try {
-            // Wait for pixel renderer compilation task to complete
+            // Get the compiled pixel renderer, normally the compilation is already done at this point
             renderer = pixelCalculatorFuture.get();
 
             // If we weren't stopped, proceed to rendering phase
             if (!stopped && renderer != null) {
 
-                // Render the part of the picture we have been assigned
+                // Render tiles of the picture until there are none left
                 final List<String> channelNamesList = picture.getChannelNames();
                 final String[] channelNamesArray = channelNamesList.toArray(new String[channelNamesList.size()]);
-                renderer.calculatePixels(picture.getWidth(),
-                                         picture.getHeight(),
-                                         channelNamesArray,
-                                         picture.getData(),
-                                         0,
-                                         startY,
-                                         picture.getWidth(),
-                                         endY,
-                                         isPreview ? null : listener,
-                                         calculationIndex);
-
-                // Notify listener
-                listener.onPictureSliceReady(calculationIndex, pictureIndex, picture, isPreview);
+                TileScheduler.Tile tile = tileScheduler.nextTile();
+                while (tile != null && !stopped) {
+                    final long tileStartTime = System.nanoTime();
+                    if (picture instanceof TiledPicture) {
+                        // The scheduler hands out indexes of tiles instead of rows
+                        for (int tileIndex = tile.getStartY(); tileIndex < tile.getEndY() && !stopped; tileIndex++) {
+                            calculateTile((TiledPicture) picture, tileIndex, channelNamesArray);
+                        }
+                    }
+                    else if (renderer instanceof BufferRenderer) {
+                        ((BufferRenderer) renderer).calculateSamples(picture.getWidth(),
+                                                                     picture.getHeight(),
+                                                                     channelNamesArray,
+                                                                     picture.getBuffer(),
+                                                                     0,
+                                                                     tile.getStartY(),
+                                                                     picture.getWidth(),
+                                                                     tile.getEndY(),
+                                                                     stride,
+                                                                     previousStride,
+                                                                     isPreview ? null : listener,
+                                                                     calculationIndex);
+                    }
+                    else {
+                        ((ArrayRenderer) renderer).calculateSamples(picture.getWidth(),
+                                                                    picture.getHeight(),
+                                                                    channelNamesArray,
+                                                                    picture.getData(),
+                                                                    0,
+                                                                    tile.getStartY(),
+                                                                    picture.getWidth(),
+                                                                    tile.getEndY(),
+                                                                    stride,
+                                                                    previousStride,
+                                                                    isPreview ? null : listener,
+                                                                    calculationIndex);
+                    }
+                    if (stride > 1) fillBlocks(tile.getStartY(), tile.getEndY());
+                    tileScheduler.reportTile(tile.getRowCount(), System.nanoTime() - tileStartTime);
+
+                    tile = tileScheduler.nextTile();
+                }
+
+                // Notify listener, unless we were stopped before the slice was completed
+                if (!stopped) listener.onPictureSliceReady(calculationIndex, pictureIndex, picture, isPreview);
             }
 
             return picture;
         }
         catch (Exception e) {
+            // Do not let the other tasks continue with the picture
+            tileScheduler.abort();
+
             if (listener != null) {
                 final String picType = isPreview ? "preview" : "picture";
                 listener.onError(calculationIndex,
@@ -89,10 +167,110 @@ public class RenderTask implements Callable<Picture> {
             e.printStackTrace();
             return null;
         }
+        finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Renders one tile of a tiled picture, and releases it.
+     */
+    private void calculateTile(TiledPicture tiledPicture, int tileIndex, String[] channelNames) {
+        final Picture tile = tiledPicture.getTile(tileIndex);
+        if (renderer instanceof BufferRenderer) {
+            ((BufferRenderer) renderer).calculateTile(tiledPicture.getWidth(),
+                                                      tiledPicture.getHeight(),
+                                                      channelNames,
+                                                      tile.getBuffer(),
+                                                      tiledPicture.getTileX(tileIndex),
+                                                      tiledPicture.getTileY(tileIndex),
+                                                      tile.getWidth(),
+                                                      tile.getHeight(),
+                                                      isPreview ? null : listener,
+                                                      calculationIndex);
+        }
+        else {
+            ((ArrayRenderer) renderer).calculateTile(tiledPicture.getWidth(),
+                                                     tiledPicture.getHeight(),
+                                                     channelNames,
+                                                     tile.getData(),
+                                                     tiledPicture.getTileX(tileIndex),
+                                                     tiledPicture.getTileY(tileIndex),
+                                                     tile.getWidth(),
+                                                     tile.getHeight(),
+                                                     isPreview ? null : listener,
+                                                     calculationIndex);
+        }
+
+        // Out of core rendering, tiles stored in files are written to disk and their memory freed
+        tiledPicture.releaseTile(tileIndex);
+    }
+
+    /**
+     * Copies the pixels calculated in this pass to the stride x stride blocks below and to the right of them,
+     * clipped to the picture.
+     */
+    private void fillBlocks(int startY, int endY) {
+        final float[] data = picture.getData();
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        final int channelCount = picture.getChannelCount();
+        final int pixelStep = picture.getPixelStep();
+        final int channelStep = picture.getChannelStep();
+
+        final int firstY = (startY + stride - 1) / stride * stride;
+        for (int y = firstY; y < endY; y += stride) {
+            final boolean previousPixelsOnLine = previousStride > 0 && y % previousStride == 0;
+            final int blockEndY = Math.min(y + stride, height);
+            for (int x = 0; x < width; x += stride) {
+                // The pixels of the previous pass already fill their blocks
+                if (previousPixelsOnLine && x % previousStride == 0) continue;
+
+                final int sourceIndex = (y * width + x) * pixelStep;
+                final int blockLength = (Math.min(x + stride, width) - x) * pixelStep;
+                for (int blockY = y; blockY < blockEndY; blockY++) {
+                    final int lineIndex = (blockY * width + x) * pixelStep;
+                    if (data == null) {
+                        // Not stored in an array, copy the values one by one
+                        final int blockEndX = Math.min(x + stride, width);
+                        for (int c = 0; c < channelCount; c++) {
+                            final float value = picture.getPixel(c, x, y);
+                            for (int blockX = x; blockX < blockEndX; blockX++) {
+                                if (blockX != x || blockY != y) picture.setPixel(c, blockX, blockY, value);
+                            }
+                        }
+                    }
+                    else if (channelStep == 1) {
+                        // Interleaved, the channels of a pixel can be copied together
+                        for (int i = 0; i < blockLength; i += pixelStep) {
+                            if (lineIndex + i != sourceIndex) {
+                                System.arraycopy(data, sourceIndex, data, lineIndex + i, channelCount);
+                            }
+                        }
+                    }
+                    else {
+                        for (int c = 0; c < channelCount; c++) {
+                            final int channelOffset = c * channelStep;
+                            final float value = data[sourceIndex + channelOffset];
+                            for (int i = 0; i < blockLength; i += pixelStep) {
+                                data[lineIndex + i + channelOffset] = value;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true while the task is rendering.
+     */
+    public boolean isRunning() {
+        return running;
     }
 
     /**
-     * Stops the calculation of the picture.
+     * Stops the calculation of the picture.  A running calculation stops after the row it is calculating.
      */
     public void stop() {
         stopped = true;
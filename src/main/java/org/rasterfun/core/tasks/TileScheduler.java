@@ -0,0 +1,137 @@
+package org.rasterfun.core.tasks;
+
+import org.rasterfun.utils.ParameterChecker;
+
+/**
+ * Hands out the rows of a picture in tiles to the render tasks working on it, so that tasks that finish their tiles
+ * early take more of the remaining work, instead of each task rendering a fixed band of the picture.
+ *
+ * The tile size adapts to the measured rendering time per row, so that a tile takes about the target time to render,
+ * and shrinks towards the end of the picture so that the tasks finish at about the same time.
+ * Until the cost of a row has been measured, the tiles are single rows.
+ *
+ * Tiles are bands of whole rows, as the render tasks can render any range of rows.  Thread safe.
+ */
+public final class TileScheduler {
+
+    /**
+     * Default target rendering time for one tile, in nanoseconds.
+     */
+    public static final long DEFAULT_TARGET_TILE_NANOS = 10L * 1000 * 1000;
+
+    // Weight of the latest measurement in the average rendering time per row
+    private static final double COST_SMOOTHING = 0.25;
+
+    private final int endY;
+    private final int taskCount;
+    private final long targetTileNanos;
+
+    private int nextY;
+    private double nanosPerRow = -1;
+    private boolean aborted = false;
+
+    /**
+     * @param startY first row to render.
+     * @param endY the row to stop rendering before.
+     * @param taskCount number of tasks rendering the rows.
+     */
+    public TileScheduler(int startY, int endY, int taskCount) {
+        this(startY, endY, taskCount, DEFAULT_TARGET_TILE_NANOS);
+    }
+
+    /**
+     * @param startY first row to render.
+     * @param endY the row to stop rendering before.
+     * @param taskCount number of tasks rendering the rows.
+     * @param targetTileNanos time that rendering one tile should take, in nanoseconds.
+     */
+    public TileScheduler(int startY, int endY, int taskCount, long targetTileNanos) {
+        ParameterChecker.checkNonNegativeInteger(startY, "startY");
+        ParameterChecker.checkNonNegativeInteger(endY - startY, "endY - startY");
+        ParameterChecker.checkPositiveNonZeroInteger(taskCount, "taskCount");
+        if (targetTileNanos <= 0) throw new IllegalArgumentException("The parameter 'targetTileNanos' should be larger than zero, but it was " + targetTileNanos);
+
+        this.nextY = startY;
+        this.endY = endY;
+        this.taskCount = taskCount;
+        this.targetTileNanos = targetTileNanos;
+    }
+
+    /**
+     * Claims the next tile to render.
+     *
+     * @return the next tile, or null if there are no rows left.
+     */
+    public synchronized Tile nextTile() {
+        if (aborted || nextY >= endY) return null;
+
+        final int remainingRows = endY - nextY;
+
+        // Leave enough rows for the other tasks to stay busy until the end
+        int rows = Math.max(1, remainingRows / (2 * taskCount));
+
+        if (nanosPerRow < 0) {
+            // Measure the cost with a single row first
+            rows = 1;
+        }
+        else if (nanosPerRow > 0) {
+            rows = (int) Math.max(1, Math.min(rows, targetTileNanos / nanosPerRow));
+        }
+
+        final Tile tile = new Tile(nextY, nextY + rows);
+        nextY += rows;
+        return tile;
+    }
+
+    /**
+     * Reports the time spent rendering a tile, used to adapt the size of the following tiles.
+     */
+    public synchronized void reportTile(int rows, long nanos) {
+        if (rows <= 0) return;
+
+        final double rowNanos = (double) nanos / rows;
+        if (nanosPerRow < 0) nanosPerRow = rowNanos;
+        else nanosPerRow += COST_SMOOTHING * (rowNanos - nanosPerRow);
+    }
+
+    /**
+     * Stops handing out tiles, for example because rendering a tile failed.
+     */
+    public synchronized void abort() {
+        aborted = true;
+    }
+
+    /**
+     * A band of rows to render.
+     */
+    public static final class Tile {
+        private final int startY;
+        private final int endY;
+
+        private Tile(int startY, int endY) {
+            this.startY = startY;
+            this.endY = endY;
+        }
+
+        /**
+         * @return the first row of the tile.
+         */
+        public int getStartY() {
+            return startY;
+        }
+
+        /**
+         * @return the row to stop rendering before.
+         */
+        public int getEndY() {
+            return endY;
+        }
+
+        /**
+         * @return number of rows in the tile.
+         */
+        public int getRowCount() {
+            return endY - startY;
+        }
+    }
+}
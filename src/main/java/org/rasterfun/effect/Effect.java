@@ -7,6 +7,7 @@ import org.rasterfun.effect.variable.OutputVariable;
 import org.rasterfun.library.GeneratorElement;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -67,6 +68,12 @@ public interface Effect extends GeneratorElement {
      */
     List<OutputVariable> getOutputVariables();
 
+    /**
+     * @return the channels that this effect assigns values to, mapped to the output variables assigned to them.
+     *         Does not include assignments done by effects contained in this effect.
+     */
+    Map<String, OutputVariable> getChannelAssignments();
+
     /**
      * @param listener listener to be notified about changes to the effect.
      */
@@ -25,6 +25,7 @@ public abstract class EffectBase extends AbstractEffect {
     };
 
     private final Set<String> requiredChannels = new LinkedHashSet<String>(4);
+    private final Map<String, OutputVariable> channelAssignments = new LinkedHashMap<String, OutputVariable>(4);
 
     @Override
     public final GeneratorElement copy() {
@@ -73,6 +74,10 @@ public abstract class EffectBase extends AbstractEffect {
         return Collections.unmodifiableList(outputVariables);
     }
 
+    public final Map<String, OutputVariable> getChannelAssignments() {
+        return Collections.unmodifiableMap(channelAssignments);
+    }
+
     @Override
     public Set<String> getRequiredChannels(Set<String> channelsOut) {
         if (channelsOut == null) channelsOut = new LinkedHashSet<String>();
@@ -129,9 +134,22 @@ public abstract class EffectBase extends AbstractEffect {
     }
 
 
+    /**
+     * Generates code for the used output variables, and assigns them to any channels they are bound to.
+     * Nothing is generated if none of the outputs are used.
+     * The expression of an output should only depend on the inputs of the effect, not on the other outputs.
+     */
     @Override
     public void generateCode(RendererBuilder builder, String effectNamespace, EffectContainer container) {
 
+        // Skip effects that do not contribute to the result
+        if (!outputVariables.isEmpty() && !hasUsedOutputs(builder)) return;
+
+        // Pass in the constant inputs that are not written into the source
+        for (InputVariable input : inputVariables) {
+            input.buildSource(builder);
+        }
+
         beforeBuildSource(builder, effectNamespace + "before", container);
 
         // Generate code for output variables
@@ -142,14 +160,29 @@ public abstract class EffectBase extends AbstractEffect {
             variable.setCodeIdentifier(effectNamespace + "var" + varId + "_" + StringUtils.identifierFromName(variable.getName(), 'Q'));
 
             // Build variable source
-            String localNamespace = effectNamespace + varId + "_internal_";
-            variable.buildSource(builder, container, this, localNamespace);
+            if (builder.isUsed(variable)) {
+                String localNamespace = effectNamespace + varId + "_internal_";
+                variable.buildSource(builder, container, this, localNamespace);
+            }
 
             varId++;
         }
 
         afterBuildSource(builder, effectNamespace + "after", container);
 
+        // Write to channels, unless the channel is not needed by the renderer
+        for (Map.Entry<String, OutputVariable> entry : channelAssignments.entrySet()) {
+            final String channel = entry.getKey();
+            final OutputVariable source = entry.getValue();
+            if (builder.isUsed(source) && builder.hasChannel(channel)) builder.addChannelAssignment(channel, source.getCodeIdentifier());
+        }
+    }
+
+    private boolean hasUsedOutputs(RendererBuilder builder) {
+        for (OutputVariable outputVariable : outputVariables) {
+            if (builder.isUsed(outputVariable)) return true;
+        }
+        return false;
     }
 
     protected void beforeBuildSource(RendererBuilder builder, String namespace, EffectContainer container) {}
@@ -159,6 +192,18 @@ public abstract class EffectBase extends AbstractEffect {
         requiredChannels.add(channelName);
     }
 
+    /**
+     * Assigns the value of an output of this effect to the specified channel.
+     * The channel is also marked as required.
+     */
+    protected final void assignChannel(String channelName, OutputVariable source) {
+        ParameterChecker.checkIsIdentifier(channelName, "channelName");
+        ParameterChecker.checkContained(source, outputVariables, "outputVariables");
+
+        requiredChannels.add(channelName);
+        channelAssignments.put(channelName, source);
+    }
+
     protected final void requireValueChannel() {
         requiredChannels.add(VALUE);
     }
@@ -4,10 +4,12 @@ import org.rasterfun.core.compiler.RendererBuilder;
 import org.rasterfun.effect.container.EffectContainer;
 import org.rasterfun.effect.variable.InputVariable;
 import org.rasterfun.effect.variable.OutputVariable;
-import org.rasterfun.effect.variable.VariableExpression;
+import org.rasterfun.core.compiler.expression.Expr;
+import org.rasterfun.effect.variable.ExprVariableExpression;
 import org.rasterfun.utils.PerlinNoise;
 
 import static org.rasterfun.core.compiler.CommonVariables.*;
+import static org.rasterfun.core.compiler.expression.Expressions.*;
 
 /**
  *
@@ -45,9 +47,9 @@ public class NoiseEffect extends EffectBase {
         this.offset = offset;
         this.amplitude = amplitude;
 
-        requireValueChannel();
-
         initVariables();
+
+        assignChannel(VALUE, output);
     }
 
     public InputVariable getSeedVar() {
@@ -89,29 +91,25 @@ public class NoiseEffect extends EffectBase {
         amplitudeVar = addInput("amplitude", amplitude, Float.class, "Contrast of the noise");
         offsetVar    = addInput("offset",    offset,    Float.class, "Brightness / darkness of the noise");
 
-        output = addOutput("noise", "the created noise", Float.class, new VariableExpression<NoiseEffect>() {
+        output = addOutput("noise", "the created noise", Float.class, new ExprVariableExpression<NoiseEffect>() {
 
                     @Override
-                    public String getExpressionString(EffectContainer container,
-                                                      NoiseEffect effect,
-                                                      String internalVarPrefix) {
-                        return offsetVar.getExpr() + " + " +
-                               amplitudeVar.getExpr() + " * " +
-                               "(float)PerlinNoise.tilingNoise(" +
-                               scaleVar.getExpr() + " * " + xVar.getExpr() + ", " +
-                               scaleVar.getExpr() + " * " + yVar.getExpr() + ", " +
-                               "0, 0, 1, 1, " +
-                               fillSeedVar.getExpr() + ", " +
-                               edgeSeedVar.getExpr() + ")";
+                    public Expr getExpression(EffectContainer container,
+                                              NoiseEffect effect,
+                                              String internalVarPrefix) {
+                        final Expr noise = call(Double.class, "PerlinNoise.tilingNoise",
+                                                mul(scaleVar.getExpression(), xVar.getExpression()),
+                                                mul(scaleVar.getExpression(), yVar.getExpression()),
+                                                constant(0.0), constant(0.0), constant(1.0), constant(1.0),
+                                                fillSeedVar.getExpression(),
+                                                edgeSeedVar.getExpression());
+
+                        return add(offsetVar.getExpression(),
+                                   mul(amplitudeVar.getExpression(), cast(Float.class, noise)));
                     }
                 });
 
 
 
     }
-
-    @Override
-    protected void afterBuildSource(RendererBuilder builder, String namespace, EffectContainer container) {
-        builder.addChannelAssignment(VALUE, output.getCodeIdentifier());
-    }
 }
@@ -9,7 +9,9 @@ import org.rasterfun.effect.variable.OutputVariable;
 import org.rasterfun.library.GeneratorElement;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -69,6 +71,12 @@ public final class CompositeEffect extends AbstractEffect {
         return outputVars;
     }
 
+    @Override
+    public Map<String, OutputVariable> getChannelAssignments() {
+        // The channel assignments are done by the contained effect container
+        return Collections.emptyMap();
+    }
+
     @Override
     public Set<String> getRequiredChannels(Set<String> channelsOut) {
         return effectContainer.getRequiredChannels(channelsOut);
@@ -33,6 +33,13 @@ public interface EffectContainer {
      */
     void buildSource(RendererBuilder builder, String prefix, EffectContainer container);
 
+    /**
+     * Generates source to the passed in build context, notifying the hook about the source of each effect.
+     * The hook is not passed on to containers contained in this container.
+     * @param hook hook that can replace the source of the effects, or null to generate all the source normally.
+     */
+    void buildSource(RendererBuilder builder, String prefix, EffectContainer container, EffectSourceHook hook);
+
     /**
      * @return the output variables that can be assigned to an input variable of the specified effect,
      * contained in this container.
@@ -119,6 +126,11 @@ public interface EffectContainer {
      */
     void setChannelVar(String channel, OutputVariable channelVar);
 
+    /**
+     * @return the variable used to set a value for the channel, or null if the channel is not set in this container.
+     */
+    OutputVariable getChannelVar(String channel);
+
     /**
      * @return the names of the supported channels.
      */
@@ -53,20 +53,32 @@ public class EffectContainerImpl implements EffectContainer {
 
     @Override
     public void buildSource(RendererBuilder builder, String namespace, EffectContainer container) {
+        buildSource(builder, namespace, container, null);
+    }
+
+    @Override
+    public void buildSource(RendererBuilder builder, String namespace, EffectContainer container, EffectSourceHook hook) {
 
         // Build inputs
         int inputNum = 1;
         for (InputOutputVariable input : inputs) {
             final OutputVariable target = input.getOutputVariable();
             target.setCodeIdentifier(namespace + "in" + (inputNum++) + "_" + StringUtils.identifierFromName(input.getName(), 'Q'));
-            input.generateCode(builder);
+            if (builder.isUsed(target)) input.generateCode(builder);
         }
 
         // Build effects
+        if (hook != null) hook.beforeEffects(builder);
         int effectNum = 1;
         for (Effect effect : effects) {
+            final int effectIndex = effectNum - 1;
             String effectNamespace = namespace + "effect" + (effectNum++) + "_";
-            effect.generateCode(builder, effectNamespace, this);
+            builder.beginProfiledSection(effectNamespace);
+            if (hook == null || !hook.beforeEffect(builder, effect, effectIndex)) {
+                effect.generateCode(builder, effectNamespace, this);
+            }
+            if (hook != null) hook.afterEffect(builder, effect, effectIndex);
+            builder.endProfiledSection();
         }
 
         // Write to channels
@@ -74,7 +86,9 @@ public class EffectContainerImpl implements EffectContainer {
             final String channel = entry.getKey();
             final OutputVariable source = entry.getValue();
 
-            if (source != null) builder.addChannelAssignment(channel, source.getCodeIdentifier());
+            if (source != null && builder.isUsed(source) && builder.hasChannel(channel)) {
+                builder.addChannelAssignment(channel, source.getCodeIdentifier());
+            }
         }
 
         // Write to outputs
@@ -82,7 +96,7 @@ public class EffectContainerImpl implements EffectContainer {
         for (InputOutputVariable output : outputs) {
             final OutputVariable target = output.getOutputVariable();
             target.setCodeIdentifier(namespace + "out" + (outputNum++)+ "_" + StringUtils.identifierFromName(output.getName(), 'Q'));
-            output.generateCode(builder);
+            if (builder.isUsed(target)) output.generateCode(builder);
         }
     }
 
@@ -345,6 +359,13 @@ public class EffectContainerImpl implements EffectContainer {
         return false;
     }
 
+    @Override
+    public OutputVariable getChannelVar(String channel) {
+        ParameterChecker.checkContained(channel, channels.keySet(), "channels");
+
+        return channels.get(channel);
+    }
+
     @Override
     public Collection<String> getChannels() {
         return Collections.unmodifiableCollection(channels.keySet());
@@ -0,0 +1,30 @@
+package org.rasterfun.effect.container;
+
+import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.effect.Effect;
+
+/**
+ * Notified while an EffectContainer generates the source for its effects.
+ * Can add source of its own, or replace the source of an effect.
+ */
+public interface EffectSourceHook {
+
+    /**
+     * Called after the source for the inputs of the container has been generated, before the effects.
+     */
+    void beforeEffects(RendererBuilder builder);
+
+    /**
+     * Called before the source for an effect is generated.
+     * @param effectIndex index of the effect in the container.
+     * @return true if the hook generated the source for the effect, and the effect should not generate it.
+     */
+    boolean beforeEffect(RendererBuilder builder, Effect effect, int effectIndex);
+
+    /**
+     * Called after the source for an effect has been generated, or replaced by beforeEffect.
+     * @param effectIndex index of the effect in the container.
+     */
+    void afterEffect(RendererBuilder builder, Effect effect, int effectIndex);
+
+}
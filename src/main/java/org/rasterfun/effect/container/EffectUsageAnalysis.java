@@ -0,0 +1,181 @@
+package org.rasterfun.effect.container;
+
+import org.rasterfun.effect.Effect;
+import org.rasterfun.effect.variable.InputOutputVariable;
+import org.rasterfun.effect.variable.InputVariable;
+import org.rasterfun.effect.variable.OutputVariable;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.*;
+
+import static org.rasterfun.core.compiler.RendererBuilder.CHANNEL_PREFIX;
+
+/**
+ * Finds the output variables, effects and channels that contribute to a set of result channels,
+ * by walking back from the channel assignments through the variable bindings of the effects.
+ *
+ * The effects are not changed, the result is passed to the renderer builder with RendererBuilder.setUnusedOutputs,
+ * so that source is only generated for the outputs and effects that are needed.  The result only applies to the effects
+ * as they were when analysed, so analyse them again for each builder.
+ *
+ * Outputs of an effect are assumed to depend on all inputs of the effect.
+ * A channel read through a channel variable depends on everything written to that channel.
+ */
+public final class EffectUsageAnalysis {
+
+    private final Map<OutputVariable, List<OutputVariable>> dependencies = new LinkedHashMap<OutputVariable, List<OutputVariable>>();
+    private final Map<String, List<OutputVariable>> channelWriters = new HashMap<String, List<OutputVariable>>();
+    private final Map<Effect, List<Effect>> compositeContents = new HashMap<Effect, List<Effect>>();
+
+    private final Set<OutputVariable> usedOutputs = new HashSet<OutputVariable>();
+    private final Set<String> usedChannels = new LinkedHashSet<String>();
+
+    private final Deque<OutputVariable> outputsToVisit = new ArrayDeque<OutputVariable>();
+
+    /**
+     * Analyses the effects in the root container.
+     *
+     * @param rootContainer the container with the effects to analyse.
+     * @param resultChannels the channels whose values are needed, normally the picture channels.
+     */
+    public EffectUsageAnalysis(EffectContainer rootContainer, Collection<String> resultChannels) {
+        ParameterChecker.checkNotNull(rootContainer, "rootContainer");
+        ParameterChecker.checkNotNull(resultChannels, "resultChannels");
+
+        collectDependencies(rootContainer);
+
+        // Walk back from the result channels
+        for (String channel : resultChannels) {
+            markChannelUsed(channel);
+        }
+        while (!outputsToVisit.isEmpty()) {
+            final OutputVariable output = outputsToVisit.removeFirst();
+
+            final List<OutputVariable> sources = dependencies.get(output);
+            if (sources != null) {
+                for (OutputVariable source : sources) {
+                    markOutputUsed(source);
+                }
+            }
+            else if (!output.isTrackUsers() && output.getCodeIdentifier().startsWith(CHANNEL_PREFIX)) {
+                // Builtin variable reading a channel
+                markChannelUsed(output.getCodeIdentifier().substring(CHANNEL_PREFIX.length()));
+            }
+        }
+    }
+
+    /**
+     * @return the channels that are read or written by the used effects, including the result channels.
+     */
+    public Set<String> getUsedChannels() {
+        return Collections.unmodifiableSet(usedChannels);
+    }
+
+    /**
+     * @return the analysed output variables that do not contribute to the result channels.
+     */
+    public Set<OutputVariable> getUnusedOutputs() {
+        final Set<OutputVariable> unusedOutputs = new HashSet<OutputVariable>(dependencies.keySet());
+        unusedOutputs.removeAll(usedOutputs);
+        return unusedOutputs;
+    }
+
+    /**
+     * @return true if the output variable contributes to the result channels.
+     */
+    public boolean isUsed(OutputVariable outputVariable) {
+        return usedOutputs.contains(outputVariable);
+    }
+
+    /**
+     * @return true if some output of the effect, or of an effect contained in it, contributes to the result channels.
+     */
+    public boolean isUsed(Effect effect) {
+        for (OutputVariable outputVariable : effect.getOutputVariables()) {
+            if (usedOutputs.contains(outputVariable)) return true;
+        }
+
+        final List<Effect> containedEffects = compositeContents.get(effect);
+        if (containedEffects != null) {
+            for (Effect containedEffect : containedEffects) {
+                if (isUsed(containedEffect)) return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void collectDependencies(EffectContainer container) {
+        // Inputs and outputs of the container pass on the value bound to them
+        for (InputOutputVariable input : container.getInputs()) {
+            addDependency(input.getOutputVariable(), input.getInputVariable());
+        }
+        for (InputOutputVariable output : container.getOutputs()) {
+            addDependency(output.getOutputVariable(), output.getInputVariable());
+        }
+
+        for (Effect effect : container.getEffects()) {
+            if (effect instanceof CompositeEffect) {
+                final EffectContainer effectContainer = ((CompositeEffect) effect).getEffectContainer();
+                compositeContents.put(effect, effectContainer.getEffects());
+                collectDependencies(effectContainer);
+            }
+            else {
+                for (OutputVariable output : effect.getOutputVariables()) {
+                    getSources(output);
+                    for (InputVariable input : effect.getInputVariables()) {
+                        addDependency(output, input);
+                    }
+                }
+            }
+
+            for (Map.Entry<String, OutputVariable> entry : effect.getChannelAssignments().entrySet()) {
+                addChannelWriter(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (String channel : container.getChannels()) {
+            addChannelWriter(channel, container.getChannelVar(channel));
+        }
+    }
+
+    private void addDependency(OutputVariable output, InputVariable input) {
+        final List<OutputVariable> sources = getSources(output);
+        if (input.getSourceVariable() != null) sources.add(input.getSourceVariable());
+    }
+
+    private List<OutputVariable> getSources(OutputVariable output) {
+        List<OutputVariable> sources = dependencies.get(output);
+        if (sources == null) {
+            sources = new ArrayList<OutputVariable>();
+            dependencies.put(output, sources);
+        }
+        return sources;
+    }
+
+    private void addChannelWriter(String channel, OutputVariable source) {
+        if (source == null) return;
+
+        List<OutputVariable> writers = channelWriters.get(channel);
+        if (writers == null) {
+            writers = new ArrayList<OutputVariable>();
+            channelWriters.put(channel, writers);
+        }
+        writers.add(source);
+    }
+
+    private void markChannelUsed(String channel) {
+        if (usedChannels.add(channel)) {
+            final List<OutputVariable> writers = channelWriters.get(channel);
+            if (writers != null) {
+                for (OutputVariable writer : writers) {
+                    markOutputUsed(writer);
+                }
+            }
+        }
+    }
+
+    private void markOutputUsed(OutputVariable output) {
+        if (usedOutputs.add(output)) outputsToVisit.addLast(output);
+    }
+}
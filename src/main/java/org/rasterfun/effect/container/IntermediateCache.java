@@ -0,0 +1,416 @@
+package org.rasterfun.effect.container;
+
+import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.SourceLocation;
+import org.rasterfun.effect.Effect;
+import org.rasterfun.effect.variable.OutputVariable;
+import org.rasterfun.utils.ClassUtils;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.rasterfun.core.compiler.RendererBuilder.PARAMETER_PREFIX;
+import static org.rasterfun.core.compiler.RendererBuilder.PICTURE_INDEX;
+import static org.rasterfun.core.compiler.SourceLocation.AT_PIXEL;
+
+/**
+ * Keeps the values of the output variables of the first effects in an effect container from the last completed
+ * calculation, so that when only later effects change, the earlier effects do not need to be calculated again.
+ *
+ * Used in two passes: first the source is generated normally with a Recording, which records the source generated by
+ * each effect.  Then planReuse compares the recorded source with the source of the stored values, and returns a Reuse
+ * that is used to generate the source again, reading the values of the unchanged effects from the stored values
+ * instead of calculating them, and storing the values of the effects that can be cached for the next calculation.
+ * When the calculation is completed, Reuse.commit makes the newly calculated values available for later calculations.
+ *
+ * Only effects with float outputs that do not pass in object parameters other than constants are cached, up to the
+ * first effect that can not be cached.  The last effect is never cached, as it would not be used if it changed.
+ * The memory used by the stored values is limited to the specified number of bytes.
+ */
+public final class IntermediateCache {
+
+    /**
+     * Default limit for the memory used by the stored values, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final String CACHED_VALUES = "cachedValues";
+    private static final String NEW_CACHED_VALUES = "newCachedValues";
+    private static final String CACHE_PIXEL = "cachePixel";
+
+    private final long maxBytes;
+
+    private IntermediateValues values = null;
+    private int reusedEffectCount = 0;
+
+    public IntermediateCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes maximum memory to use for the stored values, including values that are being calculated.
+     */
+    public IntermediateCache(long maxBytes) {
+        ParameterChecker.checkPositiveNonZeroNormalNumber(maxBytes, "maxBytes");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return maximum memory used for the stored values, in bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the values stored by the last completed calculation that stored any, or null if there are none.
+     */
+    public synchronized IntermediateValues getValues() {
+        return values;
+    }
+
+    /**
+     * @return number of effects that were read from the stored values instead of calculated, in the last planned reuse.
+     */
+    public synchronized int getReusedEffectCount() {
+        return reusedEffectCount;
+    }
+
+    /**
+     * Drops the stored values, e.g. when the size or channels of the pictures change.
+     */
+    public synchronized void clear() {
+        values = null;
+        reusedEffectCount = 0;
+    }
+
+    /**
+     * @return a hook that records the source generated for each effect, to be passed to planReuse afterwards.
+     */
+    public Recording startRecording() {
+        return new Recording();
+    }
+
+    /**
+     * Decides which effects are read from the stored values, and which are stored for later calculations.
+     *
+     * @param recording recording of a normal generation of the source for the effects.
+     * @param width width of the pictures.
+     * @param height height of the pictures.
+     * @param count number of pictures.
+     * @param generatorSeed seed that the pictures are generated with.
+     * @return hook to generate the source with again, or null if no values can be read or stored.
+     */
+    public synchronized Reuse planReuse(Recording recording, int width, int height, int count, int generatorSeed) {
+        ParameterChecker.checkNotNull(recording, "recording");
+
+        reusedEffectCount = 0;
+
+        // Values calculated for other pictures or with other source before the effects can not be used
+        if (values != null && !values.isCalculatedFor(width, height, count, generatorSeed, recording.preamble)) {
+            values = null;
+        }
+
+        // Find the unchanged effects in the stored values
+        final List<RecordedEffect> effects = recording.effects;
+        int unchangedCount = 0;
+        if (values != null) {
+            while (unchangedCount < effects.size() && isStored(values, recording, unchangedCount)) {
+                unchangedCount++;
+            }
+
+            // Nothing to read, free the memory for new values
+            if (unchangedCount == 0) values = null;
+        }
+
+        // Store the values of as many effects as can be cached and fit in the memory limit
+        int storedCount = 0;
+        while (storedCount < effects.size() - 1 && effects.get(storedCount).cacheable) {
+            storedCount++;
+        }
+        final long readBytes = values == null ? 0 : values.getByteCount();
+        while (storedCount > unchangedCount &&
+               IntermediateValues.getByteCount(width, height, count, recording.getSlotOffset(storedCount)) + readBytes > maxBytes) {
+            storedCount--;
+        }
+
+        if (storedCount <= unchangedCount) {
+            // The stored values already contain all the effects that could be stored
+            if (storedCount == 0) return null;
+            reusedEffectCount = storedCount;
+            return new Reuse(recording, values, storedCount, null);
+        }
+        else {
+            IntermediateValues newValues;
+            try {
+                newValues = new IntermediateValues(width, height, count, generatorSeed,
+                                                   recording.preamble,
+                                                   getSignatures(effects, storedCount),
+                                                   getIdentifiers(effects, storedCount));
+            } catch (OutOfMemoryError e) {
+                // Just calculate the effects instead
+                newValues = null;
+            }
+
+            if (newValues == null && unchangedCount == 0) return null;
+            reusedEffectCount = unchangedCount;
+            return new Reuse(recording, unchangedCount > 0 ? values : null, unchangedCount, newValues);
+        }
+    }
+
+    /**
+     * @return true if the values contain the recorded effect, stored in the same place as the recording would store it.
+     */
+    private static boolean isStored(IntermediateValues values, Recording recording, int effectIndex) {
+        final List<String> storedSignatures = values.getEffectSignatures();
+        if (effectIndex >= storedSignatures.size() ||
+            !storedSignatures.get(effectIndex).equals(recording.effects.get(effectIndex).signature)) return false;
+
+        final int offset = recording.getSlotOffset(effectIndex);
+        final List<String> identifiers = recording.effects.get(effectIndex).identifiers;
+        return offset + identifiers.size() <= values.getValuesPerPixel() &&
+               values.getIdentifiers().subList(offset, offset + identifiers.size()).equals(identifiers);
+    }
+
+    private synchronized void commit(IntermediateValues newValues) {
+        values = newValues;
+    }
+
+    private static List<String> getSignatures(List<RecordedEffect> effects, int effectCount) {
+        final List<String> signatures = new ArrayList<String>(effectCount);
+        for (int i = 0; i < effectCount; i++) {
+            signatures.add(effects.get(i).signature);
+        }
+        return signatures;
+    }
+
+    private static List<String> getIdentifiers(List<RecordedEffect> effects, int effectCount) {
+        final List<String> identifiers = new ArrayList<String>();
+        for (int i = 0; i < effectCount; i++) {
+            identifiers.addAll(effects.get(i).identifiers);
+        }
+        return identifiers;
+    }
+
+    /**
+     * @return all the source lines added to the builder so far, with the locations they were added to.
+     */
+    private static String getSource(RendererBuilder builder, int[] startLines) {
+        final StringBuilder source = new StringBuilder();
+        for (SourceLocation location : SourceLocation.values()) {
+            final List<String> lines = builder.getSourceLines(location);
+            final int start = startLines == null ? 0 : startLines[location.ordinal()];
+            if (lines.size() > start) {
+                source.append(location).append(":\n");
+                for (String line : lines.subList(start, lines.size())) {
+                    source.append(line).append("\n");
+                }
+            }
+        }
+        return source.toString();
+    }
+
+    private static int[] getLineCounts(RendererBuilder builder) {
+        final int[] lineCounts = new int[SourceLocation.values().length];
+        for (SourceLocation location : SourceLocation.values()) {
+            lineCounts[location.ordinal()] = builder.getSourceLines(location).size();
+        }
+        return lineCounts;
+    }
+
+
+    /**
+     * The source generated for an effect, and whether its output values can be cached.
+     */
+    private static final class RecordedEffect {
+        private final String signature;
+        private final List<String> identifiers;
+        private final Map<String, String> channelAssignments;
+        private final boolean cacheable;
+
+        private RecordedEffect(String signature,
+                               List<String> identifiers,
+                               Map<String, String> channelAssignments,
+                               boolean cacheable) {
+            this.signature = signature;
+            this.identifiers = identifiers;
+            this.channelAssignments = channelAssignments;
+            this.cacheable = cacheable;
+        }
+    }
+
+    /**
+     * Records the source generated for each effect, and the output variables that can be cached.
+     */
+    public static final class Recording implements EffectSourceHook {
+        private final List<RecordedEffect> effects = new ArrayList<RecordedEffect>();
+        private String preamble = "";
+        private int[] startLines;
+        private int startParameterCount;
+
+        private Recording() {
+        }
+
+        @Override
+        public void beforeEffects(RendererBuilder builder) {
+            preamble = getSource(builder, null) + "parameters: " + builder.getParameterCount();
+        }
+
+        @Override
+        public boolean beforeEffect(RendererBuilder builder, Effect effect, int effectIndex) {
+            startLines = getLineCounts(builder);
+            startParameterCount = builder.getParameterCount();
+            return false;
+        }
+
+        @Override
+        public void afterEffect(RendererBuilder builder, Effect effect, int effectIndex) {
+            // Composite effects may contain any kind of effects
+            boolean cacheable = !(effect instanceof CompositeEffect);
+
+            // Constants passed in as parameters are part of the signature, other object parameters can not be compared
+            final StringBuilder signatureBuilder = new StringBuilder(getSource(builder, startLines));
+            for (int i = startParameterCount; i < builder.getParameterCount(); i++) {
+                final Object value = builder.getParameterValue(i);
+                if (ClassUtils.isWrappedPrimitiveType(value.getClass())) {
+                    signatureBuilder.append("parameter ").append(i).append(" = ").append(value).append("\n");
+                }
+                else {
+                    cacheable = false;
+                }
+            }
+            final String signature = signatureBuilder.toString();
+
+            // Only float values are stored
+            final List<String> identifiers = new ArrayList<String>();
+            for (OutputVariable output : effect.getOutputVariables()) {
+                if (builder.isUsed(output)) {
+                    if (output.getType() != Float.class) cacheable = false;
+                    identifiers.add(output.getCodeIdentifier());
+                }
+            }
+
+            // Effects without used outputs can only be skipped if they did nothing
+            if (identifiers.isEmpty() && signature.length() > 0) cacheable = false;
+
+            final Map<String, String> channelAssignments = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, OutputVariable> entry : effect.getChannelAssignments().entrySet()) {
+                final OutputVariable source = entry.getValue();
+                if (builder.isUsed(source) && builder.hasChannel(entry.getKey())) {
+                    channelAssignments.put(entry.getKey(), source.getCodeIdentifier());
+                }
+            }
+
+            effects.add(new RecordedEffect(signature, identifiers, channelAssignments, cacheable));
+        }
+
+        /**
+         * @return index of the first value of the specified effect among the values stored for a pixel.
+         */
+        private int getSlotOffset(int effectIndex) {
+            int offset = 0;
+            for (int i = 0; i < effectIndex; i++) {
+                offset += effects.get(i).identifiers.size();
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Generates source that reads the values of the first effects from stored values instead of calculating them,
+     * and stores the values of the effects that can be cached for later calculations.
+     */
+    public final class Reuse implements EffectSourceHook {
+        private final Recording recording;
+        private final IntermediateValues readValues;
+        private final int readCount;
+        private final IntermediateValues writeValues;
+        private String readVariable;
+        private String writeVariable;
+        private String pixelVariable;
+
+        private Reuse(Recording recording, IntermediateValues readValues, int readCount, IntermediateValues writeValues) {
+            this.recording = recording;
+            this.readValues = readValues;
+            this.readCount = readCount;
+            this.writeValues = writeValues;
+        }
+
+        /**
+         * @return number of effects that are read from the stored values instead of calculated.
+         */
+        public int getReadEffectCount() {
+            return readCount;
+        }
+
+        /**
+         * @return the values calculated by this calculation for later calculations, or null if no new values are stored.
+         */
+        public IntermediateValues getWriteValues() {
+            return writeValues;
+        }
+
+        /**
+         * Makes the values calculated by this calculation available to later calculations.
+         * Should only be called when the calculation has completed all the pictures.
+         */
+        public void commit() {
+            if (writeValues != null) IntermediateCache.this.commit(writeValues);
+        }
+
+        @Override
+        public void beforeEffects(RendererBuilder builder) {
+            final String pictureIndex = PARAMETER_PREFIX + PICTURE_INDEX;
+            pixelVariable = builder.getVariableName(CACHE_PIXEL);
+            builder.addVariable(AT_PIXEL, pixelVariable, "y * width + x", Integer.class, true);
+
+            if (readValues != null) {
+                final String parameter = builder.addParameter(CACHED_VALUES, readValues, IntermediateValues.class);
+                readVariable = builder.getVariableName(CACHED_VALUES);
+                builder.addVariable(AT_PIXEL, readVariable, parameter + ".getData(" + pictureIndex + ")", float[].class, true);
+            }
+
+            if (writeValues != null) {
+                final String parameter = builder.addParameter(NEW_CACHED_VALUES, writeValues, IntermediateValues.class);
+                writeVariable = builder.getVariableName(NEW_CACHED_VALUES);
+                builder.addVariable(AT_PIXEL, writeVariable, parameter + ".getData(" + pictureIndex + ")", float[].class, true);
+            }
+        }
+
+        @Override
+        public boolean beforeEffect(RendererBuilder builder, Effect effect, int effectIndex) {
+            if (effectIndex >= readCount) return false;
+
+            // Read the output values of the effect, and assign them to channels as the effect would have
+            final RecordedEffect recordedEffect = recording.effects.get(effectIndex);
+            int slot = recording.getSlotOffset(effectIndex);
+            for (String identifier : recordedEffect.identifiers) {
+                builder.addVariable(AT_PIXEL, identifier, getValueExpression(readVariable, readValues, slot++), Float.class, true);
+            }
+            for (Map.Entry<String, String> entry : recordedEffect.channelAssignments.entrySet()) {
+                builder.addChannelAssignment(entry.getKey(), entry.getValue());
+            }
+
+            return true;
+        }
+
+        @Override
+        public void afterEffect(RendererBuilder builder, Effect effect, int effectIndex) {
+            // Store the values once all the stored effects have been calculated
+            if (writeValues != null && effectIndex == writeValues.getEffectSignatures().size() - 1) {
+                int slot = 0;
+                for (String identifier : writeValues.getIdentifiers()) {
+                    builder.addSourceLine(AT_PIXEL, getValueExpression(writeVariable, writeValues, slot++) + " = " + identifier);
+                }
+            }
+        }
+
+        private String getValueExpression(String dataVariable, IntermediateValues values, int slot) {
+            return dataVariable + "[" + pixelVariable + " * " + values.getValuesPerPixel() + " + " + slot + "]";
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.rasterfun.effect.container;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The values of the output variables of the first effects of a container, stored for each pixel of each picture of
+ * a generator, so that the effects do not need to be calculated again when only later effects change.
+ *
+ * The values of a pixel are stored next to each other, in the order of the variable identifiers.
+ * Passed to the generated renderers, which read and write the values with getData.
+ * Created and used by IntermediateCache.
+ */
+public final class IntermediateValues {
+
+    private final int width;
+    private final int height;
+    private final int generatorSeed;
+    private final String preamble;
+    private final List<String> effectSignatures;
+    private final List<String> identifiers;
+    private final float[][] data;
+
+    /**
+     * @param preamble the source generated before the effects.
+     * @param effectSignatures the source generated by each of the stored effects, in order.
+     * @param identifiers the code identifiers of the stored output variables.
+     */
+    IntermediateValues(int width, int height, int count, int generatorSeed,
+                       String preamble, List<String> effectSignatures, List<String> identifiers) {
+        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
+        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
+        ParameterChecker.checkPositiveNonZeroInteger(count, "count");
+
+        this.width = width;
+        this.height = height;
+        this.generatorSeed = generatorSeed;
+        this.preamble = preamble;
+        this.effectSignatures = Collections.unmodifiableList(new ArrayList<String>(effectSignatures));
+        this.identifiers = Collections.unmodifiableList(new ArrayList<String>(identifiers));
+
+        data = new float[count][width * height * identifiers.size()];
+    }
+
+    /**
+     * @return the stored values of the specified picture, with getValuesPerPixel values for each pixel.
+     */
+    public float[] getData(int pictureIndex) {
+        return data[pictureIndex];
+    }
+
+    /**
+     * @return number of values stored for each pixel.
+     */
+    public int getValuesPerPixel() {
+        return identifiers.size();
+    }
+
+    /**
+     * @return the code identifiers of the stored output variables, in the order they are stored for each pixel.
+     */
+    public List<String> getIdentifiers() {
+        return identifiers;
+    }
+
+    /**
+     * @return the source generated by each of the effects whose values are stored, in the order of the effects.
+     */
+    public List<String> getEffectSignatures() {
+        return effectSignatures;
+    }
+
+    /**
+     * @return memory used by the stored values, in bytes.
+     */
+    public long getByteCount() {
+        return getByteCount(width, height, data.length, identifiers.size());
+    }
+
+    /**
+     * @return true if the values were calculated for pictures with the specified size, count and seed,
+     *         with the same source before the effects.
+     */
+    boolean isCalculatedFor(int width, int height, int count, int generatorSeed, String preamble) {
+        return this.width == width &&
+               this.height == height &&
+               data.length == count &&
+               this.generatorSeed == generatorSeed &&
+               this.preamble.equals(preamble);
+    }
+
+    /**
+     * @return memory needed to store the specified number of values per pixel, in bytes.
+     */
+    static long getByteCount(int width, int height, int count, int valuesPerPixel) {
+        return 4L * width * height * count * valuesPerPixel;
+    }
+}
@@ -0,0 +1,28 @@
+package org.rasterfun.effect.variable;
+
+import org.rasterfun.core.compiler.expression.Expr;
+import org.rasterfun.effect.Effect;
+import org.rasterfun.effect.container.EffectContainer;
+
+/**
+ * Provides a variable expression as an Expr instead of a source string,
+ * so that constant parts can be folded, and equal expressions shared with other effects.
+ */
+public abstract class ExprVariableExpression<E extends Effect> implements VariableExpression<E> {
+
+    public abstract Expr getExpression(EffectContainer container, E effect, String internalVarPrefix);
+
+    /**
+     * Like getExpression, for callers that only know the effect as an Effect.
+     * The effect should be the effect this expression belongs to.
+     */
+    @SuppressWarnings("unchecked")
+    public final Expr getExpressionForEffect(EffectContainer container, Effect effect, String internalVarPrefix) {
+        return getExpression(container, (E) effect, internalVarPrefix);
+    }
+
+    @Override
+    public final String getExpressionString(EffectContainer container, E effect, String internalVarPrefix) {
+        return getExpression(container, effect, internalVarPrefix).toSource();
+    }
+}
@@ -2,6 +2,7 @@ package org.rasterfun.effect.variable;
 
 import org.rasterfun.core.compiler.RendererBuilder;
 import org.rasterfun.core.compiler.SourceLocation;
+import org.rasterfun.core.compiler.expression.Expressions;
 import org.rasterfun.effect.Effect;
 import org.rasterfun.effect.container.EffectContainer;
 
@@ -50,8 +51,7 @@ public class InputOutputVariable<T> {
     public void generateCode(RendererBuilder builder) {
         builder.addVariable(SourceLocation.AT_PIXEL,
                             outputVariable.getCodeIdentifier(),
-                            inputVariable.getExpr(),
-                            outputVariable.getType(),
+                            Expressions.cast(outputVariable.getType(), inputVariable.getExpression()),
                             true);
     }
 
@@ -1,6 +1,8 @@
 package org.rasterfun.effect.variable;
 
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.expression.Expr;
+import org.rasterfun.core.compiler.expression.Expressions;
 import org.rasterfun.effect.variable.value.Value;
 import org.rasterfun.effect.variable.value.ValueListener;
 import org.rasterfun.utils.ClassUtils;
@@ -89,10 +91,15 @@ public class InputVariable extends VariableBase {
     }
 
     public void buildSource(RendererBuilder builder) {
-        // Pass in the constant value as a parameter to the builder, if we use the constant value ant it is not a primitive type.
-        if (sourceVariable == null && !ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) {
+        // Pass in the constant value as a parameter to the builder, if we use the constant value and it is not a primitive type,
+        // or if the builder keeps constants out of the source.
+        if (sourceVariable == null &&
+            (builder.isRuntimeConstants() || !ClassUtils.isWrappedPrimitiveType(constantValue.getClass()))) {
             constantFieldName = builder.addParameter(getName(), constantValue, constantValue.getClass());
         }
+        else {
+            constantFieldName = null;
+        }
     }
 
     public String getExpr() {
@@ -101,15 +108,30 @@ public class InputVariable extends VariableBase {
             return sourceVariable.getCodeIdentifier();
         }
         else {
-            if (ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) {
+            if (constantFieldName == null && ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) {
                 // If the constant is a primitive insert it directly in the source.
                 return ClassUtils.wrappedPrimitiveTypeAsConstantString(constantValue);
             }
             else {
-                // Otherwise we return a reference to the field holding the parameter, which we passed in in generateCode.
+                // Otherwise we return a reference to the field holding the parameter, which we passed in in buildSource.
                 return constantFieldName;
             }
         }
     }
 
+    /**
+     * @return the value of this input as an expression, for use in generated code.
+     */
+    public Expr getExpression() {
+        if (sourceVariable != null) {
+            return Expressions.variable(sourceVariable.getCodeIdentifier(), sourceVariable.getType());
+        }
+        else if (constantFieldName == null && ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) {
+            return Expressions.constant(constantValue);
+        }
+        else {
+            return Expressions.variable(constantFieldName, constantValue.getClass());
+        }
+    }
+
 }
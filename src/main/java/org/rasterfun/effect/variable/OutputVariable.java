@@ -1,6 +1,8 @@
 package org.rasterfun.effect.variable;
 
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.expression.Expr;
+import org.rasterfun.core.compiler.expression.Expressions;
 import org.rasterfun.effect.Effect;
 import org.rasterfun.effect.container.EffectContainer;
 
@@ -86,7 +88,13 @@ public class OutputVariable extends VariableBase {
     */
 
     public void buildSource(RendererBuilder builder, EffectContainer container, Effect effect, String namespace) {
-        builder.addVariable(AT_PIXEL, getCodeIdentifier(), expression.getExpressionString(container, effect, namespace), getType(), true);
+        if (expression instanceof ExprVariableExpression) {
+            final Expr expr = ((ExprVariableExpression<?>) expression).getExpressionForEffect(container, effect, namespace);
+            builder.addVariable(AT_PIXEL, getCodeIdentifier(), Expressions.cast(getType(), expr), true);
+        }
+        else {
+            builder.addVariable(AT_PIXEL, getCodeIdentifier(), expression.getExpressionString(container, effect, namespace), getType(), true);
+        }
     }
 
     public void removeAllUsers() {
@@ -48,6 +48,16 @@ public abstract class GeneratorBase implements GeneratorElement, Generator {
 
     @Override
     public final PictureCalculations generatePicturesWithoutStarting(List<Picture> picturesToReuse, List<Picture> previewsToReuse) {
+        return createCalculation(picturesToReuse, previewsToReuse);
+    }
+
+    /**
+     * Creates the calculation for the builders created by createBuilders.
+     * Can be overridden to configure the calculation, to listen to it, or to create the builders differently
+     * when they are used by a calculation.
+     */
+    protected PictureCalculations createCalculation(List<Picture> picturesToReuse,
+                                                    List<Picture> previewsToReuse) {
         // Compose the source
         final List<RendererBuilder> builders = createBuilders();
 
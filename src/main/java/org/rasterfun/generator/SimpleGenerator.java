@@ -1,11 +1,24 @@
 package org.rasterfun.generator;
 
+import org.rasterfun.core.PictureCalculations;
+import org.rasterfun.core.compiler.CompilationException;
+import org.rasterfun.core.compiler.RendererBackend;
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.RendererCache;
+import org.rasterfun.core.listeners.PictureCalculationsListenerAdapter;
 import org.rasterfun.effect.Effect;
 import org.rasterfun.effect.container.EffectContainer;
 import org.rasterfun.effect.container.EffectContainerImpl;
 import org.rasterfun.effect.container.EffectContainerListener;
+import org.rasterfun.effect.container.EffectSourceHook;
+import org.rasterfun.effect.container.EffectUsageAnalysis;
+import org.rasterfun.effect.container.IntermediateCache;
 import org.rasterfun.library.GeneratorElement;
+import org.rasterfun.picture.ChannelType;
+import org.rasterfun.picture.Picture;
+import org.rasterfun.picture.PictureFormat;
+import org.rasterfun.picture.PictureLayout;
+import org.rasterfun.picture.PictureStorage;
 import org.rasterfun.utils.ParameterChecker;
 import scala.actors.threadpool.Arrays;
 
@@ -22,8 +35,16 @@ public final class SimpleGenerator extends GeneratorBase {
     private int height = 128;
     private int count = 1;
     private int generatorSeed = 42;
+    private boolean profiling = false;
+    private boolean incremental = false;
+    private boolean interactive = false;
+    private PictureLayout pictureLayout = PictureLayout.INTERLEAVED;
+    private PictureStorage pictureStorage = PictureStorage.HEAP;
+    private int pictureTileSize = 0;
+    private final Map<String, ChannelType> channelTypes = new HashMap<String, ChannelType>();
 
     private final EffectContainer effectContainer;
+    private final IntermediateCache intermediateCache = new IntermediateCache();
 
     private final EffectContainerListener effectContainerListener = new EffectContainerListener() {
         @Override
@@ -46,6 +67,13 @@ public final class SimpleGenerator extends GeneratorBase {
              source.count,
              new ArrayList<String>(source.getChannels()),
              source.effectContainer.copy());
+        profiling = source.profiling;
+        incremental = source.incremental;
+        interactive = source.interactive;
+        pictureLayout = source.pictureLayout;
+        pictureStorage = source.pictureStorage;
+        pictureTileSize = source.pictureTileSize;
+        channelTypes.putAll(source.channelTypes);
     }
 
     public SimpleGenerator() {
@@ -75,6 +103,117 @@ public final class SimpleGenerator extends GeneratorBase {
     }
 
 
+    /**
+     * @param profiling if true, the renderers measure the time spent in each effect,
+     *                  and it can be read from the RenderProfile of the PictureCalculations.  False by default.
+     */
+    public void setProfiling(boolean profiling) {
+        if (this.profiling != profiling) {
+            this.profiling = profiling;
+            notifyGeneratorChanged();
+        }
+    }
+
+    public boolean isProfiling() {
+        return profiling;
+    }
+
+    /**
+     * @param incremental if true, the values calculated by the first effects are kept after a calculation has
+     *                    completed, and used by the next calculation if those effects have not changed,
+     *                    so that only the effects after a changed effect need to be calculated.
+     *                    No previews are rendered in incremental mode.  False by default.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        if (!incremental) intermediateCache.clear();
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param interactive if true, the constant values of the effect inputs are passed to the renderers as parameters
+     *                    instead of being written into their source, so that when only constant values have changed,
+     *                    the already compiled renderer class is used and the pictures are just rendered again.
+     *                    After a calculation has completed, a renderer with the constants in the source is compiled in
+     *                    the background, so that a later calculation that is not interactive does not have to wait
+     *                    for the compilation.  False by default.
+     */
+    public void setInteractive(boolean interactive) {
+        if (this.interactive != interactive) {
+            this.interactive = interactive;
+            notifyGeneratorChanged();
+        }
+    }
+
+    public boolean isInteractive() {
+        return interactive;
+    }
+
+    /**
+     * @param pictureLayout the order to store the values of the generated pictures in.  PictureLayout.PLANAR stores
+     *                      each channel in one piece, which is faster for exporting or previewing single channels.
+     *                      PictureLayout.INTERLEAVED by default.
+     */
+    public void setPictureLayout(PictureLayout pictureLayout) {
+        ParameterChecker.checkNotNull(pictureLayout, "pictureLayout");
+
+        if (this.pictureLayout != pictureLayout) {
+            this.pictureLayout = pictureLayout;
+            notifyGeneratorChanged();
+        }
+    }
+
+    public PictureLayout getPictureLayout() {
+        return pictureLayout;
+    }
+
+    /**
+     * @param pictureStorage where to store the values of the generated pictures.  PictureStorage.DIRECT and
+     *                       PictureStorage.MAPPED keep large pictures outside the Java heap.
+     *                       PictureStorage.HEAP by default.
+     */
+    public void setPictureStorage(PictureStorage pictureStorage) {
+        ParameterChecker.checkNotNull(pictureStorage, "pictureStorage");
+
+        if (this.pictureStorage != pictureStorage) {
+            this.pictureStorage = pictureStorage;
+            notifyGeneratorChanged();
+        }
+    }
+
+    public PictureStorage getPictureStorage() {
+        return pictureStorage;
+    }
+
+    /**
+     * @param pictureTileSize width and height of the tiles to store the generated pictures in, or 0 to not use tiles.
+     *                        Tiled pictures can have more values than fit in an array, and with PictureStorage.MAPPED
+     *                        each tile is written to disk when it has been rendered, so the pictures can be larger than
+     *                        the memory.  0 by default.
+     */
+    public void setPictureTileSize(int pictureTileSize) {
+        ParameterChecker.checkNonNegativeInteger(pictureTileSize, "pictureTileSize");
+
+        if (this.pictureTileSize != pictureTileSize) {
+            this.pictureTileSize = pictureTileSize;
+            notifyGeneratorChanged();
+        }
+    }
+
+    public int getPictureTileSize() {
+        return pictureTileSize;
+    }
+
+    /**
+     * @return the values of the effects kept for the next calculation in incremental mode.
+     */
+    public IntermediateCache getIntermediateCache() {
+        return intermediateCache;
+    }
+
     public EffectContainer getEffectContainer() {
         return effectContainer;
     }
@@ -116,6 +255,7 @@ public final class SimpleGenerator extends GeneratorBase {
         if (this.width != width || this.height != height) {
             this.width = width;
             this.height = height;
+            intermediateCache.clear();
             notifyGeneratorChanged();
         }
     }
@@ -125,6 +265,7 @@ public final class SimpleGenerator extends GeneratorBase {
 
         if (this.width != width) {
             this.width = width;
+            intermediateCache.clear();
             notifyGeneratorChanged();
         }
     }
@@ -134,6 +275,7 @@ public final class SimpleGenerator extends GeneratorBase {
 
         if (this.height != height) {
             this.height = height;
+            intermediateCache.clear();
             notifyGeneratorChanged();
         }
     }
@@ -143,6 +285,7 @@ public final class SimpleGenerator extends GeneratorBase {
 
         if (this.count != count) {
             this.count = count;
+            intermediateCache.clear();
             notifyGeneratorChanged();
         }
     }
@@ -163,55 +306,164 @@ public final class SimpleGenerator extends GeneratorBase {
     }
 
     public void setChannels(List<String> channels) {
+        intermediateCache.clear();
         effectContainer.setChannels(channels);
     }
 
     public void addChannel(String channelName) {
+        intermediateCache.clear();
         effectContainer.addChannel(channelName);
     }
 
     public void removeChannel(String channelName) {
+        intermediateCache.clear();
         effectContainer.removeChannel(channelName);
+        channelTypes.remove(channelName);
+    }
+
+    /**
+     * @param channelType the type to store the values of the channel as in the generated pictures.
+     *                    The values are calculated as floats, and converted when they are stored.
+     *                    ChannelType.FLOAT by default.
+     */
+    public void setChannelType(String channelName, ChannelType channelType) {
+        ParameterChecker.checkNotNull(channelName, "channelName");
+        ParameterChecker.checkNotNull(channelType, "channelType");
+
+        if (getChannelType(channelName) != channelType) {
+            if (channelType == ChannelType.FLOAT) channelTypes.remove(channelName);
+            else channelTypes.put(channelName, channelType);
+            notifyGeneratorChanged();
+        }
+    }
+
+    public ChannelType getChannelType(String channelName) {
+        final ChannelType channelType = channelTypes.get(channelName);
+        return channelType != null ? channelType : ChannelType.FLOAT;
     }
 
     public List<Effect> getEffects() {
         return effectContainer.getEffects();
     }
 
+    /**
+     * @return builders that calculate all effects.  Only calculations created by the generator read and store
+     *         the values of unchanged effects in incremental mode, as the stored values are only kept when the
+     *         calculation completes.
+     */
     @Override
     public List<RendererBuilder> createBuilders() {
+        return createPictureBuilders(createTemplateBuilder(generatorSeed, null, interactive));
+    }
 
+    /**
+     * Builds the source once, the pictures only differ in the parameters passed to the renderer,
+     * so they all share the same compiled renderer class.
+     */
+    private List<RendererBuilder> createPictureBuilders(RendererBuilder template) {
         final ArrayList<RendererBuilder> builders = new ArrayList<RendererBuilder>();
 
         Random random = new Random(generatorSeed);
         for (int i = 0; i < count; i++) {
-            builders.add(createPictureBuilder(i, count, generatorSeed, random.nextInt()));
+            final RendererBuilder builder = template.createPictureVariant(i, count);
+            builder.setParameterValue(RendererBuilder.PICTURE_SEED, random.nextInt());
+            builders.add(builder);
         }
 
         return builders;
     }
 
-    private RendererBuilder createPictureBuilder(int pictureIndex, int totalCount, int generatorSeed, int pictureSeed) {
-        final LinkedHashSet<String> temporaryChannels = new LinkedHashSet<String>();
-        effectContainer.getRequiredChannels(temporaryChannels);
+    @Override
+    protected PictureCalculations createCalculation(List<Picture> picturesToReuse,
+                                                    List<Picture> previewsToReuse) {
+        // In incremental mode, generate the source once to find out which effects have changed since the stored values
+        // were calculated, then again reading the values of the unchanged effects instead of calculating them.
+        // The plan belongs to this calculation, and is committed when it completes.
+        final IntermediateCache.Recording recording = incremental ? intermediateCache.startRecording() : null;
+        final RendererBuilder plainTemplate = createTemplateBuilder(generatorSeed, recording, interactive);
+        final IntermediateCache.Reuse reuse = incremental ?
+                                              intermediateCache.planReuse(recording, width, height, count, generatorSeed) :
+                                              null;
+        final RendererBuilder template = reuse == null ? plainTemplate : createTemplateBuilder(generatorSeed, reuse, interactive);
+        final List<RendererBuilder> builders = createPictureBuilders(template);
+
+        // The stored values are for the full size pictures, so previews can not be rendered with the same renderer
+        final PictureCalculations calculation = new PictureCalculations(builders, picturesToReuse, previewsToReuse, reuse == null);
+
+        // The source of a later calculation that is not interactive, created here as the effects may change later
+        final RendererBuilder constantBuilder = interactive && !incremental ?
+                                                createTemplateBuilder(generatorSeed, null, false) :
+                                                null;
+
+        if (reuse != null || constantBuilder != null) {
+            calculation.addListener(new PictureCalculationsListenerAdapter() {
+                @Override
+                public void onReady(int calculationIndex, List<Picture> pictures) {
+                    // Keep the calculated values if all the pictures are completed
+                    if (reuse != null) reuse.commit();
+
+                    if (constantBuilder != null) compileInBackground(constantBuilder, calculation);
+                }
+            });
+        }
+
+        return calculation;
+    }
 
+    /**
+     * Compiles the renderer of the builder into the renderer cache, using the compile threads of the calculation.
+     */
+    private static void compileInBackground(final RendererBuilder builder, PictureCalculations calculation) {
+        final RendererBackend backend = calculation.getRendererBackend();
+        calculation.getExecutors().getCompileExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    builder.compilePixelCalculator(RendererCache.getDefault(), null, backend);
+                } catch (CompilationException e) {
+                    // Reported by the calculation that uses the renderer, if any
+                }
+            }
+        });
+    }
+
+    private RendererBuilder createTemplateBuilder(int generatorSeed, EffectSourceHook hook, boolean runtimeConstants) {
         final Collection<String> pictureChannels = effectContainer.getChannels();
+
+        // Find the effects, variables and temporary channels that the picture channels depend on,
+        // so that no code is generated for the rest.
+        final EffectUsageAnalysis usageAnalysis = new EffectUsageAnalysis(effectContainer, pictureChannels);
+        final LinkedHashSet<String> temporaryChannels = new LinkedHashSet<String>(usageAnalysis.getUsedChannels());
         temporaryChannels.removeAll(pictureChannels);
 
         final RendererBuilder builder = new RendererBuilder(name,
                                                             width, height,
                                                             pictureChannels,
                                                             temporaryChannels,
-                                                            pictureIndex,
-                                                            totalCount);
+                                                            0,
+                                                            count,
+                                                            createPictureFormat(pictureChannels));
         builder.addParameter(RendererBuilder.GENERATOR_SEED, generatorSeed, Integer.class);
-        builder.addParameter(RendererBuilder.PICTURE_SEED, pictureSeed, Integer.class);
+        builder.addParameter(RendererBuilder.PICTURE_SEED, 0, Integer.class);
+        builder.setProfiling(profiling);
+        builder.setRuntimeConstants(runtimeConstants);
+        builder.setUnusedOutputs(usageAnalysis.getUnusedOutputs());
 
-        effectContainer.buildSource(builder, "var_", null);
+        effectContainer.buildSource(builder, "var_", null, hook);
 
         return builder;
     }
 
+    private PictureFormat createPictureFormat(Collection<String> pictureChannels) {
+        final List<ChannelType> types = new ArrayList<ChannelType>();
+        if (!channelTypes.isEmpty()) {
+            for (String channel : pictureChannels) {
+                types.add(getChannelType(channel));
+            }
+        }
+        return new PictureFormat(pictureLayout, pictureStorage, types, pictureTileSize);
+    }
+
     public <T extends Effect> T addEffect(T effect) {
         effectContainer.addEffect(effect);
         return effect;
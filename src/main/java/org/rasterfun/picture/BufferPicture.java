@@ -0,0 +1,171 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Picture that stores its values in a ByteBuffer, in direct memory, in a memory mapped file, or on the heap
+ * for pictures with channels of other types than float.
+ * The values are stored in the native byte order, in the order given by the layout and the types of the channels.
+ *
+ * The buffer can hold at most Integer.MAX_VALUE bytes.
+ */
+public final class BufferPicture extends PictureBase {
+
+    private final ByteBuffer buffer;
+    private final PictureStorage storage;
+    private final File file;
+    private final ChannelType[] channelTypes;
+    private final int[] channelByteStarts;
+    private final int[] pixelByteSteps;
+
+    /**
+     * Creates a picture stored in direct memory or in a buffer on the heap, depending on the storage of the format.
+     * Direct memory is released when the picture is garbage collected.
+     */
+    public static BufferPicture allocate(String name, int width, int height, List<String> channelNames, PictureFormat format) {
+        ParameterChecker.checkNotNull(format, "format");
+
+        final int byteCount = getByteCount(width, height, channelNames, format);
+        final ByteBuffer buffer;
+        switch (format.getStorage()) {
+            case HEAP:   buffer = ByteBuffer.allocate(byteCount); break;
+            case DIRECT: buffer = ByteBuffer.allocateDirect(byteCount); break;
+            default: throw new IllegalArgumentException("Pictures with the storage " + format.getStorage() + " can not be allocated");
+        }
+
+        return new BufferPicture(name, width, height, channelNames, format, buffer, null);
+    }
+
+    /**
+     * Creates a picture stored in a memory mapped file.  The file is created if it does not exist, and resized to the
+     * size of the picture.  Any values already in the file are kept, so a picture can be opened again from its file.
+     *
+     * @param file the file to store the values in.
+     * @param format format of the picture, with the storage PictureStorage.MAPPED.
+     */
+    public static BufferPicture map(File file, String name, int width, int height, List<String> channelNames, PictureFormat format) throws IOException {
+        ParameterChecker.checkNotNull(file, "file");
+        ParameterChecker.checkNotNull(format, "format");
+        if (format.getStorage() != PictureStorage.MAPPED) throw new IllegalArgumentException("Mapped pictures should have the storage " + PictureStorage.MAPPED + ", not " + format.getStorage());
+
+        final int byteCount = getByteCount(width, height, channelNames, format);
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(byteCount);
+            // The mapping stays valid after the file is closed
+            final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, byteCount);
+            return new BufferPicture(name, width, height, channelNames, format, buffer, file);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static int getByteCount(int width, int height, List<String> channelNames, PictureFormat format) {
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        format.checkChannelCount(channelNames.size());
+
+        final long byteCount = (long) width * height * format.getChannelOffset(channelNames.size());
+        if (byteCount > Integer.MAX_VALUE) throw new IllegalArgumentException("A picture of " + width + " x " + height + " pixels with " + channelNames.size() + " channels is too large for a buffer, it would need " + byteCount + " bytes.  Use a TiledPicture instead.");
+        return (int) byteCount;
+    }
+
+    private BufferPicture(String name, int width, int height, List<String> channelNames, PictureFormat format,
+                          ByteBuffer buffer, File file) {
+        super(name, width, height, channelNames, format.getLayout());
+
+        this.buffer = buffer.order(ByteOrder.nativeOrder());
+        this.storage = format.getStorage();
+        this.file = file;
+
+        channelTypes = new ChannelType[channelCount];
+        channelByteStarts = new int[channelCount];
+        pixelByteSteps = new int[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            channelTypes[i] = format.getChannelType(i);
+            channelByteStarts[i] = format.getChannelByteStart(i, width * height);
+            pixelByteSteps[i] = format.getPixelByteStep(i, channelCount);
+        }
+    }
+
+    /**
+     * @return null, the values are not stored in a float array.
+     */
+    @Override
+    public float[] getData() {
+        return null;
+    }
+
+    @Override
+    public PictureStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return the buffer with the values.  The values should be accessed with the absolute get and put methods,
+     *         as the buffer is shared by all users of the picture.
+     */
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the file the values are stored in, or null if they are stored in direct memory.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes any changed values of a picture stored in a file to the file.  Does nothing for pictures in direct memory.
+     */
+    public void flush() {
+        if (buffer instanceof MappedByteBuffer) ((MappedByteBuffer) buffer).force();
+    }
+
+    @Override
+    public ChannelType getChannelType(int channelIndex) {
+        return channelTypes[channelIndex];
+    }
+
+    @Override
+    public float[] copyChannel(int channelIndex, float[] target) {
+        target = prepareChannelCopy(channelIndex, target);
+
+        final ChannelType channelType = channelTypes[channelIndex];
+        final int pixelByteStep = pixelByteSteps[channelIndex];
+        final int pixelCount = width * height;
+        int byteIndex = channelByteStarts[channelIndex];
+        for (int i = 0; i < pixelCount; i++) {
+            target[i] = channelType.read(buffer, byteIndex);
+            byteIndex += pixelByteStep;
+        }
+
+        return target;
+    }
+
+    @Override
+    public float getPixel(int channelIndex, int x, int y) {
+        return channelTypes[channelIndex].read(buffer, getByteIndex(channelIndex, x, y));
+    }
+
+    @Override
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        channelTypes[channelIndex].write(buffer, getByteIndex(channelIndex, x, y), value);
+    }
+
+    private int getByteIndex(int channelIndex, int x, int y) {
+        return channelByteStarts[channelIndex] + (y * width + x) * pixelByteSteps[channelIndex];
+    }
+
+}
@@ -0,0 +1,162 @@
+package org.rasterfun.picture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The type a channel of a picture is stored as.  Renderers calculate all channels as floats,
+ * and convert them to the storage type when writing them to the picture.
+ */
+public enum ChannelType {
+
+    /**
+     * 32 bit float.
+     */
+    FLOAT(4),
+
+    /**
+     * 16 bit half precision float, with about three significant decimal digits, and a range of +-65504.
+     */
+    HALF(2),
+
+    /**
+     * Unsigned 16 bit integer for values in the range 0..1, values outside the range are clamped.
+     */
+    UNORM16(2),
+
+    /**
+     * Unsigned 8 bit integer for values in the range 0..1, values outside the range are clamped.
+     * Enough for colour channels that are exported with 8 bits anyway.
+     */
+    UNORM8(1),
+
+    /**
+     * 32 bit signed integer, values are rounded to the closest integer.  For masks and ID maps.
+     * Integers up to 2^24 are calculated exactly as floats.
+     */
+    INT(4);
+
+    private final int byteSize;
+
+    private ChannelType(int byteSize) {
+        this.byteSize = byteSize;
+    }
+
+    /**
+     * @return number of bytes a value of this type takes.
+     */
+    public int getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * @return the value stored at the specified byte index of the buffer, as a float.
+     */
+    public float read(ByteBuffer buffer, int byteIndex) {
+        switch (this) {
+            case FLOAT:   return buffer.getFloat(byteIndex);
+            case HALF:    return halfToFloat(buffer.getShort(byteIndex));
+            case UNORM16: return unorm16ToFloat(buffer.getShort(byteIndex));
+            case UNORM8:  return unorm8ToFloat(buffer.get(byteIndex));
+            case INT:     return buffer.getInt(byteIndex);
+            default: throw new IllegalStateException("Unknown channel type " + this);
+        }
+    }
+
+    /**
+     * Converts the value to this type and stores it at the specified byte index of the buffer.
+     */
+    public void write(ByteBuffer buffer, int byteIndex, float value) {
+        switch (this) {
+            case FLOAT:   buffer.putFloat(byteIndex, value); break;
+            case HALF:    buffer.putShort(byteIndex, floatToHalf(value)); break;
+            case UNORM16: buffer.putShort(byteIndex, floatToUnorm16(value)); break;
+            case UNORM8:  buffer.put(byteIndex, floatToUnorm8(value)); break;
+            case INT:     buffer.putInt(byteIndex, Math.round(value)); break;
+            default: throw new IllegalStateException("Unknown channel type " + this);
+        }
+    }
+
+    /**
+     * @return the value as a half precision float, rounded to the closest half float.
+     *         Values too large for a half float become infinite.
+     */
+    public static short floatToHalf(float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        // Infinity or NaN, keep NaN a NaN
+        if (exponent == 0xff) return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 | (mantissa >>> 13) : 0));
+
+        final int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f) return (short) (sign | 0x7c00);
+
+        final int shift;
+        int half;
+        if (halfExponent <= 0) {
+            // Subnormal half float, or too small for one
+            if (halfExponent < -10) return (short) sign;
+            mantissa |= 0x800000;
+            shift = 14 - halfExponent;
+            half = mantissa >> shift;
+        }
+        else {
+            shift = 13;
+            half = (halfExponent << 10) | (mantissa >> shift);
+        }
+
+        // Round to nearest even, a carry to the exponent gives the next power of two or infinity
+        final int remainder = mantissa & ((1 << shift) - 1);
+        final int halfway = 1 << (shift - 1);
+        if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) half++;
+
+        return (short) (sign | half);
+    }
+
+    /**
+     * @return the half precision float as a float.
+     */
+    public static float halfToFloat(short half) {
+        final int bits = half & 0xffff;
+        final int sign = (bits & 0x8000) << 16;
+        final int exponent = (bits >>> 10) & 0x1f;
+        final int mantissa = bits & 0x3ff;
+
+        if (exponent == 0x1f) {
+            // Infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        else if (exponent == 0) {
+            // Zero or subnormal
+            final float value = mantissa * (1f / (1 << 24));
+            return sign != 0 ? -value : value;
+        }
+        else {
+            return Float.intBitsToFloat(sign | ((exponent + 127 - 15) << 23) | (mantissa << 13));
+        }
+    }
+
+    /**
+     * @return the value clamped to 0..1 and scaled to an unsigned 16 bit integer.  NaN becomes 0.
+     */
+    public static short floatToUnorm16(float value) {
+        return (short) (int) (Math.min(Math.max(value, 0f), 1f) * 65535f + 0.5f);
+    }
+
+    public static float unorm16ToFloat(short value) {
+        return (value & 0xffff) / 65535f;
+    }
+
+    /**
+     * @return the value clamped to 0..1 and scaled to an unsigned 8 bit integer.  NaN becomes 0.
+     */
+    public static byte floatToUnorm8(float value) {
+        return (byte) (int) (Math.min(Math.max(value, 0f), 1f) * 255f + 0.5f);
+    }
+
+    public static float unorm8ToFloat(byte value) {
+        return (value & 0xff) / 255f;
+    }
+
+}
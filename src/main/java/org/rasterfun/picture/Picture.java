@@ -2,6 +2,7 @@ package org.rasterfun.picture;
 
 import org.rasterfun.library.GeneratorElement;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -23,7 +24,7 @@ public interface Picture extends GeneratorElement {
 
     /**
      * @return unmodifiable list with the names of the channels in this picture,
-     * in the order they are stored in the data for each pixel.
+     * in the order they are stored in the data.
      */
     List<String> getChannelNames();
 
@@ -51,6 +52,12 @@ public interface Picture extends GeneratorElement {
      */
     float getPixel(int channelIndex, int x, int y);
 
+    /**
+     * Sets the value at the specified channel index and coordinate.
+     * Does not perform any range checking.
+     */
+    void setPixel(int channelIndex, int x, int y, float value);
+
     /**
      * @return number of channels in the picture.
      */
@@ -68,7 +75,47 @@ public interface Picture extends GeneratorElement {
     void setChannelNames(List<String>  channelNames);
 
     /**
-     * @return the underlying data for the picture.
+     * @return the underlying data for the picture, in the order given by the layout,
+     *         or null if the values are not stored in a float array.
      */
     float[] getData();
+
+    /**
+     * @return where the values are stored.
+     */
+    PictureStorage getStorage();
+
+    /**
+     * @return the buffer with the values, in the order given by the layout,
+     *         or null if the values are stored in a float array.
+     */
+    ByteBuffer getBuffer();
+
+    /**
+     * @return the type the values of the specified channel are stored as.  Always ChannelType.FLOAT for pictures
+     *         stored in float arrays.
+     */
+    ChannelType getChannelType(int channelIndex);
+
+    /**
+     * @return the order the values are stored in the data.
+     */
+    PictureLayout getLayout();
+
+    /**
+     * @return distance in the float array data between the values of neighbouring pixels on a line, in the same channel.
+     */
+    int getPixelStep();
+
+    /**
+     * @return distance in the float array data between the values of neighbouring channels of the same pixel.
+     */
+    int getChannelStep();
+
+    /**
+     * Copies the values of one channel for all pixels, in y major order.
+     * @param target array to copy the values to, or null to allocate a new one.  Should have space for width * height values.
+     * @return the array with the values.
+     */
+    float[] copyChannel(int channelIndex, float[] target);
 }
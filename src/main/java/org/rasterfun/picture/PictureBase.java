@@ -0,0 +1,152 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.library.GeneratorElement;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.*;
+
+/**
+ * Common functionality for pictures: name, size, channels and layout.  Subclasses decide where the values are stored.
+ */
+public abstract class PictureBase implements Picture {
+
+    protected final int width;
+    protected final int height;
+    protected final int channelCount;
+    protected final PictureLayout layout;
+    protected final int pixelStep;
+    protected final int channelStep;
+    private final List<String> channelNames;
+    private String name;
+
+    private final HashMap<String, Integer> channelNameToIndex = new HashMap<String, Integer>();
+
+    protected PictureBase(String name, int width, int height, List<String> channelNames, PictureLayout layout) {
+        ParameterChecker.checkNonEmptyString(name, "name");
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        ParameterChecker.checkNotNull(layout, "layout");
+        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
+        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
+        ParameterChecker.checkPositiveNonZeroInteger(channelNames.size(), "channelNames.size");
+
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.channelNames = new ArrayList<String>(channelNames);
+        this.channelCount = this.channelNames.size();
+        this.layout = layout;
+        this.pixelStep = layout.getPixelStep(width, height, channelCount);
+        this.channelStep = layout.getChannelStep(width, height, channelCount);
+
+        createChannelNamesLookup();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public List<String> getChannelNames() {
+        return Collections.unmodifiableList(channelNames);
+    }
+
+    @Override
+    public int getChannelIndex(String channelName) {
+        final Integer channelIndex = channelNameToIndex.get(channelName);
+        if (channelIndex != null) return channelIndex;
+        else throw new IllegalArgumentException("There is no channel with the name '"+channelName+"', " +
+                                                "the available channels are: " + Arrays.toString(channelNames.toArray()));
+    }
+
+    @Override
+    public int getChannelIndex(String channelName, int defaultValue) {
+        final Integer channelIndex = channelNameToIndex.get(channelName);
+        if (channelIndex != null) return channelIndex;
+        else return defaultValue;
+    }
+
+    public void setName(String name) {
+        ParameterChecker.checkNonEmptyString(name, "name");
+        this.name = name;
+    }
+
+    @Override
+    public void setChannelNames(List<String> channelNames) {
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        if (channelNames.size() != this.channelNames.size()) throw new IllegalArgumentException("New channel names must have same size as the existing ones.");
+
+        this.channelNames.clear();
+        this.channelNames.addAll(channelNames);
+        createChannelNamesLookup();
+    }
+
+    @Override
+    public PictureLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public int getPixelStep() {
+        return pixelStep;
+    }
+
+    @Override
+    public int getChannelStep() {
+        return channelStep;
+    }
+
+    @Override
+    public GeneratorElement copy() {
+        // NOTE: Picture references in generator properties should probably be treated as references -
+        // a change to the picture modifies the generator.  So we just return a reference to ourselves.
+        return this;
+    }
+
+    @Override
+    public float getPixel(String channel, int x, int y) {
+        return getPixel(getChannelIndex(channel), x, y);
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return index of the value of the channel at the specified coordinate in the data.
+     */
+    protected final int getIndex(int channelIndex, int x, int y) {
+        return (y * width + x) * pixelStep + channelIndex * channelStep;
+    }
+
+    /**
+     * Checks the parameters of copyChannel.
+     * @return the target array, or a new array if target was null.
+     */
+    protected final float[] prepareChannelCopy(int channelIndex, float[] target) {
+        if (channelIndex < 0 || channelIndex >= channelCount) throw new IllegalArgumentException("The channelIndex should be in the range 0.." + (channelCount - 1) + ", but it was " + channelIndex);
+
+        final int pixelCount = width * height;
+        if (target == null) return new float[pixelCount];
+        else if (target.length < pixelCount) throw new IllegalArgumentException("The target should have space for " + pixelCount + " values, but its length was " + target.length);
+        else return target;
+    }
+
+    private void createChannelNamesLookup() {
+        channelNameToIndex.clear();
+        for (int i = 0; i < channelNames.size(); i++) {
+            channelNameToIndex.put(channelNames.get(i), i);
+        }
+    }
+
+}
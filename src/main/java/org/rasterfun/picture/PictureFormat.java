@@ -0,0 +1,194 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How the values of a picture are stored: the layout of the values, the storage they are kept in,
+ * and the type of each channel.  Renderers are built for a specific format.  Immutable.
+ *
+ * Pictures with channels of other types than float are stored in buffers, also when the storage is PictureStorage.HEAP.
+ * Pictures with a tile size are stored as a TiledPicture, with tiles in the format without the tile size.
+ */
+public final class PictureFormat {
+
+    /**
+     * Interleaved values in a float array on the heap.
+     */
+    public static final PictureFormat DEFAULT = new PictureFormat(PictureLayout.INTERLEAVED, PictureStorage.HEAP);
+
+    private final PictureLayout layout;
+    private final PictureStorage storage;
+    private final List<ChannelType> channelTypes;
+    private final int tileSize;
+
+    public PictureFormat(PictureLayout layout) {
+        this(layout, PictureStorage.HEAP);
+    }
+
+    public PictureFormat(PictureLayout layout, PictureStorage storage) {
+        this(layout, storage, Collections.<ChannelType>emptyList());
+    }
+
+    /**
+     * @param channelTypes the type of each channel of the picture, or an empty list if all channels are floats.
+     */
+    public PictureFormat(PictureLayout layout, PictureStorage storage, List<ChannelType> channelTypes) {
+        this(layout, storage, channelTypes, 0);
+    }
+
+    /**
+     * @param tileSize width and height of the tiles of tiled pictures, or 0 for pictures that are not tiled.
+     */
+    public PictureFormat(PictureLayout layout, PictureStorage storage, List<ChannelType> channelTypes, int tileSize) {
+        ParameterChecker.checkNotNull(layout, "layout");
+        ParameterChecker.checkNotNull(storage, "storage");
+        ParameterChecker.checkNotNull(channelTypes, "channelTypes");
+        for (ChannelType channelType : channelTypes) {
+            ParameterChecker.checkNotNull(channelType, "channel type");
+        }
+        ParameterChecker.checkNonNegativeInteger(tileSize, "tileSize");
+
+        this.layout = layout;
+        this.storage = storage;
+        this.channelTypes = Collections.unmodifiableList(new ArrayList<ChannelType>(channelTypes));
+        this.tileSize = tileSize;
+    }
+
+    public PictureLayout getLayout() {
+        return layout;
+    }
+
+    public PictureStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return the type of each channel, or an empty list if all channels are floats.
+     */
+    public List<ChannelType> getChannelTypes() {
+        return channelTypes;
+    }
+
+    /**
+     * @return the type of the specified channel.
+     */
+    public ChannelType getChannelType(int channelIndex) {
+        return channelTypes.isEmpty() ? ChannelType.FLOAT : channelTypes.get(channelIndex);
+    }
+
+    /**
+     * @return width and height of the tiles of tiled pictures, or 0 for pictures that are not tiled.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public boolean isTiled() {
+        return tileSize > 0;
+    }
+
+    /**
+     * @return the format of the tiles of tiled pictures, this format without the tile size.
+     */
+    public PictureFormat getTileFormat() {
+        return isTiled() ? new PictureFormat(layout, storage, channelTypes) : this;
+    }
+
+    /**
+     * @return true if pictures with this format store their values in a ByteBuffer instead of a float array.
+     *         For tiled pictures this applies to the tiles.
+     */
+    public boolean usesBuffer() {
+        if (storage != PictureStorage.HEAP) return true;
+
+        for (ChannelType channelType : channelTypes) {
+            if (channelType != ChannelType.FLOAT) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks that the format can be used for a picture with the specified number of channels.
+     */
+    public void checkChannelCount(int channelCount) {
+        if (!channelTypes.isEmpty() && channelTypes.size() != channelCount) {
+            throw new IllegalArgumentException("The format has types for " + channelTypes.size() + " channels, " +
+                                               "but the picture has " + channelCount + " channels");
+        }
+    }
+
+    /**
+     * @return number of bytes the channels before the specified channel take, in a pixel of a buffer.
+     *         The number of bytes of a whole pixel if the channel index is the channel count.
+     */
+    public int getChannelOffset(int channelIndex) {
+        int offset = 0;
+        for (int i = 0; i < channelIndex; i++) {
+            offset += getChannelType(i).getByteSize();
+        }
+        return offset;
+    }
+
+    /**
+     * @return number of bytes between the values of neighbouring pixels in the specified channel of a buffer.
+     */
+    public int getPixelByteStep(int channelIndex, int channelCount) {
+        return layout == PictureLayout.PLANAR ? getChannelType(channelIndex).getByteSize() : getChannelOffset(channelCount);
+    }
+
+    /**
+     * @return index of the first byte of the specified channel in a buffer.
+     */
+    public int getChannelByteStart(int channelIndex, int pixelCount) {
+        return layout == PictureLayout.PLANAR ? getChannelOffset(channelIndex) * pixelCount : getChannelOffset(channelIndex);
+    }
+
+    /**
+     * @return true if the picture has this format.
+     */
+    public boolean matches(Picture picture) {
+        if (picture.getLayout() != layout ||
+            picture.getStorage() != storage ||
+            (!channelTypes.isEmpty() && channelTypes.size() != picture.getChannelCount())) return false;
+
+        final int pictureTileSize = picture instanceof TiledPicture ? ((TiledPicture) picture).getTileSize() : 0;
+        if (pictureTileSize != tileSize) return false;
+
+        for (int i = 0; i < picture.getChannelCount(); i++) {
+            if (picture.getChannelType(i) != getChannelType(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final PictureFormat that = (PictureFormat) o;
+        return layout == that.layout &&
+               storage == that.storage &&
+               channelTypes.equals(that.channelTypes) &&
+               tileSize == that.tileSize;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = layout.hashCode();
+        result = 31 * result + storage.hashCode();
+        result = 31 * result + channelTypes.hashCode();
+        result = 31 * result + tileSize;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return layout + " " + storage +
+               (channelTypes.isEmpty() ? "" : " " + channelTypes) +
+               (isTiled() ? " tiles of " + tileSize : "");
+    }
+}
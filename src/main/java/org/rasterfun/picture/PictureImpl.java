@@ -1,121 +1,77 @@
 package org.rasterfun.picture;
 
-import org.rasterfun.library.GeneratorElement;
-import org.rasterfun.utils.ParameterChecker;
-
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
- *
+ * Picture that stores its values in a float array on the heap, in either interleaved or planar layout.
  */
-public final class PictureImpl implements Picture {
+public final class PictureImpl extends PictureBase {
 
-    private final int width;
-    private final int height;
-    private final int channelCount;
-    private final List<String> channelNames;
     private final float data[];
-    private String name;
-
-    private final HashMap<String, Integer> channelNameToIndex = new HashMap<String, Integer>();
 
     public PictureImpl(String name, int width, int height, List<String> channelNames) {
-        ParameterChecker.checkNonEmptyString(name, "name");
-        ParameterChecker.checkNotNull(channelNames, "channelNames");
-        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
-        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
-        ParameterChecker.checkPositiveNonZeroInteger(channelNames.size(), "channelNames.size");
-
-        this.name = name;
-        this.width = width;
-        this.height = height;
-        this.channelNames = new ArrayList<String>(channelNames);
-        this.channelCount = this.channelNames.size();
-        this.data = new float[width * height * channelCount];
-
-        createChannelNamesLookup();
+        this(name, width, height, channelNames, PictureLayout.INTERLEAVED);
     }
 
-    public String getName() {
-        return name;
-    }
+    /**
+     * @param layout the order to store the values in.
+     */
+    public PictureImpl(String name, int width, int height, List<String> channelNames, PictureLayout layout) {
+        super(name, width, height, channelNames, layout);
 
-    @Override
-    public int getWidth() {
-        return width;
+        final long valueCount = (long) width * height * channelCount;
+        if (valueCount > Integer.MAX_VALUE) throw new IllegalArgumentException("A picture of " + width + " x " + height + " pixels with " + channelCount + " channels is too large for an array, it has " + valueCount + " values.  Use a TiledPicture instead.");
+        this.data = new float[(int) valueCount];
     }
 
-    @Override
-    public int getHeight() {
-        return height;
+    public float[] getData() {
+        return data;
     }
 
     @Override
-    public List<String> getChannelNames() {
-        return Collections.unmodifiableList(channelNames);
+    public PictureStorage getStorage() {
+        return PictureStorage.HEAP;
     }
 
     @Override
-    public int getChannelIndex(String channelName) {
-        final Integer channelIndex = channelNameToIndex.get(channelName);
-        if (channelIndex != null) return channelIndex;
-        else throw new IllegalArgumentException("There is no channel with the name '"+channelName+"', " +
-                                                "the available channels are: " + Arrays.toString(channelNames.toArray()));
+    public ByteBuffer getBuffer() {
+        return null;
     }
 
     @Override
-    public int getChannelIndex(String channelName, int defaultValue) {
-        final Integer channelIndex = channelNameToIndex.get(channelName);
-        if (channelIndex != null) return channelIndex;
-        else return defaultValue;
-    }
-
-    public void setName(String name) {
-        ParameterChecker.checkNonEmptyString(name, "name");
-        this.name = name;
+    public ChannelType getChannelType(int channelIndex) {
+        return ChannelType.FLOAT;
     }
 
     @Override
-    public void setChannelNames(List<String> channelNames) {
-        ParameterChecker.checkNotNull(channelNames, "channelNames");
-        if (channelNames.size() != this.channelNames.size()) throw new IllegalArgumentException("New channel names must have same size as the existing ones.");
+    public float[] copyChannel(int channelIndex, float[] target) {
+        target = prepareChannelCopy(channelIndex, target);
 
-        this.channelNames.clear();
-        this.channelNames.addAll(channelNames);
-        createChannelNamesLookup();
-    }
-
-    public float[] getData() {
-        return data;
-    }
-
-    @Override
-    public GeneratorElement copy() {
-        // NOTE: Picture references in generator properties should probably be treated as references -
-        // a change to the picture modifies the generator.  So we just return a reference to ourselves.
-        return this;
-    }
+        final int pixelCount = width * height;
+        if (layout == PictureLayout.PLANAR) {
+            // The channel is already stored in one piece
+            System.arraycopy(data, channelIndex * channelStep, target, 0, pixelCount);
+        }
+        else {
+            int index = channelIndex;
+            for (int i = 0; i < pixelCount; i++) {
+                target[i] = data[index];
+                index += pixelStep;
+            }
+        }
 
-    @Override
-    public float getPixel(String channel, int x, int y) {
-        return getPixel(getChannelIndex(channel), x, y);
+        return target;
     }
 
     @Override
     public float getPixel(int channelIndex, int x, int y) {
-        return data[(y * width + x) * channelCount + channelIndex];
+        return data[getIndex(channelIndex, x, y)];
     }
 
     @Override
-    public int getChannelCount() {
-        return channelCount;
-    }
-
-    private void createChannelNamesLookup() {
-        channelNameToIndex.clear();
-        for (int i = 0; i < channelNames.size(); i++) {
-            channelNameToIndex.put(channelNames.get(i), i);
-        }
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        data[getIndex(channelIndex, x, y)] = value;
     }
 
 }
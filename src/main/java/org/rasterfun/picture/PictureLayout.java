@@ -0,0 +1,43 @@
+package org.rasterfun.picture;
+
+/**
+ * The order the values of a picture are stored in its data array.
+ */
+public enum PictureLayout {
+
+    /**
+     * The values of the channels of a pixel directly follow each other, and the pixels are stored in y major order.
+     * E.g. a width 2, height 2 picture with channels a and b has the data a00,b00, a10,b10,  a01,b01, a11,b11.
+     */
+    INTERLEAVED,
+
+    /**
+     * Each channel is stored in a plane of its own, with the values of the channel for all pixels in y major order.
+     * The planes follow each other in channel order.
+     * E.g. a width 2, height 2 picture with channels a and b has the data a00,a10,a01,a11,  b00,b10,b01,b11.
+     * Reading or writing one channel goes through a contiguous part of the data.
+     */
+    PLANAR;
+
+    /**
+     * @return distance in the data between the values of neighbouring pixels on a line, in the same channel.
+     */
+    public int getPixelStep(int width, int height, int channelCount) {
+        return this == INTERLEAVED ? channelCount : 1;
+    }
+
+    /**
+     * @return distance in the data between the values of neighbouring channels of the same pixel.
+     */
+    public int getChannelStep(int width, int height, int channelCount) {
+        return this == INTERLEAVED ? 1 : width * height;
+    }
+
+    /**
+     * @return index of the value of the specified channel and pixel in the data of a picture with this layout.
+     */
+    public int getIndex(int width, int height, int channelCount, int channelIndex, int x, int y) {
+        return (y * width + x) * getPixelStep(width, height, channelCount) +
+               channelIndex * getChannelStep(width, height, channelCount);
+    }
+}
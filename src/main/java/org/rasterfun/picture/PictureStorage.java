@@ -0,0 +1,23 @@
+package org.rasterfun.picture;
+
+/**
+ * Where the values of a picture are stored.
+ */
+public enum PictureStorage {
+
+    /**
+     * On the Java heap, in a float array if all channels are floats.
+     */
+    HEAP,
+
+    /**
+     * In direct memory outside the Java heap, so that large pictures do not take space from the heap.
+     */
+    DIRECT,
+
+    /**
+     * In a memory mapped file, so that the operating system can page the values out to disk,
+     * and the file can be read by other programs.
+     */
+    MAPPED
+}
@@ -30,9 +30,16 @@ public class RgbPictureDrawer extends PictureDrawerBase {
         final int aIndex = source.getChannelIndex(Picture.ALPHA, defaultIndex);
         final int srcW = source.getWidth();
         final int srcH = source.getHeight();
-        final int srcChannelCount = source.getChannelCount();
+        final int srcPixelStep = source.getPixelStep();
+        final int srcChannelStep = source.getChannelStep();
         final float[] srcData = source.getData();
 
+        // Offsets of the channels from the index of a pixel in the data, works for both interleaved and planar pictures
+        final int rOffset = rIndex * srcChannelStep;
+        final int gOffset = gIndex * srcChannelStep;
+        final int bOffset = bIndex * srcChannelStep;
+        final int aOffset = aIndex * srcChannelStep;
+
         // Loop over the destination area
         for (int dy = clamp(destY1, 0, targetH); dy < destY2 && dy < targetH; dy++) {
             for (int dx = clamp(destX1, 0, targetW); dx < destX2 && dx < targetW; dx++) {
@@ -44,11 +51,21 @@ public class RgbPictureDrawer extends PictureDrawerBase {
                 // Check that we are inside the picture
                 if (sx >= 0 && sy >= 0 && sx < srcW && sy < srcH) {
                     // Get the pixel values at the source
-                    int srcIndex = (sy * srcW + sx) * srcChannelCount;
-                    int r = (int) (srcData[srcIndex + rIndex] * 255 + 0.5f);
-                    int g = (int) (srcData[srcIndex + gIndex] * 255 + 0.5f);
-                    int b = (int) (srcData[srcIndex + bIndex] * 255 + 0.5f);
-                    int a = (int) (srcData[srcIndex + aIndex] * 255 + 0.5f);
+                    int r, g, b, a;
+                    if (srcData != null) {
+                        int srcIndex = (sy * srcW + sx) * srcPixelStep;
+                        r = (int) (srcData[srcIndex + rOffset] * 255 + 0.5f);
+                        g = (int) (srcData[srcIndex + gOffset] * 255 + 0.5f);
+                        b = (int) (srcData[srcIndex + bOffset] * 255 + 0.5f);
+                        a = (int) (srcData[srcIndex + aOffset] * 255 + 0.5f);
+                    }
+                    else {
+                        // The picture is not stored in an array
+                        r = (int) (source.getPixel(rIndex, sx, sy) * 255 + 0.5f);
+                        g = (int) (source.getPixel(gIndex, sx, sy) * 255 + 0.5f);
+                        b = (int) (source.getPixel(bIndex, sx, sy) * 255 + 0.5f);
+                        a = (int) (source.getPixel(aIndex, sx, sy) * 255 + 0.5f);
+                    }
 
                     // Clamp Alpha
                     if (a < 0) a = 0; else if (a > 255) a = 255;
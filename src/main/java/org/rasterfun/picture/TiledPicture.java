@@ -0,0 +1,438 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Picture stored in square tiles that are pictures of their own, so that the whole picture can have more values
+ * than fit in an array or a buffer, for example a 32k x 32k RGBA texture.  The number of values is a long,
+ * only the tiles are limited to 2^31 values.
+ *
+ * The tiles are created when they are first used, in the tile format of the picture format.
+ * With PictureStorage.MAPPED each tile is stored in a file of its own, and a tile can be released after it has been
+ * rendered, so that its memory is freed.  A released tile is mapped again from its file when it is next used,
+ * which allows rendering pictures larger than the memory of the computer.
+ *
+ * Tiles stored in memory can be spilled to disk instead: a released tile is written to a file of its own,
+ * and read back when it is next used.  Picture calculations spill pictures that do not fit in their memory budget.
+ * Reading the values of a spilled picture with copyChannel or getPixel does not keep its tiles in memory,
+ * getPixel only keeps the most recently read row of tiles.
+ *
+ * Renderers calculate one tile at a time with ArrayRenderer.calculateTile or BufferRenderer.calculateTile.
+ */
+public final class TiledPicture extends PictureBase {
+
+    private final PictureFormat tileFormat;
+    private final int tileSize;
+    private final int tileColumns;
+    private final int tileRows;
+    private final File directory;
+    private final boolean spillTiles;
+
+    // Tiles are created, mapped and released while synchronized on this, but can be read without synchronization
+    private final AtomicReferenceArray<Picture> tiles;
+    private final File[] tileFiles;
+
+    // Spilled tiles read back by getPixel, least recently used first.  Guarded by this.
+    private final Map<Integer, Picture> readTiles;
+
+    /**
+     * @param format format of the picture, with a tile size.
+     */
+    public TiledPicture(String name, int width, int height, List<String> channelNames, PictureFormat format) {
+        this(name, width, height, channelNames, format, null);
+    }
+
+    /**
+     * @param format format of the picture, with a tile size.
+     * @param directory the directory to create the files of the tiles in when the format has the storage
+     *                  PictureStorage.MAPPED, or null to use the default temporary file directory.
+     *                  The files are deleted when the program exits.
+     */
+    public TiledPicture(String name, int width, int height, List<String> channelNames, PictureFormat format, File directory) {
+        this(name, width, height, channelNames, format, directory, false);
+    }
+
+    /**
+     * @param format format of the picture, with a tile size.
+     * @param directory the directory to create the files of the tiles in, or null to use the default temporary
+     *                  file directory.  The files are deleted when the program exits.
+     * @param spillTiles if true, released tiles that are stored in memory are written to files, and read back
+     *                   when they are next used.  Has no effect on tiles stored in memory mapped files.
+     */
+    public TiledPicture(String name, int width, int height, List<String> channelNames, PictureFormat format, File directory, boolean spillTiles) {
+        super(name, width, height, channelNames, getLayout(format));
+        if (!format.isTiled()) throw new IllegalArgumentException("The format of a tiled picture should have a tile size");
+        format.checkChannelCount(channelCount);
+
+        this.tileFormat = format.getTileFormat();
+        this.tileSize = format.getTileSize();
+        this.directory = directory;
+        this.spillTiles = spillTiles;
+        tileColumns = (width + tileSize - 1) / tileSize;
+        tileRows = (height + tileSize - 1) / tileSize;
+
+        final long tileCount = (long) tileColumns * tileRows;
+        if (tileCount > Integer.MAX_VALUE) throw new IllegalArgumentException("The tile size " + tileSize + " is too small for a picture of " + width + " x " + height + " pixels, it would have " + tileCount + " tiles");
+        tiles = new AtomicReferenceArray<Picture>((int) tileCount);
+        tileFiles = new File[(int) tileCount];
+
+        // Keep one row of tiles, so that reading the picture line by line reads each tile from disk only once
+        final int maxReadTiles = tileColumns;
+        readTiles = new LinkedHashMap<Integer, Picture>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Picture> eldest) {
+                return size() > maxReadTiles;
+            }
+        };
+    }
+
+    private static PictureLayout getLayout(PictureFormat format) {
+        ParameterChecker.checkNotNull(format, "format");
+        return format.getLayout();
+    }
+
+    /**
+     * @return width and height of the tiles.  The tiles at the right and bottom edges can be smaller.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileColumnCount() {
+        return tileColumns;
+    }
+
+    public int getTileRowCount() {
+        return tileRows;
+    }
+
+    public int getTileCount() {
+        return tiles.length();
+    }
+
+    /**
+     * @return true if released tiles that are stored in memory are written to files.
+     */
+    public boolean isSpillingTiles() {
+        return spillTiles;
+    }
+
+    /**
+     * @return the format of the tile pictures.
+     */
+    public PictureFormat getTileFormat() {
+        return tileFormat;
+    }
+
+    /**
+     * @return number of values in the picture, width * height * channel count.
+     */
+    public long getValueCount() {
+        return (long) width * height * channelCount;
+    }
+
+    /**
+     * @return index of the tile that contains the specified pixel.  Tiles are numbered row by row.
+     */
+    public int getTileIndex(int x, int y) {
+        return (y / tileSize) * tileColumns + x / tileSize;
+    }
+
+    /**
+     * @return the x column of the first pixel of the tile in the picture.
+     */
+    public int getTileX(int tileIndex) {
+        return (tileIndex % tileColumns) * tileSize;
+    }
+
+    /**
+     * @return the y row of the first pixel of the tile in the picture.
+     */
+    public int getTileY(int tileIndex) {
+        return (tileIndex / tileColumns) * tileSize;
+    }
+
+    public int getTileWidth(int tileIndex) {
+        return Math.min(tileSize, width - getTileX(tileIndex));
+    }
+
+    public int getTileHeight(int tileIndex) {
+        return Math.min(tileSize, height - getTileY(tileIndex));
+    }
+
+    /**
+     * @return the picture with the values of the tile.  Created, or mapped or read again from its file, if it is not in memory.
+     * @throws IllegalStateException if the file of the tile could not be created, mapped or read.
+     */
+    public Picture getTile(int tileIndex) {
+        final Picture tile = tiles.get(tileIndex);
+        if (tile != null) return tile;
+        else return loadTile(tileIndex);
+    }
+
+    /**
+     * @return true if the tile is in memory.
+     */
+    public synchronized boolean isTileLoaded(int tileIndex) {
+        return tiles.get(tileIndex) != null || readTiles.containsKey(tileIndex);
+    }
+
+    /**
+     * Writes the values of a tile stored in a file, or of a spilled tile, to the file, and releases the memory of the tile.
+     * Does nothing for other tiles, as their values would be lost.
+     *
+     * @throws IllegalStateException if a spilled tile could not be written to its file.
+     */
+    public synchronized void releaseTile(int tileIndex) {
+        // Tiles that were only read have the same values as their files
+        readTiles.remove(tileIndex);
+
+        final Picture tile = tiles.get(tileIndex);
+        if (tile == null) return;
+
+        if (tileFormat.getStorage() == PictureStorage.MAPPED) {
+            ((BufferPicture) tile).flush();
+            tiles.set(tileIndex, null);
+        }
+        else if (spillTiles) {
+            try {
+                writeTileFile(tileIndex, tile);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write tile " + tileIndex + " of the picture " + getName() + " to disk: " + e.getMessage(), e);
+            }
+            tiles.set(tileIndex, null);
+        }
+    }
+
+    /**
+     * @return the file the values of the tile are stored in, or null if the tile is not stored in a file,
+     *         or has not been created or spilled yet.
+     */
+    public synchronized File getTileFile(int tileIndex) {
+        return tileFiles[tileIndex];
+    }
+
+    /**
+     * Writes any changed values of tiles stored in files to the files.
+     */
+    public synchronized void flush() {
+        for (int i = 0; i < tiles.length(); i++) {
+            final Picture tile = tiles.get(i);
+            if (tile instanceof BufferPicture) ((BufferPicture) tile).flush();
+        }
+    }
+
+    private synchronized Picture loadTile(int tileIndex) {
+        // Another thread may have loaded the tile while we waited
+        Picture tile = tiles.get(tileIndex);
+        if (tile != null) return tile;
+
+        // A tile that was read back by getPixel can be changed from now on, so it is written again when released
+        tile = readTiles.remove(tileIndex);
+        if (tile == null) tile = createTile(tileIndex);
+
+        tiles.set(tileIndex, tile);
+        return tile;
+    }
+
+    /**
+     * @param keep if true, a spilled tile is kept in memory until a newer row of tiles has been read,
+     *             otherwise it is read from disk again on the next call.
+     * @return the tile with the values of a spilled tile read back from disk, without keeping the tile in memory
+     *         until it is released.  Other tiles are loaded as usual.
+     */
+    private Picture getTileForReading(int tileIndex, boolean keep) {
+        final Picture tile = tiles.get(tileIndex);
+        if (tile != null) return tile;
+        else return loadTileForReading(tileIndex, keep);
+    }
+
+    private synchronized Picture loadTileForReading(int tileIndex, boolean keep) {
+        Picture tile = tiles.get(tileIndex);
+        if (tile != null) return tile;
+
+        if (tileFormat.getStorage() == PictureStorage.MAPPED || tileFiles[tileIndex] == null) return loadTile(tileIndex);
+
+        tile = readTiles.get(tileIndex);
+        if (tile == null) {
+            tile = createTile(tileIndex);
+            if (keep) readTiles.put(tileIndex, tile);
+        }
+        return tile;
+    }
+
+    private Picture createTile(int tileIndex) {
+        Picture tile;
+        final String tileName = getName() + " tile " + tileIndex;
+        final int tileWidth = getTileWidth(tileIndex);
+        final int tileHeight = getTileHeight(tileIndex);
+        final List<String> channelNames = getChannelNames();
+        switch (tileFormat.getStorage()) {
+            case HEAP:
+                if (tileFormat.usesBuffer()) tile = BufferPicture.allocate(tileName, tileWidth, tileHeight, channelNames, tileFormat);
+                else tile = new PictureImpl(tileName, tileWidth, tileHeight, channelNames, layout);
+                break;
+            case DIRECT:
+                tile = BufferPicture.allocate(tileName, tileWidth, tileHeight, channelNames, tileFormat);
+                break;
+            case MAPPED:
+                try {
+                    tile = BufferPicture.map(getOrCreateTileFile(tileIndex), tileName, tileWidth, tileHeight, channelNames, tileFormat);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not map the file for tile " + tileIndex + " of the picture " + getName() + ": " + e.getMessage(), e);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown picture storage " + tileFormat.getStorage());
+        }
+
+        // Read back the values of a spilled tile
+        if (tileFormat.getStorage() != PictureStorage.MAPPED && tileFiles[tileIndex] != null) {
+            try {
+                readTileFile(tileIndex, tile);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read tile " + tileIndex + " of the picture " + getName() + " from disk: " + e.getMessage(), e);
+            }
+        }
+
+        return tile;
+    }
+
+    private File getOrCreateTileFile(int tileIndex) throws IOException {
+        if (tileFiles[tileIndex] == null) {
+            tileFiles[tileIndex] = File.createTempFile("rasterfun-", ".tile", directory);
+            tileFiles[tileIndex].deleteOnExit();
+        }
+        return tileFiles[tileIndex];
+    }
+
+    private void writeTileFile(int tileIndex, Picture tile) throws IOException {
+        final ByteBuffer bytes;
+        if (tile.getBuffer() != null) {
+            // Use a view of the buffer, so that the position of the buffer itself is not changed
+            bytes = tile.getBuffer().duplicate();
+            bytes.clear();
+        }
+        else {
+            final float[] data = tile.getData();
+            bytes = ByteBuffer.allocate(data.length * 4).order(ByteOrder.nativeOrder());
+            bytes.asFloatBuffer().put(data);
+        }
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(getOrCreateTileFile(tileIndex), "rw");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            long position = 0;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void readTileFile(int tileIndex, Picture tile) throws IOException {
+        final ByteBuffer bytes;
+        if (tile.getBuffer() != null) {
+            bytes = tile.getBuffer().duplicate();
+            bytes.clear();
+        }
+        else {
+            bytes = ByteBuffer.allocate(tile.getData().length * 4).order(ByteOrder.nativeOrder());
+        }
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(tileFiles[tileIndex], "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            long position = 0;
+            while (bytes.hasRemaining()) {
+                final int readBytes = channel.read(bytes, position);
+                if (readBytes < 0) throw new IOException("The file " + tileFiles[tileIndex] + " ends before the values of the tile");
+                position += readBytes;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (tile.getBuffer() == null) {
+            bytes.flip();
+            bytes.asFloatBuffer().get(tile.getData());
+        }
+    }
+
+    /**
+     * @return null, the values are stored in the tiles.
+     */
+    @Override
+    public float[] getData() {
+        return null;
+    }
+
+    /**
+     * @return null, the values are stored in the tiles.
+     */
+    @Override
+    public ByteBuffer getBuffer() {
+        return null;
+    }
+
+    /**
+     * @return where the values of the tiles are stored.
+     */
+    @Override
+    public PictureStorage getStorage() {
+        return tileFormat.getStorage();
+    }
+
+    @Override
+    public ChannelType getChannelType(int channelIndex) {
+        return tileFormat.getChannelType(channelIndex);
+    }
+
+    /**
+     * @throws IllegalStateException if the channel has more values than fit in an array.
+     */
+    @Override
+    public float[] copyChannel(int channelIndex, float[] target) {
+        if ((long) width * height > Integer.MAX_VALUE) throw new IllegalStateException("The picture has too many pixels to copy a channel to an array, copy the channels of the tiles instead");
+        target = prepareChannelCopy(channelIndex, target);
+
+        float[] tileValues = null;
+        for (int i = 0; i < tiles.length(); i++) {
+            tileValues = getTileForReading(i, false).copyChannel(channelIndex, tileValues);
+
+            // Copy the lines of the tile to the target
+            final int tileX = getTileX(i);
+            final int tileY = getTileY(i);
+            final int tileWidth = getTileWidth(i);
+            final int tileHeight = getTileHeight(i);
+            for (int y = 0; y < tileHeight; y++) {
+                System.arraycopy(tileValues, y * tileWidth, target, (tileY + y) * width + tileX, tileWidth);
+            }
+        }
+
+        return target;
+    }
+
+    @Override
+    public float getPixel(int channelIndex, int x, int y) {
+        return getTileForReading(getTileIndex(x, y), true).getPixel(channelIndex, x % tileSize, y % tileSize);
+    }
+
+    @Override
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        getTile(getTileIndex(x, y)).setPixel(channelIndex, x % tileSize, y % tileSize, value);
+    }
+
+}
@@ -19,7 +19,9 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Swing panel that shows the pictures generated by a specified generator.
@@ -127,6 +129,15 @@ public final class PicturePreviewerImpl implements PicturePreviewer {
             }
         }
 
+        @Override
+        public void onPictureRefined(final int calculationIndex, int pictureIndex, Picture picture, int stride) {
+            if (calculationIndex == ongoingCalculationIndex) {
+                // Show the roughly drawn picture until it is ready
+                arranger.setPreview(calculationIndex, pictureIndex, picture);
+                reRender();
+            }
+        }
+
         @Override
         public void onPictureReady(final int calculationIndex, int pictureIndex, Picture picture) {
             if (calculationIndex == ongoingCalculationIndex) {
@@ -164,17 +175,20 @@ public final class PicturePreviewerImpl implements PicturePreviewer {
         @Override
         public void onZoomChanged(ZoomLevel zoomLevel) {
             zoomCombo.setSelectedItem(zoomLevel);
+            updateVisiblePictures();
             reRender();
         }
 
         @Override
         public void onCenterChanged(double centerX, double centerY) {
+            updateVisiblePictures();
             reRender();
         }
 
         @Override
         public void onLayoutUpdated(ZoomLevel zoomLevel, double centerX, double centerY) {
             zoomCombo.setSelectedItem(zoomLevel);
+            updateVisiblePictures();
             reRender();
         }
     };
@@ -323,10 +337,10 @@ public final class PicturePreviewerImpl implements PicturePreviewer {
     }
 
     private void reGenerate() {
-        // Stop any earlier calculations if they are running
+        // Stop any earlier calculations if they are running, their pictures are not reused
         if (calculations != null) {
             calculations.removeListener(calculationsListener);
-            calculations.stop();
+            calculations.stopAndReleasePictures();
             calculations = null;
         }
 
@@ -340,9 +354,15 @@ public final class PicturePreviewerImpl implements PicturePreviewer {
             calculations = generator.generatePicturesWithoutStarting(pictures, previews);
             calculations.addListener(calculationsListener);
 
+            // Show coarse versions of the pictures while they are refined
+            calculations.setProgressive(true);
+
             // (Re)layout if needed
             arranger.setContentInfo(calculations.getRendererBuilders());
 
+            // Render the pictures in view first
+            updateVisiblePictures();
+
             // Start calculating
             calculations.start(++ongoingCalculationIndex);
         }
@@ -355,6 +375,17 @@ public final class PicturePreviewerImpl implements PicturePreviewer {
         reRender();
     }
 
+    private void updateVisiblePictures() {
+        if (calculations != null) {
+            final Set<Integer> visiblePictures = new HashSet<Integer>();
+            final int pictureCount = calculations.getRendererBuilders().size();
+            for (int pictureIndex = 0; pictureIndex < pictureCount; pictureIndex++) {
+                if (arranger.isPictureVisible(pictureIndex)) visiblePictures.add(pictureIndex);
+            }
+            calculations.setVisiblePictures(visiblePictures);
+        }
+    }
+
     private void setStatusBarMessage(final String message) {
         statusBar.setText("  " + message);
     }
@@ -48,6 +48,11 @@ public interface Arranger extends FastImageRenderer {
      */
     void setPicture(int calculationIndex, int pictureIndex, Picture picture);
 
+    /**
+     * @return true if some part of the picture with the specified index is inside the current view.
+     */
+    boolean isPictureVisible(int pictureIndex);
+
     Color getBackgroundColor();
 
     List<ZoomLevel> getZoomLevels();
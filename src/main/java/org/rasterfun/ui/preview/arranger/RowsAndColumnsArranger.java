@@ -56,22 +56,6 @@ public class RowsAndColumnsArranger extends ArrangerBase {
         final int fontHeight = g2.getFontMetrics().getHeight();
         */
 
-        // Calculate some layout values
-        int scaledPaddingX = (int) (paddingX * scale);
-        int scaledPaddingY = (int) (paddingY * scale);
-        int scaledTextPaddingY = (int) (textPaddingY * scale);
-        int scaledTextAreaHeight = (int) (textAreaHeight * scale);
-        int scaledMaxPicW  = (int) (maxPicW * scale);
-        int scaledMaxPicH  = (int) (maxPicH * scale);
-
-        int scaledColumnW = 2 * scaledPaddingX + scaledMaxPicW;
-        int scaledRowH    = 2 * scaledPaddingX + scaledMaxPicH + scaledTextPaddingY + scaledTextAreaHeight;
-
-        int scaledTotalH = rows * scaledRowH;
-        int scaledTotalW = columns * scaledColumnW;
-        int scaledX1 = (int)( -0.5 * scaledTotalW - centerX * scale + 0.5 * getViewWidth());
-        int scaledY1 = (int)( -0.5 * scaledTotalH - centerY * scale + 0.5 * getViewHeight());
-
         // Only draw the labels if they fit
         boolean drawLabels = false; /* fontHeight <= scaledTextAreaHeight; */
 
@@ -87,18 +71,11 @@ public class RowsAndColumnsArranger extends ArrangerBase {
 
                     final Picture picture = getPictureOrPreviewOrNull(pictureIndex);
                     if (picture != null) {
-                        final RendererBuilder builder = getBuilder(pictureIndex);
-
                         // Calculate picture position and size on the target image
-                        int targetPicW = (int) (builder.getWidth()  * scale);
-                        int targetPicH = (int) (builder.getHeight() * scale);
-                        int targetPicX = scaledX1 + scaledColumnW * column + scaledPaddingX + (scaledMaxPicW - targetPicW) / 2;
-                        int targetPicY = scaledY1 + scaledRowH    * row    + scaledPaddingY + (scaledMaxPicH - targetPicH) / 2;
-                        int targetPicX2 = targetPicX + targetPicW;
-                        int targetPicY2 = targetPicY + targetPicH;
+                        final Rectangle area = getPictureArea(row, column, getBuilder(pictureIndex), centerX, centerY, scale);
 
                         // Draw the image
-                        drawer.draw(target, targetPicX, targetPicY, targetPicX2, targetPicY2,
+                        drawer.draw(target, area.x, area.y, area.x + area.width, area.y + area.height,
                                     picture, 0, 0, picture.getWidth(), picture.getHeight());
 
                         /*
@@ -122,6 +99,48 @@ public class RowsAndColumnsArranger extends ArrangerBase {
 
     }
 
+    @Override
+    public boolean isPictureVisible(int pictureIndex) {
+        if (pictureIndex < 0 || pictureIndex >= getPictureCount()) return false;
+
+        final Rectangle area = getPictureArea(pictureIndex / columns,
+                                              pictureIndex % columns,
+                                              getBuilder(pictureIndex),
+                                              getCenterX(),
+                                              getCenterY(),
+                                              getScale());
+        return area.intersects(0, 0, getViewWidth(), getViewHeight());
+    }
+
+    /**
+     * @return the area that the picture at the specified row and column covers in the view.
+     */
+    private Rectangle getPictureArea(int row, int column, RendererBuilder builder, double centerX, double centerY, double scale) {
+        // Calculate some layout values
+        int scaledPaddingX = (int) (paddingX * scale);
+        int scaledPaddingY = (int) (paddingY * scale);
+        int scaledTextPaddingY = (int) (textPaddingY * scale);
+        int scaledTextAreaHeight = (int) (textAreaHeight * scale);
+        int scaledMaxPicW  = (int) (maxPicW * scale);
+        int scaledMaxPicH  = (int) (maxPicH * scale);
+
+        int scaledColumnW = 2 * scaledPaddingX + scaledMaxPicW;
+        int scaledRowH    = 2 * scaledPaddingX + scaledMaxPicH + scaledTextPaddingY + scaledTextAreaHeight;
+
+        int scaledTotalH = rows * scaledRowH;
+        int scaledTotalW = columns * scaledColumnW;
+        int scaledX1 = (int)( -0.5 * scaledTotalW - centerX * scale + 0.5 * getViewWidth());
+        int scaledY1 = (int)( -0.5 * scaledTotalH - centerY * scale + 0.5 * getViewHeight());
+
+        // Calculate picture position and size
+        int targetPicW = (int) (builder.getWidth()  * scale);
+        int targetPicH = (int) (builder.getHeight() * scale);
+        int targetPicX = scaledX1 + scaledColumnW * column + scaledPaddingX + (scaledMaxPicW - targetPicW) / 2;
+        int targetPicY = scaledY1 + scaledRowH    * row    + scaledPaddingY + (scaledMaxPicH - targetPicH) / 2;
+
+        return new Rectangle(targetPicX, targetPicY, targetPicW, targetPicH);
+    }
+
     protected void calculateLayout() {
 
         // Calculate max picture size
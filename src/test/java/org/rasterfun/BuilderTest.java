@@ -2,15 +2,49 @@ package org.rasterfun;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.rasterfun.core.ArrayRenderer;
+import org.rasterfun.core.BufferRenderer;
+import org.rasterfun.core.CalculationExecutors;
+import org.rasterfun.core.MemoryBudget;
 import org.rasterfun.core.PictureCalculations;
+import org.rasterfun.core.compiler.BytecodeBackend;
 import org.rasterfun.core.compiler.CompilationException;
+import org.rasterfun.core.compiler.JaninoBackend;
+import org.rasterfun.core.Renderer;
+import org.rasterfun.core.RenderProgress;
+import org.rasterfun.core.compiler.RendererBatch;
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.RendererCache;
+import org.rasterfun.core.compiler.RendererDiskCache;
+import org.rasterfun.core.compiler.SourceLocation;
+import org.rasterfun.core.compiler.UpdateFrequency;
+import org.rasterfun.core.compiler.expression.Expr;
+import org.rasterfun.core.compiler.expression.Expressions;
+import org.rasterfun.core.listeners.PictureCalculationsEventDispatcher;
 import org.rasterfun.core.listeners.PictureCalculationsListener;
 import org.rasterfun.core.listeners.PictureCalculationsListenerAdapter;
+import org.rasterfun.core.tasks.PrioritizedTask;
+import org.rasterfun.core.tasks.TileScheduler;
+import org.rasterfun.picture.BufferPicture;
+import org.rasterfun.picture.ChannelType;
 import org.rasterfun.picture.Picture;
+import org.rasterfun.picture.PictureFormat;
+import org.rasterfun.picture.PictureImpl;
+import org.rasterfun.picture.PictureLayout;
+import org.rasterfun.picture.PictureStorage;
+import org.rasterfun.picture.RgbPictureDrawer;
+import org.rasterfun.picture.TiledPicture;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -151,10 +185,68 @@ public class BuilderTest {
         assertFalse("onReady should not have been called", readyCalled[0]);
     }
 
+    @Test
+    public void testCompilationErrorCancelsRendering() throws Exception {
+        rendererBuilder.addPixelCalculationLine("this is not java;\n");
+
+        final boolean[] errorReported = {false};
+        final PictureCalculations calculation = new PictureCalculations(rendererBuilder);
+        calculation.addListener(new PictureCalculationsListenerAdapter() {
+            @Override
+            public void onError(int calculationIndex, String shortDescription, String longDescription, Throwable cause) {
+                errorReported[0] = true;
+            }
+        });
+        calculation.start();
+
+        // Waiting should return, as the render slices were cancelled instead of run
+        calculation.getPicturesAndWait();
+        assertTrue("The calculation should be done", calculation.isDone());
+        assertTrue("An error should have been reported", errorReported[0]);
+    }
+
+    @Test
+    public void testTileScheduler() {
+        final TileScheduler scheduler = new TileScheduler(10, 1010, 4, 1000);
+
+        // Single rows until the cost is known
+        TileScheduler.Tile tile = scheduler.nextTile();
+        assertEquals(10, tile.getStartY());
+        assertEquals(1, tile.getRowCount());
+
+        // Tiles adapt to the cost of the rows
+        scheduler.reportTile(1, 100);
+        tile = scheduler.nextTile();
+        assertEquals(11, tile.getStartY());
+        assertEquals("The tile should take about the target time", 10, tile.getRowCount());
+
+        // Cheaper rows give larger tiles, but leave work for the other tasks
+        for (int i = 0; i < 20; i++) {
+            scheduler.reportTile(10, 10);
+        }
+        tile = scheduler.nextTile();
+        assertEquals(21, tile.getStartY());
+        assertEquals("The tile should leave rows for the other tasks", 989 / 8, tile.getRowCount());
+
+        // All rows are handed out once
+        int nextY = tile.getEndY();
+        while ((tile = scheduler.nextTile()) != null) {
+            assertEquals("Tiles should follow each other", nextY, tile.getStartY());
+            assertTrue("Tiles should not be empty", tile.getRowCount() > 0);
+            nextY = tile.getEndY();
+        }
+        assertEquals(1010, nextY);
+
+        // No tiles after aborting
+        final TileScheduler abortedScheduler = new TileScheduler(0, 10, 1);
+        abortedScheduler.abort();
+        assertNull(abortedScheduler.nextTile());
+    }
+
     @Test
     public void testStop() throws CompilationException {
-        // Create builder with sleep
-        rendererBuilder.addPixelCalculationLine("        try {\n" +
+        // Create builder with sleep, a running calculation stops after the current row
+        rendererBuilder.addSourceLine(SourceLocation.BEFORE_LINE, "        try {\n" +
                                                   "            Thread.sleep(10);\n" +
                                                   "        } \n" +
                                                   "        catch (InterruptedException e) {\n" +
@@ -182,6 +274,907 @@ public class BuilderTest {
         assertTrue("The calculation should have stopped now", calculation.isDone());
     }
 
+    @Test
+    public void testStopCancelsQueuedWork() throws Exception {
+        final CalculationExecutors executors = new CalculationExecutors(1, 1);
+
+        // Occupy the only compile thread, so that the compilation of the calculation is queued
+        final CountDownLatch release = new CountDownLatch(1);
+        executors.getCompileExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return release.await(5, TimeUnit.SECONDS);
+            }
+        });
+
+        final boolean[] pictureReady = {false};
+        final PictureCalculations calculation = new PictureCalculations(rendererBuilder);
+        calculation.setExecutors(executors);
+        calculation.addListener(new PictureCalculationsListenerAdapter() {
+            @Override
+            public void onPictureReady(int calculationIndex, int pictureIndex, Picture picture) {
+                pictureReady[0] = true;
+            }
+        });
+        calculation.start();
+        assertFalse("The calculation should wait for its compilation", calculation.isDone());
+
+        // Stopping should cancel the queued compilation and the slices waiting for it
+        calculation.stop();
+        assertTrue("The calculation should be done once stopped", calculation.isDone());
+
+        release.countDown();
+        delay(50);
+        assertFalse("Nothing should have been rendered", pictureReady[0]);
+
+        executors.shutdown();
+    }
+
+    @Test
+    public void testRenderProgress() throws Exception {
+        // Progress should be counted for each picture, also in progressive rendering
+        final RendererBuilder smallBuilder = new RendererBuilder("Small", 30, 20, channelsList("roses", "violets"), channelsList(), 0, 1);
+        for (boolean progressive : new boolean[]{false, true}) {
+            final PictureCalculations calculation = new PictureCalculations(Arrays.asList(rendererBuilder, smallBuilder));
+            calculation.setProgressive(progressive);
+            assertEquals("There should be no progress before starting", 0f, calculation.getProgress(), 0f);
+
+            calculation.start();
+            calculation.getPicturesAndWait();
+
+            final RenderProgress progress = calculation.getRenderProgress();
+            assertEquals("All pixels should be calculated", 100 * 100 + 30 * 20, progress.getCompletedPixels());
+            assertEquals("The pixels of the first picture should be counted", 100 * 100, progress.getCompletedPixels(0));
+            assertEquals("The pixels of the second picture should be counted", 30 * 20, progress.getCompletedPixels(1));
+            assertEquals("The calculation should be complete", 1f, calculation.getProgress(), 0f);
+            assertEquals("The second picture should be complete", 1f, calculation.getProgress(1), 0f);
+        }
+
+        // The counts should not overflow, and the counts of all threads should be included
+        final long pixelsPerThread = 3000000000L;
+        final RenderProgress progress = new RenderProgress(new long[]{4 * pixelsPerThread, 1});
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 3; j++) {
+                        progress.addCompletedPixels(0, pixelsPerThread / 3);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals("The pixels of all threads should be counted", 4 * pixelsPerThread, progress.getCompletedPixels(0));
+        assertEquals("The total should include all pictures", 4 * pixelsPerThread, progress.getCompletedPixels());
+        assertEquals("The other picture should have no progress", 0f, progress.getProgress(1), 0f);
+        assertEquals("The progress should be relative to all pixels", 4 * pixelsPerThread / (4 * pixelsPerThread + 1f), progress.getProgress(), 0.0001f);
+    }
+
+    @Test
+    public void testExecutors() throws Exception {
+        final CalculationExecutors executors = new CalculationExecutors(1, 3);
+        assertEquals(1, executors.getCompileThreadCount());
+        assertEquals(3, executors.getRenderThreadCount());
+
+        // All render threads should be used at the same time when there is enough work queued
+        final CountDownLatch allStarted = new CountDownLatch(3);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(executors.getRenderExecutor().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    allStarted.countDown();
+                    return allStarted.await(5, TimeUnit.SECONDS);
+                }
+            }));
+        }
+        for (Future<Boolean> future : futures) {
+            assertTrue("The render tasks should run in parallel", future.get());
+        }
+
+        // Calculations should use the executors they are given
+        rendererBuilder.addChannelAssignment("roses", "Thread.currentThread().getName().startsWith(\"rasterfun-render-\") ? 1 : 0");
+        final PictureCalculations calculation = new PictureCalculations(rendererBuilder);
+        calculation.setExecutors(executors);
+        calculation.start();
+        final Picture picture = calculation.getPicturesAndWait().get(0);
+        assertPixelCorrect(picture, "roses", 0, 0, 1);
+        assertPixelCorrect(picture, "roses", 99, 99, 1);
+
+        try {
+            calculation.setExecutors(CalculationExecutors.getDefault());
+            fail("The executors should not be changeable after the calculation is started");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        executors.shutdown();
+    }
+
+    @Test
+    public void testRenderPriorities() throws Exception {
+        final CalculationExecutors executors = new CalculationExecutors(1, 1);
+
+        // Occupy the only render thread, so that the following tasks are queued
+        final CountDownLatch release = new CountDownLatch(1);
+        executors.getRenderExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return release.await(5, TimeUnit.SECONDS);
+            }
+        });
+
+        final List<String> executionOrder = Collections.synchronizedList(new ArrayList<String>());
+        final int[] priorities = {0, 0, 1, 0};
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < priorities.length; i++) {
+            final int taskIndex = i;
+            final PrioritizedTask<Boolean> task = new PrioritizedTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return executionOrder.add("task" + taskIndex);
+                }
+            }) {
+                @Override
+                public int getPriority() {
+                    return priorities[taskIndex];
+                }
+            };
+            executors.getRenderExecutor().execute(task);
+            futures.add(task);
+        }
+
+        // Changed priorities take effect after reprioritizing
+        priorities[3] = 2;
+        executors.reprioritize();
+
+        release.countDown();
+        for (Future<Boolean> future : futures) {
+            future.get();
+        }
+
+        assertEquals("Higher priorities should run first, equal priorities in order",
+                     Arrays.asList("task3", "task2", "task0", "task1"), executionOrder);
+
+        executors.shutdown();
+    }
+
+    @Test
+    public void testProgressiveRendering() throws Exception {
+        rendererBuilder = new RendererBuilder("TestPic", 37, 23, channelsList("roses", "violets"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("roses", "x + y * 100");
+        rendererBuilder.addChannelAssignment("violets", "relX * 3 + relY");
+
+        final PictureCalculations normalCalculation = new PictureCalculations(rendererBuilder);
+        normalCalculation.start();
+        final Picture expected = normalCalculation.getPicturesAndWait().get(0);
+
+        for (boolean bytecode : new boolean[]{false, true}) {
+            final List<Integer> refinedStrides = Collections.synchronizedList(new ArrayList<Integer>());
+            final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+            final PictureCalculations calculation = new PictureCalculations(rendererBuilder);
+            if (bytecode) calculation.setRendererBackend(new BytecodeBackend());
+            calculation.setProgressive(true);
+            calculation.addListener(new PictureCalculationsListenerAdapter() {
+                @Override
+                public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int stride) {
+                    refinedStrides.add(stride);
+
+                    // Each pixel should have the value of the calculated pixel of its block,
+                    // or of a smaller block if a later pass has already reached it
+                    for (int y = 0; y < picture.getHeight(); y++) {
+                        for (int x = 0; x < picture.getWidth(); x++) {
+                            final float value = picture.getPixel("roses", x, y);
+                            boolean blockValue = false;
+                            for (int blockSize = stride; blockSize >= 1; blockSize /= 2) {
+                                if (value == expected.getPixel("roses", x / blockSize * blockSize, y / blockSize * blockSize)) blockValue = true;
+                            }
+                            if (!blockValue) errors.add("Stride " + stride + " at " + x + ", " + y + ": " + value);
+                        }
+                    }
+                }
+            });
+            calculation.start();
+            final Picture picture = calculation.getPicturesAndWait().get(0);
+
+            assertEquals("The passes should be reported from coarse to fine", Arrays.asList(16, 8, 4, 2), refinedStrides);
+            assertEquals("The coarse passes should fill the picture", Collections.<String>emptyList(), errors);
+            assertNull("No previews are rendered in progressive mode", calculation.getPreviews().get(0));
+            assertArrayEquals("The progressive result should be the same as the normal one", expected.getData(), picture.getData(), 0f);
+        }
+    }
+
+    @Test
+    public void testEventDispatching() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final PictureCalculationsListener recorder = new PictureCalculationsListenerAdapter() {
+            @Override
+            public void onProgress(int calculationIndex, float progress) {
+                events.add("progress " + progress);
+                threads.add(Thread.currentThread().getName());
+            }
+
+            @Override
+            public void onReady(int calculationIndex, List<Picture> pictures) {
+                events.add("ready");
+                threads.add(Thread.currentThread().getName());
+            }
+        };
+
+        // Progress reported in quick succession should be merged, and delivered before the next event
+        final CalculationExecutors executors = new CalculationExecutors(1, 1);
+        try {
+            final PictureCalculationsEventDispatcher dispatcher = new PictureCalculationsEventDispatcher(recorder, executors.getEventExecutor(), 10000);
+            for (int i = 1; i <= 100; i++) {
+                dispatcher.onProgress(TEST_CALCULATION_INDEX, i / 100f);
+            }
+            dispatcher.onProgress(TEST_CALCULATION_INDEX, 0.5f);
+            dispatcher.onReady(TEST_CALCULATION_INDEX, Collections.<Picture>emptyList());
+            dispatcher.awaitDelivery();
+
+            assertTrue("The progress should be merged, but got " + events, events.size() <= 3);
+            assertEquals("The latest progress should be delivered before the next event",
+                         Arrays.asList("progress 1.0", "ready"), events.subList(events.size() - 2, events.size()));
+            for (String thread : threads) {
+                assertTrue("The events should be delivered in the event thread", thread.startsWith("rasterfun-events-"));
+            }
+
+            // Changed progress should be summed when it is delivered
+            events.clear();
+            final RenderProgress renderProgress = new RenderProgress(new long[]{100});
+            for (int i = 0; i < 100; i++) {
+                renderProgress.addCompletedPixels(0, 1);
+                dispatcher.onProgressChanged(TEST_CALCULATION_INDEX, renderProgress);
+            }
+            dispatcher.onReady(TEST_CALCULATION_INDEX, Collections.<Picture>emptyList());
+            dispatcher.awaitDelivery();
+
+            assertEquals("The changed progress should be summed and delivered before the next event",
+                         Arrays.asList("progress 1.0", "ready"), events);
+        } finally {
+            executors.shutdown();
+        }
+
+        // Calculations should not call the listeners from the render threads
+        events.clear();
+        threads.clear();
+        final PictureCalculations calculation = new PictureCalculations(rendererBuilder);
+        calculation.addListener(recorder);
+        calculation.start();
+        calculation.getPicturesAndWait();
+
+        assertEquals("The listener should have been notified before getPicturesAndWait returns", "ready", events.get(events.size() - 1));
+        for (String thread : threads) {
+            assertTrue("The events should be delivered in the event thread", thread.startsWith("rasterfun-events-"));
+        }
+    }
+
+    @Test
+    public void testPlanarLayout() throws Exception {
+        final List<RendererBuilder> builders = new ArrayList<RendererBuilder>();
+        for (PictureLayout layout : PictureLayout.values()) {
+            final RendererBuilder builder = new RendererBuilder("TestPic", 37, 23, channelsList("roses", "violets"), channelsList(), 0, 1, new PictureFormat(layout));
+            builder.addVariable(SourceLocation.AT_PIXEL, "rose", Expressions.add(Expressions.variable("x", Integer.class),
+                                                                                Expressions.mul(Expressions.variable("y", Integer.class), Expressions.constant(100))), true);
+            builder.addChannelAssignment("roses", "rose");
+            builder.addChannelAssignment("violets", "relX");
+            builders.add(builder);
+        }
+        assertTrue("The planar renderer should be created without compiling", new BytecodeBackend().canCreateDirectly(builders.get(1)));
+
+        final Picture expected = renderPicture(builders.get(0));
+        for (boolean bytecode : new boolean[]{false, true}) {
+            for (boolean progressive : new boolean[]{false, true}) {
+                final PictureCalculations calculation = new PictureCalculations(builders.get(1));
+                if (bytecode) calculation.setRendererBackend(new BytecodeBackend());
+                calculation.setProgressive(progressive);
+                calculation.start();
+                final Picture picture = calculation.getPicturesAndWait().get(0);
+
+                assertEquals("The picture should have the layout of the builder", PictureLayout.PLANAR, picture.getLayout());
+                for (int c = 0; c < 2; c++) {
+                    for (int y = 0; y < 23; y++) {
+                        for (int x = 0; x < 37; x++) {
+                            assertEquals(expected.getPixel(c, x, y), picture.getPixel(c, x, y), 0f);
+                        }
+                    }
+                    assertArrayEquals("The channels should be the same in both layouts", expected.copyChannel(c, null), picture.copyChannel(c, null), 0f);
+                }
+                assertEquals("The first plane should have the first channel", 5 + 100, picture.getData()[37 + 5], 0f);
+                assertEquals("The second plane should follow the first", 5f / 36, picture.getData()[37 * 23 + 37 + 5], 0.0001f);
+            }
+        }
+
+        // The drawer should draw both layouts the same way
+        final int[] expectedImage = new int[37 * 23];
+        final int[] planarImage = new int[37 * 23];
+        new RgbPictureDrawer().draw(expectedImage, 37, 23, 0, 0, 37, 23, expected, 0, 0, 37, 23);
+        new RgbPictureDrawer().draw(planarImage, 37, 23, 0, 0, 37, 23, renderPicture(builders.get(1)), 0, 0, 37, 23);
+        assertArrayEquals(expectedImage, planarImage);
+    }
+
+    @Test
+    public void testBufferStorage() throws Exception {
+        final File directory = createTempDirectory();
+        try {
+            for (PictureLayout layout : PictureLayout.values()) {
+                final RendererBuilder heapBuilder = createTestBuilder(new PictureFormat(layout, PictureStorage.HEAP));
+                final Picture expected = renderPicture(heapBuilder);
+
+                for (PictureStorage storage : new PictureStorage[]{PictureStorage.DIRECT, PictureStorage.MAPPED}) {
+                    final RendererBuilder builder = createTestBuilder(new PictureFormat(layout, storage));
+                    for (boolean progressive : new boolean[]{false, true}) {
+                        final PictureCalculations calculation = new PictureCalculations(builder);
+                        calculation.setRendererBackend(new BytecodeBackend());
+                        calculation.setProgressive(progressive);
+                        calculation.setMappedPictureDirectory(directory);
+                        calculation.start();
+                        final BufferPicture picture = (BufferPicture) calculation.getPicturesAndWait().get(0);
+
+                        assertEquals(storage, picture.getStorage());
+                        assertNull("Buffer pictures have no array", picture.getData());
+                        for (int c = 0; c < 2; c++) {
+                            assertArrayEquals("The values should be the same as in a heap picture, " + layout + " " + storage,
+                                              expected.copyChannel(c, null), picture.copyChannel(c, null), 0f);
+                        }
+
+                        if (storage == PictureStorage.MAPPED) {
+                            // The values should be in the file
+                            assertEquals(directory, picture.getFile().getParentFile());
+                            picture.flush();
+                            final BufferPicture reopened = BufferPicture.map(picture.getFile(), "Reopened", 37, 23, channelsList("roses", "violets"), new PictureFormat(layout, PictureStorage.MAPPED));
+                            assertArrayEquals(expected.copyChannel(1, null), reopened.copyChannel(1, null), 0f);
+                        }
+                        else {
+                            assertNull(picture.getFile());
+                            final Picture preview = calculation.getPreviews().get(0);
+                            assertTrue("The preview should be stored the same way", preview == null || preview.getStorage() == PictureStorage.DIRECT);
+                        }
+
+                        // The drawer should draw the picture the same way
+                        final int[] expectedImage = new int[37 * 23];
+                        final int[] bufferImage = new int[37 * 23];
+                        new RgbPictureDrawer().draw(expectedImage, 37, 23, 0, 0, 37, 23, expected, 0, 0, 37, 23);
+                        new RgbPictureDrawer().draw(bufferImage, 37, 23, 0, 0, 37, 23, picture, 0, 0, 37, 23);
+                        assertArrayEquals(expectedImage, bufferImage);
+                    }
+
+                    // The renderer only supports its own storage
+                    final Renderer renderer = builder.compilePixelCalculator(null, null, new JaninoBackend());
+                    assertTrue("A renderer for buffers should render to buffers", renderer instanceof BufferRenderer);
+                    assertFalse("A renderer for buffers should not render to arrays", renderer instanceof ArrayRenderer);
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testChannelTypes() throws Exception {
+        final List<String> channels = channelsList("f", "h", "u16", "u8", "id");
+        final List<ChannelType> types = Arrays.asList(ChannelType.FLOAT, ChannelType.HALF, ChannelType.UNORM16, ChannelType.UNORM8, ChannelType.INT);
+        final String[] expressions = {"relX * 3.7f - relY", "relX * 3.7f - relY", "relX * 1.2f - 0.1f", "relX + relY * 0.5f", "x * 3 + y * 1000"};
+
+        for (PictureLayout layout : PictureLayout.values()) {
+            final Picture floats = renderPicture(createTestBuilder(new PictureFormat(layout), channels, expressions));
+
+            for (PictureStorage storage : new PictureStorage[]{PictureStorage.HEAP, PictureStorage.DIRECT}) {
+                for (boolean progressive : new boolean[]{false, true}) {
+                    final PictureCalculations calculation = new PictureCalculations(createTestBuilder(new PictureFormat(layout, storage, types), channels, expressions));
+                    calculation.setProgressive(progressive);
+                    calculation.start();
+                    final Picture picture = calculation.getPicturesAndWait().get(0);
+
+                    // The values are stored in the types of the channels
+                    assertNull(picture.getData());
+                    assertEquals("The picture should take less memory", 37 * 23 * (4 + 2 + 2 + 1 + 4), picture.getBuffer().capacity());
+                    for (int c = 0; c < types.size(); c++) {
+                        assertEquals(types.get(c), picture.getChannelType(c));
+                    }
+
+                    // The values should be the calculated floats, converted to the channel types
+                    for (int y = 0; y < 23; y++) {
+                        for (int x = 0; x < 37; x++) {
+                            final String at = " at " + x + ", " + y + " " + layout + " " + storage;
+                            assertEquals("float" + at, floats.getPixel(0, x, y), picture.getPixel(0, x, y), 0f);
+                            assertEquals("half" + at, ChannelType.halfToFloat(ChannelType.floatToHalf(floats.getPixel(1, x, y))), picture.getPixel(1, x, y), 0f);
+                            assertEquals("unorm16" + at, ChannelType.unorm16ToFloat(ChannelType.floatToUnorm16(floats.getPixel(2, x, y))), picture.getPixel(2, x, y), 0f);
+                            assertEquals("unorm8" + at, ChannelType.unorm8ToFloat(ChannelType.floatToUnorm8(floats.getPixel(3, x, y))), picture.getPixel(3, x, y), 0f);
+                            assertEquals("int" + at, x * 3 + y * 1000, picture.getPixel(4, x, y), 0f);
+                        }
+                    }
+                }
+            }
+        }
+
+        // The channel types should match the channels
+        try {
+            new RendererBuilder("TestPic", 37, 23, channelsList("f", "h"), channelsList(), 0, 1, new PictureFormat(PictureLayout.INTERLEAVED, PictureStorage.HEAP, types));
+            fail("The channel types should be checked");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testChannelTypeConversions() {
+        for (float value : new float[]{0f, -0f, 1f, -2.5f, 0.1f, 65504f, 6.1035156e-5f, 5.9604645e-8f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY}) {
+            assertEquals("Exact half values should not change", value, ChannelType.halfToFloat(ChannelType.floatToHalf(value)), Math.abs(value) * 0.0005f);
+        }
+        assertEquals((short) 0x3c00, ChannelType.floatToHalf(1f));
+        assertEquals((short) 0x0001, ChannelType.floatToHalf(5.9604645e-8f));
+        assertEquals((short) 0x7bff, ChannelType.floatToHalf(65504f));
+        assertEquals("Halfway values round to even", (short) 0x3c00, ChannelType.floatToHalf(1f + 1f / 2048));
+        assertEquals("Halfway values round to even", (short) 0x3c02, ChannelType.floatToHalf(1f + 3f / 2048));
+        assertEquals("Too large values become infinite", (short) 0x7c00, ChannelType.floatToHalf(65520f));
+        assertEquals("Too small values become zero", (short) 0, ChannelType.floatToHalf(1e-9f));
+        assertTrue(Float.isNaN(ChannelType.halfToFloat(ChannelType.floatToHalf(Float.NaN))));
+
+        assertEquals(0f, ChannelType.unorm8ToFloat(ChannelType.floatToUnorm8(-3f)), 0f);
+        assertEquals(1f, ChannelType.unorm8ToFloat(ChannelType.floatToUnorm8(3f)), 0f);
+        assertEquals(0f, ChannelType.unorm16ToFloat(ChannelType.floatToUnorm16(Float.NaN)), 0f);
+        for (int i = 0; i < 256; i++) {
+            assertEquals((byte) i, ChannelType.floatToUnorm8(ChannelType.unorm8ToFloat((byte) i)));
+        }
+        for (int i = 0; i < 65536; i += 7) {
+            assertEquals((short) i, ChannelType.floatToUnorm16(ChannelType.unorm16ToFloat((short) i)));
+        }
+    }
+
+    @Test
+    public void testTiledPicture() throws Exception {
+        final File directory = createTempDirectory();
+        try {
+            for (PictureLayout layout : PictureLayout.values()) {
+                final Picture expected = renderPicture(createTestBuilder(new PictureFormat(layout)));
+
+                for (PictureStorage storage : PictureStorage.values()) {
+                    for (boolean bytecode : new boolean[]{false, true}) {
+                        final PictureFormat format = new PictureFormat(layout, storage, Collections.<ChannelType>emptyList(), 16);
+                        final PictureCalculations calculation = new PictureCalculations(createTestBuilder(format));
+                        if (bytecode) calculation.setRendererBackend(new BytecodeBackend());
+                        calculation.setProgressive(true);
+                        calculation.setMappedPictureDirectory(directory);
+                        calculation.start();
+                        final TiledPicture picture = (TiledPicture) calculation.getPicturesAndWait().get(0);
+                        assertFalse("Tiled pictures are not rendered progressively", calculation.isProgressive());
+
+                        // 37 x 23 pixels in tiles of 16 x 16, with smaller tiles at the edges
+                        assertEquals(6, picture.getTileCount());
+                        assertEquals(5, picture.getTileWidth(2));
+                        assertEquals(7, picture.getTileHeight(5));
+                        assertEquals(storage, picture.getStorage());
+
+                        if (storage == PictureStorage.MAPPED) {
+                            // Rendered tiles are written to their files and released
+                            for (int i = 0; i < picture.getTileCount(); i++) {
+                                assertFalse(picture.isTileLoaded(i));
+                                assertEquals(directory, picture.getTileFile(i).getParentFile());
+                            }
+                        }
+
+                        // The tiles should be rendered with the coordinates of the whole picture
+                        final String message = "The values should be the same as in an untiled picture, " + format;
+                        assertArrayEquals(message, expected.copyChannel(0, null), picture.copyChannel(0, null), 0f);
+                        assertArrayEquals(message, expected.copyChannel(1, null), picture.copyChannel(1, null), 0f);
+                        assertEquals(message, expected.getPixel(1, 36, 22), picture.getPixel(1, 36, 22), 0f);
+                    }
+                }
+            }
+
+            // A picture with more values than fit in an array only creates the tiles that are used
+            final PictureFormat format = new PictureFormat(PictureLayout.INTERLEAVED, PictureStorage.MAPPED, Collections.<ChannelType>emptyList(), 256);
+            final List<String> channels = channelsList("red", "green", "blue", "alpha");
+            final TiledPicture picture = new TiledPicture("Huge", 65536, 65536, channels, format, directory);
+            assertEquals(65536L * 65536 * 4, picture.getValueCount());
+            picture.setPixel(3, 65535, 65535, 0.75f);
+            final int lastTile = picture.getTileCount() - 1;
+            assertEquals(lastTile, picture.getTileIndex(65535, 65535));
+            picture.releaseTile(lastTile);
+            assertFalse(picture.isTileLoaded(lastTile));
+            assertEquals("The value should be read back from the file", 0.75f, picture.getPixel(3, 65535, 65535), 0f);
+            assertEquals(256 * 256 * 4 * 4, picture.getTileFile(lastTile).length());
+            assertNull("Unused tiles should not be created", picture.getTileFile(0));
+            assertFalse(picture.isTileLoaded(0));
+
+            try {
+                new PictureImpl("Huge", 65536, 65536, channels);
+                fail("Pictures stored in arrays should not be larger than an array");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        final File directory = createTempDirectory();
+        try {
+            // 37 x 23 pixels with two float channels take 6808 bytes, with two half float channels 3404 bytes
+            final PictureFormat halfFormat = new PictureFormat(PictureLayout.PLANAR, PictureStorage.HEAP, Arrays.asList(ChannelType.HALF, ChannelType.HALF));
+            final PictureFormat mappedFormat = new PictureFormat(PictureLayout.INTERLEAVED, PictureStorage.MAPPED);
+            assertEquals(6808, MemoryBudget.estimatePictureBytes(createTestBuilder(PictureFormat.DEFAULT)));
+            assertEquals(3404, MemoryBudget.estimatePictureBytes(createTestBuilder(halfFormat)));
+            assertEquals(0, MemoryBudget.estimatePictureBytes(createTestBuilder(mappedFormat)));
+
+            final Picture expected = renderPicture(createTestBuilder(PictureFormat.DEFAULT));
+            final Picture expectedHalf = renderPicture(createTestBuilder(halfFormat));
+
+            // The first picture fits in the budget, the next two are spilled to disk, and mapped pictures are not counted
+            final MemoryBudget budget = new MemoryBudget(10000);
+            final PictureCalculations calculation = new PictureCalculations(Arrays.asList(createTestBuilder(PictureFormat.DEFAULT),
+                                                                                          createTestBuilder(PictureFormat.DEFAULT),
+                                                                                          createTestBuilder(halfFormat),
+                                                                                          createTestBuilder(mappedFormat)));
+            calculation.setMemoryBudget(budget);
+            calculation.setMappedPictureDirectory(directory);
+            calculation.setProgressive(true);
+            calculation.start();
+            final List<Picture> pictures = calculation.getPicturesAndWait();
+            assertFalse("Pictures spilled to disk are not rendered progressively", calculation.isProgressive());
+
+            assertTrue(pictures.get(0) instanceof PictureImpl);
+            assertTrue(budget.containsPicture(pictures.get(0)));
+            assertTrue(pictures.get(3) instanceof BufferPicture);
+            assertEquals(6808, budget.getUsedBytes());
+            assertEquals(3192, budget.getAvailableBytes());
+
+            for (int i = 1; i <= 2; i++) {
+                final TiledPicture spilled = (TiledPicture) pictures.get(i);
+                assertTrue(spilled.isSpillingTiles());
+                assertFalse("Rendered tiles should be released", spilled.isTileLoaded(0));
+                assertEquals(directory, spilled.getTileFile(0).getParentFile());
+
+                final Picture expectedPicture = i == 1 ? expected : expectedHalf;
+                assertEquals(expectedPicture.getChannelType(0), spilled.getChannelType(0));
+                assertArrayEquals("The values should be read back from disk", expectedPicture.copyChannel(0, null), spilled.copyChannel(0, null), 0f);
+                assertArrayEquals("The values should be read back from disk", expectedPicture.copyChannel(1, null), spilled.copyChannel(1, null), 0f);
+            }
+            assertArrayEquals(expected.copyChannel(1, null), pictures.get(0).copyChannel(1, null), 0f);
+            assertArrayEquals(expected.copyChannel(1, null), pictures.get(3).copyChannel(1, null), 0f);
+
+            // Replaced pictures release their memory, reused pictures keep it
+            final PictureCalculations nextCalculation = new PictureCalculations(Collections.singletonList(createTestBuilder(halfFormat)),
+                                                                                pictures, null);
+            nextCalculation.setMemoryBudget(budget);
+            nextCalculation.start();
+            final List<Picture> nextPictures = nextCalculation.getPicturesAndWait();
+            assertTrue(nextPictures.get(0) instanceof BufferPicture);
+            assertFalse(budget.containsPicture(pictures.get(0)));
+            assertEquals(3404, budget.getUsedBytes());
+
+            final PictureCalculations reusingCalculation = new PictureCalculations(Collections.singletonList(createTestBuilder(halfFormat)),
+                                                                                   nextPictures, null);
+            reusingCalculation.setMemoryBudget(budget);
+            reusingCalculation.start();
+            assertSame(nextPictures.get(0), reusingCalculation.getPicturesAndWait().get(0));
+            assertEquals(3404, budget.getUsedBytes());
+            budget.releasePicture(nextPictures.get(0));
+            assertEquals(0, budget.getUsedBytes());
+
+            // Dropped calculations release their pictures
+            final PictureCalculations droppedCalculation = new PictureCalculations(createTestBuilder(PictureFormat.DEFAULT));
+            droppedCalculation.setMemoryBudget(budget);
+            droppedCalculation.start();
+            droppedCalculation.getPicturesAndWait();
+            assertEquals(6808, budget.getUsedBytes());
+            droppedCalculation.stopAndReleasePictures();
+            assertEquals(0, budget.getUsedBytes());
+
+            // Tiled pictures that do not fit spill their tiles
+            final PictureFormat tiledFormat = new PictureFormat(PictureLayout.PLANAR, PictureStorage.DIRECT, Collections.<ChannelType>emptyList(), 16);
+            final PictureCalculations tiledCalculation = new PictureCalculations(createTestBuilder(tiledFormat));
+            tiledCalculation.setMemoryBudget(new MemoryBudget(0));
+            tiledCalculation.setMappedPictureDirectory(directory);
+            tiledCalculation.start();
+            final TiledPicture tiled = (TiledPicture) tiledCalculation.getPicturesAndWait().get(0);
+            assertTrue(tiled.isSpillingTiles());
+            assertEquals(6, tiled.getTileCount());
+            for (int i = 0; i < tiled.getTileCount(); i++) {
+                assertFalse(tiled.isTileLoaded(i));
+            }
+            assertArrayEquals(expected.copyChannel(1, null), tiled.copyChannel(1, null), 0f);
+            for (int i = 0; i < tiled.getTileCount(); i++) {
+                assertFalse("Copied tiles should not stay in memory", tiled.isTileLoaded(i));
+            }
+
+            // Reading pixels line by line keeps only the last row of tiles in memory
+            for (int y = 0; y < tiled.getHeight(); y++) {
+                for (int x = 0; x < tiled.getWidth(); x++) {
+                    assertEquals(expected.getPixel(1, x, y), tiled.getPixel(1, x, y), 0f);
+                }
+            }
+            for (int i = 0; i < tiled.getTileCount(); i++) {
+                assertEquals(i >= tiled.getTileColumnCount(), tiled.isTileLoaded(i));
+            }
+            tiled.releaseTile(tiled.getTileCount() - 1);
+            assertFalse(tiled.isTileLoaded(tiled.getTileCount() - 1));
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testRendererCache() throws CompilationException {
+        final RendererCache cache = new RendererCache(2);
+
+        // Two builders with the same source should share the compiled class, but get their own instances
+        RendererBuilder builder1 = new RendererBuilder("Pic1", 10, 10, channelsList("xs"), channelsList(), 0, 2);
+        RendererBuilder builder2 = new RendererBuilder("Pic2", 20, 20, channelsList("xs"), channelsList(), 1, 2);
+        builder1.addChannelAssignment("xs", "x");
+        builder2.addChannelAssignment("xs", "x");
+        final Renderer renderer1 = builder1.compilePixelCalculator(cache);
+        final Renderer renderer2 = builder2.compilePixelCalculator(cache);
+        assertTrue("Renderers should be separate instances", renderer1 != renderer2);
+        assertEquals("Renderers with the same source should share the class", renderer1.getClass(), renderer2.getClass());
+        assertEquals("Only one compilation should have been done", 1, cache.getMisses());
+        assertEquals("The second renderer should come from the cache", 1, cache.getHits());
+
+        // A different source should get a class of its own
+        RendererBuilder builder3 = new RendererBuilder("Pic3", 10, 10, channelsList("xs"), channelsList(), 0, 1);
+        builder3.addChannelAssignment("xs", "y");
+        final Renderer renderer3 = builder3.compilePixelCalculator(cache);
+        assertFalse("Different sources should not share the class", renderer1.getClass().equals(renderer3.getClass()));
+        assertEquals(2, cache.getMisses());
+
+        // Least recently used entries are evicted when the cache is full
+        RendererBuilder builder4 = new RendererBuilder("Pic4", 10, 10, channelsList("xs"), channelsList(), 0, 1);
+        builder4.addChannelAssignment("xs", "x + y");
+        builder4.compilePixelCalculator(cache);
+        assertEquals("Cache should not grow over its maximum size", 2, cache.size());
+        assertFalse("The least recently used source should have been evicted", cache.contains(builder1.getSource()));
+        assertTrue(cache.contains(builder3.getSource()));
+    }
+
+    @Test
+    public void testRendererDiskCache() throws Exception {
+        final File cacheDir = createTempDirectory();
+        try {
+            checkRendererDiskCache(cacheDir);
+        } finally {
+            deleteDirectory(cacheDir);
+        }
+    }
+
+    private void checkRendererDiskCache(File cacheDir) throws CompilationException {
+        // Directories that the cache did not create should survive cleanup
+        final File otherDirectory = new File(cacheDir, "other");
+        assertTrue(otherDirectory.mkdir());
+
+        // Compile with an empty disk cache
+        final RendererDiskCache diskCache = new RendererDiskCache(cacheDir, "test-1", 1024 * 1024);
+        final RendererCache cache1 = new RendererCache(4);
+        cache1.setDiskCache(diskCache);
+        rendererBuilder.addChannelAssignment("roses", "x * 2");
+        rendererBuilder.compilePixelCalculator(cache1);
+        final String sourceHash = RendererCache.hashSource(rendererBuilder.getSource());
+        assertNotNull("The compiled classes should have been stored on disk", diskCache.load(sourceHash));
+
+        // A new in-memory cache (e.g. in a new run) should get the renderer from the disk cache
+        final RendererCache cache2 = new RendererCache(4);
+        cache2.setDiskCache(diskCache);
+        final ArrayRenderer renderer = (ArrayRenderer) rendererBuilder.compilePixelCalculator(cache2);
+        final float[] data = new float[3 * 1 * 2];
+        renderer.calculatePixels(3, 1, new String[]{"roses", "violets"}, data, 0, 0, 3, 1, null, 0);
+        assertEquals("A renderer loaded from disk should work", 4f, data[2 * 2], 0.0001);
+
+        // A different version should not see the entries, and should remove them on cleanup
+        final RendererDiskCache otherVersion = new RendererDiskCache(cacheDir, "test-2", 1024 * 1024);
+        assertNull("Entries of other versions should not be loaded", otherVersion.load(sourceHash));
+        otherVersion.cleanUp();
+        assertEquals("Entries of other versions should be cleaned up", 0, diskCache.getSizeBytes());
+        assertTrue("Directories not created by the cache should not be deleted", otherDirectory.isDirectory());
+
+        // Entries over the size limit are removed
+        final RendererDiskCache tinyCache = new RendererDiskCache(cacheDir, "test-2", 1);
+        final RendererCache cache3 = new RendererCache(4);
+        cache3.setDiskCache(tinyCache);
+        rendererBuilder.compilePixelCalculator(cache3);
+        assertEquals("The cache should not grow over its size limit", 0, tinyCache.getSizeBytes());
+    }
+
+    @Test
+    public void testLoopInvariantHoisting() throws CompilationException {
+        rendererBuilder.addVariable(SourceLocation.AT_PIXEL, "constantValue", "Math.max(widthF, 3f)", float.class, true);
+        rendererBuilder.addVariable(SourceLocation.AT_PIXEL, "lineValue", "y * 10 + constantValue", float.class, true);
+        rendererBuilder.addVariable(SourceLocation.AT_PIXEL, "pixelValue", "x + lineValue", float.class, true);
+        rendererBuilder.addChannelAssignment("roses", "pixelValue");
+        rendererBuilder.addChannelAssignment("violets", "lineValue");
+
+        assertEquals("Constant expressions should be calculated once", UpdateFrequency.PER_CALCULATION, rendererBuilder.getUpdateFrequency("constantValue"));
+        assertEquals("Expressions depending on y should be calculated once per line", UpdateFrequency.PER_LINE, rendererBuilder.getUpdateFrequency("lineValue"));
+        assertEquals("Expressions depending on x should be calculated for each pixel", UpdateFrequency.PER_PIXEL, rendererBuilder.getUpdateFrequency("pixelValue"));
+        assertEquals("Channels can change for each pixel", UpdateFrequency.PER_PIXEL, rendererBuilder.getUpdateFrequency(RendererBuilder.CHANNEL_PREFIX + "roses"));
+
+        // The moved calculations should still give the same results
+        final ArrayRenderer renderer = (ArrayRenderer) rendererBuilder.compilePixelCalculator();
+        final float[] data = new float[3 * 2 * 2];
+        renderer.calculatePixels(3, 2, new String[]{"roses", "violets"}, data, 0, 0, 3, 2, null, 0);
+        assertEquals(2 + 10 + 3, data[(1 * 3 + 2) * 2], 0.0001);
+        assertEquals(10 + 3, data[(1 * 3 + 2) * 2 + 1], 0.0001);
+    }
+
+    @Test
+    public void testBatchCompilation() throws CompilationException {
+        final RendererCache cache = new RendererCache(8);
+
+        RendererBuilder builder1 = new RendererBuilder("Pic1", 10, 10, channelsList("xs"), channelsList(), 0, 1);
+        RendererBuilder builder2 = new RendererBuilder("Pic2", 10, 10, channelsList("xs"), channelsList(), 0, 1);
+        RendererBuilder brokenBuilder = new RendererBuilder("Broken", 10, 10, channelsList("xs"), channelsList(), 0, 1);
+        builder1.addChannelAssignment("xs", "x");
+        builder2.addChannelAssignment("xs", "y * 2");
+        brokenBuilder.addChannelAssignment("xs", "unknownVariable");
+        final RendererBatch batch = new RendererBatch(Arrays.asList(builder1, brokenBuilder, builder2), cache);
+
+        // The renderers should be compiled together, and loaded by the same class loader
+        final ArrayRenderer renderer1 = (ArrayRenderer) builder1.compilePixelCalculator(cache, batch);
+        final ArrayRenderer renderer2 = (ArrayRenderer) builder2.compilePixelCalculator(cache, batch);
+        assertFalse("Different sources should get different classes", renderer1.getClass().equals(renderer2.getClass()));
+        assertEquals("The renderers should be loaded together", renderer1.getClass().getClassLoader(), renderer2.getClass().getClassLoader());
+
+        // The broken renderer should report its error, without affecting the others
+        try {
+            brokenBuilder.compilePixelCalculator(cache, batch);
+            fail("Compiling a broken renderer should fail");
+        } catch (CompilationException e) {
+            // Expected
+        }
+
+        // The renderers should work
+        final float[] data = new float[3 * 2];
+        renderer2.calculatePixels(3, 2, new String[]{"xs"}, data, 0, 0, 3, 2, null, 0);
+        assertEquals(2, data[1 * 3 + 2], 0.0001);
+        renderer1.calculatePixels(3, 2, new String[]{"xs"}, data, 0, 0, 3, 2, null, 0);
+        assertEquals(2, data[1 * 3 + 2], 0.0001);
+        assertEquals(1, data[1 * 3 + 1], 0.0001);
+    }
+
+    @Test
+    public void testBytecodeBackend() throws CompilationException {
+        final BytecodeBackend bytecodeBackend = new BytecodeBackend();
+
+        // Renderer using parameters, casts, calls and the builtin variables
+        final Expr scale = Expressions.variable(RendererBuilder.PARAMETER_PREFIX + RendererBuilder.RELATIVE_INDEX, Float.class);
+        final Expr line = Expressions.mul(Expressions.variable("y", Integer.class), Expressions.constant(10));
+        final Expr pixel = Expressions.add(Expressions.cast(Float.class, Expressions.call(Double.class, "Math.sqrt", Expressions.variable("xF", Float.class))),
+                                           Expressions.mul(scale, Expressions.variable("lineValue", Integer.class)));
+        rendererBuilder.addVariable(SourceLocation.AT_PIXEL, "lineValue", line, true);
+        rendererBuilder.addVariable(SourceLocation.AT_PIXEL, "pixelValue", pixel, true);
+        rendererBuilder.addChannelAssignment("roses", "pixelValue");
+        rendererBuilder.addChannelAssignment("violets", "relX");
+        assertTrue("The renderer should be created without compiling", bytecodeBackend.canCreateDirectly(rendererBuilder));
+
+        // Both backends should give the same result
+        final ArrayRenderer compiledRenderer = (ArrayRenderer) rendererBuilder.compilePixelCalculator(null, null, new JaninoBackend());
+        final ArrayRenderer directRenderer = (ArrayRenderer) rendererBuilder.compilePixelCalculator(null, null, bytecodeBackend);
+        final float[] compiledData = new float[4 * 3 * 2];
+        final float[] directData = new float[4 * 3 * 2];
+        compiledRenderer.calculatePixels(4, 3, new String[]{"roses", "violets"}, compiledData, 0, 0, 4, 3, null, 0);
+        directRenderer.calculatePixels(4, 3, new String[]{"roses", "violets"}, directData, 0, 0, 4, 3, null, 0);
+        assertArrayEquals(compiledData, directData, 0f);
+        assertEquals((float) Math.sqrt(3) + 0.5f * 20, directData[(2 * 4 + 3) * 2], 0.0001);
+
+        // Tiles are calculated with the coordinates of the whole picture
+        final float[] compiledTile = new float[2 * 2 * 2];
+        final float[] directTile = new float[2 * 2 * 2];
+        compiledRenderer.calculateTile(4, 3, new String[]{"roses", "violets"}, compiledTile, 2, 1, 2, 2, null, 0);
+        directRenderer.calculateTile(4, 3, new String[]{"roses", "violets"}, directTile, 2, 1, 2, 2, null, 0);
+        assertArrayEquals(compiledTile, directTile, 0f);
+        for (int i = 0; i < directTile.length; i++) {
+            final int x = 2 + (i / 2) % 2;
+            final int y = 1 + i / 4;
+            assertEquals(directData[(y * 4 + x) * 2 + i % 2], directTile[i], 0f);
+        }
+
+        // The channel count should be checked
+        try {
+            directRenderer.calculatePixels(4, 3, new String[]{"roses"}, directData, 0, 0, 4, 3, null, 0);
+            fail("Wrong channel count should be detected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("The channel count should be correct, expected 2, but got 1.", e.getMessage());
+        }
+
+        // Renderers with source lines fall back to compiling the source
+        rendererBuilder.addPixelCalculationLine("channel_violets = channel_roses * 2");
+        assertFalse(bytecodeBackend.canCreateDirectly(rendererBuilder));
+        final ArrayRenderer fallbackRenderer = (ArrayRenderer) rendererBuilder.compilePixelCalculator(null, null, bytecodeBackend);
+        fallbackRenderer.calculatePixels(4, 3, new String[]{"roses", "violets"}, directData, 0, 0, 4, 3, null, 0);
+        assertEquals(2 * directData[(2 * 4 + 3) * 2], directData[(2 * 4 + 3) * 2 + 1], 0.0001);
+    }
+
+    @Test
+    public void testMethodSplitting() throws CompilationException {
+        final RendererBuilder splitBuilder = createLargeBuilder();
+        splitBuilder.setMaxMethodSize(300);
+        final RendererBuilder wholeBuilder = createLargeBuilder();
+        wholeBuilder.setMaxMethodSize(Integer.MAX_VALUE);
+
+        final ArrayRenderer splitRenderer = (ArrayRenderer) splitBuilder.compilePixelCalculator(null);
+        final ArrayRenderer wholeRenderer = (ArrayRenderer) wholeBuilder.compilePixelCalculator(null);
+        assertTrue("Large code should be moved to helper methods", splitBuilder.getSource().contains("calculatePixelsPart"));
+        assertFalse("Code should not be moved without need", wholeBuilder.getSource().contains("calculatePixelsPart"));
+
+        // The helper methods should give the same result
+        final float[] splitData = new float[5 * 4 * 2];
+        final float[] wholeData = new float[5 * 4 * 2];
+        splitRenderer.calculatePixels(5, 4, new String[]{"roses", "violets"}, splitData, 0, 0, 5, 4, null, 0);
+        wholeRenderer.calculatePixels(5, 4, new String[]{"roses", "violets"}, wholeData, 0, 0, 5, 4, null, 0);
+        assertArrayEquals(wholeData, splitData, 0f);
+        assertEquals("Variables changed by helpers should keep their values", 5 * 4, splitData[(3 * 5 + 4) * 2 + 1], 0.0001);
+    }
+
+    private RendererBuilder createLargeBuilder() {
+        final RendererBuilder builder = new RendererBuilder("Large", 10, 10, channelsList("roses", "violets"), channelsList("temp"), 0, 1);
+        builder.addVariable(SourceLocation.BEFORE_LOOP, "var_counter", "0", int.class, false);
+        builder.addVariable(SourceLocation.AT_PIXEL, "constantValue", "widthF * 2", float.class, true);
+        builder.addVariable(SourceLocation.AT_PIXEL, "value0", "x + y * 0.5f + constantValue", float.class, true);
+        for (int i = 1; i < 40; i++) {
+            builder.addVariable(SourceLocation.AT_PIXEL, "line" + i, "yF * " + i + " + heightF", float.class, true);
+            builder.addVariable(SourceLocation.AT_PIXEL, "value" + i, "value" + (i - 1) + " * 0.9f + Math.max(relX, line" + i + ")", float.class, true);
+        }
+        builder.setVariable(SourceLocation.AT_PIXEL, "counter", "var_counter + 1");
+        builder.addChannelAssignment("temp", "value39");
+        builder.addChannelAssignment("roses", "channel_temp + line39");
+        builder.addChannelAssignment("violets", "var_counter");
+        builder.addVariable(SourceLocation.AFTER_PIXEL, "lastValue", "value39 + line1", float.class, true);
+        return builder;
+    }
+
+    /**
+     * @return builder for a 37 x 23 picture in the specified format, with two channels that depend on the coordinates.
+     */
+    private RendererBuilder createTestBuilder(PictureFormat format) {
+        return createTestBuilder(format, channelsList("roses", "violets"), "x + y * 100", "relX * 3 + relY * channel_roses");
+    }
+
+    /**
+     * @return builder for a 37 x 23 picture in the specified format, with each channel assigned the expression at
+     *         the same index.
+     */
+    private RendererBuilder createTestBuilder(PictureFormat format, List<String> channels, String ... expressions) {
+        final RendererBuilder builder = new RendererBuilder("TestPic", 37, 23, channels, channelsList(), 0, 1, format);
+        for (int i = 0; i < channels.size(); i++) {
+            builder.addChannelAssignment(channels.get(i), expressions[i]);
+        }
+        return builder;
+    }
+
+    private Picture renderPicture(RendererBuilder builder) {
+        final PictureCalculations calculation = new PictureCalculations(builder);
+        calculation.start();
+        return calculation.getPicturesAndWait().get(0);
+    }
+
+    /**
+     * @return a new empty directory for temporary files, delete it with deleteDirectory.
+     */
+    private static File createTempDirectory() throws IOException {
+        final File directory = File.createTempFile("rasterfun-test", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        return directory;
+    }
+
+    /**
+     * Deletes the directory with all its contents.
+     */
+    private static void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) deleteDirectory(file);
+                else file.delete();
+            }
+        }
+        directory.delete();
+    }
+
     private void delay(long millis) {
         try {
             Thread.sleep(millis);
@@ -0,0 +1,88 @@
+package org.rasterfun;
+
+import org.junit.Test;
+import org.rasterfun.core.ArrayRenderer;
+import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.RendererCache;
+import org.rasterfun.core.compiler.expression.Expr;
+import org.rasterfun.effect.NoiseEffect;
+import org.rasterfun.generator.SimpleGenerator;
+import org.rasterfun.picture.Picture;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.rasterfun.core.compiler.SourceLocation.AT_PIXEL;
+import static org.rasterfun.core.compiler.expression.Expressions.*;
+
+/**
+ * Tests the expression representation used for generated code.
+ */
+public class ExpressionTest {
+
+    @Test
+    public void testConstantFolding() throws Exception {
+        assertEquals(constant(7), add(constant(3), constant(4)));
+        assertEquals(constant(2.5f), div(constant(5), constant(2f)));
+        assertEquals(constant(1.5), cast(Double.class, constant(1.5f)));
+        assertEquals("Integer division by zero should not be folded", "(1 / 0)", div(constant(1), constant(0)).toSource());
+
+        final Expr x = variable("relX", Float.class);
+        assertEquals("Adding zero should be removed", x, add(constant(0f), x));
+        assertEquals("Multiplying with one should be removed", x, mul(x, constant(1)));
+        assertEquals("Constant parts should be folded", "(relX * 6.0f)", mul(x, mul(constant(2), constant(3f))).toSource());
+        assertEquals("Operands should be promoted", Double.class, add(x, constant(1.0)).getType());
+    }
+
+    @Test
+    public void testEqualExpressions() throws Exception {
+        final Expr a = call(Double.class, "Math.sin", mul(variable("relX", Float.class), constant(2f)));
+        final Expr b = call(Double.class, "Math.sin", mul(variable("relX", Float.class), constant(2f)));
+        assertEquals("Structurally equal expressions should be equal", a, b);
+        assertEquals("Structurally equal expressions should have the same hash", a.hashCode(), b.hashCode());
+        assertFalse("Impure calls should not be equal to pure ones",
+                    a.equals(impureCall(Double.class, "Math.sin", mul(variable("relX", Float.class), constant(2f)))));
+    }
+
+    @Test
+    public void testCommonExpressionsCalculatedOnce() throws Exception {
+        final RendererBuilder builder = new RendererBuilder("Test", 4, 4, Arrays.asList("a", "b"), channelsList(), 0, 1);
+        final Expr sine = call(Double.class, "Math.sin", variable("relX", Float.class));
+        builder.addVariable(AT_PIXEL, "first", cast(Float.class, sine), true);
+        builder.addVariable(AT_PIXEL, "second", add(constant(1f), cast(Float.class, sine)), true);
+        builder.addVariable(AT_PIXEL, "third", cast(Float.class, sine), true);
+        builder.addChannelAssignment("a", "second");
+        builder.addChannelAssignment("b", "third");
+
+        builder.compilePixelCalculator(new RendererCache(1));
+        assertEquals("The sine should only be calculated once", 2, builder.getSource().split("Math.sin").length);
+
+        final float[] data = new float[4 * 4 * 2];
+        ((ArrayRenderer) builder.compilePixelCalculator(new RendererCache(1))).calculatePixels(4, 4, new String[]{"a", "b"}, data, 0, 0, 4, 4, null, 0);
+        assertEquals(1f + (float) Math.sin(1f), data[3 * 2], 0.0001);
+        assertEquals((float) Math.sin(1f), data[3 * 2 + 1], 0.0001);
+    }
+
+    @Test
+    public void testSharedNoise() throws Exception {
+        final SimpleGenerator generator = new SimpleGenerator("Test", 16, 16, 1, channelsList("red", "green"));
+        final NoiseEffect noise1 = generator.addEffect(new NoiseEffect(42, 3, 0, 1));
+        final NoiseEffect noise2 = generator.addEffect(new NoiseEffect(42, 3, 0.5f, 2));
+        generator.getEffectContainer().setChannelVar("red", noise1.getOutput());
+        generator.getEffectContainer().setChannelVar("green", noise2.getOutput());
+
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.compilePixelCalculator(new RendererCache(1));
+        assertEquals("Noise with the same parameters should only be calculated once",
+                     2, builder.getSource().split("PerlinNoise.tilingNoise").length);
+
+        final Picture picture = generator.generatePictures().getPicturesAndWait().get(0);
+        final float red = picture.getPixel("red", 5, 7);
+        assertEquals("The shared noise should be used by both effects", 0.5f + 2 * red, picture.getPixel("green", 5, 7), 0.0001);
+    }
+
+    private List<String> channelsList(String ... names) {
+        return Arrays.asList(names);
+    }
+}
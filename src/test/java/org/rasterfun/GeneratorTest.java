@@ -2,10 +2,19 @@ package org.rasterfun;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.rasterfun.core.ArrayRenderer;
 import org.rasterfun.core.PictureCalculations;
+import org.rasterfun.core.RenderProfile;
+import org.rasterfun.core.Renderer;
+import org.rasterfun.core.compiler.BytecodeBackend;
+import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.RendererCache;
+import org.rasterfun.core.listeners.CalculationListener;
 import org.rasterfun.core.listeners.PictureCalculationsListener;
+import org.rasterfun.effect.Effect;
 import org.rasterfun.effect.NoiseEffect;
 import org.rasterfun.effect.container.CompositeEffect;
+import org.rasterfun.effect.container.EffectUsageAnalysis;
 import org.rasterfun.effect.variable.InputVariable;
 import org.rasterfun.generator.Generator;
 import org.rasterfun.generator.GeneratorListener;
@@ -183,6 +192,249 @@ public class GeneratorTest {
         }
     }
 
+    @Test
+    public void testPicturesShareRendererClass() throws Exception {
+        generator.setCount(5);
+        generator.setSize(16, 16);
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(3));
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+
+        // All pictures should be produced by one compiled class
+        final RendererCache cache = new RendererCache(10);
+        Class<?> rendererClass = null;
+        for (RendererBuilder builder : generator.createBuilders()) {
+            final Renderer renderer = builder.compilePixelCalculator(cache);
+            if (rendererClass == null) rendererClass = renderer.getClass();
+            assertEquals("All pictures should share the renderer class", rendererClass, renderer.getClass());
+        }
+        assertEquals("Only one compilation should be needed", 1, cache.getMisses());
+
+        // The pictures should still get their own seeds
+        final List<Picture> pictures = generator.generatePictures().getPicturesAndWait();
+        assertFalse("Pictures with different seeds should differ",
+                    pictures.get(0).getPixel("red", 8, 8) == pictures.get(1).getPixel("red", 8, 8));
+    }
+
+    @Test
+    public void testUnusedEffectsAreLeftOut() throws Exception {
+        generator.setSize(16, 16);
+        final NoiseEffect scaleNoise = generator.addEffect(new NoiseEffect(2));
+        final NoiseEffect usedNoise = generator.addEffect(new NoiseEffect(3));
+        final NoiseEffect unusedNoise = generator.addEffect(new NoiseEffect(5));
+        final CompositeEffect unusedComposite = generator.addEffect(new CompositeEffect());
+        unusedComposite.addEffect(new NoiseEffect(7));
+        usedNoise.getScaleVar().setToVariable(scaleNoise.getOutput());
+        generator.getEffectContainer().setChannelVar("red", usedNoise.getOutput());
+
+        final EffectUsageAnalysis analysis = new EffectUsageAnalysis(generator.getEffectContainer(),
+                                                                     generator.getChannels());
+        assertTrue("Effects assigned to channels should be used", analysis.isUsed(usedNoise));
+        assertTrue("Effects used by used effects should be used", analysis.isUsed(scaleNoise));
+        assertFalse("Effects not affecting the channels should not be used", analysis.isUsed(unusedNoise));
+        assertFalse("Composite effects not affecting the channels should not be used", analysis.isUsed(unusedComposite));
+        assertFalse("Unread temporary channels should not be used", analysis.getUsedChannels().contains(Effect.VALUE));
+
+        // Only the used noise effects should end up in the renderer
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.compilePixelCalculator(new RendererCache(1));
+        final String source = builder.getSource();
+        assertEquals("Only used effects should generate code", 2, source.split("PerlinNoise.tilingNoise").length - 1);
+        assertFalse("Unused temporary channels should not be generated", source.contains(RendererBuilder.CHANNEL_PREFIX + Effect.VALUE));
+
+        // When the value channel is a picture channel, all noise effects write to it
+        generator.setChannels(channelsList("red", Effect.VALUE));
+        final RendererBuilder valueBuilder = generator.createBuilders().get(0);
+        valueBuilder.compilePixelCalculator(new RendererCache(1));
+        final String valueSource = valueBuilder.getSource();
+        assertEquals("Effects writing to picture channels should generate code", 4, valueSource.split("PerlinNoise.tilingNoise").length - 1);
+
+        // The analysis result belongs to each builder, the effects are not changed
+        assertTrue(analysis.getUnusedOutputs().contains(unusedNoise.getOutput()));
+        assertFalse("A later analysis should not change an earlier builder", builder.isUsed(unusedNoise.getOutput()));
+        assertTrue(valueBuilder.isUsed(unusedNoise.getOutput()));
+    }
+
+    @Test
+    public void testBytecodeBackend() throws Exception {
+        generator.setSize(16, 16);
+        generator.setCount(2);
+        final NoiseEffect scaleNoise = generator.addEffect(new NoiseEffect(2));
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(3));
+        noise.getScaleVar().setToVariable(scaleNoise.getOutput());
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+        generator.getEffectContainer().setChannelVar("green", scaleNoise.getOutput());
+
+        assertTrue("Noise effects should not need compiling",
+                   new BytecodeBackend().canCreateDirectly(generator.createBuilders().get(0)));
+
+        // The pictures should be the same with both backends
+        final List<RendererBuilder> builders = generator.createBuilders();
+        final PictureCalculations compiledCalculation = new PictureCalculations(builders);
+        compiledCalculation.start();
+        final PictureCalculations directCalculation = new PictureCalculations(builders);
+        directCalculation.setRendererBackend(new BytecodeBackend());
+        directCalculation.start();
+
+        final List<Picture> compiledPictures = compiledCalculation.getPicturesAndWait();
+        final List<Picture> directPictures = directCalculation.getPicturesAndWait();
+        assertEquals(2, directPictures.size());
+        for (int i = 0; i < compiledPictures.size(); i++) {
+            assertArrayEquals(compiledPictures.get(i).getData(), directPictures.get(i).getData(), 0f);
+        }
+    }
+
+    @Test
+    public void testProfiling() throws Exception {
+        generator.setSize(64, 64);
+        final NoiseEffect scaleNoise = generator.addEffect(new NoiseEffect(2));
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(3));
+        noise.getScaleVar().setToVariable(scaleNoise.getOutput());
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+
+        // No profiling code should be generated by default
+        final PictureCalculations plainCalculation = generator.generatePictures();
+        final List<Picture> plainPictures = plainCalculation.getPicturesAndWait();
+        assertTrue(plainCalculation.getRenderProfile().getSectionNames().isEmpty());
+
+        // Each effect should be profiled
+        generator.setProfiling(true);
+        final PictureCalculations profiledCalculation = generator.generatePictures();
+        final List<Picture> profiledPictures = profiledCalculation.getPicturesAndWait();
+        final RenderProfile profile = profiledCalculation.getRenderProfile();
+        assertEquals(Arrays.asList("var_effect1_", "var_effect2_"), profile.getSectionNames());
+        assertEquals("Every " + RendererBuilder.PROFILE_SAMPLE_INTERVAL + ":th pixel should be sampled",
+                     64 * 64 / RendererBuilder.PROFILE_SAMPLE_INTERVAL, profile.getSampledPixels("var_effect2_"));
+        assertTrue(profile.getSampledNanos("var_effect2_") > 0);
+
+        // Profiling should not change the result
+        assertArrayEquals(plainPictures.get(0).getData(), profiledPictures.get(0).getData(), 0f);
+
+        // The sampling rate should not depend on the stride of the pass, a stride of 16 calculates 4 x 4 pixels
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        final ArrayRenderer renderer = (ArrayRenderer) builder.compilePixelCalculator(new RendererCache(1));
+        final long[] sampledPixels = new long[1];
+        renderer.calculateSamples(64, 64, new String[]{"red", "green", "blue", "alpha"}, new float[64 * 64 * 4],
+                                  0, 0, 64, 64, 16, 0,
+                                  new CalculationListener() {
+                                      @Override
+                                      public void onCalculationProgress(int calculationIndex, int completedPixels) {}
+
+                                      @Override
+                                      public void onPictureSliceReady(int calculationIndex, int pictureIndex, Picture picture, boolean isPreview) {}
+
+                                      @Override
+                                      public void onError(int calculationIndex, String shortSummary, String longDescription, Throwable cause) {}
+
+                                      @Override
+                                      public void onCalculationProfile(int calculationIndex, String[] sectionNames, long[] sampledNanos, long sampled) {
+                                          sampledPixels[0] += sampled;
+                                      }
+                                  },
+                                  0);
+        assertEquals(4 * 4 / RendererBuilder.PROFILE_SAMPLE_INTERVAL, sampledPixels[0]);
+    }
+
+    @Test
+    public void testInteractiveConstants() throws Exception {
+        generator.setSize(16, 16);
+        generator.setCount(2);
+        final NoiseEffect scaleNoise = generator.addEffect(new NoiseEffect(2));
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(3));
+        noise.getScaleVar().setToVariable(scaleNoise.getOutput());
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+        generator.setInteractive(true);
+
+        // Changing constants should not need a new compilation
+        final RendererCache cache = new RendererCache(10);
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        final Renderer renderer = builder.compilePixelCalculator(cache);
+        noise.getAmplitudeVar().setValue(0.25f);
+        final RendererBuilder changedBuilder = generator.createBuilders().get(0);
+        final Renderer changedRenderer = changedBuilder.compilePixelCalculator(cache);
+        assertEquals("Only one compilation should be needed", 1, cache.getMisses());
+        assertEquals(renderer.getClass(), changedRenderer.getClass());
+        assertFalse("Constants should not be in the source", changedBuilder.getSource().contains("0.25"));
+        assertTrue(new BytecodeBackend().canCreateDirectly(changedBuilder));
+
+        // The result should be the same as with the constants in the source, with both backends
+        final SimpleGenerator constantGenerator = (SimpleGenerator) generator.copy();
+        constantGenerator.setInteractive(false);
+        final List<Picture> expected = constantGenerator.generatePictures().getPicturesAndWait();
+        final PictureCalculations compiledCalculation = generator.generatePictures();
+        final PictureCalculations directCalculation = generator.generatePicturesWithoutStarting(null, null);
+        directCalculation.setRendererBackend(new BytecodeBackend());
+        directCalculation.start();
+        final List<Picture> compiledPictures = compiledCalculation.getPicturesAndWait();
+        final List<Picture> directPictures = directCalculation.getPicturesAndWait();
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i).getData(), compiledPictures.get(i).getData(), 0f);
+            assertArrayEquals(expected.get(i).getData(), directPictures.get(i).getData(), 0f);
+        }
+    }
+
+    @Test
+    public void testIncrementalRendering() throws Exception {
+        generator.setSize(32, 24);
+        generator.setCount(2);
+        final NoiseEffect scaleNoise = generator.addEffect(new NoiseEffect(2));
+        final NoiseEffect offsetNoise = generator.addEffect(new NoiseEffect(3));
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(5));
+        offsetNoise.getOffsetVar().setToVariable(scaleNoise.getOutput());
+        noise.getScaleVar().setToVariable(offsetNoise.getOutput());
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+        generator.getEffectContainer().setChannelVar("green", scaleNoise.getOutput());
+        generator.setIncremental(true);
+
+        // The first calculation stores the values of all but the last effect
+        assertIncrementalPicturesCorrect();
+        assertEquals(0, generator.getIntermediateCache().getReusedEffectCount());
+        assertEquals(2, generator.getIntermediateCache().getValues().getEffectSignatures().size());
+
+        // Only the changed last effect should be calculated
+        noise.getAmplitudeVar().setValue(0.5f);
+        assertIncrementalPicturesCorrect();
+        assertEquals(2, generator.getIntermediateCache().getReusedEffectCount());
+        final RendererBuilder builder = generator.generatePicturesWithoutStarting(null, null).getRendererBuilders().get(0);
+        builder.compilePixelCalculator(new RendererCache(1));
+        assertEquals("Unchanged effects should not be calculated", 1, builder.getSource().split("PerlinNoise.tilingNoise").length - 1);
+
+        // Builders used without a calculation of the generator calculate all effects, as their values would not be stored
+        final RendererBuilder plainBuilder = generator.createBuilders().get(0);
+        plainBuilder.compilePixelCalculator(new RendererCache(1));
+        assertEquals(3, plainBuilder.getSource().split("PerlinNoise.tilingNoise").length - 1);
+
+        // The effects after a changed effect should be calculated
+        offsetNoise.getAmplitudeVar().setValue(2f);
+        assertIncrementalPicturesCorrect();
+        assertEquals(1, generator.getIntermediateCache().getReusedEffectCount());
+
+        // Values for another size can not be used
+        generator.setSize(16, 16);
+        assertNull("The stored values should be dropped when the size changes", generator.getIntermediateCache().getValues());
+        assertIncrementalPicturesCorrect();
+        assertEquals(0, generator.getIntermediateCache().getReusedEffectCount());
+
+        // Constants passed in as parameters should be compared as well
+        generator.setInteractive(true);
+        assertIncrementalPicturesCorrect();
+        offsetNoise.getAmplitudeVar().setValue(3f);
+        assertIncrementalPicturesCorrect();
+        assertEquals(1, generator.getIntermediateCache().getReusedEffectCount());
+    }
+
+    private void assertIncrementalPicturesCorrect() {
+        final SimpleGenerator plainGenerator = (SimpleGenerator) generator.copy();
+        plainGenerator.setIncremental(false);
+        final List<Picture> expected = plainGenerator.generatePictures().getPicturesAndWait();
+
+        final List<Picture> pictures = generator.generatePictures().getPicturesAndWait();
+        assertEquals(expected.size(), pictures.size());
+        for (int i = 0; i < pictures.size(); i++) {
+            assertArrayEquals("Incremental rendering should not change the result",
+                              expected.get(i).getData(), pictures.get(i).getData(), 0f);
+        }
+    }
+
     @Test
     public void testListeners() throws Exception {
         assertListenerCallCount(0);